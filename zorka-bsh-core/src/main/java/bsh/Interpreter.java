@@ -43,6 +43,8 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
 	The BeanShell script interpreter.
@@ -767,6 +769,111 @@ public class Interpreter
 		return s;
 	}
 
+	/**
+		Parse the string into statement nodes without evaluating them.
+		Returned nodes can be evaluated (possibly many times) with
+		eval( SimpleNode [] ), so callers repeatedly evaluating the same
+		text can skip tokenizing and parsing.
+
+		@throws EvalError on syntax errors
+	*/
+	public SimpleNode [] parse( String statements ) throws EvalError
+	{
+		String s = ( statements.endsWith(";") ? statements : statements+";" );
+		String sourceFileInfo = "inline evaluation of: ``"+ showEvalString(s)+"''";
+
+		Parser localParser = new Parser( new StringReader(s) );
+		List<SimpleNode> nodes = new ArrayList<SimpleNode>();
+
+		boolean eof = false;
+		try
+		{
+			while( !eof )
+			{
+				eof = localParser.Line();
+				if ( localParser.jjtree.nodeArity() > 0 )
+				{
+					SimpleNode node = (SimpleNode)localParser.jjtree.rootNode();
+					node.setSourceFile( sourceFileInfo );
+					nodes.add( node );
+					localParser.jjtree.reset();
+				}
+			}
+		} catch( ParseException e ) {
+			throw new EvalError(
+				"Sourced file: "+sourceFileInfo+" parser Error: "
+				+ e.getMessage(), null, null, e );
+		} catch( TokenMgrError e ) {
+			throw new EvalError(
+				"Sourced file: "+sourceFileInfo+" Token Parsing Error: "
+				+ e.getMessage(), null, null, e );
+		}
+
+		return nodes.toArray( new SimpleNode[nodes.size()] );
+	}
+
+	/**
+		Evaluate statement nodes obtained from parse() in this interpreter's
+		global namespace. Nodes are not consumed by evaluation, so the same
+		nodes can be evaluated many times (also concurrently - the same way
+		bodies of scripted methods are).
+
+		@throws EvalError on script problems
+		@throws TargetError on unhandled exceptions from the script
+	*/
+	public Object eval( SimpleNode [] nodes ) throws EvalError
+	{
+		Object retVal = null;
+		NameSpace nameSpace = globalNameSpace;
+		CallStack callstack = new CallStack( nameSpace );
+		BshEvaluatingVisitor evaluator = new BshEvaluatingVisitor(callstack, this);
+
+		for( SimpleNode node : nodes )
+		{
+			String sourceFileInfo = node.getSourceFile();
+			try
+			{
+				retVal = node.accept(evaluator);
+
+				if ( callstack.depth() > 1 )
+					throw new InterpreterError(
+						"Callstack growing: "+callstack);
+
+				if ( retVal instanceof ReturnControl ) {
+					retVal = ((ReturnControl)retVal).value;
+					break;
+				}
+			} catch ( InterpreterError e ) {
+				e.printStackTrace();
+				throw new EvalError(
+					"Sourced file: "+sourceFileInfo+" internal Error: "
+					+ e.getMessage(), node, callstack);
+			} catch ( TargetError e ) {
+				if ( e.getNode()==null )
+					e.setNode( node );
+				e.reThrow("Sourced file: "+sourceFileInfo);
+			} catch ( EvalError e) {
+				if ( DEBUG)
+					e.printStackTrace();
+				if ( e.getNode()==null )
+					e.setNode( node );
+				e.reThrow( "Sourced file: "+sourceFileInfo );
+			} catch ( Exception e) {
+				if ( DEBUG)
+					e.printStackTrace();
+				throw new EvalError(
+					"Sourced file: "+sourceFileInfo+" unknown error: "
+					+ e.getMessage(), node, callstack, e);
+			} finally {
+				if ( callstack.depth() > 1 ) {
+					callstack.clear();
+					callstack.push( nameSpace );
+				}
+			}
+		}
+		return Primitive.unwrap( retVal );
+	}
+
 	// end source and eval
 
 	/**
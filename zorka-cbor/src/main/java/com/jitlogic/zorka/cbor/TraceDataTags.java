@@ -33,4 +33,7 @@ public class TraceDataTags {
 
     public static final int TAG_TRACE_UP_ATTR = 0x26;
 
+    /** Batch of traces: [definitions, [uuid, trace]...], definitions and traces are byte strings. */
+    public static final int TAG_TRACE_BATCH = 0x27;
+
 }
@@ -64,6 +64,13 @@ public class AgentDiagnostics {
     public static final int TUNER_LCALLS     = 38;
     public static final int TUNER_CYCLES     = 39;
     public static final int TUNER_EXCLUSIONS = 40;
+    public static final int QUERY_CACHE_HITS   = 41;
+    public static final int QUERY_CACHE_MISSES = 42;
+    public static final int QUERY_PARSE_TIME   = 43;  // Time spent parsing agent queries
+    public static final int QUERY_PARSE_SAVED  = 44;  // Parse time saved by parsed query cache (estimated)
+    public static final int ZABBIX_SPILLED   = 45;  // Zabbix active results spilled to disk
+    public static final int ZABBIX_REPLAYED  = 46;  // Spilled zabbix active results sent to server
+    public static final int ZABBIX_DISCARDED = 47;  // Spilled zabbix active results discarded
 
 
     private static final String[] counterNames = {
@@ -108,10 +115,18 @@ public class AgentDiagnostics {
             "TunerLCalls",          // 38
             "TunerCycles",          // 39
             "TunerExclusions",      // 40
+            "QueryCacheHits",       // 41
+            "QueryCacheMisses",     // 42
+            "QueryParseTime",       // 43
+            "QueryParseSaved",      // 44
+            "ZabbixSpilled",        // 45
+            "ZabbixReplayed",       // 46
+            "ZabbixDiscarded",      // 47
     };
 
 
-    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME);
+    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME,
+        QUERY_PARSE_TIME, QUERY_PARSE_SAVED);
 
 
     private static AtomicLong[] counters;
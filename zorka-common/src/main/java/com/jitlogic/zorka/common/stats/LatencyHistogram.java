@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log-bucketed latency histogram (in the spirit of HDR histogram). Each power of 2 range is divided
+ * into 8 linear sub-buckets, so recorded values are known with at most 12.5% relative error. Values
+ * from 0 to 2^42 ns (about 73 minutes) are distinguished, larger values land in last bucket.
+ * <p/>
+ * Buckets are striped (as in StripedCounter), stripes are allocated when first thread uses them.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class LatencyHistogram {
+
+    /** Number of sub-buckets in each power of 2 range (as power of 2). */
+    private static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Largest distinguished exponent. */
+    private static final int MAX_EXP = 42;
+
+    /** Number of buckets. */
+    public static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+    /** Maximum number of stripes. */
+    private static final int MAX_STRIPES = 4;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+    public LatencyHistogram() {
+        this(Math.min(StripedCounter.DEFAULT_STRIPES, MAX_STRIPES));
+    }
+
+    public LatencyHistogram(int stripes) {
+        int n = StripedCounter.stripesFor(stripes);
+        this.mask = n - 1;
+        this.stripes = new AtomicReferenceArray<AtomicLongArray>(n);
+    }
+
+
+    /**
+     * Returns index of bucket given value falls into.
+     */
+    public static int bucket(long v) {
+        if (v < SUB_BUCKETS) {
+            return v > 0 ? (int) v : 0;
+        }
+
+        int e = 63 - Long.numberOfLeadingZeros(v);
+
+        if (e > MAX_EXP) {
+            return BUCKETS - 1;
+        }
+
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + (int) ((v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+
+    /**
+     * Returns lowest value falling into given bucket.
+     */
+    public static long bucketLow(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+        int e = idx / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + idx % SUB_BUCKETS) << (e - SUB_BITS);
+    }
+
+
+    /**
+     * Returns highest value falling into given bucket.
+     */
+    public static long bucketHigh(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+        int e = idx / SUB_BUCKETS + SUB_BITS - 1;
+        return bucketLow(idx) + (1L << (e - SUB_BITS)) - 1;
+    }
+
+
+    /**
+     * Records a value.
+     */
+    public void record(long v) {
+        record(v, StripedCounter.threadHash());
+    }
+
+
+    /**
+     * Records a value (using stripe chosen by given thread hash).
+     */
+    void record(long v, int hash) {
+        int s = hash & mask;
+        AtomicLongArray buckets = stripes.get(s);
+
+        if (buckets == null) {
+            stripes.compareAndSet(s, null, new AtomicLongArray(BUCKETS));
+            buckets = stripes.get(s);
+        }
+
+        buckets.incrementAndGet(bucket(v));
+    }
+
+
+    /**
+     * Returns bucket counts (summed over all stripes).
+     */
+    public long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int s = 0; s < stripes.length(); s++) {
+            AtomicLongArray buckets = stripes.get(s);
+            if (buckets != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += buckets.get(i);
+                }
+            }
+        }
+        return counts;
+    }
+
+
+    /**
+     * Returns bucket counts (summed over all stripes) and resets histogram. Values recorded concurrently
+     * with reset are never lost: they land either in returned counts or in histogram itself.
+     */
+    public long[] getCountsAndReset() {
+        long[] counts = new long[BUCKETS];
+        for (int s = 0; s < stripes.length(); s++) {
+            AtomicLongArray buckets = stripes.get(s);
+            if (buckets != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (buckets.get(i) != 0) {
+                        counts[i] += buckets.getAndSet(i, 0);
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+
+    /**
+     * Returns value at given quantile (eg. 0.99 for 99th percentile).
+     */
+    public long getPercentile(double q) {
+        return percentile(getCounts(), q);
+    }
+
+
+    /**
+     * Calculates value at given quantile from bucket counts. Returned value is highest value
+     * of bucket containing requested quantile (so it is never lower than actual value).
+     *
+     * @param counts bucket counts (as returned by getCounts())
+     * @param q      quantile (0.0 - 1.0)
+     * @return value at quantile or 0 if no values were recorded
+     */
+    public static long percentile(long[] counts, double q) {
+        long total = 0;
+
+        for (long c : counts) {
+            total += c;
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, Math.min(total, (long) Math.ceil(q * total)));
+
+        long n = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n >= rank) {
+                return bucketHigh(i);
+            }
+        }
+
+        return bucketHigh(counts.length - 1);
+    }
+
+
+    public void reset() {
+        for (int s = 0; s < stripes.length(); s++) {
+            AtomicLongArray buckets = stripes.get(s);
+            if (buckets != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets.set(i, 0);
+                }
+            }
+        }
+    }
+}
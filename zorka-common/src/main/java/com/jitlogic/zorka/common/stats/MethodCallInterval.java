@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+/**
+ * Immutable snapshot of method calls logged in a single interval (see MethodCallIntervals).
+ * All values are deltas, so they are not affected by other consumers reading the same statistic.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class MethodCallInterval implements ZorkaStat {
+
+    private static final long US = 1000L;
+    private static final long MS = 1000000L;
+
+    /** Consumer name. */
+    private final String name;
+
+    /** Interval start and end (in milliseconds since epoch). */
+    private final long tstart, tstop;
+
+    private final long calls, errors, time;
+
+    /** Execution times histogram (bucket counts logged in this interval). */
+    private final long[] counts;
+
+    public MethodCallInterval(String name, long tstart, long tstop,
+                              long calls, long errors, long time, long[] counts) {
+        this.name = name;
+        this.tstart = tstart;
+        this.tstop = tstop;
+        this.calls = calls;
+        this.errors = errors;
+        this.time = time;
+        this.counts = counts;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public String getUnit() {
+        return "MILLISECOND";
+    }
+
+
+    @Override
+    public String getDescription() {
+        return "Method calls logged in interval for " + name + " consumer.";
+    }
+
+
+    /** Returns interval start (in milliseconds since epoch). */
+    public long getTstart() {
+        return tstart;
+    }
+
+
+    /** Returns interval end (in milliseconds since epoch). */
+    public long getTstop() {
+        return tstop;
+    }
+
+
+    /** Returns number of calls in interval. */
+    public long getCalls() {
+        return calls;
+    }
+
+
+    /** Returns number of errors in interval. */
+    public long getErrors() {
+        return errors;
+    }
+
+
+    /** Returns summary execution time of calls in interval (in milliseconds). */
+    public long getTime() {
+        return time / MS;
+    }
+
+
+    /** Returns summary execution time of calls in interval (in microseconds). */
+    public long getTimeUs() {
+        return time / US;
+    }
+
+
+    /** Returns summary execution time of calls in interval (in nanoseconds). */
+    public long getTimeNs() {
+        return time;
+    }
+
+
+    /**
+     * Returns maximum execution time in interval (in nanoseconds). It is read from histogram,
+     * so it has at most 12.5% relative error (and is never lower than actual one).
+     */
+    public long getMaxTimeNs() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+                return LatencyHistogram.bucketHigh(i);
+            }
+        }
+        return 0;
+    }
+
+
+    /** Returns maximum execution time in interval (in milliseconds). */
+    public long getMaxTime() {
+        return getMaxTimeNs() / MS;
+    }
+
+
+    /** Returns maximum execution time in interval (in microseconds). */
+    public long getMaxTimeUs() {
+        return getMaxTimeNs() / US;
+    }
+
+
+    /**
+     * Returns execution time at given quantile (eg. 0.99 for 99th percentile) in interval.
+     *
+     * @param q quantile (0.0 - 1.0)
+     * @return execution time (in nanoseconds)
+     */
+    public long getPercentileNs(double q) {
+        return LatencyHistogram.percentile(counts, q);
+    }
+
+
+    /** Returns median execution time (in milliseconds) */
+    public long getP50() {
+        return getPercentileNs(0.5) / MS;
+    }
+
+
+    /** Returns 90th percentile of execution time (in milliseconds) */
+    public long getP90() {
+        return getPercentileNs(0.9) / MS;
+    }
+
+
+    /** Returns 99th percentile of execution time (in milliseconds) */
+    public long getP99() {
+        return getPercentileNs(0.99) / MS;
+    }
+
+
+    /** Returns 99.9th percentile of execution time (in milliseconds) */
+    public long getP999() {
+        return getPercentileNs(0.999) / MS;
+    }
+
+
+    /** Returns median execution time (in microseconds) */
+    public long getP50Us() {
+        return getPercentileNs(0.5) / US;
+    }
+
+
+    /** Returns 90th percentile of execution time (in microseconds) */
+    public long getP90Us() {
+        return getPercentileNs(0.9) / US;
+    }
+
+
+    /** Returns 99th percentile of execution time (in microseconds) */
+    public long getP99Us() {
+        return getPercentileNs(0.99) / US;
+    }
+
+
+    /** Returns 99.9th percentile of execution time (in microseconds) */
+    public long getP999Us() {
+        return getPercentileNs(0.999) / US;
+    }
+
+
+    @Override
+    public String toString() {
+        return "(calls=" + calls
+                + ", errors=" + errors
+                + ", time=" + getTime() + ")";
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-consumer interval views of a method call statistic. Each consumer (eg. zabbix, prometheus push,
+ * JMX console) is identified by name and gets its own epoch: at the end of epoch cumulative counters
+ * of statistic are compared with ones remembered at its start and resulting deltas are published
+ * as immutable MethodCallInterval object. Consumers do not reset anything, so they do not interfere
+ * with each other, and all values read by a consumer in a given epoch are consistent.
+ * <p/>
+ * Epochs are switched by compare-and-set of immutable state object, method call logging is not affected at all.
+ * <p/>
+ * Consumer name may contain epoch length in seconds (eg. "zabbix:30"), default is 60 seconds. Epochs of
+ * length 0 are switched only explicitly (see roll()), this is useful for consumers pushing data on their own schedule.
+ * <p/>
+ * Consumers are registered on first use. As consumer names can come from outside (eg. zabbix or JMX queries),
+ * at most MAX_CONSUMERS are registered, further consumers get empty intervals until some are unregistered.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class MethodCallIntervals implements ZorkaStats {
+
+    /** Default epoch length (in milliseconds). */
+    public static final long DEFAULT_PERIOD = 60000L;
+
+    /** Maximum number of registered consumers. */
+    public static final int MAX_CONSUMERS = 16;
+
+    /** Epoch state: counters at start of current epoch and interval published at its start. */
+    private static class Epoch {
+        private final long period, tstart;
+        private final long calls, errors, time;
+        private final long[] counts;
+        private final MethodCallInterval last;
+
+        private Epoch(long period, long tstart, long calls, long errors, long time, long[] counts,
+                      MethodCallInterval last) {
+            this.period = period;
+            this.tstart = tstart;
+            this.calls = calls;
+            this.errors = errors;
+            this.time = time;
+            this.counts = counts;
+            this.last = last;
+        }
+    }
+
+    private final MethodCallStatistic stat;
+
+    private final ConcurrentMap<String,AtomicReference<Epoch>> consumers =
+            new ConcurrentHashMap<String, AtomicReference<Epoch>>();
+
+    public MethodCallIntervals(MethodCallStatistic stat) {
+        this.stat = stat;
+    }
+
+
+    /**
+     * Returns last completed interval of given consumer (epoch length is parsed from consumer name).
+     */
+    @Override
+    public MethodCallInterval getStatistic(String consumer) {
+        return getInterval(consumer);
+    }
+
+
+    @Override
+    public String[] getStatisticNames() {
+        return consumers.keySet().toArray(new String[0]);
+    }
+
+
+    /**
+     * Returns last completed interval of given consumer. Epoch length is parsed from consumer name.
+     */
+    public MethodCallInterval getInterval(String consumer) {
+        return getInterval(consumer, period(consumer));
+    }
+
+
+    /**
+     * Returns last completed interval of given consumer. Consumer is registered on first call,
+     * so its first interval is empty. If current epoch is over, a new one is started.
+     *
+     * @param consumer consumer name
+     * @param period   epoch length (in milliseconds) used if consumer is not registered yet
+     * @return last completed interval
+     */
+    public MethodCallInterval getInterval(String consumer, long period) {
+        AtomicReference<Epoch> ref = epoch(consumer, period);
+        if (ref == null) {
+            return empty(consumer);
+        }
+        Epoch e = ref.get();
+        if (e.period > 0 && System.currentTimeMillis() >= e.tstart + e.period) {
+            return roll(consumer, ref, e);
+        }
+        return e.last;
+    }
+
+
+    /**
+     * Ends current epoch of given consumer and returns completed interval.
+     */
+    public MethodCallInterval roll(String consumer) {
+        AtomicReference<Epoch> ref = epoch(consumer, period(consumer));
+        return ref != null ? roll(consumer, ref, ref.get()) : empty(consumer);
+    }
+
+
+    /**
+     * Unregisters consumer, so its slot can be used by another one.
+     */
+    public void unregister(String consumer) {
+        consumers.remove(consumer);
+    }
+
+
+    private static MethodCallInterval empty(String consumer) {
+        long t = System.currentTimeMillis();
+        return new MethodCallInterval(consumer, t, t, 0, 0, 0, new long[LatencyHistogram.BUCKETS]);
+    }
+
+
+    private MethodCallInterval roll(String consumer, AtomicReference<Epoch> ref, Epoch e) {
+        long tstop = System.currentTimeMillis();
+        long errors = stat.getErrors(), calls = stat.getCalls(), time = stat.getTimeNs();
+        long[] counts = stat.getHistogram().getCounts();
+
+        long[] delta = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            delta[i] = Math.max(0, counts[i] - e.counts[i]);
+        }
+
+        MethodCallInterval interval = new MethodCallInterval(consumer, e.tstart, tstop,
+                calls - e.calls, Math.min(errors - e.errors, calls - e.calls), time - e.time, delta);
+
+        if (ref.compareAndSet(e, new Epoch(e.period, tstop, calls, errors, time, counts, interval))) {
+            return interval;
+        }
+
+        // Someone else switched epoch in the meantime, use result published by it
+        return ref.get().last;
+    }
+
+
+    /**
+     * Returns epoch of given consumer, registering it if necessary (or null if there are too many consumers).
+     */
+    private AtomicReference<Epoch> epoch(String consumer, long period) {
+        AtomicReference<Epoch> ref = consumers.get(consumer);
+
+        if (ref == null) {
+            if (consumers.size() >= MAX_CONSUMERS) {
+                return null;
+            }
+            long t = System.currentTimeMillis();
+            long[] counts = stat.getHistogram().getCounts();
+            Epoch e = new Epoch(period, t, stat.getCalls(), stat.getErrors(), stat.getTimeNs(), counts,
+                    new MethodCallInterval(consumer, t, t, 0, 0, 0, new long[counts.length]));
+            AtomicReference<Epoch> r = consumers.putIfAbsent(consumer, ref = new AtomicReference<Epoch>(e));
+            if (r != null) {
+                ref = r;
+            }
+        }
+
+        return ref;
+    }
+
+
+    /**
+     * Parses epoch length from consumer name (eg. "zabbix:30" means 30 seconds).
+     */
+    private static long period(String consumer) {
+        int ix = consumer.lastIndexOf(':');
+        if (ix >= 0) {
+            try {
+                return Long.parseLong(consumer.substring(ix + 1).trim()) * 1000L;
+            } catch (NumberFormatException e) {
+                return DEFAULT_PERIOD;
+            }
+        }
+        return DEFAULT_PERIOD;
+    }
+
+
+    @Override
+    public String toString() {
+        return "MethodCallIntervals(" + consumers.keySet() + ")";
+    }
+}
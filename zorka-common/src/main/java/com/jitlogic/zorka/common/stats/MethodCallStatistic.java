@@ -18,9 +18,16 @@
 package com.jitlogic.zorka.common.stats;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Represents statistics of calls to a single method.
+ * Represents statistics of calls to a single method. Summary counters are striped (as in StripedCounter),
+ * so threads concurrently logging calls do not contend for the same cache line. Call times are also
+ * recorded in latency histogram, so percentiles of execution time are available. Stripes are allocated
+ * when first thread uses them and histogram is allocated when first call time is recorded, so statistics
+ * that are rarely used (or used only as counters) stay small. Counters are never reset
+ * by reading, except for *CLR attributes, use per-consumer intervals for interval semantics (see getIntervals()).
  *
  * @author rafal.lewczuk@jitlogic.com
  */
@@ -41,20 +48,38 @@ public class MethodCallStatistic implements ZorkaStat {
      */
     private String description;
 
+    /** Maximum number of stripes. */
+    private static final int MAX_STRIPES = 8;
+
+    /** Stripe size (in longs): 8 longs = 64 bytes = typical cache line. */
+    private static final int PAD = 8;
+
+    /** Offsets of summary counters in a stripe. */
+    private static final int CALLS = 0, ERRORS = 1, TIME = 2, MAX_TIME = 3, THROUGHPUT = 4, MAX_THROUGHPUT = 5;
+
+    private static final int STRIPES = Math.min(StripedCounter.DEFAULT_STRIPES, MAX_STRIPES);
+
     /**
-     * Summary data.
+     * Summary data (calls, errors, time, maxTime, throughput, maxThroughput), striped.
      */
-    private AtomicLong calls, errors, time, maxTime;
+    private final AtomicReferenceArray<AtomicLongArray> cells;
+
+    private final int mask;
 
     /**
-     * Contention monitoring.
+     * Execution times histogram (created on first use).
      */
-    private AtomicLong curThreads, maxThreads;
+    private volatile LatencyHistogram histogram;
 
     /**
-     * Throughput monitoring.
+     * Per-consumer interval views (created on first use).
      */
-    private AtomicLong throughput, maxThroughput;
+    private volatile MethodCallIntervals intervals;
+
+    /**
+     * Contention monitoring.
+     */
+    private AtomicLong curThreads, maxThreads;
 
     /**
      * Standard constructor.
@@ -63,16 +88,72 @@ public class MethodCallStatistic implements ZorkaStat {
      */
     public MethodCallStatistic(String name) {
         this.name = name;
-        this.calls = new AtomicLong(0);
-        this.errors = new AtomicLong(0);
-        this.time = new AtomicLong(0);
-        this.maxTime = new AtomicLong(0);
+        this.cells = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+        this.mask = STRIPES - 1;
 
         this.curThreads = new AtomicLong(0);
         this.maxThreads = new AtomicLong(0);
+    }
+
+
+    /**
+     * Returns stripe for given thread hash (allocating it if necessary).
+     */
+    private AtomicLongArray stripe(int hash) {
+        int s = hash & mask;
+        AtomicLongArray c = cells.get(s);
+
+        if (c == null) {
+            cells.compareAndSet(s, null, new AtomicLongArray(PAD));
+            c = cells.get(s);
+        }
+
+        return c;
+    }
+
+
+    private long sum(int field) {
+        long sum = 0;
+        for (int s = 0; s < cells.length(); s++) {
+            AtomicLongArray c = cells.get(s);
+            if (c != null) {
+                sum += c.get(field);
+            }
+        }
+        return sum;
+    }
+
 
-        this.throughput = new AtomicLong(0);
-        this.maxThroughput = new AtomicLong(0);
+    private long max(int field) {
+        long m = 0;
+        for (int s = 0; s < cells.length(); s++) {
+            AtomicLongArray c = cells.get(s);
+            if (c != null) {
+                m = Math.max(m, c.get(field));
+            }
+        }
+        return m;
+    }
+
+
+    private long maxAndReset(int field) {
+        long m = 0;
+        for (int s = 0; s < cells.length(); s++) {
+            AtomicLongArray c = cells.get(s);
+            if (c != null) {
+                m = Math.max(m, c.getAndSet(field, 0));
+            }
+        }
+        return m;
+    }
+
+
+    private static void setMax(AtomicLongArray c, int field, long v) {
+        for (long m = c.get(field); v > m; m = c.get(field)) {
+            if (c.compareAndSet(field, m, v)) {
+                break;
+            }
+        }
     }
 
 
@@ -107,7 +188,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return number of calls
      */
     public long getCalls() {
-        return calls.longValue();
+        return sum(CALLS);
     }
 
 
@@ -117,7 +198,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return number of errors
      */
     public long getErrors() {
-        return errors.longValue();
+        return sum(ERRORS);
     }
 
 
@@ -127,7 +208,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (milliseconds)
      */
     public long getTime() {
-        return time.longValue() / MS;
+        return sum(TIME) / MS;
     }
 
 
@@ -137,7 +218,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (microseconds)
      */
     public long getTimeUs() {
-        return time.longValue() / US;
+        return sum(TIME) / US;
     }
 
 
@@ -147,7 +228,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (nanoseconds)
      */
     public long getTimeNs() {
-        return time.longValue();
+        return sum(TIME);
     }
 
 
@@ -157,7 +238,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in milliseconds)
      */
     public long getMaxTime() {
-        return maxTime.longValue() / MS;
+        return max(MAX_TIME) / MS;
     }
 
 
@@ -167,7 +248,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in microseconds)
      */
     public long getMaxTimeUs() {
-        return maxTime.longValue() / US;
+        return max(MAX_TIME) / US;
     }
 
 
@@ -177,7 +258,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in nanoseconds)
      */
     public long getMaxTimeNs() {
-        return maxTime.longValue();
+        return max(MAX_TIME);
     }
 
     /**
@@ -209,7 +290,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in milliseconds)
      */
     public long getMaxTimeNsCLR() {
-        return getMaxCLR(maxTime);
+        return maxAndReset(MAX_TIME);
     }
 
     /**
@@ -233,7 +314,12 @@ public class MethodCallStatistic implements ZorkaStat {
      * Marks method entry. This is used for contention monitoring.
      */
     public void markEnter() {
-        setMax(maxThreads, curThreads.incrementAndGet());
+        long v = curThreads.incrementAndGet();
+        for (long m = maxThreads.get(); v > m; m = maxThreads.get()) {
+            if (maxThreads.compareAndSet(m, v)) {
+                break;
+            }
+        }
     }
 
 
@@ -282,7 +368,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return current summary throughput value
      */
     public long getThroughput() {
-        return throughput.get();
+        return sum(THROUGHPUT);
     }
 
 
@@ -292,7 +378,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum throughput recorded
      */
     public long getMaxThroughput() {
-        return maxThroughput.get();
+        return max(MAX_THROUGHPUT);
     }
 
 
@@ -302,26 +388,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum throughput recorded
      */
     public long getMaxThroughputCLR() {
-        return getMaxCLR(maxThroughput);
-    }
-
-
-    /**
-     * Sets maximum value to an atomic counter
-     * in thread safe manner.
-     *
-     * @param v sample value
-     */
-    private void setMax(AtomicLong counter, long v) {
-        long v2 = counter.longValue();
-
-        while (v > v2) {
-            if (!counter.compareAndSet(v2, v)) {
-                v2 = counter.longValue();
-            } else {
-                return;
-            }
-        }
+        return maxAndReset(MAX_THROUGHPUT);
     }
 
 
@@ -330,7 +397,10 @@ public class MethodCallStatistic implements ZorkaStat {
      * This is useful when using stats only as counter only.
      */
     public void logCall() {
-        logCall(1);
+        AtomicLongArray c = stripe(StripedCounter.threadHash());
+        c.incrementAndGet(CALLS);
+        c.incrementAndGet(TIME);
+        setMax(c, MAX_TIME, 1);
     }
 
 
@@ -340,9 +410,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param time execution time
      */
     public void logCall(long time) {
-        this.calls.incrementAndGet();
-        this.time.addAndGet(time);
-        this.setMax(maxTime, time);
+        log(StripedCounter.threadHash(), time, false);
     }
 
 
@@ -353,9 +421,9 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param throughput throughput value (eg. data packet size)
      */
     public void logCall(long time, long throughput) {
-        logCall(time);
-        this.throughput.addAndGet(throughput);
-        this.setMax(maxThroughput, throughput);
+        AtomicLongArray c = log(StripedCounter.threadHash(), time, false);
+        c.addAndGet(THROUGHPUT, throughput);
+        setMax(c, MAX_THROUGHPUT, throughput);
     }
 
 
@@ -367,10 +435,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param time execution time
      */
     public void logError(long time) {
-        this.errors.incrementAndGet();
-        this.calls.incrementAndGet();
-        this.time.addAndGet(time);
-        this.setMax(maxTime, time);
+        log(StripedCounter.threadHash(), time, true);
     }
 
 
@@ -383,9 +448,130 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param throughput throughput
      */
     public void logError(long time, long throughput) {
-        logError(time);
-        this.throughput.addAndGet(throughput);
-        this.setMax(maxThroughput, throughput);
+        AtomicLongArray c = log(StripedCounter.threadHash(), time, true);
+        c.addAndGet(THROUGHPUT, throughput);
+        setMax(c, MAX_THROUGHPUT, throughput);
+    }
+
+
+    private AtomicLongArray log(int hash, long time, boolean error) {
+        AtomicLongArray c = stripe(hash);
+        c.incrementAndGet(CALLS);
+        if (error) {
+            c.incrementAndGet(ERRORS);
+        }
+        c.addAndGet(TIME, time);
+        setMax(c, MAX_TIME, time);
+        getHistogram().record(time, hash);
+        return c;
+    }
+
+
+    /**
+     * Returns execution time at given quantile (eg. 0.99 for 99th percentile).
+     * Returned value has at most 12.5% relative error (and is never lower than actual one).
+     *
+     * @param q quantile (0.0 - 1.0)
+     * @return execution time (in nanoseconds)
+     */
+    public long getPercentileNs(double q) {
+        LatencyHistogram h = histogram;
+        return h != null ? h.getPercentile(q) : 0;
+    }
+
+
+    /** Returns median execution time (in milliseconds) */
+    public long getP50() {
+        return getPercentileNs(0.5) / MS;
+    }
+
+
+    /** Returns 90th percentile of execution time (in milliseconds) */
+    public long getP90() {
+        return getPercentileNs(0.9) / MS;
+    }
+
+
+    /** Returns 99th percentile of execution time (in milliseconds) */
+    public long getP99() {
+        return getPercentileNs(0.99) / MS;
+    }
+
+
+    /** Returns 99.9th percentile of execution time (in milliseconds) */
+    public long getP999() {
+        return getPercentileNs(0.999) / MS;
+    }
+
+
+    /** Returns median execution time (in microseconds) */
+    public long getP50Us() {
+        return getPercentileNs(0.5) / US;
+    }
+
+
+    /** Returns 90th percentile of execution time (in microseconds) */
+    public long getP90Us() {
+        return getPercentileNs(0.9) / US;
+    }
+
+
+    /** Returns 99th percentile of execution time (in microseconds) */
+    public long getP99Us() {
+        return getPercentileNs(0.99) / US;
+    }
+
+
+    /** Returns 99.9th percentile of execution time (in microseconds) */
+    public long getP999Us() {
+        return getPercentileNs(0.999) / US;
+    }
+
+
+    /**
+     * Returns execution times histogram.
+     */
+    public LatencyHistogram getHistogram() {
+        LatencyHistogram h = histogram;
+
+        if (h == null) {
+            synchronized (this) {
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                }
+                h = histogram;
+            }
+        }
+
+        return h;
+    }
+
+
+    /**
+     * Returns per-consumer interval views of this statistic. Unlike *CLR attributes,
+     * intervals of one consumer are not affected by other consumers reading this statistic.
+     */
+    public MethodCallIntervals getIntervals() {
+        MethodCallIntervals mci = intervals;
+
+        if (mci == null) {
+            synchronized (this) {
+                if (intervals == null) {
+                    intervals = new MethodCallIntervals(this);
+                }
+                mci = intervals;
+            }
+        }
+
+        return mci;
+    }
+
+
+    /**
+     * Returns last completed interval of given consumer (see MethodCallIntervals).
+     */
+    public MethodCallInterval getInterval(String consumer) {
+        return getIntervals().getInterval(consumer);
     }
 
 
@@ -17,6 +17,8 @@
 
 package com.jitlogic.zorka.common.stats;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -70,6 +72,24 @@ public class MethodCallStatistics implements ZorkaStats {
     }
 
 
+    /**
+     * Ends current epoch of given consumer for all statistics and returns completed intervals.
+     * This is intended for consumers pushing data on their own schedule.
+     *
+     * @param consumer consumer name
+     * @return map of completed intervals (by statistic name)
+     */
+    public Map<String,MethodCallInterval> rollIntervals(String consumer) {
+        Map<String,MethodCallInterval> rslt = new HashMap<String, MethodCallInterval>();
+
+        for (Map.Entry<String,MethodCallStatistic> e : stats.entrySet()) {
+            rslt.put(e.getKey(), e.getValue().getIntervals().roll(consumer));
+        }
+
+        return rslt;
+    }
+
+
     @Override
     public String toString() {
         return stats.toString();
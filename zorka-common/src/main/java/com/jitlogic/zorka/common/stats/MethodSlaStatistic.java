@@ -17,42 +17,59 @@
 
 package com.jitlogic.zorka.common.stats;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
- *
+ * SLA statistic: percentage of calls that neither failed nor exceeded time threshold since last
+ * getSlaCLR() call. Counters are striped and never reset, both getSla() and getSlaCLR() compare them
+ * with values remembered at previous getSlaCLR() call, so neither logging nor reading involves locks.
  */
 public class MethodSlaStatistic implements ZorkaStat {
 
-    private long threshold;
+    private final long threshold;
+
+    private final StripedCounter calls = new StripedCounter();
 
-    private long calls;
+    private final StripedCounter errors = new StripedCounter();
 
-    private long errors;
+    /** Number of calls and errors at last getSlaCLR() call. */
+    private final AtomicReference<long[]> base = new AtomicReference<long[]>(new long[2]);
 
     public MethodSlaStatistic(int threshold) {
         this.threshold = threshold * 1000000L;
     }
 
-    public synchronized double getSla() {
-        return calls != 0 ? 100.0 * (calls - errors) / calls : 100.0;
+    private static double sla(long calls, long errors) {
+        return calls > 0 ? 100.0 * (calls - Math.max(0, Math.min(errors, calls))) / calls : 100.0;
+    }
+
+    /**
+     * Returns SLA since last getSlaCLR() call (without resetting it).
+     */
+    public double getSla() {
+        long e = errors.get(), c = calls.get();
+        long[] b = base.get();
+        return sla(c - b[0], e - b[1]);
     }
 
-    public synchronized double getSlaCLR() {
-        double rslt = getSla();
-        calls = 0; errors = 0;
-        return rslt;
+    public double getSlaCLR() {
+        // Errors are read before calls (and counted after calls), so every counted error has its call counted.
+        long e = errors.get(), c = calls.get();
+        long[] b = base.getAndSet(new long[] { c, e });
+        return sla(c - b[0], e - b[1]);
     }
 
-    public synchronized void logCall(long t) {
-        calls++;
+    public void logCall(long t) {
+        calls.inc();
 
         if (t > threshold) {
-            errors++;
+            errors.inc();
         }
     }
 
-    public synchronized  void logError(long t) {
-        calls++;
-        errors++;
+    public void logError(long t) {
+        calls.inc();
+        errors.inc();
     }
 
     @Override
@@ -72,6 +89,6 @@ public class MethodSlaStatistic implements ZorkaStat {
 
     @Override
     public String toString() {
-        return "SLA(sla=" + String.format("%.2d", getSla()) + ")";
+        return "SLA(sla=" + String.format("%.2f", getSla()) + ")";
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates across several cache-line padded cells, so threads
+ * incrementing it concurrently do not fight for the same cache line. Reads sum all
+ * cells, so they are more expensive than updates and not atomic with respect to them.
+ *
+ * This is poor man's LongAdder, usable on all JVMs supported by agent.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class StripedCounter {
+
+    /** Distance between cells (in longs): 8 longs = 64 bytes = typical cache line. */
+    private static final int PAD = 8;
+
+    /** Default number of stripes (rounded up to power of 2). */
+    public static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final int mask;
+
+    private final AtomicLongArray cells;
+
+    public StripedCounter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedCounter(int stripes) {
+        int n = stripesFor(stripes);
+        mask = n - 1;
+        cells = new AtomicLongArray(n * PAD);
+    }
+
+    /**
+     * Returns power of 2 not smaller than n (and at least 1).
+     */
+    public static int stripesFor(int n) {
+        int s = 1;
+        while (s < n) {
+            s <<= 1;
+        }
+        return s;
+    }
+
+    /**
+     * Returns stripe index for calling thread.
+     */
+    private int cell() {
+        return (threadHash() & mask) * PAD;
+    }
+
+    /**
+     * Returns hash of calling thread used to choose stripes (also by other striped statistics).
+     */
+    static int threadHash() {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    public void inc() {
+        cells.incrementAndGet(cell());
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(cell(), delta);
+    }
+
+    /**
+     * Updates maximum value in calling thread's cell. Use with max() to obtain global maximum.
+     */
+    public void max(long v) {
+        int c = cell();
+        for (long m = cells.get(c); v > m; m = cells.get(c)) {
+            if (cells.compareAndSet(c, m, v)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns sum of all cells.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns maximum of all cells (makes sense only if counter is updated by max()).
+     */
+    public long getMax() {
+        long m = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            m = Math.max(m, cells.get(i));
+        }
+        return m;
+    }
+
+    /**
+     * Resets all cells to zero and returns sum of values found in them.
+     * Updates performed concurrently with reset are never lost: they land
+     * either in returned value or in counter itself.
+     */
+    public long getAndReset() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.getAndSet(i, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets all cells to zero and returns maximum of values found in them.
+     */
+    public long getMaxAndReset() {
+        long m = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            m = Math.max(m, cells.getAndSet(i, 0));
+        }
+        return m;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PAD) {
+            cells.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
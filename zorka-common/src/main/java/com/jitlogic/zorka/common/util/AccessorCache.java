@@ -0,0 +1,387 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.util;
+
+import com.jitlogic.zorka.common.stats.ZorkaStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of attribute accessors used by ObjectInspector. For each (class, attribute name) pair
+ * getter method or field is resolved only once, attributes that cannot be resolved are cached
+ * as well (negative lookups). Resolved methods and fields are made accessible once, so subsequent
+ * calls do not need any locking. Methods and fields that cannot be made accessible (eg. members
+ * of non-open JDK modules) are cached as NONE.
+ * <p/>
+ * Classes are weakly referenced, but per-class accessor maps are softly referenced and accessors
+ * (methods, fields) refer to their classes, so unloaded application classes (eg. after redeployment)
+ * can be collected only after soft references are cleared (ie. when memory is short). Lookups are
+ * lock free: class table is an open addressing hash table, new classes are added in place and table
+ * is rebuilt (with doubled capacity if necessary) only when it gets half full.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public final class AccessorCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AccessorCache.class);
+
+    /** Attribute accessor. */
+    public interface Accessor {
+        /** Returns attribute value of given object (or null if it cannot be obtained). */
+        Object get(Object obj);
+    }
+
+    /** Accessor for attributes that cannot be resolved. */
+    public static final Accessor NONE = new Accessor() {
+        @Override
+        public Object get(Object obj) {
+            return null;
+        }
+        @Override
+        public String toString() {
+            return "NONE";
+        }
+    };
+
+    private static class MethodAccessor implements Accessor {
+        private final Method method;
+
+        private MethodAccessor(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        public Object get(Object obj) {
+            try {
+                return method.invoke(obj);
+            } catch (Exception e) {
+                log.debug("Method '" + method.getName() + "' invocation failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "M(" + method.getName() + ")";
+        }
+    }
+
+    private static class FieldAccessor implements Accessor {
+        private final Field field;
+
+        private FieldAccessor(Field field) {
+            this.field = field;
+        }
+
+        @Override
+        public Object get(Object obj) {
+            try {
+                return field.get(obj);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "F(" + field.getName() + ")";
+        }
+    }
+
+
+    /**
+     * Accessors and other (immutable) properties of a single class.
+     */
+    public static final class ClassInfo {
+
+        private final boolean j2eeStats, plain;
+
+        private final ConcurrentMap<String,Accessor> accessors = new ConcurrentHashMap<String,Accessor>(16, 0.75f, 2);
+
+        private ClassInfo(Class<?> clazz) {
+            j2eeStats = ZorkaUtil.instanceOf(clazz, "javax.management.j2ee.statistics.Stats");
+            plain = !j2eeStats && !clazz.isArray() && !clazz.isInterface()
+                && !Map.class.isAssignableFrom(clazz) && !List.class.isAssignableFrom(clazz)
+                && !CompositeData.class.isAssignableFrom(clazz) && !TabularData.class.isAssignableFrom(clazz)
+                && !ZorkaStats.class.isAssignableFrom(clazz) && !JmxObject.class.isAssignableFrom(clazz)
+                && !Throwable.class.isAssignableFrom(clazz) && clazz != Class.class;
+        }
+
+        /**
+         * Returns true if objects of this class are plain java beans, i.e. none of types
+         * handled specially by ObjectInspector (maps, lists, arrays, JMX data, stats etc.).
+         */
+        public boolean isPlain() {
+            return plain;
+        }
+
+        /** Returns true if class implements J2EE Stats interface. */
+        public boolean isJ2eeStats() {
+            return j2eeStats;
+        }
+
+        /**
+         * Returns accessor for given key (resolving it if necessary). Key syntax is the same as in
+         * ObjectInspector.getAttr(): 'name()' for explicit method call, '.name' for direct field access,
+         * otherwise getter (getName() or isName()), method (name()) or field is looked for (in this order).
+         */
+        public Accessor get(Class<?> clazz, String key) {
+            Accessor a = accessors.get(key);
+
+            if (a == null) {
+                a = resolve(clazz, key);
+                accessors.put(key, a);
+            }
+
+            return a;
+        }
+
+        /** Returns number of cached accessors. */
+        public int size() {
+            return accessors.size();
+        }
+    }
+
+
+    private static Accessor resolve(Class<?> clazz, String key) {
+        Method method;
+
+        if (key.endsWith("()")) {
+            method = ObjectInspector.lookupMethod(clazz, key.substring(0, key.length() - 2));
+            return method != null ? method(method) : NONE;
+        }
+
+        if (key.startsWith(".")) {
+            return field(clazz, key.substring(1));
+        }
+
+        String name = key.substring(0, 1).toUpperCase() + key.substring(1);
+
+        method = ObjectInspector.lookupMethod(clazz, "get" + name);
+
+        if (method == null) {
+            method = ObjectInspector.lookupMethod(clazz, "is" + name);
+        }
+
+        if (method == null) {
+            method = ObjectInspector.lookupMethod(clazz, key);
+        }
+
+        return method != null ? method(method) : field(clazz, key);
+    }
+
+
+    private static Accessor method(Method method) {
+        try {
+            method.setAccessible(true);
+        } catch (RuntimeException e) {
+            // SecurityException or (since JDK 9) InaccessibleObjectException
+            log.debug("Cannot make method '" + method + "' accessible", e);
+            return NONE;
+        }
+        return new MethodAccessor(method);
+    }
+
+
+    private static Accessor field(Class<?> clazz, String name) {
+        Field field = ObjectInspector.lookupField(clazz, name);
+
+        if (field == null) {
+            return NONE;
+        }
+
+        try {
+            field.setAccessible(true);
+        } catch (RuntimeException e) {
+            log.debug("Cannot make field '" + field + "' accessible", e);
+            return NONE;
+        }
+
+        return new FieldAccessor(field);
+    }
+
+
+    /** Class table entry. */
+    private static class Entry extends WeakReference<Class<?>> {
+        private final int hash;
+        private volatile SoftReference<ClassInfo> info;
+
+        private Entry(Class<?> clazz, int hash, ClassInfo info) {
+            super(clazz);
+            this.hash = hash;
+            this.info = new SoftReference<ClassInfo>(info);
+        }
+    }
+
+    private static final int MIN_CAPACITY = 64;
+
+    private static volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+
+    /** Number of occupied slots in class table (including entries of unloaded classes). */
+    private static int used;
+
+
+    /**
+     * Private constructor to block instantiation of utility class.
+     */
+    private AccessorCache() {
+    }
+
+
+    /**
+     * Returns cached information about given class (registering it if necessary).
+     */
+    public static ClassInfo forClass(Class<?> clazz) {
+        int hash = System.identityHashCode(clazz);
+        Entry e = lookup(table, clazz, hash);
+
+        if (e != null) {
+            ClassInfo info = e.info.get();
+            if (info != null) {
+                return info;
+            }
+        }
+
+        return register(clazz, hash);
+    }
+
+
+    /**
+     * Returns attribute accessor for given class and key.
+     */
+    public static Accessor get(Class<?> clazz, String key) {
+        return forClass(clazz).get(clazz, key);
+    }
+
+
+    private static Entry lookup(AtomicReferenceArray<Entry> tab, Class<?> clazz, int hash) {
+        int mask = tab.length() - 1;
+
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry e = tab.get(i);
+            if (e == null || e.get() == clazz) {
+                return e;
+            }
+        }
+    }
+
+
+    private static synchronized ClassInfo register(Class<?> clazz, int hash) {
+        Entry e = lookup(table, clazz, hash);
+
+        if (e != null) {
+            ClassInfo info = e.info.get();
+            if (info == null) {
+                // Accessors have been collected, class itself is still here
+                e.info = new SoftReference<ClassInfo>(info = new ClassInfo(clazz));
+            }
+            return info;
+        }
+
+        if ((used + 1) * 2 > table.length()) {
+            rebuild();
+        }
+
+        ClassInfo info = new ClassInfo(clazz);
+        insert(table, new Entry(clazz, hash, info));
+        used++;
+
+        return info;
+    }
+
+
+    /**
+     * Rebuilds class table dropping entries of unloaded classes. Capacity is chosen so that at least
+     * as many classes as are live now can be registered before next rebuild, so registration cost
+     * stays constant (amortized).
+     */
+    private static void rebuild() {
+        AtomicReferenceArray<Entry> tab = table;
+        int live = 0;
+
+        for (int i = 0; i < tab.length(); i++) {
+            Entry e = tab.get(i);
+            if (e != null && e.get() != null) {
+                live++;
+            }
+        }
+
+        int capacity = MIN_CAPACITY;
+        while (capacity < (live + 1) * 4) {
+            capacity <<= 1;
+        }
+
+        AtomicReferenceArray<Entry> ntab = new AtomicReferenceArray<Entry>(capacity);
+
+        for (int i = 0; i < tab.length(); i++) {
+            Entry e = tab.get(i);
+            if (e != null && e.get() != null) {
+                insert(ntab, e);
+            }
+        }
+
+        table = ntab;
+        used = live;
+    }
+
+
+    private static void insert(AtomicReferenceArray<Entry> tab, Entry e) {
+        int mask = tab.length() - 1;
+        int i = e.hash & mask;
+        while (tab.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        tab.set(i, e);
+    }
+
+
+    /**
+     * Returns number of registered classes (some of them might have been unloaded already).
+     */
+    public static synchronized int size() {
+        AtomicReferenceArray<Entry> tab = table;
+        int size = 0;
+        for (int i = 0; i < tab.length(); i++) {
+            Entry e = tab.get(i);
+            if (e != null && e.get() != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns current capacity of class table.
+     */
+    public static int capacity() {
+        return table.length();
+    }
+}
@@ -88,6 +88,20 @@ public class BitVector {
     }
 
 
+    /**
+     * Clears a bit in vector.
+     *
+     * @param bit bit number
+     */
+    public void clear(int bit) {
+        int idx = bit >> 6, off = bit & 63;
+
+        if (idx < len) {
+            bits[idx] &= ~(1L << off);
+        }
+    }
+
+
     /**
      * Zeroes all bits in this vector.
      */
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer multi-consumer ring queue (D.Vyukov's algorithm).
+ * Each slot has its own sequence number, so there is no ABA problem even if the same
+ * objects are pushed and popped repeatedly (as it is the case with buffer pools).
+ * Neither offer() nor poll() allocate memory.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ConcurrentRing<T> {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<T> items;
+
+    private final AtomicLongArray seqs;
+
+    private final AtomicLong head = new AtomicLong(0);
+
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Creates new ring.
+     *
+     * @param capacity ring capacity (will be rounded up to nearest power of 2)
+     */
+    public ConcurrentRing(int capacity) {
+        int n = 2;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        items = new AtomicReferenceArray<T>(n);
+        seqs = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            seqs.set(i, i);
+        }
+    }
+
+    /**
+     * Adds item at the end of queue.
+     *
+     * @return true if item has been added, false if ring was full
+     */
+    public boolean offer(T item) {
+        for (;;) {
+            long pos = tail.get();
+            int idx = (int)(pos & mask);
+            long dif = seqs.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos+1)) {
+                    items.lazySet(idx, item);
+                    seqs.set(idx, pos+1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes item from the head of queue.
+     *
+     * @return removed item or null if ring was empty
+     */
+    public T poll() {
+        for (;;) {
+            long pos = head.get();
+            int idx = (int)(pos & mask);
+            long dif = seqs.get(idx) - (pos+1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos+1)) {
+                    T item = items.get(idx);
+                    items.lazySet(idx, null);
+                    seqs.set(idx, pos+mask+1);
+                    return item;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns approximate number of items in the ring. Result is exact only in quiescent state.
+     */
+    public int size() {
+        long sz = tail.get() - head.get();
+        return sz < 0 ? 0 : (int)Math.min(sz, mask+1);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
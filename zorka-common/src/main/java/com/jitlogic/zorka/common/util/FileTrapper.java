@@ -22,14 +22,28 @@ import org.slf4j.impl.ZorkaLogLevel;
 import org.slf4j.impl.ZorkaTrapper;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * File trapper implements trapper interface that logs messages to local file.
  * Two kinds of log files are defined: rolling (rotating) log and daily log
  * (with yyyy-mm-dd suffixes).
+ * <p/>
+ * Messages are passed via bounded submit queue to background thread that encodes them into
+ * reusable buffer and writes them to file in batches. Timestamps are formatted once per second
+ * and reused by all messages logged in that second. If fsync is enabled, it is performed at
+ * most once per configured interval (group fsync). Data written since last fsync is synced at
+ * the end of interval even if no more messages arrive.
  *
  * @author rafal.lewczuk@jitlogic.com
  */
@@ -37,6 +51,11 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
 
     public static volatile boolean ENABLE_FSYNC = false;
 
+    /**
+     * Minimum interval between subsequent fsync() calls (in milliseconds).
+     */
+    public static volatile long FSYNC_INTERVAL = 1000;
+
     /**
      * Rolling (rotating) file trapper maintains limited numebr of archived logs.
      */
@@ -47,6 +66,26 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
      */
     private static final int DAILY = 2;
 
+    /**
+     * Submit queue length and maximum number of messages written in single batch.
+     */
+    private static final int QUEUE_LENGTH = 1024, BATCH_LENGTH = 256;
+
+    private static final byte[] EOL = System.getProperty("line.separator", "\n").getBytes();
+
+    /**
+     * Timestamp formatted for given second.
+     */
+    private static class Timestamp {
+        private final long second;
+        private final String text;
+
+        private Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
     /**
      * Base log file
      */
@@ -73,17 +112,31 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
     private boolean logExceptions = true;
 
     /**
-     * Output (as print stream)
+     * Output (as output stream)
      */
-    private PrintStream out;
+    private FileOutputStream os;
 
     /**
-     * Output (as output stream)
+     * Output (as channel)
      */
-    private FileOutputStream os;
+    private FileChannel channel;
+
+    /**
+     * Reusable output buffer and encoder (used only by trapper thread)
+     */
+    private final ByteBuffer buf = ByteBuffer.allocate(65536);
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Cached timestamp and its formatter (guarded by formatter itself)
+     */
+    private volatile Timestamp timestamp;
+    private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     /**
-     * Current log size (for rolling trappers)
+     * Current log size (for rolling trappers), not including data still waiting in buffer
      */
     private long currentSize;
 
@@ -92,6 +145,17 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
      */
     private String currentSuffix;
 
+    /**
+     * Time of last fsync() and whether there is unsynced data
+     */
+    private long tsync;
+    private boolean unsynced;
+
+    /**
+     * Reusable batch of messages (used only by trapper thread)
+     */
+    private final List<String> batch = new ArrayList<String>(BATCH_LENGTH);
+
     /**
      * Creates new rolling trapper.
      *
@@ -130,7 +194,7 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
      * @param logExceptions log stack traces of exceptions if true
      */
     private FileTrapper(File logFile, int type, int maxLogs, long size, boolean logExceptions) {
-        super(logFile.getName());
+        super(logFile.getName(), QUEUE_LENGTH, BATCH_LENGTH);
         this.logFile = logFile;
         this.type = type;
         this.maxLogs = maxLogs;
@@ -141,14 +205,15 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
 
     @Override
     public void trap(ZorkaLogLevel logLevel, String tag, String message, Throwable e, Object... args) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
-        sb.append(" ");
+        String msg = format(message, args);
+        StringBuilder sb = new StringBuilder(msg.length() + tag.length() + 32);
+        sb.append(timestamp());
+        sb.append(' ');
         sb.append(logLevel);
-        sb.append(" ");
+        sb.append(' ');
         sb.append(tag);
-        sb.append(" ");
-        sb.append(format(message, args));
+        sb.append(' ');
+        sb.append(msg);
 
         if (e != null) {
             sb.append(" [");
@@ -177,6 +242,24 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
     }
 
 
+    /**
+     * Returns current time formatted as yyyy-MM-dd HH:mm:ss. Formatting is done once per second.
+     */
+    private String timestamp() {
+        long second = System.currentTimeMillis() / 1000L;
+        Timestamp ts = timestamp;
+
+        if (ts == null || ts.second != second) {
+            synchronized (formatter) {
+                ts = new Timestamp(second, formatter.format(new Date(second * 1000L)));
+            }
+            timestamp = ts;
+        }
+
+        return ts.text;
+    }
+
+
     /**
      * Formats string. Used by other trapper functions. If there are no arguments, string formatting
      * is skipped and message string (template) is returned right away. See String.format() description
@@ -199,42 +282,116 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
     }
 
 
+    /**
+     * Processes batch of messages from submit queue. If there is unsynced data, waits for messages
+     * no longer than until end of current fsync interval, so last batch of a burst is also synced.
+     */
+    @Override
+    public void runCycle() {
+        try {
+            String msg;
+
+            if (ENABLE_FSYNC && unsynced) {
+                long wait = tsync + FSYNC_INTERVAL - System.currentTimeMillis();
+                msg = submitQueue.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+            } else {
+                msg = submitQueue.take();
+            }
+
+            if (msg != null) {
+                batch.add(msg);
+                submitQueue.drainTo(batch, BATCH_LENGTH - 1);
+                process(batch);
+                batch.clear();
+            } else {
+                fsync(false);
+            }
+        } catch (InterruptedException e) {
+            log.error("Cannot perform run cycle", e);
+        }
+    }
+
+
     @Override
     protected void process(List<String> msgs) {
 
-        switch (type) {
-            case ROLLING:
-                if (currentSize > maxSize) {
+        if (type == DAILY && (currentSuffix == null || !timestamp().startsWith(currentSuffix))) {
+            reset();
+        }
+
+        try {
+            for (String s : msgs) {
+                if (type == ROLLING && currentSize + buf.position() > maxSize) {
+                    drain();
                     reset();
                 }
-                break;
-            case DAILY:
-                if (!new SimpleDateFormat("yyyy-MM-dd").format(new Date()).equals(currentSuffix)) {
-                    reset();
+
+                if (channel != null) {
+                    encode(s);
+                    AgentDiagnostics.inc(countTraps, AgentDiagnostics.TRAPS_SENT);
                 }
-                break;
+            }
+
+            drain();
+        } catch (IOException e) {
+            buf.clear();
+            if (log != null) {
+                log.error("Error writing log file " + logFile, e);
+            }
         }
 
-        if (out != null) {
+        fsync(false);
+    }
 
-            for (String s : msgs) {
-                out.println(s);
-                currentSize += s.getBytes().length + 1;
-                AgentDiagnostics.inc(countTraps, AgentDiagnostics.TRAPS_SENT);
-            }
 
-            out.flush();
+    /**
+     * Encodes message (followed by line separator) into output buffer.
+     */
+    private void encode(String s) throws IOException {
+        CharBuffer cb = CharBuffer.wrap(s);
+        encoder.reset();
 
-            fsync();
+        while (encoder.encode(cb, buf, true).isOverflow()) {
+            drain();
         }
+
+        while (encoder.flush(buf).isOverflow()) {
+            drain();
+        }
+
+        if (buf.remaining() < EOL.length) {
+            drain();
+        }
+
+        buf.put(EOL);
     }
 
-    private void fsync() {
-        if (ENABLE_FSYNC) {
-            try {
-                os.flush();
-                os.getFD().sync();
-            } catch (IOException e) {
+
+    /**
+     * Writes contents of output buffer to file.
+     */
+    private void drain() throws IOException {
+        if (buf.position() > 0 && channel != null) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                currentSize += channel.write(buf);
+            }
+            unsynced = true;
+        }
+        buf.clear();
+    }
+
+
+    private void fsync(boolean force) {
+        if (ENABLE_FSYNC && unsynced && os != null) {
+            long t = System.currentTimeMillis();
+            if (force || t - tsync >= FSYNC_INTERVAL) {
+                try {
+                    os.getFD().sync();
+                } catch (IOException e) {
+                }
+                tsync = t;
+                unsynced = false;
             }
         }
     }
@@ -248,12 +405,17 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
 
     @Override
     public void close() {
-        if (out != null) {
-            out.close();
-            out = null;
-        }
-
         if (os != null) {
+            try {
+                drain();
+            } catch (IOException e) {
+                if (log != null) {
+                    log.error("Error writing log file " + logFile, e);
+                }
+            }
+
+            fsync(true);
+
             try {
                 os.close();
             } catch (IOException e) {
@@ -262,6 +424,7 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
                 }
             }
             os = null;
+            channel = null;
         }
     }
 
@@ -308,7 +471,7 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
 
         try {
             os = new FileOutputStream(logFile);
-            out = new PrintStream(os);
+            channel = os.getChannel();
             currentSize = 0;
         } catch (Exception e) {
             if (log != null) {
@@ -322,11 +485,11 @@ public class FileTrapper extends ZorkaAsyncThread<String> implements ZorkaTrappe
      * Performs file reopen for daily trappers.
      */
     private void reopen() {
-        currentSuffix = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+        currentSuffix = timestamp().substring(0, 10);
         File f = new File(logFile.getAbsolutePath() + "." + currentSuffix);
         try {
             os = new FileOutputStream(f, true);
-            out = new PrintStream(os);
+            channel = os.getChannel();
             currentSize = f.exists() ? f.length() : 0;
         } catch (Exception e) {
             if (log != null) {
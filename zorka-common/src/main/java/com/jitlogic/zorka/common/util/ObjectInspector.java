@@ -95,6 +95,14 @@ public final class ObjectInspector {
         // TODO refactoring of this method (badly) needed
         Class<?> clazz = obj.getClass();
 
+        // Class objects are inspected for both Class methods and static members, so they are not cached
+        AccessorCache.ClassInfo info = obj instanceof Class ? null : AccessorCache.forClass(clazz);
+
+        if (info != null && key instanceof String
+                && (info.isPlain() || ((String) key).endsWith("()") || ((String) key).startsWith("."))) {
+            return info.get(clazz, (String) key).get(obj);
+        }
+
         if (key instanceof String && key.toString().endsWith("()")) {
             // Explicit method call for attributes ending with '()'
             String name = key.toString();
@@ -133,7 +141,8 @@ public final class ObjectInspector {
             obj = ((TabularData) obj).get(keys);
         } else if (obj instanceof ZorkaStats) {
             return ((ZorkaStats) obj).getStatistic(key.toString());
-        } else if (ZorkaUtil.instanceOf(obj.getClass(), "javax.management.j2ee.statistics.Stats")) {
+        } else if (info != null ? info.isJ2eeStats()
+                : ZorkaUtil.instanceOf(obj.getClass(), "javax.management.j2ee.statistics.Stats")) {
             try {
                 Method m = obj.getClass().getMethod("getStatistic", String.class);
                 if (m != null) {
@@ -146,6 +155,10 @@ public final class ObjectInspector {
             return ((JmxObject) obj).get(key);
         }
 
+        if (info != null && key instanceof String && obj != null && obj.getClass() == clazz) {
+            return info.get(clazz, (String) key).get(obj);
+        }
+
         if (key instanceof String) {
             String name = (String) key;
 
@@ -461,56 +474,20 @@ public final class ObjectInspector {
     public static final Pattern reVarSubstPattern = Pattern.compile("\\$\\{([^\\}]+)\\}");
     public static final Pattern reCfgSubstPattern = Pattern.compile("\\$\\{([@$&][^\\}]+)\\}");
 
-    private static final Pattern reDollarSign = Pattern.compile("$", Pattern.LITERAL);
-    private static final String reDollarReplacement = Matcher.quoteReplacement("\\$");
 
     /**
      * Substitutes marked variables in a string with record fields. Variables are marked with
      * '${FIELD.attr1.attr2...}'. Fields are resolved directly from records passed as second
      * parameter, subsequent attribute chains are used to obtain subsequent values as in
-     * ObjectInspector.get() method.
+     * ObjectInspector.get() method. Template string is parsed on each call, so frequently used
+     * templates should be precompiled (see Template class).
      *
      * @param input  input (template) string
      * @param record spy record to be substituted
      * @return string with substitutions filled with values from record
      */
     public static String substitute(String input, Map<String, Object> record) {
-        Matcher m = reVarSubstPattern.matcher(input);
-        StringBuffer sb = new StringBuffer();
-
-        while (m.find()) {
-            String expr = m.group(1), def = null;
-            if (expr.contains(":")) {
-                String[] s = expr.split(":");
-                expr = s[0];
-                def = s[1];
-            }
-            Integer len = null;
-            if (expr.contains("~")) {
-                String[] s = expr.split("~");
-                expr = s[0];
-                len = Integer.parseInt(s[1]);
-            }
-            Object val = null;
-            for (String exp : expr.split("\\|")) {
-                String[] segs = exp.split("\\.");
-                val = record.get(segs[0]);
-                for (int i = 1; i < segs.length; i++) {
-                    val = getAttr(val, segs[i]);
-                }
-                if (val != null) break;
-            }
-            val = val != null ? val : def;
-            String s = ZorkaUtil.castString(val);
-            if (len != null && s.length() > len) {
-                s = s.substring(0, len);
-            }
-            m.appendReplacement(sb, reDollarSign.matcher(s).replaceAll(reDollarReplacement));
-        }
-
-        m.appendTail(sb);
-
-        return sb.toString();
+        return new Template(input).format(record);
     }
 
 
@@ -570,41 +547,7 @@ public final class ObjectInspector {
      * @return string with substitutions filled with values from record
      */
     public static String substitute(String input, Object[] vals) {
-        Matcher m = reVarSubstPattern.matcher(input);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String expr = m.group(1), def = null;
-            if (expr.contains(":")) {
-                String[] s = expr.split(":");
-                expr = s[0];
-                def = s[1];
-            }
-            Integer len = null;
-            if (expr.contains("~")) {
-                String[] s = expr.split("~");
-                expr = s[0];
-                len = Integer.parseInt(s[1]);
-            }
-            Object val = null;
-            for (String exp : expr.split("\\|")) {
-                String[] segs = exp.split("\\.");
-                val = vals[Integer.parseInt(segs[0])];
-                for (int i = 1; i < segs.length; i++) {
-                    val = getAttr(val, segs[i]);
-                }
-                if (val != null) break;
-            }
-            val = val != null ? val : def;
-            String s = ZorkaUtil.castString(val);
-            if (len != null && s.length() > len) {
-                s = s.substring(0, len);
-            }
-            m.appendReplacement(sb, s);
-        }
-
-        m.appendTail(sb);
-
-        return sb.toString();
+        return new Template(input).format(vals);
     }
 
 
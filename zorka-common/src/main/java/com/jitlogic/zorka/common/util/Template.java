@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled substitution template. Template string is parsed once into literal segments
+ * and variables, so formatting does not involve regular expressions nor string splitting.
+ * <p/>
+ * Variables are marked with '${FIELD.attr1.attr2...}' and can contain alternatives
+ * ('${A|B.x|C}' - first non-null value is used), default value ('${A:default}') and
+ * maximum length ('${A~20}', '${A~20:default}'). Attribute chains are resolved as in
+ * ObjectInspector.get() method. Semantics are the same as in ObjectInspector.substitute().
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public final class Template {
+
+    private static final Logger log = LoggerFactory.getLogger(Template.class);
+
+    /** Variable segment. */
+    private static class Var {
+
+        /** Alternative attribute paths (first element of each path is record key or array index). */
+        private final String[][] paths;
+
+        /** Array indexes of alternative paths (-1 if path does not start with a number). */
+        private final int[] indexes;
+
+        /** Default value (or null) */
+        private final String def;
+
+        /** Maximum length (or -1) */
+        private final int len;
+
+        private Var(String expr) {
+            String def = null;
+            int len = -1;
+
+            if (expr.contains(":")) {
+                String[] s = expr.split(":");
+                expr = s[0];
+                def = s.length > 1 ? s[1] : "";
+            }
+
+            if (expr.contains("~")) {
+                String[] s = expr.split("~");
+                expr = s[0];
+                try {
+                    len = Integer.parseInt(s.length > 1 ? s[1] : "");
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid length limit in template expression: '" + expr + "'");
+                }
+            }
+
+            String[] alts = expr.split("\\|");
+
+            this.paths = new String[alts.length][];
+            this.indexes = new int[alts.length];
+
+            for (int i = 0; i < alts.length; i++) {
+                paths[i] = alts[i].split("\\.");
+                try {
+                    indexes[i] = Integer.parseInt(paths[i][0]);
+                } catch (NumberFormatException e) {
+                    indexes[i] = -1;
+                }
+            }
+
+            this.def = def;
+            this.len = len;
+        }
+
+        private void append(StringBuilder sb, Object val) {
+            String s = ZorkaUtil.castString(val != null ? val : def);
+            sb.append(s, 0, len >= 0 && s.length() > len ? len : s.length());
+        }
+
+        private void format(StringBuilder sb, Map<String,Object> record) {
+            Object val = null;
+            for (String[] path : paths) {
+                val = record.get(path[0]);
+                for (int i = 1; i < path.length; i++) {
+                    val = ObjectInspector.getAttr(val, path[i]);
+                }
+                if (val != null) {
+                    break;
+                }
+            }
+            append(sb, val);
+        }
+
+        private void format(StringBuilder sb, Object[] vals) {
+            Object val = null;
+            for (int a = 0; a < paths.length; a++) {
+                int idx = indexes[a];
+                val = idx >= 0 && idx < vals.length ? vals[idx] : null;
+                for (int i = 1; i < paths[a].length; i++) {
+                    val = ObjectInspector.getAttr(val, paths[a][i]);
+                }
+                if (val != null) {
+                    break;
+                }
+            }
+            append(sb, val);
+        }
+    }
+
+    /** Source string */
+    private final String input;
+
+    /** Template segments: literal strings and variables */
+    private final Object[] segments;
+
+    /** Initial size of output buffer */
+    private final int capacity;
+
+
+    /**
+     * Parses template string.
+     *
+     * @param input template string
+     */
+    public Template(String input) {
+        this.input = input;
+
+        List<Object> segs = new ArrayList<Object>();
+        int pos = 0, lit = 0;
+
+        while (pos < input.length()) {
+            int start = input.indexOf("${", pos);
+            int end = start >= 0 ? input.indexOf('}', start + 2) : -1;
+
+            if (end < 0) {
+                break;
+            }
+
+            if (end == start + 2) {
+                // Empty variable name: '${}' remains in output as is
+                pos = start + 1;
+                continue;
+            }
+
+            if (start > lit) {
+                segs.add(input.substring(lit, start));
+            }
+
+            segs.add(new Var(input.substring(start + 2, end)));
+            pos = lit = end + 1;
+        }
+
+        if (lit < input.length()) {
+            segs.add(input.substring(lit));
+        }
+
+        this.segments = segs.toArray();
+        this.capacity = input.length() + 16;
+    }
+
+
+    /**
+     * Returns true if template contains no variables.
+     */
+    public boolean isConstant() {
+        return segments.length == 0 || (segments.length == 1 && segments[0] instanceof String);
+    }
+
+
+    /**
+     * Formats string using values from record.
+     *
+     * @param record record (map) with values to be substituted
+     * @return formatted string
+     */
+    public String format(Map<String,Object> record) {
+        if (isConstant()) {
+            return input;
+        }
+
+        StringBuilder sb = new StringBuilder(capacity);
+
+        for (Object seg : segments) {
+            if (seg instanceof String) {
+                sb.append((String) seg);
+            } else {
+                ((Var) seg).format(sb, record);
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Formats string using values from array. Variables are marked with '${N.attr1.attr2...}',
+     * where N is index in array.
+     *
+     * @param vals array of values
+     * @return formatted string
+     */
+    public String format(Object[] vals) {
+        if (isConstant()) {
+            return input;
+        }
+
+        StringBuilder sb = new StringBuilder(capacity);
+
+        for (Object seg : segments) {
+            if (seg instanceof String) {
+                sb.append((String) seg);
+            } else {
+                ((Var) seg).format(sb, vals);
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns template string.
+     */
+    @Override
+    public String toString() {
+        return input;
+    }
+}
@@ -74,12 +74,23 @@ public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService, Zor
      * @param plen
      */
     public ZorkaAsyncThread(String name, int qlen, int plen) {
+        this(name, qlen, plen, qlen > 0 ? new ArrayBlockingQueue<T>(qlen) : null);
+    }
+
+    /**
+     * Constructor for subclasses that pass submitted items to background thread on their own
+     * (overriding both submit() and runCycle()), so standard submit queue is not needed.
+     *
+     * @param name thread name
+     * @param qlen queue length (if 0, items are processed synchronously)
+     * @param plen maximum number of items processed at once
+     * @param submitQueue submit queue (or null if subclass does not use it)
+     */
+    protected ZorkaAsyncThread(String name, int qlen, int plen, BlockingQueue<T> submitQueue) {
         this.name = "ZORKA-" + name;
         this.plen = plen;
         this.qlen = qlen;
-        if (qlen > 0) {
-            submitQueue = new ArrayBlockingQueue<T>(qlen);
-        }
+        this.submitQueue = submitQueue;
     }
     
     /**
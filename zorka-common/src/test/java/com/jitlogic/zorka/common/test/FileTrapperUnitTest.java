@@ -0,0 +1,172 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.util.FileTrapper;
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.impl.ZorkaLogLevel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileTrapperUnitTest {
+
+    private File dir;
+    private FileTrapper trapper;
+
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "zorka-file-trapper-test");
+        ZorkaUtil.rmrf(dir);
+        assertTrue(dir.mkdirs());
+    }
+
+
+    @After
+    public void tearDown() {
+        if (trapper != null) {
+            trapper.shutdown();
+        }
+    }
+
+
+    private static List<String> lines(File f) throws Exception {
+        List<String> lst = new ArrayList<String>();
+        if (f.exists()) {
+            BufferedReader rdr = new BufferedReader(new FileReader(f));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    lst.add(line);
+                }
+            } finally {
+                rdr.close();
+            }
+        }
+        return lst;
+    }
+
+
+    private void await(File f, int n) throws Exception {
+        for (int i = 0; i < 500 && trapper.getSubmitQueue().size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 500 && lines(f).size() < n; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testLogMessagesWithTimestampsAndExceptions() throws Exception {
+        File f = new File(dir, "test.log");
+        trapper = FileTrapper.rolling(ZorkaLogLevel.INFO, f.getPath(), 4, 1024 * 1024, true);
+        trapper.start();
+
+        trapper.trap(ZorkaLogLevel.INFO, "test", "Hello %s %d", null, "world", 42);
+        trapper.trap(ZorkaLogLevel.ERROR, "test", "Something failed", new RuntimeException("oops"));
+
+        await(f, 3);
+        List<String> lines = lines(f);
+
+        assertTrue(lines.get(0).matches("\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d INFO test Hello world 42"));
+        assertTrue(lines.get(1).matches("\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d ERROR test .* \\[java.lang.RuntimeException: oops\\]"));
+        assertTrue(lines.get(1).contains("Something failed"));
+        assertEquals("java.lang.RuntimeException: oops", lines.get(2));
+        assertTrue(lines.get(3).trim().startsWith("at "));
+    }
+
+
+    @Test
+    public void testRollingKeepsSizeAndNumberOfFiles() throws Exception {
+        File f = new File(dir, "roll.log");
+        trapper = FileTrapper.rolling(ZorkaLogLevel.INFO, f.getPath(), 2, 1000, false);
+        trapper.start();
+
+        for (int i = 0; i < 500; i++) {
+            trapper.trap(ZorkaLogLevel.INFO, "test", "Message number %d", null, i);
+        }
+
+        List<String> last = lines(f);
+        for (int i = 0; i < 500 && (last.isEmpty() || !last.get(last.size() - 1).endsWith("Message number 499")); i++) {
+            Thread.sleep(10);
+            last = lines(f);
+        }
+
+        assertTrue(last.get(last.size() - 1).endsWith("Message number 499"));
+
+        String[] names = dir.list();
+        assertEquals("current log + archived logs (.0 - .2)", 4, names.length);
+        assertTrue(new File(dir, "roll.log.0").exists());
+        assertTrue(new File(dir, "roll.log.1").exists());
+        assertTrue(new File(dir, "roll.log.2").exists());
+
+        // Line that crossed size limit is still kept in the same file (as before)
+        int lineLength = last.get(0).length() + System.getProperty("line.separator").length();
+        for (String name : names) {
+            assertTrue(name, new File(dir, name).length() <= 1000 + lineLength);
+        }
+
+        // Lines are not split or lost between adjacent files
+        List<String> l0 = lines(new File(dir, "roll.log.0"));
+        int n0 = Integer.parseInt(l0.get(l0.size() - 1).replaceAll(".* ", ""));
+        int n1 = Integer.parseInt(last.get(0).replaceAll(".* ", ""));
+        assertEquals(n0 + 1, n1);
+    }
+
+
+    @Test
+    public void testDailyTrapperAppendsToDatedFile() throws Exception {
+        File f = new File(dir, "daily.log");
+        trapper = FileTrapper.daily(ZorkaLogLevel.INFO, f.getPath(), false);
+        trapper.start();
+        trapper.trap(ZorkaLogLevel.INFO, "test", "one", null);
+        trapper.trap(ZorkaLogLevel.INFO, "test", "two", null);
+
+        String[] names = dir.list();
+        assertEquals(1, names.length);
+        assertTrue(names[0].matches("daily\\.log\\.\\d{4}-\\d\\d-\\d\\d"));
+
+        File df = new File(dir, names[0]);
+        await(df, 2);
+        assertEquals(2, lines(df).size());
+    }
+
+
+    @Test
+    public void testLastBatchSyncedWithinFsyncInterval() throws Exception {
+        boolean fsync = FileTrapper.ENABLE_FSYNC;
+        long interval = FileTrapper.FSYNC_INTERVAL;
+        try {
+            FileTrapper.ENABLE_FSYNC = true;
+            FileTrapper.FSYNC_INTERVAL = 300;
+
+            File f = new File(dir, "sync.log");
+            trapper = FileTrapper.rolling(ZorkaLogLevel.INFO, f.getPath(), 4, 1024 * 1024, false);
+            trapper.start();
+
+            trapper.trap(ZorkaLogLevel.INFO, "test", "first", null);
+            await(f, 1);
+            trapper.trap(ZorkaLogLevel.INFO, "test", "second", null);
+            await(f, 2);
+
+            for (int i = 0; i < 100 && Boolean.TRUE.equals(ObjectInspector.getField(trapper, "unsynced")); i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals("data should be synced without waiting for next message",
+                Boolean.FALSE, ObjectInspector.getField(trapper, "unsynced"));
+        } finally {
+            FileTrapper.ENABLE_FSYNC = fsync;
+            FileTrapper.FSYNC_INTERVAL = interval;
+        }
+    }
+}
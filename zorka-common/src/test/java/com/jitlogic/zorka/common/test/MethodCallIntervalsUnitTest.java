@@ -0,0 +1,177 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.stats.MethodCallInterval;
+import com.jitlogic.zorka.common.stats.MethodCallIntervals;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.common.stats.MethodSlaStatistic;
+import com.jitlogic.zorka.common.util.ObjectInspector;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MethodCallIntervalsUnitTest {
+
+    private static void log(MethodCallStatistic s, int n, long time, int errors) {
+        for (int i = 0; i < n; i++) {
+            if (i < errors) {
+                s.logError(time);
+            } else {
+                s.logCall(time);
+            }
+        }
+    }
+
+
+    @Test
+    public void testConsumersDoNotInterfere() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+
+        assertEquals(0, s.getIntervals().roll("A:0").getCalls());
+        assertEquals(0, s.getIntervals().roll("B:0").getCalls());
+
+        log(s, 100, 1000000L, 10);
+
+        MethodCallInterval a1 = s.getIntervals().roll("A:0");
+        assertEquals(100, a1.getCalls());
+        assertEquals(10, a1.getErrors());
+        assertEquals(100, a1.getTime());
+
+        log(s, 50, 2000000L, 0);
+
+        MethodCallInterval a2 = s.getIntervals().roll("A:0");
+        assertEquals(50, a2.getCalls());
+        assertEquals(0, a2.getErrors());
+        assertEquals(100, a2.getTime());
+        assertEquals(a1.getTstop(), a2.getTstart());
+
+        MethodCallInterval b1 = s.getIntervals().roll("B:0");
+        assertEquals(150, b1.getCalls());
+        assertEquals(10, b1.getErrors());
+        assertEquals(200, b1.getTime());
+
+        assertEquals("cumulative counters are not affected", 150, s.getCalls());
+    }
+
+
+    @Test
+    public void testIntervalPercentiles() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+        s.getIntervals().roll("push:0");
+
+        log(s, 1000, 1000000L, 0);
+        MethodCallInterval i1 = s.getIntervals().roll("push:0");
+
+        log(s, 1000, 100000000L, 0);
+        MethodCallInterval i2 = s.getIntervals().roll("push:0");
+
+        assertTrue(i1.getP99() >= 1 && i1.getP99() * 8 <= 9);
+        assertTrue(i1.getMaxTime() >= 1 && i1.getMaxTime() * 8 <= 9);
+        assertTrue(i2.getP50() >= 100 && i2.getP50() * 8 <= 900);
+        assertTrue(i2.getMaxTimeUs() >= 100000);
+
+        assertTrue("cumulative median covers both intervals", s.getP50() < 100);
+
+        MethodCallInterval i3 = s.getIntervals().roll("push:0");
+        assertEquals(0, i3.getCalls());
+        assertEquals(0, i3.getP99());
+        assertEquals(0, i3.getMaxTime());
+    }
+
+
+    @Test
+    public void testEpochsSwitchedAutomatically() throws Exception {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+
+        assertEquals(0, s.getIntervals().getInterval("zabbix", 200).getCalls());
+
+        log(s, 10, 1000L, 0);
+
+        MethodCallInterval i0 = s.getIntervals().getInterval("zabbix", 200);
+        assertEquals("epoch is not over yet", 0, i0.getCalls());
+
+        Thread.sleep(250);
+
+        MethodCallInterval i1 = s.getIntervals().getInterval("zabbix", 200);
+        assertEquals(10, i1.getCalls());
+
+        log(s, 10, 1000L, 0);
+
+        assertSame("all reads in an epoch see the same interval", i1, s.getIntervals().getInterval("zabbix", 200));
+    }
+
+
+    @Test
+    public void testIntervalsAccessibleViaObjectInspector() {
+        MethodCallStatistics stats = new MethodCallStatistics();
+        MethodCallStatistic s = stats.getMethodCallStatistic("ALL");
+
+        assertEquals(0L, ObjectInspector.get(stats, "ALL", "intervals", "zabbix:0", "calls"));
+        log(s, 5, 1000L, 1);
+
+        Map<String,MethodCallInterval> intervals = stats.rollIntervals("zabbix:0");
+        assertEquals(1, intervals.size());
+        assertEquals(5, intervals.get("ALL").getCalls());
+
+        assertEquals(5L, ObjectInspector.get(stats, "ALL", "intervals", "zabbix:0", "calls"));
+        assertEquals(1L, ObjectInspector.get(stats, "ALL", "intervals", "zabbix:0", "errors"));
+        assertArrayEquals(new String[] { "zabbix:0" }, s.getIntervals().getStatisticNames());
+    }
+
+
+    @Test
+    public void testSlaStatistic() {
+        MethodSlaStatistic sla = new MethodSlaStatistic(10);
+
+        assertEquals(100.0, sla.getSla(), 0.001);
+
+        for (int i = 0; i < 10; i++) {
+            sla.logCall(i < 2 ? 20000000L : 1000000L);
+        }
+
+        assertEquals(80.0, sla.getSla(), 0.001);
+        assertEquals(80.0, sla.getSlaCLR(), 0.001);
+
+        for (int i = 0; i < 4; i++) {
+            sla.logCall(1000000L);
+        }
+        sla.logError(1000000L);
+
+        assertEquals("SLA since last getSlaCLR()", 80.0, sla.getSla(), 0.001);
+        assertEquals("getSla() does not reset", 80.0, sla.getSla(), 0.001);
+        assertEquals(80.0, sla.getSlaCLR(), 0.001);
+        assertEquals(100.0, sla.getSlaCLR(), 0.001);
+        assertEquals(100.0, sla.getSla(), 0.001);
+
+        sla.logCall(1000000L);
+        sla.logCall(20000000L);
+        assertEquals(50.0, sla.getSla(), 0.001);
+        assertEquals("SLA(sla=50.00)", sla.toString().replace(',', '.'));
+    }
+
+
+    @Test
+    public void testNumberOfConsumersIsBounded() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+
+        for (int i = 0; i < MethodCallIntervals.MAX_CONSUMERS + 10; i++) {
+            assertEquals(0, s.getIntervals().roll("c" + i + ":0").getCalls());
+        }
+
+        assertEquals(MethodCallIntervals.MAX_CONSUMERS, s.getIntervals().getStatisticNames().length);
+
+        log(s, 5, 1000L, 0);
+
+        assertEquals(5, s.getIntervals().roll("c0:0").getCalls());
+        assertEquals("unregistered consumer gets empty intervals", 0,
+            s.getIntervals().roll("c" + MethodCallIntervals.MAX_CONSUMERS + ":0").getCalls());
+
+        s.getIntervals().unregister("c0:0");
+        assertEquals(0, s.getIntervals().roll("other:0").getCalls());
+        log(s, 3, 1000L, 0);
+        assertEquals(3, s.getIntervals().roll("other:0").getCalls());
+    }
+}
@@ -0,0 +1,89 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput of logging calls to a single shared statistic by growing number of threads.
+ * Compares striped statistic with old implementation (shared atomic counters). Run manually.
+ */
+public class MethodCallStatisticManualTest {
+
+    private static final int ITERATIONS = 5000000;
+
+    /** Old implementation of logCall() (shared atomic counters). */
+    private static class AtomicStatistic {
+        private final AtomicLong calls = new AtomicLong(), time = new AtomicLong(), maxTime = new AtomicLong();
+
+        void logCall(long t) {
+            calls.incrementAndGet();
+            time.addAndGet(t);
+            long m = maxTime.get();
+            while (t > m) {
+                if (maxTime.compareAndSet(m, t)) {
+                    break;
+                }
+                m = maxTime.get();
+            }
+        }
+    }
+
+    private interface Logger {
+        void log(long t);
+    }
+
+    private static double run(int nthreads, final Logger logger) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(nthreads);
+
+        for (int t = 0; t < nthreads; t++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            logger.log(1000 + (i & 1023));
+                        }
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long t1 = System.nanoTime();
+
+        return (double) nthreads * ITERATIONS * 1000 / (t1 - t0);
+    }
+
+    @Test @Ignore
+    public void benchmarkThreadScaling() throws Exception {
+        for (int nthreads = 1; nthreads <= 16; nthreads *= 2) {
+            final AtomicStatistic as = new AtomicStatistic();
+            final MethodCallStatistic ms = new MethodCallStatistic("bench");
+
+            double a = run(nthreads, new Logger() {
+                public void log(long t) {
+                    as.logCall(t);
+                }
+            });
+
+            double m = run(nthreads, new Logger() {
+                public void log(long t) {
+                    ms.logCall(t);
+                }
+            });
+
+            System.out.println(String.format("threads=%d: atomic %.1f Mcalls/s, striped+histogram %.1f Mcalls/s",
+                nthreads, a, m));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.stats.LatencyHistogram;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.util.ObjectInspector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+public class MethodCallStatisticUnitTest {
+
+    @Test
+    public void testHistogramBucketBoundaries() {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long lo = LatencyHistogram.bucketLow(i), hi = LatencyHistogram.bucketHigh(i);
+            assertTrue(lo <= hi);
+            assertEquals(i, LatencyHistogram.bucket(lo));
+            assertEquals(i, LatencyHistogram.bucket(hi));
+            if (i > 0) {
+                assertEquals(LatencyHistogram.bucketHigh(i - 1) + 1, lo);
+            }
+            if (lo >= 8) {
+                assertTrue("relative error should be at most 12.5%", (hi - lo + 1) * 8 <= lo);
+            }
+        }
+        assertEquals(0, LatencyHistogram.bucket(-1));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+
+    @Test
+    public void testPercentilesOfUniformDistribution() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+
+        for (int i = 1; i <= 10000; i++) {
+            s.logCall(i * 1000L);
+        }
+
+        assertEquals(10000, s.getCalls());
+        assertEquals(10000, s.getMaxTimeUs());
+
+        checkPercentile(5000000, s.getPercentileNs(0.5));
+        checkPercentile(9000000, s.getPercentileNs(0.9));
+        checkPercentile(9900000, s.getPercentileNs(0.99));
+        checkPercentile(9990000, s.getPercentileNs(0.999));
+
+        assertEquals(s.getPercentileNs(0.99) / 1000, s.getP99Us());
+        assertEquals(s.getPercentileNs(0.5) / 1000000, s.getP50());
+    }
+
+
+    private static void checkPercentile(long expected, long actual) {
+        assertTrue("percentile " + actual + " should not be lower than " + expected, actual >= expected);
+        assertTrue("percentile " + actual + " is too far from " + expected, actual <= expected + expected / 8);
+    }
+
+
+    @Test
+    public void testPercentilesOfEmptyStatistic() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+        assertEquals(0, s.getP50());
+        assertEquals(0, s.getP999Us());
+    }
+
+
+    @Test
+    public void testStripesAndHistogramAllocatedOnFirstUse() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+        assertNull(ObjectInspector.getField(s, "histogram"));
+
+        s.logCall();
+        assertEquals(1, s.getCalls());
+        assertNull("counter-only statistic should not allocate histogram", ObjectInspector.getField(s, "histogram"));
+
+        AtomicReferenceArray cells = (AtomicReferenceArray) ObjectInspector.getField(s, "cells");
+        int allocated = 0;
+        for (int i = 0; i < cells.length(); i++) {
+            allocated += cells.get(i) != null ? 1 : 0;
+        }
+        assertEquals("only stripe of calling thread should be allocated", 1, allocated);
+
+        s.logCall(5000000L);
+        assertNotNull(ObjectInspector.getField(s, "histogram"));
+        assertEquals(2, s.getCalls());
+        assertEquals(5, s.getMaxTime());
+    }
+
+
+    @Test
+    public void testPercentilesWithOutliers() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+        Random r = new Random(42);
+
+        for (int i = 0; i < 9980; i++) {
+            s.logCall(1000000 + r.nextInt(1000000));
+        }
+        for (int i = 0; i < 20; i++) {
+            s.logError(5000000000L);
+        }
+
+        assertEquals(20, s.getErrors());
+        assertTrue(s.getP99() < 3);
+        assertEquals(5000, s.getMaxTime(), 5000 / 8);
+        assertTrue(s.getP999() >= 5000);
+    }
+
+
+    @Test
+    public void testMaxTimeClear() {
+        MethodCallStatistic s = new MethodCallStatistic("test");
+        s.logCall(3000000, 10);
+        s.logCall(2000000, 20);
+
+        assertEquals(3, s.getMaxTime());
+        assertEquals(20, s.getMaxThroughput());
+        assertEquals(30, s.getThroughput());
+        assertEquals(3, s.getMaxTimeCLR());
+        assertEquals(0, s.getMaxTime());
+        assertEquals(5, s.getTime());
+        assertEquals(20, s.getMaxThroughputCLR());
+        assertEquals(0, s.getMaxThroughput());
+    }
+
+
+    @Test
+    public void testCountersAreExactWithConcurrentUpdates() throws Exception {
+        final MethodCallStatistic s = new MethodCallStatistic("test");
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 8; t++) {
+            final int n = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (i % 10 == 0) {
+                            s.logError(n + 1);
+                        } else {
+                            s.logCall(n + 1);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(80000, s.getCalls());
+        assertEquals(8000, s.getErrors());
+        assertEquals(360000, s.getTimeNs());
+        assertEquals(8, s.getMaxTimeNs());
+
+        long total = 0;
+        for (long c : s.getHistogram().getCounts()) {
+            total += c;
+        }
+        assertEquals(80000, total);
+    }
+}
@@ -0,0 +1,62 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares cost of attribute access via ObjectInspector with direct getter calls and with
+ * resolving getter on each call (as done before accessor cache was introduced). Run manually.
+ */
+public class ObjectInspectorManualTest {
+
+    private static final int ITERATIONS = 20000000;
+
+    public static class Bean {
+        private long value;
+
+        public Bean(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+    }
+
+    @Test @Ignore
+    public void benchmarkAttributeAccess() throws Exception {
+        Bean bean = new Bean(1);
+
+        for (int pass = 0; pass < 3; pass++) {
+            long sum = 0;
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += bean.getValue();
+            }
+
+            long t1 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sum += (Long) ObjectInspector.get(bean, "value");
+            }
+
+            long t2 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS / 100; i++) {
+                Method m = ObjectInspector.lookupMethod(bean.getClass(), "get" + "value".substring(0, 1).toUpperCase() + "value".substring(1));
+                synchronized (m) {
+                    m.setAccessible(true);
+                    sum += (Long) m.invoke(bean);
+                    m.setAccessible(false);
+                }
+            }
+            long t3 = System.nanoTime();
+
+            System.out.println(String.format("direct: %.1f ns/call, cached: %.1f ns/call, uncached: %.1f ns/call (%d)",
+                (double) (t1 - t0) / ITERATIONS, (double) (t2 - t1) / ITERATIONS, (double) (t3 - t2) * 100 / ITERATIONS, sum));
+        }
+    }
+}
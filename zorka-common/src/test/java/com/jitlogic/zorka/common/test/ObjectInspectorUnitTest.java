@@ -16,6 +16,7 @@
 package com.jitlogic.zorka.common.test;
 
 import com.jitlogic.zorka.common.test.support.*;
+import com.jitlogic.zorka.common.util.AccessorCache;
 import com.jitlogic.zorka.common.util.JmxObject;
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
@@ -26,7 +27,9 @@ import org.junit.Test;
 import javax.management.ObjectName;
 import javax.management.j2ee.statistics.TimeStatistic;
 import java.io.ByteArrayInputStream;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -355,6 +358,114 @@ public class ObjectInspectorUnitTest extends CommonFixture {
     }
 
 
+    private static class PrivateBean {
+        private String name = "field";
+        private boolean active = true;
+
+        public String getName() {
+            return "getter";
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public String hello() {
+            return "hello";
+        }
+    }
+
+
+    @Test
+    public void testCachedAccessorsOfNonPublicClass() {
+        PrivateBean bean = new PrivateBean();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("getter", ObjectInspector.get(bean, "name"));
+            assertEquals("field", ObjectInspector.get(bean, ".name"));
+            assertEquals(true, ObjectInspector.get(bean, "active"));
+            assertEquals("hello", ObjectInspector.get(bean, "hello"));
+            assertEquals("hello", ObjectInspector.get(bean, "hello()"));
+        }
+
+        AccessorCache.ClassInfo info = AccessorCache.forClass(PrivateBean.class);
+        assertSame(info, AccessorCache.forClass(PrivateBean.class));
+        assertTrue(info.size() >= 5);
+    }
+
+
+    @Test
+    public void testNegativeLookupsAreCached() {
+        PrivateBean bean = new PrivateBean();
+
+        assertNull(ObjectInspector.get(bean, "nonexistent"));
+        assertNull(ObjectInspector.get(bean, "nonexistent()"));
+        assertNull(ObjectInspector.get(bean, ".nonexistent"));
+
+        assertSame(AccessorCache.NONE, AccessorCache.get(PrivateBean.class, "nonexistent"));
+        assertSame(AccessorCache.NONE, AccessorCache.get(PrivateBean.class, "nonexistent()"));
+        assertSame(AccessorCache.NONE, AccessorCache.get(PrivateBean.class, ".nonexistent"));
+    }
+
+
+    @Test
+    public void testCachedAccessorsForSubclasses() {
+        Properties props = props("AAA", "BBB");
+
+        assertSame(props, ObjectInspector.get(new TestInspectorClass(props), "props"));
+        assertSame(props, ObjectInspector.get(new TestInspectorClass2(props), "props"));
+        assertEquals((Integer)125, ObjectInspector.get(new TestInspectorClass2(props), "count"));
+        assertEquals((Integer)125, ObjectInspector.get(TestInspectorClass2.class, "count"));
+    }
+
+
+    @Test
+    public void testManyClassesInAccessorCache() {
+        Object[] objs = { "a", 1, 2L, 3.0, 4.0f, (short)5, (byte)6, 'c', true, new StringBuilder("sb"),
+                new Date(0), new Object(), new ArrayList<String>().iterator(), new Exception("x"),
+                new RuntimeException("y"), new Thread(), new TreeSet<String>() };
+
+        for (Object obj : objs) {
+            assertSame(obj.getClass(), ObjectInspector.get(obj, "class"));
+        }
+
+        assertTrue(AccessorCache.size() >= objs.length);
+    }
+
+
+    @Test
+    public void testInaccessibleMembersDoNotThrow() {
+        // JDK 9+ throws InaccessibleObjectException when making java.base internals accessible
+        Object v = ObjectInspector.get(new AtomicLong(5), "value");
+        assertTrue("should return null or actual value, got " + v, v == null || Long.valueOf(5).equals(v));
+        assertSame(AccessorCache.get(AtomicLong.class, "value"), AccessorCache.get(AtomicLong.class, "value"));
+    }
+
+
+    @Test
+    public void testRegisterManyClassesInAccessorCache() {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> c : new Class<?>[] { int.class, long.class, String.class, Date.class }) {
+            for (int i = 0; i < 128; i++) {
+                c = Array.newInstance(c, 0).getClass();
+                classes.add(c);
+            }
+        }
+
+        List<AccessorCache.ClassInfo> infos = new ArrayList<AccessorCache.ClassInfo>();
+        for (Class<?> c : classes) {
+            infos.add(AccessorCache.forClass(c));
+        }
+
+        for (int i = 0; i < classes.size(); i++) {
+            assertSame(infos.get(i), AccessorCache.forClass(classes.get(i)));
+        }
+
+        assertTrue(AccessorCache.size() >= classes.size());
+        assertTrue("table should be at most half full", AccessorCache.size() * 2 <= AccessorCache.capacity());
+    }
+
+
     // TODO tests for tabular data
 
 }
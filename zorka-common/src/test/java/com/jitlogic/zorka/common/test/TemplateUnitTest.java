@@ -0,0 +1,60 @@
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.util.Template;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TemplateUnitTest {
+
+    private static Map<String,Object> rec(Object... kv) {
+        return ZorkaUtil.map(kv);
+    }
+
+
+    @Test
+    public void testConstantTemplates() {
+        assertTrue(new Template("").isConstant());
+        assertTrue(new Template("abc").isConstant());
+        assertTrue(new Template("a${}b").isConstant());
+        assertTrue(new Template("a${b").isConstant());
+        assertFalse(new Template("${A}").isConstant());
+
+        assertEquals("a${}b", new Template("a${}b").format(rec()));
+        assertEquals("a${b", new Template("a${b").format(rec("b", "X")));
+    }
+
+
+    @Test
+    public void testTemplateReusedForManyRecords() {
+        Template t = new Template("[${A}] ${B.length()} - ${C}!");
+
+        assertEquals("[x] 3 - null!", t.format(rec("A", "x", "B", "abc")));
+        assertEquals("[y] 1 - $1!", t.format(rec("A", "y", "B", "a", "C", "$1")));
+        assertEquals("[${A}] ${B.length()} - ${C}!", t.toString());
+    }
+
+
+    @Test
+    public void testDefaultsLimitsAndAlternatives() {
+        assertEquals("def", new Template("${X:def}").format(rec()));
+        assertEquals("abc", new Template("${X~3}").format(rec("X", "abcdef")));
+        assertEquals("ab", new Template("${X~2:def}").format(rec("X", "abcdef")));
+        assertEquals("limit applies to default value too", "de", new Template("${X~2:def}").format(rec()));
+        assertEquals("JKL", new Template("${X|Y.A|Z}").format(rec("Y", ZorkaUtil.map("A", "JKL"), "Z", "Z")));
+        assertEquals("", new Template("${X:}").format(rec()));
+        assertEquals("abcdef", new Template("${X~bad}").format(rec("X", "abcdef")));
+    }
+
+
+    @Test
+    public void testArrayTemplates() {
+        Template t = new Template("${0}-${1.length()}-${2|0}");
+        assertEquals("a-3-a", t.format(new Object[] { "a", "abc" }));
+        assertEquals("a-3-c", t.format(new Object[] { "a", "abc", "c" }));
+    }
+}
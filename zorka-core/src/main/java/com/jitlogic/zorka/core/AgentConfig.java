@@ -91,6 +91,7 @@ public class AgentConfig extends ZorkaConfig {
     public void initLoggers() {
 
         FileTrapper.ENABLE_FSYNC = boolCfg(ZORKA_LOG_FSYNC_PROP, ZORKA_LOG_FSYNC_DVAL);
+        FileTrapper.FSYNC_INTERVAL = longCfg(ZORKA_LOG_FSYNC_INTERVAL_PROP, ZORKA_LOG_FSYNC_INTERVAL_DVAL);
 
         if (boolCfg(ZORKA_LOG_FILE_PROP, ZORKA_LOG_FILE_DVAL)) {
             initFileTrapper();
@@ -35,6 +35,14 @@ public class AgentConfigProps {
     public static final String TRACER_CHUNK_SIZE_PROP = "tracer.chunk.size";
     public static final int TRACER_CHUNK_SIZE_DEFV = 65536;
 
+    /** Maximum number of free chunks cached locally by each traced thread (0 disables local caches). */
+    public static final String TRACER_CHUNK_LOCAL_PROP = "tracer.chunk.local";
+    public static final int TRACER_CHUNK_LOCAL_DEFV = 2;
+
+    /** When set to true, trace chunks will be allocated off-heap from arena of tracer.chunk.max chunks. */
+    public static final String TRACER_CHUNK_OFFHEAP_PROP = "tracer.chunk.offheap";
+    public static final boolean TRACER_CHUNK_OFFHEAP_DEFV = false;
+
     /** Enables or disables tracer. */
     public static final String TRACER_PROP = "tracer";
     public static final boolean TRACER_DEFV = false;
@@ -91,6 +99,18 @@ public class AgentConfigProps {
     public static final String TRACER_TUNER_ZTX_SCAN_PROP = "tracer.tuner.ztx.scan";
     public static final boolean TRACER_TUNER_ZTX_SCAN_DEFV = true;
 
+    /** Enables adaptive tuning: methods are excluded (and included back) to keep sampled tracer overhead within budget. */
+    public static final String TRACER_TUNER_ADAPTIVE_PROP = "tracer.tuner.adaptive";
+    public static final boolean TRACER_TUNER_ADAPTIVE_DEFV = false;
+
+    /** Tracer overhead budget for adaptive tuning (percent of CPU time of traced threads). */
+    public static final String TRACER_TUNER_BUDGET_PROP = "tracer.tuner.budget";
+    public static final int TRACER_TUNER_BUDGET_DEFV = 5;
+
+    /** Average interval (in tracer calls) between tracer overhead samples (adaptive tuning). */
+    public static final String TRACER_TUNER_SAMPLE_PROP = "tracer.tuner.sample";
+    public static final int TRACER_TUNER_SAMPLE_DEFV = 64;
+
 
     /** Selects tracer type. */
     public static final String TRACER_TYPE_PROP = "tracer.type";
@@ -105,6 +125,14 @@ public class AgentConfigProps {
     public static final String ZABBIX_ACTIVE_PROP = "zabbix.active";
     public static final boolean ZABBIX_ACTIVE_DEFV = false;
 
+    /** Uses non-blocking (NIO) implementation of zabbix agent (standard) protocol. */
+    public static final String ZABBIX_NIO_PROP = "zabbix.nio";
+    public static final boolean ZABBIX_NIO_DEFV = false;
+
+    /** Keeps zabbix agent connections open after sending response (NIO agent only). */
+    public static final String ZABBIX_KEEPALIVE_PROP = "zabbix.keepalive";
+    public static final boolean ZABBIX_KEEPALIVE_DEFV = false;
+
     /** Prefix for all zorka agent prefixes. */
     public static final String ZORKA_AGENT_PROP = "zorka.agent";
 
@@ -153,6 +181,10 @@ public class AgentConfigProps {
     public static final String ZORKA_LOG_FSYNC_PROP = "zorka.log.fsync";
     public static final boolean ZORKA_LOG_FSYNC_DVAL = false;
 
+    /** Minimum interval between log file fsyncs (in milliseconds). */
+    public static final String ZORKA_LOG_FSYNC_INTERVAL_PROP = "zorka.log.fsync.interval";
+    public static final long ZORKA_LOG_FSYNC_INTERVAL_DVAL = 1000L;
+
     /** Request queue length. */
     public static final String ZORKA_REQ_QUEUE_PROP = "zorka.req.queue";
     public static final int ZORKA_REQ_QUEUE_DEFV = 256;
@@ -165,6 +197,10 @@ public class AgentConfigProps {
     public static final String ZORKA_REQ_TIMEOUT_PROP = "zorka.req.timeout";
     public static final long ZORKA_REQ_TIMEOUT_DEFV = 5000L;
 
+    /** Maximum number of parsed queries kept in cache (0 disables caching). */
+    public static final String ZORKA_REQ_CACHE_PROP = "zorka.req.cache";
+    public static final int ZORKA_REQ_CACHE_DEFV = 1024;
+
     public static final AgentConfigProps PROPS = new AgentConfigProps();
 
     private AgentConfigProps() {
@@ -98,6 +98,8 @@ public class AgentInstance implements ZorkaService {
 
     private TcpService zabbixAgentService;
 
+    private ZabbixNioAgent zabbixNioAgent;
+
     /**
      * Reference to zorka library - basic agent functions available to zorka scripts as 'zorka.*'
      */
@@ -259,6 +261,19 @@ public class AgentInstance implements ZorkaService {
                 new AttrGetter(getSymbolRegistry(), "size()"));
 
         registry.getOrRegister("java", mbeanName, "stats", stats);
+
+        if (TRACER_TYPE_STREAMING.equals(config.stringCfg(TRACER_TYPE_PROP, TRACER_TYPE_LOCAL))) {
+            registry.getOrRegister("java", mbeanName, "TraceChunkGets",
+                    new AttrGetter(getBufManager(), "getNGets()"));
+            registry.getOrRegister("java", mbeanName, "TraceChunkPuts",
+                    new AttrGetter(getBufManager(), "getNputs()"));
+            registry.getOrRegister("java", mbeanName, "TraceChunkAllocs",
+                    new AttrGetter(getBufManager(), "getnAllocs()"));
+            registry.getOrRegister("java", mbeanName, "TraceChunkDrops",
+                    new AttrGetter(getBufManager(), "getnDrops()"));
+            registry.getOrRegister("java", mbeanName, "TraceChunksPooled",
+                    new AttrGetter(getBufManager(), "getNChunks()"));
+        }
     }
 
 
@@ -343,7 +358,9 @@ public class AgentInstance implements ZorkaService {
         if (bufManager == null) {
             bufManager = new STraceBufManager(
                     getConfig().intCfg(TRACER_CHUNK_SIZE_PROP, TRACER_CHUNK_SIZE_DEFV),
-                    getConfig().intCfg(TRACER_CHUNK_MAX_PROP, TRACER_CHUNK_MAX_DEFV));
+                    getConfig().intCfg(TRACER_CHUNK_MAX_PROP, TRACER_CHUNK_MAX_DEFV),
+                    getConfig().intCfg(TRACER_CHUNK_LOCAL_PROP, TRACER_CHUNK_LOCAL_DEFV),
+                    getConfig().boolCfg(TRACER_CHUNK_OFFHEAP_PROP, TRACER_CHUNK_OFFHEAP_DEFV));
         }
         return bufManager;
     }
@@ -442,6 +459,13 @@ public class AgentInstance implements ZorkaService {
         return zabbixAgentService;
     }
 
+    public synchronized ZabbixNioAgent getZabbixNioAgent() {
+        if (zabbixNioAgent == null) {
+            zabbixNioAgent = new ZabbixNioAgent(config, getZorkaAgent(), getTranslator(), getMainExecutor());
+        }
+        return zabbixNioAgent;
+    }
+
 
     public synchronized ZorkaLib getZorkaLib() {
         if (zorkaLib == null) {
@@ -639,6 +663,10 @@ public class AgentInstance implements ZorkaService {
         if (zabbixAgentService != null) {
             zabbixAgentService.shutdown();
         }
+
+        if (zabbixNioAgent != null) {
+            zabbixNioAgent.shutdown();
+        }
         
         if (zabbixActiveAgent != null) {
         	zabbixActiveAgent.shutdown();
@@ -666,7 +694,11 @@ public class AgentInstance implements ZorkaService {
         log.info("Agent configuration reloaded ...");
 
         if (config.boolCfg(ZABBIX_PROP, ZABBIX_DEFV)) {
-            getZabbixAgentService().restart();
+            if (config.boolCfg(ZABBIX_NIO_PROP, ZABBIX_NIO_DEFV)) {
+                getZabbixNioAgent().restart();
+            } else {
+                getZabbixAgentService().restart();
+            }
         }
 
         if (config.boolCfg(ZABBIX_ACTIVE_PROP, ZABBIX_ACTIVE_DEFV)) {
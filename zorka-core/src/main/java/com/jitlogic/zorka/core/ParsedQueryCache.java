@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core;
+
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.ast.SimpleNode;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed agent queries. Monitoring servers poll the same (relatively small) set of item
+ * keys over and over, so each query text is tokenized and parsed only once, subsequent calls
+ * evaluate cached syntax trees directly. Cache is bounded, least recently used queries are
+ * evicted first.
+ * <p/>
+ * Parse times are measured on cache misses, so each cache hit adds parse time of its query
+ * to (estimated) parse time saved. Both are reported via agent diagnostics.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ParsedQueryCache {
+
+    /** Parsed query along with time it took to parse it. */
+    private static class Entry {
+        private final SimpleNode[] nodes;
+        private final long parseTime;
+
+        private Entry(SimpleNode[] nodes, long parseTime) {
+            this.nodes = nodes;
+            this.parseTime = parseTime;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final Map<String,Entry> entries;
+
+    private long hits, misses, evictions;
+
+    private long parseTime, parseSaved;
+
+
+    /**
+     * Creates parsed query cache.
+     *
+     * @param maxEntries maximum number of cached queries
+     */
+    public ParsedQueryCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                if (size() > ParsedQueryCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * Evaluates query using given interpreter. Query is parsed only if it has not been found in cache.
+     *
+     * @param interpreter beanshell interpreter (query is evaluated in its global namespace)
+     * @param expr query string
+     * @return evaluation result
+     * @throws EvalError if query cannot be parsed or evaluated
+     */
+    public Object eval(Interpreter interpreter, String expr) throws EvalError {
+        return interpreter.eval(parse(interpreter, expr));
+    }
+
+
+    private SimpleNode[] parse(Interpreter interpreter, String expr) throws EvalError {
+        Entry e;
+
+        synchronized (this) {
+            e = entries.get(expr);
+            if (e != null) {
+                hits++;
+                parseSaved += e.parseTime;
+            } else {
+                misses++;
+            }
+        }
+
+        if (e != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.QUERY_CACHE_HITS);
+            AgentDiagnostics.inc(AgentDiagnostics.QUERY_PARSE_SAVED, e.parseTime);
+            return e.nodes;
+        }
+
+        long t1 = System.nanoTime();
+        SimpleNode[] nodes = interpreter.parse(expr);
+        long t = System.nanoTime() - t1;
+
+        AgentDiagnostics.inc(AgentDiagnostics.QUERY_CACHE_MISSES);
+        AgentDiagnostics.inc(AgentDiagnostics.QUERY_PARSE_TIME, t);
+
+        synchronized (this) {
+            parseTime += t;
+            entries.put(expr, new Entry(nodes, t));
+        }
+
+        return nodes;
+    }
+
+
+    /**
+     * Removes all cached queries (statistics are not reset). Must be called when interpreter is replaced.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /** Returns number of cached queries. */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+
+    /** Returns number of cache hits. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /** Returns number of cache misses. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /** Returns number of queries evicted from cache. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    /** Returns summary time spent parsing queries (in nanoseconds). */
+    public synchronized long getParseTime() {
+        return parseTime;
+    }
+
+
+    /** Returns estimated parse time saved thanks to cache hits (in nanoseconds). */
+    public synchronized long getParseSaved() {
+        return parseSaved;
+    }
+
+
+    @Override
+    public String toString() {
+        return "ParsedQueryCache(size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ")";
+    }
+}
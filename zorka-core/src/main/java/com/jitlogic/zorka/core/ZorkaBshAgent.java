@@ -40,6 +40,8 @@ import org.slf4j.LoggerFactory;
 
 import static com.jitlogic.zorka.core.AgentConfigProps.SCRIPTS_DIR_PROP;
 import static com.jitlogic.zorka.core.AgentConfigProps.SCRIPTS_PROP;
+import static com.jitlogic.zorka.core.AgentConfigProps.ZORKA_REQ_CACHE_DEFV;
+import static com.jitlogic.zorka.core.AgentConfigProps.ZORKA_REQ_CACHE_PROP;
 
 /**
  * This is central part of Zorka agent - it processes actual queries and executes BSH scripts.
@@ -75,6 +77,11 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     private Map<String,String> probeMap = new ConcurrentHashMap<String, String>();
 
+    /**
+     * Parsed queries (or null if caching is disabled)
+     */
+    private ParsedQueryCache queryCache;
+
     /**
      * Standard constructor.
      *
@@ -90,6 +97,9 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
         this.timeout = timeout;
         this.config = config;
 
+        int cacheSize = config.intCfg(ZORKA_REQ_CACHE_PROP, ZORKA_REQ_CACHE_DEFV);
+        this.queryCache = cacheSize > 0 ? new ParsedQueryCache(cacheSize) : null;
+
         probeSetup();
     }
 
@@ -127,7 +137,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
     @Override
     public String query(String expr) {
         try {
-            return "" + interpreter.eval(expr); // TODO proper object-to-string conversion
+            return "" + eval(expr); // TODO proper object-to-string conversion
         } catch (EvalError e) {
             log.error("Error evaluating '" + expr + "': ", e);
             return ObjectDumper.errorDump(e);
@@ -143,7 +153,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
      * @throws EvalError
      */
     public Object eval(String expr) throws EvalError {
-        return interpreter.eval(expr);
+        return queryCache != null ? queryCache.eval(interpreter, expr) : interpreter.eval(expr);
     }
 
 
@@ -220,6 +230,10 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
         return loadedScripts;
     }
 
+    public ParsedQueryCache getQueryCache() {
+        return queryCache;
+    }
+
     public Map<String,String> getProbeMap() {
         return probeMap;
     }
@@ -294,6 +308,9 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     public void restart() {
         interpreter = new Interpreter();
+        if (queryCache != null) {
+            queryCache.clear();
+        }
         put("PROP", AgentConfigProps.PROPS);
     }
 
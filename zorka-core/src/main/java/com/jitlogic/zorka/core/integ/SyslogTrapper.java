@@ -21,17 +21,24 @@ import org.slf4j.impl.ZorkaLogLevel;
 import org.slf4j.impl.ZorkaTrapper;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 
 /**
- * Minimal syslog sender implementation.
+ * Minimal syslog sender implementation. Messages are sent in RFC3164 format, either as UDP
+ * datagrams (default) or over TCP with octet-counting framing (RFC6587) - in this mode all
+ * messages taken from submit queue at once are sent in single write. Use tcp://host:port
+ * syslog server address to select TCP mode.
  *
  * @author rafal.lewczuk@jitlogic.com
  */
@@ -42,6 +49,31 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
      */
     public final static int DEFAULT_PORT = 514;
 
+    private static final String TCP_PREFIX = "tcp://", UDP_PREFIX = "udp://";
+
+    /**
+     * Submit queue length and maximum number of messages sent in single batch.
+     */
+    private static final int QUEUE_LENGTH = 256, BATCH_LENGTH = 64;
+
+    /**
+     * TCP connect timeout (in milliseconds)
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Timestamp formatted for given second.
+     */
+    private static class Timestamp {
+        private final long second;
+        private final String text;
+
+        private Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
     /**
      * Syslog server IP address
      */
@@ -62,11 +94,38 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
      */
     private int defaultFacility = SyslogLib.F_LOCAL0;
 
+    /**
+     * Send messages over TCP (with octet counting framing) instead of UDP.
+     */
+    private boolean tcp;
+
     /**
      * UDP socket used to send packet to syslog server
      */
     private DatagramSocket socket;
 
+    /**
+     * Reusable datagram packet (UDP mode)
+     */
+    private DatagramPacket packet;
+
+    /**
+     * TCP connection to syslog server (TCP mode, opened when needed)
+     */
+    private Socket tcpSocket;
+    private OutputStream tcpOutput;
+
+    /**
+     * Reusable send buffer (used only by sender thread)
+     */
+    private byte[] buf = new byte[2048];
+
+    /**
+     * Cached timestamp and its formatter (guarded by formatter itself)
+     */
+    private volatile Timestamp timestamp;
+    private final SimpleDateFormat formatter = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.ENGLISH);
+
 
     /**
      * Creates new syslog trapper.
@@ -83,16 +142,23 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
     /**
      * Creates new syslog trapper.
      *
-     * @param syslogServer    syslog server IP address
+     * @param syslogServer    syslog server IP address (tcp:// prefix selects TCP mode)
      * @param defaultHost     default host name
      * @param defaultFacility default facility code
      * @param quiet           if true, trapper will not its own errors to zorka logger
      *                        TODO get rid of this 'quiet' feature after refactoring
      */
     public SyslogTrapper(String syslogServer, String defaultHost, int defaultFacility, boolean quiet) {
-        super("syslog-trapper");
+        super("syslog-trapper", QUEUE_LENGTH, BATCH_LENGTH);
         this.defaultFacility = defaultFacility;
         try {
+            if (syslogServer.startsWith(TCP_PREFIX)) {
+                tcp = true;
+                syslogServer = syslogServer.substring(TCP_PREFIX.length());
+            } else if (syslogServer.startsWith(UDP_PREFIX)) {
+                syslogServer = syslogServer.substring(UDP_PREFIX.length());
+            }
+
             if (syslogServer.contains(":")) {
                 String[] parts = syslogServer.split(":");
                 syslogAddress = InetAddress.getByName(parts[0]);
@@ -134,7 +200,7 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
      * @param message  log message
      */
     public void log(int severity, int facility, String hostname, String tag, String message) {
-        String s = format(severity, facility, new Date(), hostname, tag, message);
+        String s = format(severity, facility, System.currentTimeMillis(), hostname, tag, message);
         AgentDiagnostics.inc(countTraps, AgentDiagnostics.TRAPS_SUBMITTED);
         if (!submit(s)) {
             AgentDiagnostics.inc(countTraps, AgentDiagnostics.TRAPS_DROPPED);
@@ -154,35 +220,100 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
      * @return proper syslog message
      */
     public String format(int severity, int facility, Date date, String hostname, String tag, String message) {
-        return "<" + (severity + facility * 8) + ">" + new SimpleDateFormat("MMM dd HH:mm:ss").format(date) + " "
-                + hostname + " " + tag + " " + ZorkaUtil.printableASCII7(message);
+        return format(severity, facility, date.getTime(), hostname, tag, message);
+    }
+
+
+    private String format(int severity, int facility, long tstamp, String hostname, String tag, String message) {
+        String msg = ZorkaUtil.printableASCII7(message);
+        StringBuilder sb = new StringBuilder(msg.length() + hostname.length() + tag.length() + 24);
+        sb.append('<');
+        sb.append(severity + facility * 8);
+        sb.append('>');
+        sb.append(timestamp(tstamp));
+        sb.append(' ');
+        sb.append(hostname);
+        sb.append(' ');
+        sb.append(tag);
+        sb.append(' ');
+        sb.append(msg);
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns RFC3164 timestamp. Last formatted timestamp is reused for all messages logged in the same second.
+     */
+    private String timestamp(long tstamp) {
+        long second = tstamp / 1000L;
+        Timestamp ts = timestamp;
+
+        if (ts == null || ts.second != second) {
+            synchronized (formatter) {
+                ts = new Timestamp(second, formatter.format(new Date(second * 1000L)));
+            }
+            timestamp = ts;
+        }
+
+        return ts.text;
     }
 
 
     @Override
     public void open() {
-        try {
-            socket = new DatagramSocket();
-        } catch (SocketException e) {
-            handleError("Cannot open UDP socket", e);
+        if (!tcp) {
+            try {
+                socket = new DatagramSocket();
+                packet = new DatagramPacket(buf, 0, syslogAddress, syslogPort);
+            } catch (SocketException e) {
+                handleError("Cannot open UDP socket", e);
+            }
         }
-
     }
 
 
     @Override
     public void close() {
-        socket.close();
-        socket = null;
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+        closeTcp();
+    }
+
+
+    private void closeTcp() {
+        if (tcpSocket != null) {
+            try {
+                tcpSocket.close();
+            } catch (IOException e) {
+                handleError("Cannot close syslog connection", e);
+            }
+            tcpSocket = null;
+            tcpOutput = null;
+        }
     }
 
 
     @Override
     protected void process(List<String> msgs) {
+        if (tcp) {
+            processTcp(msgs);
+        } else {
+            processUdp(msgs);
+        }
+    }
+
+
+    private void processUdp(List<String> msgs) {
+        if (socket == null) {
+            return;
+        }
         for (String msg : msgs) {
-            byte[] buf = msg.getBytes();
+            int len = encode(msg, 0);
             try {
-                socket.send(new DatagramPacket(buf, 0, buf.length, syslogAddress, syslogPort));
+                packet.setData(buf, 0, len);
+                socket.send(packet);
                 AgentDiagnostics.inc(countTraps, AgentDiagnostics.TRAPS_SENT);
             } catch (IOException e) {
                 if (log != null) {
@@ -193,6 +324,65 @@ public class SyslogTrapper extends ZorkaAsyncThread<String> implements ZorkaTrap
     }
 
 
+    /**
+     * Sends messages in single write, each message is prefixed with its length (RFC6587 octet counting).
+     */
+    private void processTcp(List<String> msgs) {
+        int pos = 0;
+
+        for (String msg : msgs) {
+            pos = encode(Integer.toString(msg.length()), pos);
+            ensure(pos + 1);
+            buf[pos++] = ' ';
+            pos = encode(msg, pos);
+        }
+
+        try {
+            if (tcpSocket == null) {
+                tcpSocket = new Socket();
+                tcpSocket.connect(new InetSocketAddress(syslogAddress, syslogPort), CONNECT_TIMEOUT);
+                tcpOutput = tcpSocket.getOutputStream();
+            }
+            tcpOutput.write(buf, 0, pos);
+            tcpOutput.flush();
+            if (countTraps) {
+                AgentDiagnostics.inc(AgentDiagnostics.TRAPS_SENT, msgs.size());
+            }
+        } catch (IOException e) {
+            if (countTraps) {
+                AgentDiagnostics.inc(AgentDiagnostics.TRAPS_DROPPED, msgs.size());
+            }
+            closeTcp();
+            if (log != null) {
+                handleError("Cannot send syslog messages to " + syslogAddress + ":" + syslogPort, e);
+            }
+        }
+    }
+
+
+    /**
+     * Encodes string (as 7-bit ASCII) into send buffer.
+     *
+     * @return position after encoded string
+     */
+    private int encode(String s, int pos) {
+        int len = s.length();
+        ensure(pos + len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            buf[pos++] = (byte) (c < 0x80 ? c : '?');
+        }
+        return pos;
+    }
+
+
+    private void ensure(int capacity) {
+        if (capacity > buf.length) {
+            buf = ZorkaUtil.clipArray(buf, Math.max(capacity, buf.length * 2));
+        }
+    }
+
+
     @Override
     public void trap(ZorkaLogLevel logLevel, String tag, String msg, Throwable e, Object... args) {
         if (e == null) {
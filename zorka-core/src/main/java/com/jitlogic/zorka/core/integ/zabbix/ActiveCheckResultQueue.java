@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.integ.zabbix;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of active check results waiting to be sent to zabbix server. Lock-free queue with
+ * separately maintained element counter, so checking queue depth costs O(1) (as opposed to
+ * ConcurrentLinkedQueue.size() that traverses whole queue).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ActiveCheckResultQueue {
+
+    private final ConcurrentLinkedQueue<ActiveCheckResult> queue = new ConcurrentLinkedQueue<ActiveCheckResult>();
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+
+    public void offer(ActiveCheckResult result) {
+        queue.offer(result);
+        size.incrementAndGet();
+    }
+
+
+    public void addAll(Collection<ActiveCheckResult> results) {
+        for (ActiveCheckResult r : results) {
+            offer(r);
+        }
+    }
+
+
+    public ActiveCheckResult poll() {
+        ActiveCheckResult r = queue.poll();
+        if (r != null) {
+            size.decrementAndGet();
+        }
+        return r;
+    }
+
+
+    /**
+     * Copies (without removing) up to limit results from queue head.
+     *
+     * @return number of copied results
+     */
+    public int copy(List<ActiveCheckResult> results, int limit) {
+        int n = 0;
+        Iterator<ActiveCheckResult> iterator = queue.iterator();
+        while (n < limit && iterator.hasNext()) {
+            results.add(iterator.next());
+            n++;
+        }
+        return n;
+    }
+
+
+    /**
+     * Removes up to limit results from queue head.
+     *
+     * @return number of removed results
+     */
+    public int remove(int limit) {
+        int n = 0;
+        while (n < limit && poll() != null) {
+            n++;
+        }
+        return n;
+    }
+
+
+    /**
+     * Moves up to limit results from queue head to given list.
+     *
+     * @return number of moved results
+     */
+    public int drain(List<ActiveCheckResult> results, int limit) {
+        int n = 0;
+        ActiveCheckResult r;
+        while (n < limit && (r = poll()) != null) {
+            results.add(r);
+            n++;
+        }
+        return n;
+    }
+
+
+    public void clear() {
+        while (poll() != null) {
+            // Counter is maintained by poll()
+        }
+    }
+
+
+    /** Returns number of queued results (approximate if queue is concurrently modified). */
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
@@ -19,6 +19,7 @@
 package com.jitlogic.zorka.core.integ.zabbix;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -28,7 +29,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -91,8 +91,11 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 	/* Scheduler Management */
 	private ScheduledExecutorService scheduler;
 	private HashMap<ActiveCheckQueryItem, ScheduledFuture<?>> runningTasks;
-	private ConcurrentLinkedQueue<ActiveCheckResult> resultsQueue;
+	private ActiveCheckResultQueue resultsQueue;
+	private ZabbixSpillQueue spillQueue;
 	private ScheduledFuture<?> senderTask;
+	private ScheduledFuture<?> cleanerTask;
+	private ZabbixActiveSenderTask sender;
 
 	/* BSH agent */
 	private ZorkaBshAgent agent;
@@ -156,13 +159,29 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 		senderInterval = config.intCfg(prefix + ".sender.interval", 60);
 		maxBatchSize = config.intCfg(prefix + ".batch.size", 10);
 		maxCacheSize = config.intCfg(prefix + ".cache.size", 150);
-		log.info("ZabbixActive Agent (" + agentHost + ") will send up to " + maxBatchSize + " metrics every " +
+		log.info("ZabbixActive Agent (" + agentHost + ") will send queued metrics (in batches of at least " + maxBatchSize + ") every " +
 				senderInterval + " seconds. Agent will persist up to " + maxCacheSize + " metrics per " + (senderInterval*2) + 
 				" seconds, exceeding records will be discarded.");
 
 		/* scheduler's infra */
 		runningTasks = new HashMap<ActiveCheckQueryItem, ScheduledFuture<?>>();
-		resultsQueue = new ConcurrentLinkedQueue<ActiveCheckResult>();
+		resultsQueue = new ActiveCheckResultQueue();
+
+		/* disk backed queue for results that cannot be sent */
+		if (spillQueue != null) {
+			spillQueue.close();
+			spillQueue = null;
+		}
+		if (config.boolCfg(prefix + ".spill", false)) {
+			File spillDir = config.hasCfg(prefix + ".spill.dir")
+					? new File(config.stringCfg(prefix + ".spill.dir", null))
+					: new File(config.getHomeDir(), "zabbix-spill");
+			spillQueue = new ZabbixSpillQueue(spillDir,
+					config.kiloCfg(prefix + ".spill.size", 16L * 1024 * 1024),
+					config.intCfg(prefix + ".spill.age", 86400) * 1000L,
+					config.intCfg(prefix + ".spill.segment", 1000));
+			log.info("ZabbixActive will spill unsent results to " + spillDir);
+		}
 	}
 
 
@@ -187,7 +206,11 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 			running = false;
 			try {
 				log.debug("ZabbixActive cancelling sender task...");
-				senderTask.cancel(true);
+				if (senderTask != null) {
+					senderTask.cancel(true);
+					cleanerTask.cancel(true);
+					sender.close();
+				}
 				
 				log.debug("ZabbixActive cancelling all ZorkaBsh tasks...");
                 for (Map.Entry<ActiveCheckQueryItem,ScheduledFuture<?>> e : runningTasks.entrySet()) {
@@ -195,6 +218,14 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
                 }
                 runningTasks.clear();
 
+				if (spillQueue != null) {
+					log.debug("ZabbixActive spilling dataQueue...");
+					ArrayList<ActiveCheckResult> results = new ArrayList<ActiveCheckResult>();
+					resultsQueue.drain(results, Integer.MAX_VALUE);
+					spillQueue.spill(results);
+					spillQueue.close();
+				}
+
 				log.debug("ZabbixActive clearing dataQueue...");
 				resultsQueue.clear();
 				
@@ -340,10 +371,10 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 	}
 
 	private void scheduleTasks() {
-		ZabbixActiveSenderTask sender = new ZabbixActiveSenderTask(activeAddr, activePort, resultsQueue, maxBatchSize, config);
+		sender = new ZabbixActiveSenderTask(activeAddr, activePort, resultsQueue, spillQueue, maxBatchSize, config);
 		senderTask = scheduler.scheduleAtFixedRate(sender, senderInterval, senderInterval, TimeUnit.SECONDS);
 		
-		ZabbixActiveCleanerTask cleaner = new ZabbixActiveCleanerTask(resultsQueue, maxCacheSize);
-		senderTask = scheduler.scheduleAtFixedRate(cleaner, senderInterval*2, senderInterval*2, TimeUnit.SECONDS);
+		ZabbixActiveCleanerTask cleaner = new ZabbixActiveCleanerTask(resultsQueue, spillQueue, maxCacheSize);
+		cleanerTask = scheduler.scheduleAtFixedRate(cleaner, senderInterval*2, senderInterval*2, TimeUnit.SECONDS);
 	}
 }
\ No newline at end of file
@@ -17,7 +17,7 @@
 
 package com.jitlogic.zorka.core.integ.zabbix;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,12 +33,20 @@ public class ZabbixActiveCleanerTask implements Runnable {
 	 */
 	private static final Logger log = LoggerFactory.getLogger(ZabbixActiveCleanerTask.class);
 
-	private ConcurrentLinkedQueue<ActiveCheckResult> responseQueue;
+	private ActiveCheckResultQueue responseQueue;
+
+	private ZabbixSpillQueue spillQueue;
 
 	private int maxCacheSize;
 
-	public ZabbixActiveCleanerTask(ConcurrentLinkedQueue<ActiveCheckResult> responseQueue, int maxCacheSize){
+	public ZabbixActiveCleanerTask(ActiveCheckResultQueue responseQueue, int maxCacheSize){
+		this(responseQueue, null, maxCacheSize);
+	}
+
+	public ZabbixActiveCleanerTask(ActiveCheckResultQueue responseQueue,
+								   ZabbixSpillQueue spillQueue, int maxCacheSize){
 		this.responseQueue = responseQueue;
+		this.spillQueue = spillQueue;
 		this.maxCacheSize = maxCacheSize;
 	}
 
@@ -51,9 +59,16 @@ public class ZabbixActiveCleanerTask implements Runnable {
 	}
 
 	private void removeFromCache(int itemsCount) {
-		/* remove AgentData from cache */
+		/* remove AgentData from cache (move it to spill queue if enabled) */
+		ArrayList<ActiveCheckResult> removed = new ArrayList<ActiveCheckResult>();
 		for (int count = 0; count < itemsCount; count++) {
-			responseQueue.poll();
+			ActiveCheckResult r = responseQueue.poll();
+			if (r != null && spillQueue != null) {
+				removed.add(r);
+			}
+		}
+		if (removed.size() > 0) {
+			spillQueue.spill(removed);
 		}
 		if (itemsCount > 0) {
 			log.debug("ZabbixActiveSender " + itemsCount + " items removed from cache");
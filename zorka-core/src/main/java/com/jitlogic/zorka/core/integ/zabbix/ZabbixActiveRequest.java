@@ -18,7 +18,9 @@
 package com.jitlogic.zorka.core.integ.zabbix;
 
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -46,6 +48,11 @@ public class ZabbixActiveRequest {
 	 */
 	private Socket socket;
 
+	/**
+	 * Buffered socket input (responses are decoded byte by byte).
+	 */
+	private InputStream in;
+
 	/**
 	 * Request string
 	 */
@@ -100,7 +107,9 @@ public class ZabbixActiveRequest {
 	 */
 	public void send(String message) throws IOException {
 		byte[] buf = ZabbixUtils.zbx_format(message);
-		log.debug("Zorka send: " + new String(buf));
+		if (log.isDebugEnabled()) {
+			log.debug("Zorka send: " + new String(buf));
+		}
 
 		OutputStream out = socket.getOutputStream();
 		out.write(buf);
@@ -129,12 +138,33 @@ public class ZabbixActiveRequest {
 	public String getReq() throws IOException {
 		String s = null;
 		if (reqs.isEmpty()) {
-			s = ZabbixUtils.decode(socket.getInputStream());
+			s = ZabbixUtils.decode(input());
 			log.debug("Zorka get:" + s);
 		}
 		return s;
 	} // getReq()
 
+	/**
+	 * Waits until response starts arriving without consuming anything.
+	 *
+	 * @return false if server closed connection before sending anything
+	 * @throws IOException if I/O error occurs (eg. socket timeout)
+	 */
+	public boolean awaitResp() throws IOException {
+		InputStream is = input();
+		is.mark(1);
+		int b = is.read();
+		is.reset();
+		return b != -1;
+	}
+
+	private InputStream input() throws IOException {
+		if (in == null) {
+			in = new BufferedInputStream(socket.getInputStream());
+		}
+		return in;
+	}
+
 	/**
 	 * Get and decode an Active Check response
 	 * @return
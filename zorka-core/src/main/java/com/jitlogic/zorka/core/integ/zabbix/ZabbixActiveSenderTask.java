@@ -17,86 +17,156 @@
 
 package com.jitlogic.zorka.core.integ.zabbix;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 
 import com.jitlogic.zorka.common.util.ZorkaConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sends queued active check results to zabbix server. All results queued at the beginning of
+ * sender cycle are sent (in batches). Batch size is adjusted between cycles and batches: it grows
+ * when more results are waiting and server answers quickly, shrinks when server responses
+ * get slow or queue becomes shallow.
+ * <p/>
+ * Connection to server is kept open and reused as long as server allows it. If server closes
+ * reused connection right after a response, sender assumes server does not support persistent
+ * connections and falls back to connection per batch.
+ */
 public class ZabbixActiveSenderTask implements Runnable {
 	/**
 	 * Logger
 	 */
 	private static final Logger log = LoggerFactory.getLogger(ZabbixActiveSenderTask.class);
 
+	/**
+	 * Reused connection failing within this time after last response means server closes connections (ms)
+	 */
+	private static final long REUSE_CHECK_TIME = 1000;
+
 	private InetAddress serverAddr;
 	private int serverPort;
 
-	private ConcurrentLinkedQueue<ActiveCheckResult> responseQueue;
+	private ActiveCheckResultQueue responseQueue;
+
+	/**
+	 * Results that could not be sent (or null if spilling is disabled)
+	 */
+	private ZabbixSpillQueue spillQueue;
+
+	/**
+	 * Maximum number of spilled segments replayed in single sender cycle
+	 */
+	private int maxReplay;
 
 	private long clock;
 
-	private int maxBatchSize;
+	/**
+	 * Batch size limits and current batch size
+	 */
+	private int minBatchSize, maxBatchSize, batchSize;
+
+	/**
+	 * Server response time above which batch size will be decreased (ns)
+	 */
+	private long targetRtt;
+
+	/**
+	 * Connection (socket) timeout (ms)
+	 */
+	private int timeout;
+
+	/**
+	 * Reuse connections to server
+	 */
+	private volatile boolean persistent;
+
+	/**
+	 * Open connection (if any) and its request object
+	 */
+	private Socket socket;
+	private ZabbixActiveRequest request;
+
+	/**
+	 * Time of last response received (ms)
+	 */
+	private long tlast;
 
 	private final String _SUCCESS = "success";
 
 	private ZorkaConfig config;
 
 	public ZabbixActiveSenderTask(InetAddress serverAddr, int serverPort,
-								  ConcurrentLinkedQueue<ActiveCheckResult> responseQueue,
+								  ActiveCheckResultQueue responseQueue,
 								  int maxBatchSize, ZorkaConfig config){
+		this(serverAddr, serverPort, responseQueue, null, maxBatchSize, config);
+	}
+
+	public ZabbixActiveSenderTask(InetAddress serverAddr, int serverPort,
+								  ActiveCheckResultQueue responseQueue,
+								  ZabbixSpillQueue spillQueue, int minBatchSize, ZorkaConfig config){
 		this.serverAddr = serverAddr;
 		this.serverPort = serverPort;
 		this.responseQueue = responseQueue;
-		this.maxBatchSize = maxBatchSize;
+		this.spillQueue = spillQueue;
 		this.config = config;
+		this.minBatchSize = Math.max(1, minBatchSize);
+		this.maxBatchSize = Math.max(this.minBatchSize, config.intCfg("zabbix.active.batch.max", 1000));
+		this.batchSize = this.minBatchSize;
+		this.targetRtt = config.intCfg("zabbix.active.batch.rtt", 250) * 1000000L;
+		this.timeout = config.intCfg("zabbix.active.sender.timeout", 30000);
+		this.persistent = config.boolCfg("zabbix.active.keepalive", true);
+		this.maxReplay = config.intCfg("zabbix.active.spill.replay", 16);
 	}
 
 	@Override
 	public void run() {
 		log.debug("ZabbixActiveSender run...");
-		Socket socket = null;
 		try {
 			clock = (new Date()).getTime() / 1000L;
 
-			socket = new Socket(serverAddr, serverPort);
-			ZabbixActiveRequest request = new ZabbixActiveRequest(socket, config);
+			/* send everything queued so far (but do not chase results arriving in the meantime) */
+			int depth = responseQueue.size();
+			int sent = 0;
+			boolean ok = true;
 
-			/* copy cache */
-			int endIndex = responseQueue.size();
-			endIndex = (endIndex > maxBatchSize)? maxBatchSize : endIndex; 
+			log.debug("ZabbixActiveSender " + depth + " items cached");
 
-			ArrayList<ActiveCheckResult> results = new ArrayList<ActiveCheckResult>();
-			Iterator<ActiveCheckResult> iterator = responseQueue.iterator();
-			for (int i = 0; i < endIndex; i++) {
-				results.add(iterator.next());
+			if (depth < batchSize / 2) {
+				batchSize = Math.max(minBatchSize, batchSize / 2);
 			}
 
-			log.debug("ZabbixActiveSender " + endIndex + " items cached");
+			while (ok && sent < depth) {
+				ArrayList<ActiveCheckResult> results = new ArrayList<ActiveCheckResult>(batchSize);
+				if (responseQueue.copy(results, batchSize) == 0) {
+					break;
+				}
 
-			if (results.size() > 0) {
-				/* send message */
-				String message = ZabbixUtils.createAgentData(results, clock);
+				long t0 = System.nanoTime();
+				ok = send(results);
+				long rtt = System.nanoTime() - t0;
 
-				request.send(message);
-				log.debug("ZabbixActiveSender message sent: " + message);
-
-				/* verify OK */
-				String response = request.getReq();
-				if (response.contains(_SUCCESS)) {
+				if (ok) {
 					/* remove AgentData from cache */
-					for (int count = 0; count < endIndex; count++) {
-						responseQueue.poll();
-					}
-					log.debug("ZabbixActiveSender " + endIndex + " items removed from cache");
+					responseQueue.remove(results.size());
+					sent += results.size();
+					adjust(rtt, depth - sent);
 				}
 			}
+
+			log.debug("ZabbixActiveSender " + sent + " items sent, batch size: " + batchSize);
+
+			if (ok && spillQueue != null) {
+				replay();
+			}
 		} catch (IOException e) {
 			if (log.isDebugEnabled()) {
 				log.debug("Failed to run ZabbixActiveSenderTask, IO Exception " + e.getMessage(), e);
@@ -104,20 +174,210 @@ public class ZabbixActiveSenderTask implements Runnable {
 			else {
 				log.warn("Failed to run ZabbixActiveSenderTask, IO Exception " + e.getMessage());
 			}
+			disconnect();
+			spill();
 		} catch (Exception e) {
 			log.error("Failed to run ZabbixActiveSenderTask", e);
+			disconnect();
 		} finally {
 			log.debug("ZabbixActiveSender finished");
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {
-					log.error("Erro closing socket: ", e);
-				} finally {
-					socket = null;
+		}
+	}
+
+	/**
+	 * Adjusts batch size according to measured server response time and number of results still waiting.
+	 */
+	private void adjust(long rtt, int remaining) {
+		if (rtt > targetRtt) {
+			batchSize = Math.max(minBatchSize, batchSize / 2);
+		} else if (rtt < targetRtt / 2 && remaining > batchSize) {
+			batchSize = Math.min(maxBatchSize, batchSize * 2);
+		}
+	}
+
+	/**
+	 * Sends results to zabbix server. Batch is resent on fresh connection only if reused connection
+	 * turns out to be dead before server could see it: either write fails or server closes connection
+	 * without starting a response. Other errors (notably read timeouts) are reported to the caller,
+	 * as server might have already processed the batch.
+	 *
+	 * @return true if server accepted results
+	 * @throws IOException if server is not reachable
+	 */
+	private boolean send(List<ActiveCheckResult> results) throws IOException {
+		String message = ZabbixUtils.createAgentData(new ArrayList<ActiveCheckResult>(results), clock);
+
+		while (true) {
+			boolean reused = connect();
+
+			/* send message */
+			try {
+				request.send(message);
+			} catch (IOException e) {
+				stale(reused, e);
+				continue;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("ZabbixActiveSender message sent: " + message);
+			}
+
+			/* wait for server to start responding */
+			try {
+				if (!request.awaitResp()) {
+					stale(reused, new EOFException("Connection closed by server."));
+					continue;
 				}
+			} catch (SocketTimeoutException e) {
+				disconnect();
+				throw e;
+			} catch (SocketException e) {
+				stale(reused, e);
+				continue;
 			}
+
+			/* verify OK */
+			String response;
+			try {
+				response = request.getReq();
+			} catch (IOException e) {
+				disconnect();
+				throw e;
+			}
+			if (response == null) {
+				disconnect();
+				throw new EOFException("Connection closed by server.");
+			}
+
+			tlast = System.currentTimeMillis();
+
+			if (!persistent) {
+				disconnect();
+			}
+
+			return response.contains(_SUCCESS);
+		}
+	}
+
+	/**
+	 * Handles connection that turned out to be dead before server could process request.
+	 * Rethrows error if connection was fresh, otherwise returns, so request can be retried.
+	 */
+	private void stale(boolean reused, IOException e) throws IOException {
+		disconnect();
+		if (!reused) {
+			throw e;
+		}
+		if (System.currentTimeMillis() - tlast < REUSE_CHECK_TIME) {
+			log.info("Zabbix server at " + serverAddr + ":" + serverPort
+					+ " closes connections after each request. Connection reuse disabled.");
+			persistent = false;
+		}
+	}
+
+	/**
+	 * Makes sure there is an open connection to server.
+	 *
+	 * @return true if already open connection is reused
+	 */
+	private boolean connect() throws IOException {
+		if (socket != null && !socket.isClosed()) {
+			if (System.currentTimeMillis() - tlast < REUSE_CHECK_TIME || isOpen()) {
+				return true;
+			}
+			disconnect();
+		}
+
+		socket = new Socket(serverAddr, serverPort);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(timeout);
+		request = new ZabbixActiveRequest(socket, config);
+
+		return false;
+	}
+
+	/**
+	 * Checks if idle connection has not been closed by server in the meantime.
+	 */
+	private boolean isOpen() {
+		try {
+			socket.setSoTimeout(1);
+			socket.getInputStream().read();
+			return false; // EOF (or unexpected data)
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.setSoTimeout(timeout);
+			} catch (IOException e) {
+				log.debug("Cannot restore socket timeout", e);
+			}
+		}
+	}
+
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.error("Erro closing socket: ", e);
+			} finally {
+				socket = null;
+				request = null;
+			}
+		}
+	}
+
+	/**
+	 * Sends spilled results (in bulk) after server became available again.
+	 */
+	private void replay() throws IOException {
+		for (int i = 0; i < maxReplay; i++) {
+			List<ActiveCheckResult> results = spillQueue.peek();
+			if (results == null) {
+				break;
+			}
+			if (!send(results)) {
+				log.warn("Zabbix server did not accept " + results.size() + " spilled results. Will retry later.");
+				break;
+			}
+			spillQueue.commit();
+			log.debug("ZabbixActiveSender " + results.size() + " spilled items replayed");
+		}
+	}
+
+	/**
+	 * Moves all cached results to spill queue (if enabled), so they don't occupy memory
+	 * and won't be lost while server is unavailable.
+	 */
+	private void spill() {
+		if (spillQueue == null) {
+			return;
 		}
+
+		ArrayList<ActiveCheckResult> results = new ArrayList<ActiveCheckResult>();
+		responseQueue.drain(results, Integer.MAX_VALUE);
+
+		if (results.size() > 0) {
+			int n = spillQueue.spill(results);
+			log.debug("ZabbixActiveSender " + n + " items spilled to disk");
+		}
+	}
+
+	/**
+	 * Closes connection to server (if open).
+	 */
+	public void close() {
+		disconnect();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
 	}
 
 }
@@ -19,7 +19,6 @@ package com.jitlogic.zorka.core.integ.zabbix;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.jitlogic.zorka.core.integ.QueryTranslator;
 import com.jitlogic.zorka.core.ZorkaBshAgent;
@@ -36,11 +35,11 @@ public class ZabbixActiveTask implements Runnable, ZorkaRequestHandler {
 	private ActiveCheckQueryItem item;
 	private ZorkaBshAgent agent;
 	private QueryTranslator translator;
-	private ConcurrentLinkedQueue<ActiveCheckResult> responseQueue;
+	private ActiveCheckResultQueue responseQueue;
 	
 	private long clock;
 	
-	public ZabbixActiveTask(String agentHost, ActiveCheckQueryItem item, ZorkaBshAgent agent, QueryTranslator translator, ConcurrentLinkedQueue<ActiveCheckResult> responseQueue){
+	public ZabbixActiveTask(String agentHost, ActiveCheckQueryItem item, ZorkaBshAgent agent, QueryTranslator translator, ActiveCheckResultQueue responseQueue){
 		this.agentHost = agentHost;
 		this.item = item;
 		this.agent = agent;
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.integ.zabbix;
+
+import bsh.EvalError;
+import com.jitlogic.netkit.BufHandler;
+import com.jitlogic.netkit.NetCtx;
+import com.jitlogic.netkit.NetCtxFactory;
+import com.jitlogic.netkit.NetServer;
+import com.jitlogic.zorka.common.ZorkaService;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.ZorkaBshAgent;
+import com.jitlogic.zorka.core.integ.QueryTranslator;
+import com.jitlogic.zorka.core.integ.TlsContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.jitlogic.zorka.core.AgentConfigProps.*;
+
+/**
+ * Zabbix (passive) agent based on non-blocking network engine. Single I/O thread handles all
+ * connections, queries are evaluated asynchronously in agent executor, so no thread is parked
+ * waiting for network or query results. Request timeouts are checked by I/O thread.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ZabbixNioAgent implements ZorkaService {
+
+    private static final Logger log = LoggerFactory.getLogger(ZabbixNioAgent.class);
+
+    /** Minimum interval between request timeout checks (in nanoseconds). */
+    private static final long CHECK_INTERVAL = 100000000L;
+
+    private final String prefix = "zabbix";
+
+    private ZorkaConfig config;
+    private ZorkaBshAgent agent;
+    private QueryTranslator translator;
+    private ExecutorService executor;
+
+    private String listenAddr;
+    private int listenPort;
+    private List<InetAddress> allowedAddrs = new ArrayList<InetAddress>();
+    private SSLContext sslContext;
+
+    private volatile boolean keepAlive;
+    private volatile long timeout;
+
+    private NetServer server;
+
+    /** Connections with requests in progress. */
+    private final Set<ZabbixProtocolHandler> active =
+        Collections.newSetFromMap(new ConcurrentHashMap<ZabbixProtocolHandler, Boolean>());
+
+    private long tcheck;
+
+
+    public ZabbixNioAgent(ZorkaConfig config, ZorkaBshAgent agent, QueryTranslator translator, ExecutorService executor) {
+        this.config = config;
+        this.agent = agent;
+        this.translator = translator;
+        this.executor = executor;
+    }
+
+
+    private void setup() {
+        listenAddr = config.stringCfg(prefix + ".listen.addr", "127.0.0.1").trim();
+        listenPort = config.intCfg(prefix + ".listen.port", 10055);
+
+        log.info("Zorka will listen for '" + prefix + "' connections on " + listenAddr + ":" + listenPort + " (NIO)");
+
+        allowedAddrs.clear();
+        for (String sa : config.listCfg(prefix + ".server.addr", "127.0.0.1")) {
+            try {
+                log.info("Zorka will accept '" + prefix + "' connections from '" + sa.trim() + "'.");
+                allowedAddrs.add(InetAddress.getByName(sa.trim()));
+            } catch (UnknownHostException e) {
+                log.error("Cannot parse " + prefix + ".server.addr in zorka.properties", e);
+                AgentDiagnostics.inc(AgentDiagnostics.CONFIG_ERRORS);
+            }
+        }
+
+        keepAlive = config.boolCfg(ZABBIX_KEEPALIVE_PROP, ZABBIX_KEEPALIVE_DEFV);
+        timeout = config.longCfg(ZORKA_REQ_TIMEOUT_PROP, ZORKA_REQ_TIMEOUT_DEFV) * 1000000L;
+
+        sslContext = null;
+        if (config.boolCfg(prefix + ".tls", false)) {
+            sslContext = new TlsContextBuilder(config, prefix).build();
+            if (sslContext == null) {
+                log.warn("TLS context not created. Switching back to plain text.");
+            }
+        }
+    }
+
+
+    /**
+     * Opens listening socket and starts I/O thread.
+     */
+    public synchronized void start() {
+        if (server == null) {
+            try {
+                server = new NetServer("ZORKA-" + prefix + "-nio", listenAddr, listenPort, new NetCtxFactory() {
+                    @Override
+                    public NetCtx create(SocketChannel ch, BufHandler in, BufHandler out) {
+                        if (!allowedAddr(ch)) {
+                            log.warn("Illegal connection attempt from '" + ch.socket().getInetAddress() + "'.");
+                            return null;
+                        }
+                        return new NetCtx(ch, new ZabbixProtocolHandler(ZabbixNioAgent.this), out);
+                    }
+                }, sslContext) {
+                    @Override
+                    protected void processNew() {
+                        checkTimeouts();
+                    }
+                };
+                server.setDaemon(true);
+                server.start();
+                log.info("ZORKA-" + prefix + " is listening at " + listenAddr + ":" + getPort() + ".");
+            } catch (IOException e) {
+                log.error("I/O error while starting " + prefix + " core:" + e.getMessage());
+                server = null;
+            }
+        }
+    }
+
+
+    /**
+     * Closes listening socket and all connections.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(1000);
+            server = null;
+        }
+    }
+
+
+    public void restart() {
+        setup();
+        start();
+    }
+
+
+    @Override
+    public void shutdown() {
+        log.info("Shutting down " + prefix + " agent ...");
+        stop();
+    }
+
+
+    /**
+     * Returns actual listen port (or -1 if agent is not running).
+     */
+    public synchronized int getPort() {
+        return server != null ? server.getPort() : -1;
+    }
+
+
+    private boolean allowedAddr(SocketChannel ch) {
+        InetAddress addr = ch.socket().getInetAddress();
+        for (InetAddress a : allowedAddrs) {
+            if (a.equals(addr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void checkTimeouts() {
+        long t = System.nanoTime();
+
+        if (t - tcheck < CHECK_INTERVAL || active.isEmpty()) {
+            return;
+        }
+
+        tcheck = t;
+
+        for (ZabbixProtocolHandler h : active) {
+            h.expire(t, timeout);
+        }
+    }
+
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+
+    String translate(String query) {
+        return translator.translate(query);
+    }
+
+
+    Object eval(String query) throws EvalError {
+        return agent.eval(query);
+    }
+
+
+    Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+
+    void activate(ZabbixProtocolHandler handler) {
+        active.add(handler);
+    }
+
+
+    void deactivate(ZabbixProtocolHandler handler) {
+        active.remove(handler);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.integ.zabbix;
+
+import com.jitlogic.netkit.BufHandler;
+import com.jitlogic.netkit.NetCtx;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static com.jitlogic.zorka.core.integ.zabbix.ZabbixRequestHandler.*;
+
+/**
+ * Handles single zabbix agent connection in non-blocking mode. Input is decoded from buffers
+ * passed by network engine (both header-prefixed and legacy LF-terminated requests are accepted),
+ * queries are evaluated asynchronously and responses are written back in request order.
+ * <p/>
+ * In keep-alive mode connection stays open and can carry many (possibly pipelined) requests,
+ * otherwise connection is closed after first response (as blocking zabbix agent does).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ZabbixProtocolHandler implements BufHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ZabbixProtocolHandler.class);
+
+    /** Request received from connection. */
+    private static class Request {
+        private final long tstart = System.nanoTime();
+        private String query;
+        private Future<?> future;
+        /** Encoded response (null if request is still being processed). */
+        private byte[] response;
+    }
+
+    private final ZabbixNioAgent agent;
+
+    /** Requests in arrival order. Responses are sent only from the head of this queue. */
+    private final LinkedList<Request> requests = new LinkedList<Request>();
+
+    /** Received but not yet decoded data. */
+    private byte[] buf = new byte[256];
+    private int len;
+
+    private SelectionKey key;
+
+    /** No more requests will be accepted, connection will be closed after sending pending responses. */
+    private boolean closing;
+
+    private boolean closed;
+
+
+    public ZabbixProtocolHandler(ZabbixNioAgent agent) {
+        this.agent = agent;
+    }
+
+
+    @Override
+    public synchronized boolean submit(SelectionKey key, boolean copyOnSchedule, ByteBuffer... buffers) {
+        this.key = key;
+
+        for (ByteBuffer b : buffers) {
+            if (closing) {
+                break;
+            }
+            append(b);
+            decode();
+        }
+
+        return true;
+    }
+
+
+    private void append(ByteBuffer b) {
+        int n = b.remaining();
+        if (len + n > buf.length) {
+            byte[] nbuf = new byte[Math.max(buf.length * 2, len + n)];
+            System.arraycopy(buf, 0, nbuf, 0, len);
+            buf = nbuf;
+        }
+        b.get(buf, len, n);
+        len += n;
+    }
+
+
+    private void decode() {
+        int pos = 0;
+
+        while (!closing) {
+            while (pos < len && (buf[pos] == '\r' || buf[pos] == '\n')) {
+                pos++;
+            }
+
+            if (pos == len) {
+                break;
+            }
+
+            int n = frame(pos);
+
+            if (n == 0) {
+                break;
+            }
+
+            if (n < 0) {
+                log.error("Invalid or too long zabbix request. Closing connection.");
+                AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ERRORS);
+                closing = true;
+                flush();
+                break;
+            }
+
+            pos += n;
+
+            if (!agent.isKeepAlive()) {
+                closing = true;
+            }
+        }
+
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, len - pos);
+            len -= pos;
+        }
+    }
+
+
+    /**
+     * Decodes (and dispatches) single request starting at given position.
+     *
+     * @return number of consumed bytes, 0 if request is not complete yet, -1 if request is invalid
+     */
+    private int frame(int pos) {
+        int avail = len - pos;
+
+        if (hasHeader(pos, Math.min(avail, HEADER.length))) {
+            if (avail < HDR_LEN) {
+                return 0;
+            }
+
+            long l = 0;
+            for (int i = 0; i < 8; i++) {
+                l |= (buf[pos + HEADER.length + i] & 0xffL) << (i * 8);
+            }
+
+            if (l > MAX_REQUEST_LENGTH) {
+                return -1;
+            }
+
+            if (avail < HDR_LEN + l) {
+                return 0;
+            }
+
+            dispatch(str(pos + HDR_LEN, (int) l));
+            return HDR_LEN + (int) l;
+        }
+
+        for (int i = pos; i < len; i++) {
+            if (buf[i] == '\n') {
+                int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                dispatch(str(pos, end - pos));
+                return i + 1 - pos;
+            }
+        }
+
+        return avail > MAX_REQUEST_LENGTH ? -1 : 0;
+    }
+
+
+    private boolean hasHeader(int pos, int n) {
+        for (int i = 0; i < n; i++) {
+            if (buf[pos + i] != HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private String str(int pos, int n) {
+        char[] chars = new char[n];
+        for (int i = 0; i < n; i++) {
+            chars[i] = (char) (buf[pos + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+
+    private void dispatch(String s) {
+        final Request r = new Request();
+        requests.add(r);
+        agent.activate(this);
+
+        AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_REQUESTS);
+
+        try {
+            r.query = agent.translate(s);
+            r.future = agent.submit(new Runnable() {
+                @Override
+                public void run() {
+                    evaluate(r);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(r, null, new RuntimeException("Request queue full."));
+        } catch (Exception e) {
+            complete(r, null, e);
+        }
+    }
+
+
+    private void evaluate(Request r) {
+        Object rslt = null;
+        Throwable err = null;
+
+        long t1 = System.nanoTime();
+        AgentDiagnostics.inc(AgentDiagnostics.AGENT_REQUESTS);
+
+        try {
+            rslt = agent.eval(r.query);
+        } catch (Throwable e) {
+            AgentDiagnostics.inc(AgentDiagnostics.AGENT_ERRORS);
+            err = e;
+        }
+
+        AgentDiagnostics.inc(AgentDiagnostics.AGENT_TIME, System.nanoTime() - t1);
+
+        complete(r, rslt, err);
+    }
+
+
+    private synchronized void complete(Request r, Object rslt, Throwable err) {
+        if (r.response != null) {
+            // Already answered (timed out)
+            return;
+        }
+
+        long t = System.nanoTime() - r.tstart;
+        AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_TIME, t);
+
+        if (err != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ERRORS);
+            log.error("ERROR [t=" + t / 1000000L + "ms] + '" + r.query + "'", err);
+        } else if (log.isDebugEnabled()) {
+            log.debug("OK [t=" + t / 1000000L + "ms] '" + r.query + "' -> '" + rslt + "'");
+        }
+
+        r.response = encode(err == null && rslt != null ? rslt.toString() : ZBX_NOTSUPPORTED);
+
+        flush();
+    }
+
+
+    /**
+     * Answers requests that have been processed for too long.
+     *
+     * @param tnow current time (as from System.nanoTime())
+     * @param timeout request timeout (in nanoseconds)
+     */
+    synchronized void expire(long tnow, long timeout) {
+        List<Request> expired = null;
+
+        for (Request r : requests) {
+            if (r.response == null && tnow - r.tstart > timeout) {
+                if (expired == null) {
+                    expired = new ArrayList<Request>();
+                }
+                expired.add(r);
+            }
+        }
+
+        if (expired != null) {
+            for (Request r : expired) {
+                if (r.future != null) {
+                    r.future.cancel(true);
+                }
+                complete(r, null, new TimeoutException("Timeout executing expression '" + r.query + "'."));
+            }
+        }
+    }
+
+
+    /**
+     * Sends all responses ready to be sent (in request order) and closes connection if needed.
+     */
+    private void flush() {
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+
+        while (!requests.isEmpty() && requests.getFirst().response != null) {
+            out.add(ByteBuffer.wrap(requests.removeFirst().response));
+        }
+
+        if (requests.isEmpty()) {
+            agent.deactivate(this);
+            if (closing && !closed) {
+                out.add(NetCtx.CLOSE);
+                closed = true;
+            }
+        }
+
+        if (!out.isEmpty() && key != null) {
+            NetCtx.fromKey(key).getOutput().submit(key, false, out.toArray(new ByteBuffer[out.size()]));
+        }
+    }
+
+
+    /** Returns number of requests still waiting for responses. */
+    public synchronized int getPending() {
+        return requests.size();
+    }
+}
@@ -80,19 +80,19 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
     /**
      * Zabbix protocol header magic number
      */
-    private static final byte[] HEADER = {0x5a, 0x42, 0x58, 0x44, 0x01};
+    static final byte[] HEADER = {0x5a, 0x42, 0x58, 0x44, 0x01};
 
 
     /**
      * Zabbix header length
      */
-    private static final int HDR_LEN = 13;
+    static final int HDR_LEN = 13;
 
 
     /**
      * Maximum request length
      */
-    private static final int MAX_REQUEST_LENGTH = 1024;
+    static final int MAX_REQUEST_LENGTH = 1024;
 
 
     /**
@@ -153,12 +153,12 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
 
 
     /**
-     * Constructs and sends response
+     * Encodes response (adds zabbix header and length field).
      *
      * @param resp response value
-     * @throws IOException if I/O error occurs
+     * @return encoded response
      */
-    private void send(String resp) throws IOException {
+    public static byte[] encode(String resp) {
         byte[] buf = new byte[resp.length() + zbx_hdr.length + 8];
 
         for (int i = 0; i < zbx_hdr.length; i++) {
@@ -176,8 +176,19 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
             buf[i + zbx_hdr.length + 8] = (byte) resp.charAt(i);
         }
 
+        return buf;
+    }
+
+
+    /**
+     * Constructs and sends response
+     *
+     * @param resp response value
+     * @throws IOException if I/O error occurs
+     */
+    private void send(String resp) throws IOException {
         OutputStream out = socket.getOutputStream();
-        out.write(buf);
+        out.write(encode(resp));
         out.flush();
     } // send()
 
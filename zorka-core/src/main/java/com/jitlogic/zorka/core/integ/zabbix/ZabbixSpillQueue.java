@@ -0,0 +1,377 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.integ.zabbix;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.JSONReader;
+import com.jitlogic.zorka.common.util.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Disk backed queue for zabbix active check results that could not be sent to server. Results
+ * are stored in segment files (one JSON record per line), segment files are replayed (and deleted)
+ * in order they were written. Each write is synced to disk, so spilled results survive agent
+ * crash or restart. Incomplete (torn) records at the end of segment are skipped when reading.
+ * <p/>
+ * Queue is bounded both by size and age: oldest segments are discarded when summary size of
+ * segment files exceeds its limit, segments that have not been written to for too long are
+ * discarded as well.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ZabbixSpillQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(ZabbixSpillQueue.class);
+
+    private static final Pattern RE_SEGMENT = Pattern.compile("spill-([0-9a-f]{16})\\.seg");
+
+    /** Single segment file. */
+    private static class Segment {
+        private final File file;
+        private int records;
+        private long size;
+        private long tlast;
+
+        private Segment(File file, int records, long size, long tlast) {
+            this.file = file;
+            this.records = records;
+            this.size = size;
+            this.tlast = tlast;
+        }
+    }
+
+    private final File dir;
+    private final long maxSize;
+    private final long maxAge;
+    private final int maxRecords;
+
+    /** Segments in write order. Only the last one can be open for writing. */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long seq;
+    private long size;
+    private int records;
+
+    /** Output stream of segment currently being written (or null). */
+    private FileOutputStream out;
+
+    /** Segment returned by last peek() call. */
+    private Segment head;
+
+
+    /**
+     * Creates spill queue. Segments left by previous agent instance are picked up.
+     *
+     * @param dir directory segment files are kept in
+     * @param maxSize maximum summary size of segment files (in bytes)
+     * @param maxAge maximum age of spilled results (in milliseconds)
+     * @param maxRecords maximum number of records in single segment (segments are replayed in single batch)
+     */
+    public ZabbixSpillQueue(File dir, long maxSize, long maxAge, int maxRecords) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.maxRecords = maxRecords;
+        open();
+    }
+
+
+    private void open() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("Cannot create spill directory: " + dir);
+            return;
+        }
+
+        String[] names = dir.list();
+
+        if (names == null) {
+            return;
+        }
+
+        Arrays.sort(names);
+
+        for (String name : names) {
+            Matcher m = RE_SEGMENT.matcher(name);
+            if (m.matches()) {
+                File f = new File(dir, name);
+                Segment s = new Segment(f, lines(f), f.length(), f.lastModified());
+                segments.add(s);
+                size += s.size;
+                records += s.records;
+                seq = Math.max(seq, Long.parseLong(m.group(1), 16) + 1);
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            log.info("Found " + records + " spilled zabbix results in " + segments.size() + " segments in " + dir);
+        }
+    }
+
+
+    /**
+     * Appends results to queue. Results are synced to disk before this method returns.
+     *
+     * @param results results to be spilled
+     * @return number of results actually written
+     */
+    public synchronized int spill(Collection<ActiveCheckResult> results) {
+        int n = 0;
+        JSONWriter writer = new JSONWriter(false);
+
+        try {
+            for (ActiveCheckResult r : results) {
+                Segment s = segments.isEmpty() ? null : segments.getLast();
+
+                if (out == null || s == null || s.records >= maxRecords) {
+                    s = next();
+                }
+
+                byte[] b = (writer.write(r) + "\n").getBytes("UTF-8");
+                out.write(b);
+                s.records++;
+                s.size += b.length;
+                records++;
+                size += b.length;
+                n++;
+            }
+            if (out != null) {
+                out.flush();
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            log.error("Cannot spill zabbix results to " + dir, e);
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_DISCARDED, results.size() - n);
+            closeOutput();
+        }
+
+        if (!segments.isEmpty()) {
+            segments.getLast().tlast = System.currentTimeMillis();
+        }
+
+        AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_SPILLED, n);
+
+        trim();
+
+        return n;
+    }
+
+
+    private Segment next() throws IOException {
+        closeOutput();
+        File f = new File(dir, String.format("spill-%016x.seg", seq++));
+        out = new FileOutputStream(f);
+        Segment s = new Segment(f, 0, 0, System.currentTimeMillis());
+        segments.add(s);
+        return s;
+    }
+
+
+    /**
+     * Returns results from oldest segment (or null if queue is empty). Returned results are
+     * not removed from queue until commit() is called.
+     */
+    public synchronized List<ActiveCheckResult> peek() {
+        trim();
+
+        while (!segments.isEmpty()) {
+            Segment s = segments.getFirst();
+
+            if (s == segments.getLast()) {
+                closeOutput();
+            }
+
+            List<ActiveCheckResult> rslt = read(s);
+
+            if (rslt != null && !rslt.isEmpty()) {
+                records += rslt.size() - s.records;
+                s.records = rslt.size();
+                head = s;
+                return rslt;
+            }
+
+            remove(s);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Removes segment returned by last peek() call (after it has been successfully sent).
+     */
+    public synchronized void commit() {
+        if (head != null && segments.contains(head)) {
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_REPLAYED, head.records);
+            remove(head);
+        }
+        head = null;
+    }
+
+
+    /**
+     * Discards segments exceeding size limit or age limit (oldest segments first).
+     */
+    private void trim() {
+        long tmin = System.currentTimeMillis() - maxAge;
+
+        while (!segments.isEmpty() && (size > maxSize || segments.getFirst().tlast < tmin)) {
+            Segment s = segments.getFirst();
+            log.warn("Discarding " + s.records + " spilled zabbix results (" + s.file.getName() + ")");
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_DISCARDED, s.records);
+            if (s == segments.getLast()) {
+                closeOutput();
+            }
+            remove(s);
+        }
+    }
+
+
+    private void remove(Segment s) {
+        segments.remove(s);
+        size -= s.size;
+        records -= s.records;
+        if (!s.file.delete() && s.file.exists()) {
+            log.error("Cannot remove spill segment: " + s.file);
+        }
+    }
+
+
+    private List<ActiveCheckResult> read(Segment s) {
+        byte[] data;
+
+        try {
+            data = readFile(s.file);
+        } catch (IOException e) {
+            log.error("Cannot read spill segment: " + s.file, e);
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_DISCARDED, s.records);
+            return null;
+        }
+
+        List<ActiveCheckResult> rslt = new ArrayList<ActiveCheckResult>(s.records);
+        int pos = 0;
+
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                try {
+                    String line = new String(data, pos, i - pos, "UTF-8");
+                    rslt.add(new JSONReader().read(line, ActiveCheckResult.class));
+                } catch (Exception e) {
+                    log.warn("Skipping broken record in spill segment " + s.file + ": " + e.getMessage());
+                    AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_DISCARDED);
+                }
+                pos = i + 1;
+            }
+        }
+
+        return rslt;
+    }
+
+
+    private static byte[] readFile(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            byte[] data = new byte[(int) f.length()];
+            int pos = 0;
+            while (pos < data.length) {
+                int n = is.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+            return pos == data.length ? data : Arrays.copyOf(data, pos);
+        } finally {
+            is.close();
+        }
+    }
+
+
+    /** Counts complete records (lines) in segment file. */
+    private static int lines(File f) {
+        try {
+            int n = 0;
+            for (byte b : readFile(f)) {
+                if (b == '\n') {
+                    n++;
+                }
+            }
+            return n;
+        } catch (IOException e) {
+            log.error("Cannot read spill segment: " + f, e);
+            return 0;
+        }
+    }
+
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("Cannot close spill segment", e);
+            }
+            out = null;
+        }
+    }
+
+
+    /**
+     * Closes segment currently being written. Queue still can be used afterwards.
+     */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+
+    /** Returns true if there are no spilled results. */
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+
+    /** Returns number of spilled results. */
+    public synchronized int getRecords() {
+        return records;
+    }
+
+
+    /** Returns summary size of segment files (in bytes). */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    /** Returns number of segment files. */
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+}
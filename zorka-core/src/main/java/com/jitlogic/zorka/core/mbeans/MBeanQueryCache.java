@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.mbeans;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches results of JMX name queries and attribute names of mbeans for a single mbean server
+ * connection. Entries are invalidated when mbeans are registered or unregistered (as reported
+ * by MBeanServerDelegate), so repeated perfmon cycles do not have to call queryNames() and
+ * getMBeanInfo() each time. Only object names and attribute names are cached, attribute values
+ * are always fetched from mbean server. If mbean server does not emit delegate notifications,
+ * cache stays disabled and all calls are passed directly to mbean server.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class MBeanQueryCache implements NotificationListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MBeanQueryCache.class);
+
+    /** Cached query: parsed object name pattern and matching names (in order returned by mbean server). */
+    private static class NameQuery {
+        private final ObjectName pattern;
+        private final List<ObjectName> names;
+
+        private NameQuery(ObjectName pattern, List<ObjectName> names) {
+            this.pattern = pattern;
+            this.names = names;
+        }
+    }
+
+    private MBeanServerConnection conn;
+
+    private volatile boolean enabled;
+
+    /** Incremented on every registration notification, used to detect entries computed while mbeans were changing. */
+    private AtomicLong version = new AtomicLong(0);
+
+    private Map<String, NameQuery> queries = new ConcurrentHashMap<String, NameQuery>();
+
+    private Map<ObjectName, MBeanAttributeInfo[]> attrs = new ConcurrentHashMap<ObjectName, MBeanAttributeInfo[]>();
+
+
+    public MBeanQueryCache(MBeanServerConnection conn) {
+        this.conn = conn;
+    }
+
+
+    /**
+     * Subscribes for registration notifications. Cache is enabled only when subscription succeeds.
+     */
+    public void start() {
+        try {
+            conn.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, null, null);
+            enabled = true;
+        } catch (Exception e) {
+            log.warn("Cannot subscribe for mbean registration notifications. JMX query results will not be cached.", e);
+        }
+    }
+
+
+    public void stop() {
+        if (enabled) {
+            enabled = false;
+            try {
+                conn.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                log.debug("Error unsubscribing from mbean registration notifications", e);
+            }
+        }
+        queries.clear();
+        attrs.clear();
+    }
+
+
+    /**
+     * Returns names of mbeans matching given query.
+     *
+     * @param query object name (possibly a pattern)
+     *
+     * @return list of matching object names (empty list if query is malformed or fails)
+     */
+    public List<ObjectName> queryNames(String query) {
+        NameQuery nq = enabled ? queries.get(query) : null;
+
+        if (nq != null) {
+            return nq.names;
+        }
+
+        long v = version.get();
+
+        try {
+            ObjectName pattern = new ObjectName(query);
+            List<ObjectName> names = Collections.unmodifiableList(
+                new ArrayList<ObjectName>(conn.queryNames(pattern, null)));
+            if (enabled) {
+                queries.put(query, new NameQuery(pattern, names));
+                if (v != version.get()) {
+                    queries.remove(query);
+                }
+            }
+            return names;
+        } catch (Exception e) {
+            log.debug("Error performing '" + query + "' JMX query", e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    /**
+     * Returns attributes of an mbean as described by its MBeanInfo. Attributes are cached only
+     * for mbeans with immutable MBeanInfo.
+     *
+     * @param name object name
+     *
+     * @return attribute descriptors
+     *
+     * @throws Exception if mbean info cannot be obtained
+     */
+    public MBeanAttributeInfo[] getAttributes(ObjectName name) throws Exception {
+        MBeanAttributeInfo[] rslt = enabled ? attrs.get(name) : null;
+
+        if (rslt == null) {
+            long v = version.get();
+            MBeanInfo info = conn.getMBeanInfo(name);
+            rslt = info.getAttributes();
+            if (enabled && isImmutable(info)) {
+                attrs.put(name, rslt);
+                if (v != version.get()) {
+                    attrs.remove(name);
+                }
+            }
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Dynamic mbeans (eg. zorka mapped mbeans) can change their attribute sets without any notification,
+     * so only mbean infos explicitly declared as immutable (eg. standard mbeans and MXBeans) are cached.
+     */
+    private static boolean isImmutable(MBeanInfo info) {
+        Descriptor d = info.getDescriptor();
+        return d != null && "true".equals(String.valueOf(d.getFieldValue("immutableInfo")));
+    }
+
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification) {
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+
+            version.incrementAndGet();
+
+            attrs.remove(name);
+
+            for (Iterator<NameQuery> i = queries.values().iterator(); i.hasNext(); ) {
+                if (i.next().pattern.apply(name)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    public int size() {
+        return queries.size();
+    }
+}
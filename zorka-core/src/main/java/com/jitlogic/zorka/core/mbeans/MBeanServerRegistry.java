@@ -93,6 +93,11 @@ public class MBeanServerRegistry {
      */
     private Map<String, ClassLoader> classLoaders = new ConcurrentHashMap<String, ClassLoader>();
 
+    /**
+     * Query caches (created on first use)
+     */
+    private Map<String, MBeanQueryCache> queryCaches = new ConcurrentHashMap<String, MBeanQueryCache>();
+
     /**
      * Deferred registrations queue
      */
@@ -122,6 +127,32 @@ public class MBeanServerRegistry {
     }
 
 
+    /**
+     * Returns query cache for registered mbean server. Cache is created and subscribed
+     * for mbean registration notifications on first use.
+     *
+     * @param name mbean server name
+     * @return query cache or null if mbean server is not registered
+     */
+    public MBeanQueryCache getQueryCache(String name) {
+        MBeanQueryCache cache = queryCaches.get(name);
+
+        if (cache == null) {
+            synchronized (this) {
+                cache = queryCaches.get(name);
+                MBeanServerConnection conn = conns.get(name);
+                if (cache == null && conn != null) {
+                    cache = new MBeanQueryCache(conn);
+                    cache.start();
+                    queryCaches.put(name, cache);
+                }
+            }
+        }
+
+        return cache;
+    }
+
+
     /**
      * Registers mbean server. Any deferred registrations to this mbean server will be performed.
      *
@@ -153,8 +184,15 @@ public class MBeanServerRegistry {
 
         classLoaders.remove(name);
 
-        if (conns.remove(name) == null) {
-            log.error("Trying to unregister non-existent MBean server '" + name + "'");
+        synchronized (this) {
+            MBeanQueryCache cache = queryCaches.remove(name);
+            if (cache != null) {
+                cache.stop();
+            }
+
+            if (conns.remove(name) == null) {
+                log.error("Trying to unregister non-existent MBean server '" + name + "'");
+            }
         }
 
     }
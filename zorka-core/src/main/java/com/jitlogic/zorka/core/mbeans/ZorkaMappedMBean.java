@@ -119,8 +119,7 @@ public class ZorkaMappedMBean implements DynamicMBean {
         AttributeList lst = new AttributeList(attributes.length + 2);
         for (String attr : attributes) {
             try {
-                final Object val = getAttribute(attr);
-                lst.add(val);
+                lst.add(new Attribute(attr, getAttribute(attr)));
             } catch (Exception e) {
                 log.error("Error getting attribute '" + attr + "':", e);
             }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.normproc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Normalizer wrapper caching normalized strings. Applications typically issue the same (relatively small)
+ * set of query texts over and over, so most of lexing and string building done by wrapped normalizer can
+ * be skipped. Cache is bounded both by number of entries and by summary length of cached strings
+ * (keys and values), least recently used entries are evicted first.
+ * <p/>
+ * Cache is split into segments (each with its own lock and LRU list), so concurrent threads normalizing
+ * different queries rarely contend. Strings longer than a segment capacity are normalized but not cached.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class CachingNormalizer implements Normalizer {
+
+    /** Default maximum number of cached strings. */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /** Default maximum summary length of cached strings (keys and values). */
+    public static final long DEFAULT_MAX_CHARS = 4 * 1024 * 1024;
+
+    private static final int SEGMENTS = 16;
+
+    /** Cache segment: LRU ordered map with its own size limits and counters. */
+    private static class Segment extends LinkedHashMap<String,String> {
+        private final int maxEntries;
+        private final long maxChars;
+        private long chars;
+        private long hits, misses, evictions;
+
+        private Segment(int maxEntries, long maxChars) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.maxChars = maxChars;
+        }
+
+        private synchronized String lookup(String key) {
+            String s = get(key);
+            if (s != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return s;
+        }
+
+        private synchronized void store(String key, String val) {
+            long len = key.length() + val.length();
+
+            if (len > maxChars) {
+                return;
+            }
+
+            String old = put(key, val);
+
+            if (old != null) {
+                chars -= key.length() + old.length();
+            }
+
+            chars += len;
+
+            Iterator<Map.Entry<String,String>> iter = entrySet().iterator();
+            while ((size() > maxEntries || chars > maxChars) && iter.hasNext()) {
+                Map.Entry<String,String> e = iter.next();
+                chars -= e.getKey().length() + e.getValue().length();
+                iter.remove();
+                evictions++;
+            }
+        }
+
+        private synchronized void reset() {
+            super.clear();
+            chars = 0;
+        }
+    }
+
+    /** Wrapped normalizer */
+    private final Normalizer normalizer;
+
+    private final Segment[] segments;
+
+    /**
+     * Creates caching normalizer.
+     *
+     * @param normalizer wrapped normalizer
+     * @param maxEntries maximum number of cached strings
+     * @param maxChars   maximum summary length of cached strings (keys and values)
+     */
+    public CachingNormalizer(Normalizer normalizer, int maxEntries, long maxChars) {
+        this.normalizer = normalizer;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxChars / SEGMENTS));
+        }
+    }
+
+
+    private Segment segment(String input) {
+        int h = input.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+
+    @Override
+    public String normalize(String input, Object...params) {
+
+        if (input == null) {
+            return null;
+        }
+
+        if (params.length > 0) {
+            // Results may depend on parameters, so they are not cached
+            return normalizer.normalize(input, params);
+        }
+
+        Segment seg = segment(input);
+        String s = seg.lookup(input);
+
+        if (s == null) {
+            s = normalizer.normalize(input);
+            if (s != null) {
+                seg.store(input, s);
+            }
+        }
+
+        return s;
+    }
+
+
+    /**
+     * Removes all cached strings (statistics are not reset).
+     */
+    public void clear() {
+        for (Segment seg : segments) {
+            seg.reset();
+        }
+    }
+
+
+    /** Returns wrapped normalizer. */
+    public Normalizer getNormalizer() {
+        return normalizer;
+    }
+
+
+    /** Returns number of cached strings. */
+    public int getSize() {
+        int size = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                size += seg.size();
+            }
+        }
+        return size;
+    }
+
+
+    /** Returns summary length of cached strings (keys and values). */
+    public long getChars() {
+        long chars = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                chars += seg.chars;
+            }
+        }
+        return chars;
+    }
+
+
+    /** Returns number of cache hits. */
+    public long getHits() {
+        long hits = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                hits += seg.hits;
+            }
+        }
+        return hits;
+    }
+
+
+    /** Returns number of cache misses. */
+    public long getMisses() {
+        long misses = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                misses += seg.misses;
+            }
+        }
+        return misses;
+    }
+
+
+    /** Returns number of strings evicted from cache. */
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                evictions += seg.evictions;
+            }
+        }
+        return evictions;
+    }
+
+
+    /** Returns cache hit ratio (in percent). */
+    public double getHitRatio() {
+        long hits = getHits(), misses = getMisses();
+        return hits + misses > 0 ? 100.0 * hits / (hits + misses) : 0.0;
+    }
+
+
+    @Override
+    public String toString() {
+        return "CachingNormalizer(size=" + getSize() + ", hits=" + getHits() + ", misses=" + getMisses() + ")";
+    }
+}
@@ -26,7 +26,18 @@ import static com.jitlogic.zorka.core.normproc.XqlLexer.*;
  */
 public class GenericNormalizer implements Normalizer {
 
-    private static final String PHD = "?";
+    private static final char PHD = '?';
+
+    /** Output buffers larger than this are not retained between calls. */
+    private static final int MAX_BUFFER = 65536;
+
+    /** Per-thread output buffers, so normalization does not allocate anything besides resulting string. */
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
     private static final boolean T = true;
     private static final boolean F = false;
 
@@ -86,6 +97,12 @@ public class GenericNormalizer implements Normalizer {
     /** Case alignment direction (to uppercase or to lowercase) */
     private boolean upcase;
 
+    /** Token processing actions (see A_* constants) */
+    private static final int A_CUT = 1, A_PHD = 2, A_CASE = 4, A_TRIM = 8;
+
+    /** Actions for each token type: processing rules combined with normalizer flags */
+    private int[] actions;
+
     /**
      * Creates SQL/HQL normalizer.
      *
@@ -125,6 +142,30 @@ public class GenericNormalizer implements Normalizer {
         this.joints = joints;
         this.proc = proc;
         this.upcase = false;
+
+        this.actions = new int[proc[0].length];
+        for (int t = 0; t < actions.length; t++) {
+            if (0 != (flags & (1<<t))) {
+                for (int i = 0; i < proc.length; i++) {
+                    actions[t] |= proc[i][t] ? 1 << i : 0;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Aligns case of a character (with fast path for ASCII characters).
+     */
+    private char align(char c) {
+        if (c < 128) {
+            if (upcase) {
+                return c >= 'a' && c <= 'z' ? (char)(c - 32) : c;
+            } else {
+                return c >= 'A' && c <= 'Z' ? (char)(c + 32) : c;
+            }
+        }
+        return upcase ? Character.toUpperCase(c) : Character.toLowerCase(c);
     }
 
 
@@ -135,31 +176,47 @@ public class GenericNormalizer implements Normalizer {
             return null;
         }
 
-        StringBuffer sb = new StringBuffer(input.length()+2);
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+
         Lexer lexer = template.lex(input);
         int last = T_UNKNOWN;
 
-        while (lexer.hasNext()) {
-            Token token = lexer.next();
-            int t = token.getType();
-            String s = token.getText();
+        while (lexer.advance()) {
+            int t = lexer.type(), start = lexer.start(), end = lexer.end();
+            int a = actions[t];
 
-            if (0 != (flags & (1<<t))) {
-                if (proc[0][t]) { continue; }
-                if (proc[1][t]) { s = PHD; }
-                if (proc[2][t]) { s = upcase ? s.toUpperCase() : s.toLowerCase(); }
-                if (proc[3][t]) { s = s.trim(); }
+            if (0 != (a & A_CUT)) { continue; }
+            if (0 != (a & A_PHD)) { start = -1; }
+            if (0 != (a & A_TRIM) && start >= 0) {
+                while (start < end && input.charAt(start) <= ' ') { start++; }
+                while (end > start && input.charAt(end-1) <= ' ') { end--; }
             }
 
             if (joints[last][t]) {
-                sb.append(" ");
+                sb.append(' ');
+            }
+
+            if (start < 0) {
+                sb.append(PHD);
+            } else if (0 != (a & A_CASE)) {
+                for (int i = start; i < end; i++) {
+                    sb.append(align(input.charAt(i)));
+                }
+            } else {
+                sb.append(input, start, end);
             }
 
-            sb.append(s);
             last = t;
         }
 
-        return sb.toString();
+        String rslt = sb.toString();
+
+        if (sb.capacity() > MAX_BUFFER) {
+            buffers.remove();
+        }
+
+        return rslt;
     }
 
 }
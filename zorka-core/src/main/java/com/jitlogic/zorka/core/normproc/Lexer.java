@@ -155,6 +155,12 @@ public abstract class Lexer implements Iterable<Token>, Iterator<Token> {
     /** State-to-token-types map */
     private int[] tokenTypes;
 
+    /** Current token type (see cursor API: advance(), type(), start(), end()) */
+    private int ttype;
+
+    /** Current token boundaries */
+    private int tstart, tend;
+
 
     /**
      * Standard constructor
@@ -205,28 +211,109 @@ public abstract class Lexer implements Iterable<Token>, Iterator<Token> {
 
     @Override
     public Token next() {
+        if (!advance()) {
+            throw new NoSuchElementException();
+        }
+        return new Token(ttype, input.substring(tstart, tend));
+    }
+
+
+    /**
+     * Moves cursor to next token. This is allocation-free alternative to next(): token
+     * is not materialized, its type and boundaries can be read using type(), start() and end().
+     *
+     * @return true if cursor has been moved, false if there are no more tokens
+     */
+    public boolean advance() {
+
+        String in = input;
+        int len = in.length();
+
+        if (pos >= len) {
+            return false;
+        }
 
         int cur = pos, type = state == S_START ? lextab[state][getch(cur)] : state;
 
         state = type; cur++;
 
-        while (state >= 0 && cur < input.length()) {
-            state = lextab[state][getch(cur)];
-            if (state >= 0) {
-                type = state;
-                cur++;
+        // Transition row is reloaded only when state changes (most tokens stay in single state)
+        byte[] row = state >= 0 ? lextab[state] : null;
+
+        while (state >= 0 && cur < len) {
+            char ch = in.charAt(cur);
+            int next = row[ch < 128 ? ch : getch(cur)];
+            if (next != state) {
+                state = next;
+                if (next < 0) {
+                    break;
+                }
+                row = lextab[next];
             }
+            type = next;
+            cur++;
         }
 
         if (state < 0) {
             state = (state == E) ? S_START : Math.abs(state);
         }
 
-        String s = input.substring(pos, cur);
         type = type == E ? 0 : Math.abs(type);
+        tstart = pos;
+        tend = cur;
+        ttype = classify(tokenTypes[type], tstart, tend);
         pos = cur;
 
-        return new Token(tokenTypes[type], s);
+        return true;
+    }
+
+
+    /**
+     * Refines type of a token found by state machine (eg. distinguishes keywords from symbols).
+     * Must not allocate any objects, as it is called for each token.
+     *
+     * @param type token type assigned by state machine
+     *
+     * @param start token start offset
+     *
+     * @param end token end offset (exclusive)
+     *
+     * @return final token type
+     */
+    protected int classify(int type, int start, int end) {
+        return type;
+    }
+
+
+    /**
+     * Returns type of current token (after advance()).
+     */
+    public int type() {
+        return ttype >= 0 ? ttype : 0;
+    }
+
+
+    /**
+     * Returns start offset of current token in input string.
+     */
+    public int start() {
+        return tstart;
+    }
+
+
+    /**
+     * Returns end offset (exclusive) of current token in input string.
+     */
+    public int end() {
+        return tend;
+    }
+
+
+    /**
+     * Returns input string.
+     */
+    public String getInput() {
+        return input;
     }
 
 
@@ -89,4 +89,31 @@ public class NormLib {
     public Normalizer ldap(int flags) {
         return GenericNormalizer.ldap(flags);
     }
+
+    /**
+     * Wraps normalizer with a cache of normalized strings (with default size limits).
+     *
+     * @param normalizer normalizer object (eg. created by sql() or ldap())
+     *
+     * @return caching normalizer
+     */
+    public Normalizer cached(Normalizer normalizer) {
+        return new CachingNormalizer(normalizer,
+                CachingNormalizer.DEFAULT_MAX_ENTRIES, CachingNormalizer.DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * Wraps normalizer with a cache of normalized strings.
+     *
+     * @param normalizer normalizer object (eg. created by sql() or ldap())
+     *
+     * @param maxEntries maximum number of cached strings
+     *
+     * @param maxChars maximum summary length of cached strings (both original and normalized)
+     *
+     * @return caching normalizer
+     */
+    public Normalizer cached(Normalizer normalizer, int maxEntries, long maxChars) {
+        return new CachingNormalizer(normalizer, maxEntries, maxChars);
+    }
 }
@@ -241,9 +241,73 @@ public class XqlLexer extends Lexer {
     ));
 
 
+    /** Keyword tabs for all dialects (used by lexer, matching tokens without extracting them from input) */
+    private static final KeywordTab[] keywordTabs = initKeywordTabs();
+
+
+    private static KeywordTab[] initKeywordTabs() {
+        KeywordTab[] tabs = new KeywordTab[keywordSets.size()];
+        for (int i = 0; i < tabs.length; i++) {
+            tabs[i] = new KeywordTab(keywordSets.get(i));
+        }
+        return tabs;
+    }
+
+
+    /**
+     * Case insensitive hash set of keywords that can be queried with fragments of input string.
+     */
+    private static class KeywordTab {
+
+        /** Keywords (in lower case), null marks empty slots */
+        private final String[] keywords;
+
+        private final int mask;
+
+        private KeywordTab(Set<String> kwset) {
+            int size = 16;
+            while (size < kwset.size() * 3) {
+                size <<= 1;
+            }
+            keywords = new String[size];
+            mask = size - 1;
+            for (String kw : kwset) {
+                int i = hash(kw, 0, kw.length()) & mask;
+                while (keywords[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keywords[i] = kw;
+            }
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                char ch = s.charAt(i);
+                h = 31 * h + (ch >= 'A' && ch <= 'Z' ? ch + 32 : Character.toLowerCase(ch));
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private boolean contains(String s, int start, int end) {
+            int len = end - start;
+            for (int i = hash(s, start, end) & mask; keywords[i] != null; i = (i + 1) & mask) {
+                String kw = keywords[i];
+                if (kw.length() == len && kw.regionMatches(true, 0, s, start, len)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
     /** Keyword set used to differentiate keywords and symbols */
     protected Set<String> keywordSet;
 
+    /** Keyword tab used to differentiate keywords and symbols */
+    private KeywordTab keywordTab;
+
     /** Current dialect */
     private int dialect;
 
@@ -258,19 +322,14 @@ public class XqlLexer extends Lexer {
     public XqlLexer(int dialect, String input) {
         super(input, lextabs[dialect], tokenTypes);
         this.keywordSet = keywordSets.get(dialect);
+        this.keywordTab = keywordTabs[dialect];
         this.dialect = dialect;
     }
 
 
     @Override
-    public Token next() {
-        Token token = super.next();
-
-        if (token.getType() == T_SYMBOL && keywordSet.contains(token.getText().toLowerCase())) {
-            token.setType(T_KEYWORD);
-        }
-
-        return token;
+    protected int classify(int type, int start, int end) {
+        return type == T_SYMBOL && keywordTab.contains(getInput(), start, end) ? T_KEYWORD : type;
     }
 
     @Override
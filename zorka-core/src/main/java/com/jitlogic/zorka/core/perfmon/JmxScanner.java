@@ -142,8 +142,9 @@ public class JmxScanner {
 
 
     public List<PerfSample> getPerfSamples(long clock, QueryLister lister) {
-        List<PerfSample> smpl = new ArrayList<PerfSample>();
-        for (QueryResult result : lister.list()) {
+        List<QueryResult> results = lister.list();
+        List<PerfSample> smpl = new ArrayList<PerfSample>(results.size());
+        for (QueryResult result : results) {
             Metric metric = getMetric(lister.getMetricTemplate(), result);
             Number val = metric.getValue(clock, result.getValue());
 
@@ -167,9 +168,10 @@ public class JmxScanner {
             }
 
             // Add dynamic attributes if necessary
-            if (metric.getDynamicAttrs() != null) {
-                Map<Integer, String> attrs = new HashMap<Integer, String>();
-                for (Map.Entry<String, Integer> e : metric.getDynamicAttrs().entrySet()) {
+            Map<String, Integer> dynamicAttrs = metric.getDynamicAttrs();
+            if (dynamicAttrs != null) {
+                Map<Integer, String> attrs = new HashMap<Integer, String>(dynamicAttrs.size() * 2);
+                for (Map.Entry<String, Integer> e : dynamicAttrs.entrySet()) {
                     attrs.put(e.getValue(), result.getAttr(e.getKey()).toString());
                 }
                 sample.setAttrs(attrs);
@@ -18,6 +18,7 @@ package com.jitlogic.zorka.core.perfmon;
 
 import com.jitlogic.zorka.common.util.JmxObject;
 import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.core.mbeans.MBeanQueryCache;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.common.tracedata.MetricTemplate;
 import org.slf4j.Logger;
@@ -25,8 +26,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.management.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class QueryLister {
@@ -62,7 +64,7 @@ public class QueryLister {
 
         try {
 
-            results = getResults(conn);
+            results = getResults(conn, registry.getQueryCache(query.getMbsName()));
 
             List<QuerySegment> segments = query.getSegments();
             if (segments.size() > 1) {
@@ -94,8 +96,10 @@ public class QueryLister {
     }
 
 
-    private List<QueryResult> getResults(MBeanServerConnection conn) {
-        Set<ObjectName> objNames = ObjectInspector.queryNames(conn, query.getQuery());
+    private List<QueryResult> getResults(MBeanServerConnection conn, MBeanQueryCache cache) {
+        List<ObjectName> objNames = cache != null
+                ? cache.queryNames(query.getQuery())
+                : new ArrayList<ObjectName>(ObjectInspector.queryNames(conn, query.getQuery()));
         QuerySegment seg = query.getSegments().size() > 0 ? query.getSegments().get(0) : null;
 
         List<QueryResult> results = new ArrayList(objNames.size() + 1);
@@ -108,7 +112,7 @@ public class QueryLister {
 
             try {
                 if (seg != null && seg.getAttr() instanceof Pattern) {
-                    getMultiResult(conn, seg, results, on);
+                    getMultiResult(conn, cache, seg, results, on);
                 } else {
                     getSingleResult(conn, seg, results, on);
                 }
@@ -122,16 +126,45 @@ public class QueryLister {
     }
 
 
-    private void getMultiResult(MBeanServerConnection conn, QuerySegment seg, List<QueryResult> results, ObjectName on) {
+    /**
+     * Fetches all matching attributes of an mbean in a single getAttributes() call. Attributes
+     * missing from returned list (eg. ones that failed to read, or all of them if mbean returned
+     * bare values instead of Attribute objects) are fetched one by one.
+     */
+    private void getMultiResult(MBeanServerConnection conn, MBeanQueryCache cache, QuerySegment seg,
+                                List<QueryResult> results, ObjectName on) {
         Pattern pattern = (Pattern) seg.getAttr();
+        List<String> names;
+        Map<String,Object> values = new HashMap<String,Object>();
         try {
-            for (MBeanAttributeInfo attr : conn.getMBeanInfo(on).getAttributes()) {
-                if (pattern.matcher(attr.getName()).matches()) {
-                    makeResult(seg, results, on, conn.getAttribute(on, attr.getName()), attr.getName());
+            MBeanAttributeInfo[] attrs = cache != null ? cache.getAttributes(on) : conn.getMBeanInfo(on).getAttributes();
+            names = new ArrayList<String>(attrs.length);
+            for (MBeanAttributeInfo attr : attrs) {
+                if (attr.isReadable() && pattern.matcher(attr.getName()).matches()) {
+                    names.add(attr.getName());
+                }
+            }
+            if (names.isEmpty()) {
+                return;
+            }
+            for (Object obj : conn.getAttributes(on, names.toArray(new String[names.size()]))) {
+                if (obj instanceof Attribute) {
+                    Attribute attr = (Attribute) obj;
+                    values.put(attr.getName(), attr.getValue());
                 }
             }
         } catch (Exception e) {
             log.error("Error listing attributes of: " + on, e);
+            return;
+        }
+
+        for (String name : names) {
+            try {
+                Object val = values.containsKey(name) ? values.get(name) : conn.getAttribute(on, name);
+                makeResult(seg, results, on, val, name);
+            } catch (Exception e) {
+                log.error("Error listing attribute " + name + " of: " + on, e);
+            }
         }
     }
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-thread state of agent, combined in a single object, so instrumented code looks up
+ * thread local only once per probe call: reentrancy flag, value buffers passed from probes,
+ * trace handler of current tracer and dispatching submitter state (submission stack and
+ * pool of free records).
+ */
+public class AgentThreadState {
+
+    private static final ThreadLocal<AgentThreadState> states = new ThreadLocal<AgentThreadState>() {
+        @Override
+        public AgentThreadState initialValue() {
+            return new AgentThreadState();
+        }
+    };
+
+    /**
+     * Returns state object of current thread.
+     */
+    public static AgentThreadState get() {
+        return states.get();
+    }
+
+
+    /** Set when submission is being processed (submissions from inside agent code are ignored). */
+    boolean inSubmit;
+
+    /** Reusable value buffers (indexed by number of values). */
+    private final Object[][] bufs = new Object[MainSubmitter.MAX_ARGS + 1][];
+
+    /** Tracer handler has been obtained from. */
+    private Tracer tracer;
+
+    /** Trace handler of current thread (as returned by tracer). */
+    private TraceHandler handler;
+
+    /** Dispatching submitter that owns submission stack and record pool. */
+    private DispatchingSubmitter submitter;
+
+    /** Submission stack associates results from method entry probes with results from return/error probes. */
+    final List<Map<String,Object>> submissions = new ArrayList<Map<String, Object>>();
+
+    /** Free spy records. */
+    final SpyRecord[] records = new SpyRecord[DispatchingSubmitter.POOL_SIZE];
+
+    /** Number of free spy records. */
+    int nrecords;
+
+
+    private AgentThreadState() {
+    }
+
+
+    /**
+     * Returns reusable buffer for given number of values.
+     */
+    Object[] buf(int n) {
+        Object[] buf = bufs[n];
+        if (buf == null) {
+            buf = new Object[n];
+            bufs[n] = buf;
+        }
+        return buf;
+    }
+
+
+    /**
+     * Clears value buffer (if passed array is one of them), so no references to application objects are kept.
+     */
+    void release(Object[] vals) {
+        if (vals != null && vals.length < bufs.length && vals == bufs[vals.length]) {
+            for (int i = 0; i < vals.length; i++) {
+                vals[i] = null;
+            }
+        }
+    }
+
+
+    /**
+     * Returns trace handler of given tracer for current thread. Handler is cached, as tracers
+     * return the same handler for each thread.
+     */
+    TraceHandler handler(Tracer t) {
+        if (t != tracer) {
+            handler = t.getHandler();
+            tracer = t;
+        }
+        return handler;
+    }
+
+
+    /**
+     * Binds submission stack and record pool to given submitter. If they have been used by
+     * another submitter, they are cleared.
+     */
+    void bind(DispatchingSubmitter s) {
+        if (s != submitter) {
+            submissions.clear();
+            for (int i = 0; i < nrecords; i++) {
+                records[i] = null;
+            }
+            nrecords = 0;
+            submitter = s;
+        }
+    }
+}
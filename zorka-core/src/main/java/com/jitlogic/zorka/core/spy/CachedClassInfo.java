@@ -16,6 +16,8 @@
 
 package com.jitlogic.zorka.core.spy;
 
+import java.util.Arrays;
+
 public class CachedClassInfo {
 
     final static int IS_INTERFACE = 0x01;
@@ -46,4 +48,20 @@ public class CachedClassInfo {
     public boolean isInterface() {
         return 0 != (flags & IS_INTERFACE);
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CachedClassInfo)) {
+            return false;
+        }
+        CachedClassInfo ci = (CachedClassInfo)obj;
+        return flags == ci.flags && name.equals(ci.name)
+            && (superclassName != null ? superclassName.equals(ci.superclassName) : ci.superclassName == null)
+            && Arrays.equals(interfaceNames, ci.interfaceNames);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Compiled class name index over matchers of all spy definitions and tracer. Literal prefixes
+ * of class patterns are arranged in a package-prefix trie, so for each loaded class only matchers
+ * whose prefix matches class name (and matchers without usable prefix) are evaluated, in a single
+ * pass over all definitions. Results are the same as calling classMatch(className) on each
+ * matcher set separately: for each matcher set first (by priority) matching matcher decides.
+ * <p/>
+ * Index is immutable, so it can be read without locking while new index is being built.
+ */
+public class ClassMatchIndex {
+
+    private static final int UNDECIDED_FLAGS = BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION | BY_SUPERCLASS;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    /** Candidate matcher with its position (owning matcher set, index in matcher set). */
+    private static class Entry implements Comparable<Entry> {
+        private final int owner, index;
+        private final Pattern pattern;
+        private final boolean result;
+
+        private Entry(int owner, int index, Pattern pattern, boolean result) {
+            this.owner = owner;
+            this.index = index;
+            this.pattern = pattern;
+            this.result = result;
+        }
+
+        @Override
+        public int compareTo(Entry e) {
+            return owner != e.owner ? (owner < e.owner ? -1 : 1) : (index < e.index ? -1 : index > e.index ? 1 : 0);
+        }
+    }
+
+    private static class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_NODES;
+
+        /** Entries attached to this node (only when building index). */
+        private List<Entry> own;
+
+        /**
+         * Candidates for classes whose longest indexed prefix ends at this node (including candidates
+         * from all ancestor nodes), sorted by owner and matcher index. Null if node has no own entries.
+         */
+        private int[] owners;
+        private Pattern[] patterns;
+        private boolean[] results;
+
+        private Node child(char ch) {
+            int lo = 0, hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char k = keys[mid];
+                if (k < ch) {
+                    lo = mid + 1;
+                } else if (k > ch) {
+                    hi = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char ch) {
+            Node n = child(ch);
+            if (n == null) {
+                n = new Node();
+                int pos = 0;
+                while (pos < keys.length && keys[pos] < ch) {
+                    pos++;
+                }
+                char[] k = new char[keys.length + 1];
+                Node[] c = new Node[children.length + 1];
+                System.arraycopy(keys, 0, k, 0, pos);
+                System.arraycopy(children, 0, c, 0, pos);
+                k[pos] = ch;
+                c[pos] = n;
+                System.arraycopy(keys, pos, k, pos + 1, keys.length - pos);
+                System.arraycopy(children, pos, c, pos + 1, children.length - pos);
+                keys = k;
+                children = c;
+            }
+            return n;
+        }
+    }
+
+    private final Node root = new Node();
+
+    private final SpyDefinition[] sdefs;
+
+    private final PatternMatcherSet tracerMatchers;
+
+    /**
+     * Creates index.
+     *
+     * @param sdefs          spy definitions (matching definitions will be returned in this order)
+     * @param tracerMatchers tracer matchers (or null if tracer is not to be indexed)
+     */
+    public ClassMatchIndex(List<SpyDefinition> sdefs, PatternMatcherSet tracerMatchers) {
+        this.sdefs = sdefs.toArray(new SpyDefinition[sdefs.size()]);
+        this.tracerMatchers = tracerMatchers;
+
+        for (int i = 0; i < this.sdefs.length; i++) {
+            addMatchers(i, this.sdefs[i].getMatcherSet());
+        }
+
+        if (tracerMatchers != null) {
+            addMatchers(this.sdefs.length, tracerMatchers);
+        }
+
+        compile(root, new ArrayList<Entry>());
+    }
+
+
+    private void addMatchers(int owner, PatternMatcherSet matcherSet) {
+        List<SpyMatcher> matchers = matcherSet.getMatchers();
+        for (int i = 0; i < matchers.size(); i++) {
+            SpyMatcher m = matchers.get(i);
+            Node n = root;
+            Pattern p = null;
+            if (!m.hasFlags(UNDECIDED_FLAGS)) {
+                if (!m.hasFlags(BY_CLASS_NAME)) {
+                    continue; // Never matches by class name alone
+                }
+                p = m.getClassPattern();
+                String prefix = literalPrefix(p);
+                for (int j = 0; j < prefix.length(); j++) {
+                    n = n.addChild(prefix.charAt(j));
+                }
+            }
+            if (n.own == null) {
+                n.own = new ArrayList<Entry>();
+            }
+            n.own.add(new Entry(owner, i, p, PatternMatcherSet.finalClassMatch(m)));
+        }
+    }
+
+
+    private void compile(Node node, List<Entry> inherited) {
+        List<Entry> entries = inherited;
+
+        if (node.own != null) {
+            entries = new ArrayList<Entry>(inherited.size() + node.own.size());
+            entries.addAll(inherited);
+            entries.addAll(node.own);
+            Collections.sort(entries);
+            node.own = null;
+            node.owners = new int[entries.size()];
+            node.patterns = new Pattern[entries.size()];
+            node.results = new boolean[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                Entry e = entries.get(i);
+                node.owners[i] = e.owner;
+                node.patterns[i] = e.pattern;
+                node.results[i] = e.result;
+            }
+        }
+
+        for (Node child : node.children) {
+            compile(child, entries);
+        }
+    }
+
+
+    /**
+     * Finds all spy definitions matching given class and checks tracer matchers.
+     *
+     * @param className class name (dot separated)
+     * @param found     matching spy definitions will be appended here
+     * @return true if tracer matchers match given class
+     */
+    public boolean match(String className, List<SpyDefinition> found) {
+        Node node = root, cnode = root.owners != null ? root : null;
+
+        for (int i = 0; i < className.length(); i++) {
+            node = node.child(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.owners != null) {
+                cnode = node;
+            }
+        }
+
+        if (cnode == null) {
+            return false;
+        }
+
+        boolean tracerMatch = false;
+        int[] owners = cnode.owners;
+        Pattern[] patterns = cnode.patterns;
+        int decided = -1;
+
+        for (int i = 0; i < owners.length; i++) {
+            int owner = owners[i];
+            if (owner == decided) {
+                continue;
+            }
+            Pattern p = patterns[i];
+            if (p == null || p.matcher(className).matches()) {
+                decided = owner;
+                if (cnode.results[i]) {
+                    if (owner < sdefs.length) {
+                        found.add(sdefs[owner]);
+                    } else {
+                        tracerMatch = true;
+                    }
+                }
+            }
+        }
+
+        return tracerMatch;
+    }
+
+
+    /**
+     * Returns tracer matcher set this index has been built for.
+     */
+    public PatternMatcherSet getTracerMatchers() {
+        return tracerMatchers;
+    }
+
+
+    /**
+     * Extracts literal prefix every string matched by given regular expression must start with.
+     * Returned prefix can be shorter than actual one (eg. empty when regex is too complex to analyze).
+     *
+     * @param pattern regular expression
+     * @return literal prefix
+     */
+    public static String literalPrefix(Pattern pattern) {
+        String s = pattern.pattern();
+
+        if (pattern.flags() != 0 || s.indexOf('|') != -1) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int i = s.startsWith("^") ? 1 : 0;
+
+        while (i < s.length()) {
+            char ch = s.charAt(i);
+            int next;
+            if (ch == '\\') {
+                if (i + 1 >= s.length() || Character.isLetterOrDigit(s.charAt(i + 1))) {
+                    break; // Character class, back reference, quotation etc.
+                }
+                ch = s.charAt(i + 1);
+                next = i + 2;
+            } else if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '-') {
+                next = i + 1;
+            } else {
+                break;
+            }
+
+            if (next < s.length()) {
+                char q = s.charAt(next);
+                if (q == '?' || q == '*' || q == '{') {
+                    break;  // Optional character, not part of prefix
+                }
+                if (q == '+') {
+                    sb.append(ch);
+                    break;
+                }
+            }
+
+            sb.append(ch);
+            i = next;
+        }
+
+        return sb.toString();
+    }
+}
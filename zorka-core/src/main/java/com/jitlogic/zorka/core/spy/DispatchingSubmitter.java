@@ -18,13 +18,11 @@
 package com.jitlogic.zorka.core.spy;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
-import com.jitlogic.zorka.common.util.ZorkaUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.*;
 
@@ -47,15 +45,9 @@ public class DispatchingSubmitter implements SpySubmitter {
     private SpyClassTransformer transformer;
 
     /**
-     * Submission stack is used to associate results from method entry probes with results from return/error probes.
+     * Maximum number of free records kept by each thread.
      */
-    private ThreadLocal<Stack<Map<String, Object>>> submissionStack =
-            new ThreadLocal<Stack<Map<String, Object>>>() {
-                @Override
-                public Stack<Map<String, Object>> initialValue() {
-                    return new Stack<Map<String, Object>>();
-                }
-            };
+    static final int POOL_SIZE = 8;
 
 
     /**
@@ -71,6 +63,17 @@ public class DispatchingSubmitter implements SpySubmitter {
 
     @Override
     public void submit(int stage, int id, int submitFlags, Object[] vals) {
+        submit(stage, id, submitFlags, false, 0L, vals);
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, long lval, Object[] vals) {
+        submit(stage, id, submitFlags, true, lval, vals);
+    }
+
+
+    private void submit(int stage, int id, int submitFlags, boolean hasLval, long lval, Object[] vals) {
 
         if (log.isDebugEnabled()) {
             log.debug("Submitted: stage=" + stage + ", id=" + id + ", flags=" + submitFlags);
@@ -82,64 +85,138 @@ public class DispatchingSubmitter implements SpySubmitter {
             return;
         }
 
-        Map<String, Object> record = getRecord(stage, ctx, submitFlags, vals);
+        AgentThreadState ts = AgentThreadState.get();
+        ts.bind(this);
+
+        Map<String, Object> record = getRecord(ts, stage, ctx, submitFlags, hasLval, lval, vals);
 
         SpyDefinition sdef = ctx.getSpyDefinition();
 
-        if (null == (record = process(stage, sdef, record))) {
+        Map<String, Object> rec = process(stage, sdef, record);
+
+        if (rec == null) {
+            release(ts, record);
             return;
         }
 
         if (submitFlags == SF_NONE) {
-            submissionStack.get().push(record);
+            ts.submissions.add(rec);
             return;
         }
 
         AgentDiagnostics.inc(AgentDiagnostics.SPY_SUBMISSIONS);
 
         if (sdef.getProcessors(ON_SUBMIT).size() > 0) {
-            process(ON_SUBMIT, sdef, record);
+            process(ON_SUBMIT, sdef, rec);
         }
 
+        if (rec == record) {
+            release(ts, record);
+        }
+    }
+
+
+    /**
+     * Creates new spy record (or reuses one from thread local pool).
+     */
+    private SpyRecord newRecord(AgentThreadState ts, SpyContext ctx) {
+        SpyRecordLayout layout = ctx.getSpyDefinition().getRecordLayout();
+
+        if (layout.isRecyclable() && ts.nrecords > 0) {
+            SpyRecord record = ts.records[--ts.nrecords];
+            ts.records[ts.nrecords] = null;
+            record.init(layout, ctx);
+            return record;
+        }
+
+        return new SpyRecord(layout, ctx);
+    }
+
+
+    /**
+     * Returns processed record to thread local pool (if its processors are known not to retain records).
+     */
+    private void release(AgentThreadState ts, Map<String, Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord) record;
+            if (r.getLayout().isRecyclable() && ts.nrecords < POOL_SIZE) {
+                r.reset();
+                ts.records[ts.nrecords++] = r;
+            }
+        }
     }
 
 
     /**
      * Retrieves or creates spy record for probe submission purposes.
      *
+     * @param ts          thread state (holds submission stack and free records)
      * @param stage       method bytecode point where probe has been installed (entry, return, error)
      * @param ctx         spy context associated with submitting probe
      * @param submitFlags controls whether SUBMIT chain should be immediately processed or record should be
      *                    stored in thread local stack (and wait for another probe submission)
+     * @param hasLval     true if first value has been passed as primitive long
+     * @param lval        first value (if passed as primitive long)
      * @param vals        submitted values
      * @return spy record
      */
-    private Map<String, Object> getRecord(int stage, SpyContext ctx, int submitFlags, Object[] vals) {
+    private Map<String, Object> getRecord(AgentThreadState ts, int stage, SpyContext ctx, int submitFlags,
+                                          boolean hasLval, long lval, Object[] vals) {
 
         Map<String, Object> record;
 
         switch (submitFlags) {
             case SF_IMMEDIATE:
             case SF_NONE:
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = newRecord(ts, ctx);
                 break;
             case SF_FLUSH:
-                Stack<Map<String, Object>> stack = submissionStack.get();
+                List<Map<String, Object>> stack = ts.submissions;
                 if (stack.size() > 0) {
-                    record = stack.pop();
+                    record = stack.remove(stack.size() - 1);
                     // TODO check if record belongs to proper frame, warn if not
                 } else {
                     log.error("Submission thread local stack mismatch (ctx=" + ctx
                             + ", stage=" + stage + ", submitFlags=" + submitFlags + ")");
-                    record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                    record = newRecord(ts, ctx);
                 }
                 break;
             default:
                 log.error("Illegal submission flag: " + submitFlags + ". Creating empty records.");
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = newRecord(ts, ctx);
                 break;
         }
 
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord) record;
+            SpyDefinition sdef = r.getContext().getSpyDefinition();
+            List<SpyProbe> probes = sdef.getProbes(stage);
+
+            if (r.getLayout() == sdef.getRecordLayout()) {
+                int[] slots = r.getLayout().getProbeSlots(stage);
+                int i = 0;
+                if (hasLval && slots.length > 0 && slots[0] != SpyRecordLayout.NO_SLOT) {
+                    r.setLong(slots[0], lval);
+                    i = 1;
+                }
+                for (; i < slots.length; i++) {
+                    if (slots[i] != SpyRecordLayout.NO_SLOT) {
+                        r.set(slots[i], vals[i]);
+                    } else {
+                        r.put(probes.get(i).getDstField(), val(i, hasLval, lval, vals));
+                    }
+                }
+            } else {
+                for (int i = 0; i < probes.size(); i++) {
+                    r.put(probes.get(i).getDstField(), val(i, hasLval, lval, vals));
+                }
+            }
+
+            r.setStage(stage);
+
+            return record;
+        }
+
         SpyContext context = ((SpyContext) record.get(".CTX"));
         List<SpyProbe> probes = context.getSpyDefinition().getProbes(stage);
 
@@ -147,7 +224,7 @@ public class DispatchingSubmitter implements SpySubmitter {
 
         for (int i = 0; i < probes.size(); i++) {
             SpyProbe probe = probes.get(i);
-            record.put(probe.getDstField(), vals[i]);
+            record.put(probe.getDstField(), val(i, hasLval, lval, vals));
         }
 
         record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
@@ -157,6 +234,11 @@ public class DispatchingSubmitter implements SpySubmitter {
     }
 
 
+    private static Object val(int i, boolean hasLval, long lval, Object[] vals) {
+        return hasLval && i == 0 ? (Object) lval : vals[i];
+    }
+
+
     /**
      * Processes specified processing chain of sdef in record
      *
@@ -168,14 +250,19 @@ public class DispatchingSubmitter implements SpySubmitter {
     private Map<String, Object> process(int stage, SpyDefinition sdef, Map<String, Object> record) {
         List<SpyProcessor> processors = sdef.getProcessors(stage);
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
+        if (record instanceof SpyRecord) {
+            ((SpyRecord) record).setStage(stage);
+        } else {
+            record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
+            record.put(".STAGE", stage);
+        }
 
         if (log.isDebugEnabled()) {
             log.debug("Processing records (stage=" + stage + ")");
         }
 
-        for (SpyProcessor processor : processors) {
+        for (int i = 0; i < processors.size(); i++) {
+            SpyProcessor processor = processors.get(i);
             try {
                 if (null == (record = processor.process(record))) {
                     break;
@@ -19,6 +19,7 @@ package com.jitlogic.zorka.core.spy;
 
 import bsh.EvalError;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
 import com.jitlogic.zorka.core.spy.stracer.STracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,14 +46,9 @@ public class MainSubmitter {
 
 
     /**
-     * Thread local
+     * Maximum number of values passed by arity specific submit() methods.
      */
-    private static ThreadLocal<Boolean> inSubmit = new ThreadLocal<Boolean>() {
-        @Override
-        public Boolean initialValue() {
-            return false;
-        }
-    };
+    public static final int MAX_ARGS = 4;
 
     private MainSubmitter() {
     }
@@ -66,6 +62,116 @@ public class MainSubmitter {
      * @param vals        values fetched by probe
      */
     public static void submit(int stage, int id, int submitFlags, Object[] vals) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            dispatch(s, stage, id, submitFlags, false, 0L, vals);
+        }
+    }
+
+
+    /*
+     * Arity specific methods called by spy probes. Values are passed directly (without allocating
+     * argument array), first value can be passed as primitive long (so time stamps are not boxed).
+     * Values are then passed to submitter in reusable thread local buffer.
+     */
+
+    public static void submit(int stage, int id, int submitFlags) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            dispatch(s, stage, id, submitFlags, false, 0L, null);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, Object v0) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(1);
+            vals[0] = v0;
+            dispatch(s, stage, id, submitFlags, false, 0L, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(2);
+            vals[0] = v0;
+            vals[1] = v1;
+            dispatch(s, stage, id, submitFlags, false, 0L, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(3);
+            vals[0] = v0;
+            vals[1] = v1;
+            vals[2] = v2;
+            dispatch(s, stage, id, submitFlags, false, 0L, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(4);
+            vals[0] = v0;
+            vals[1] = v1;
+            vals[2] = v2;
+            vals[3] = v3;
+            dispatch(s, stage, id, submitFlags, false, 0L, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, long v0) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            dispatch(s, stage, id, submitFlags, true, v0, s.buf(1));
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, long v0, Object v1) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(2);
+            vals[1] = v1;
+            dispatch(s, stage, id, submitFlags, true, v0, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, long v0, Object v1, Object v2) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(3);
+            vals[1] = v1;
+            vals[2] = v2;
+            dispatch(s, stage, id, submitFlags, true, v0, vals);
+        }
+    }
+
+
+    public static void submit(int stage, int id, int submitFlags, long v0, Object v1, Object v2, Object v3) {
+        AgentThreadState s = AgentThreadState.get();
+        if (!s.inSubmit) {
+            Object[] vals = s.buf(4);
+            vals[1] = v1;
+            vals[2] = v2;
+            vals[3] = v3;
+            dispatch(s, stage, id, submitFlags, true, v0, vals);
+        }
+    }
+
+
+    private static void dispatch(AgentThreadState s, int stage, int id, int submitFlags,
+                                 boolean hasLval, long lval, Object[] vals) {
 
         if (logTrace) {
             if (log.isTraceEnabled()) {
@@ -73,15 +179,22 @@ public class MainSubmitter {
             }
         }
 
-        if (inSubmit.get()) {
-            return;
-        }
+        Tracer tr = t;
+        SpySubmitter sub = submitter;
+        TraceHandler handler = null;
 
         try {
-            t.getHandler().disable();
-            if (submitter != null) {
-                inSubmit.set(true);
-                submitter.submit(stage, id, submitFlags, vals);
+            if (tr != null) {
+                handler = s.handler(tr);
+                handler.disable();
+            }
+            if (sub != null) {
+                s.inSubmit = true;
+                if (hasLval) {
+                    sub.submit(stage, id, submitFlags, lval, vals);
+                } else {
+                    sub.submit(stage, id, submitFlags, vals);
+                }
             } else if (log.isDebugEnabled()) {
                 log.debug("Skipping submit because submitter is not set.");
             }
@@ -93,8 +206,11 @@ public class MainSubmitter {
             log.debug("Error submitting value from instrumented code: ", e);
             AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
         } finally {
-            inSubmit.set(false);
-            t.getHandler().enable();
+            s.inSubmit = false;
+            if (handler != null) {
+                handler.enable();
+            }
+            s.release(vals);
         }
     }
 
@@ -112,9 +228,16 @@ public class MainSubmitter {
             }
         }
 
-        if (t != null) {
+        Tracer tr = t;
+
+        if (tr != null) {
             try {
-                t.getHandler().traceEnter(mid, System.nanoTime());
+                TraceHandler h = AgentThreadState.get().handler(tr);
+                long tstamp = System.nanoTime();
+                h.traceEnter(mid, tstamp);
+                if (h.isTuningSample()) {
+                    h.tuningSample(mid, System.nanoTime() - tstamp);
+                }
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug("Error executing traceEnter", e);
@@ -138,9 +261,20 @@ public class MainSubmitter {
             }
         }
 
-        if (t != null) {
+        Tracer tr = t;
+
+        if (tr != null) {
             try {
-                t.getHandler().traceReturn(System.nanoTime());
+                TraceHandler h = AgentThreadState.get().handler(tr);
+                if (h.isTuningSample()) {
+                    // Sample is attributed to returning method, so its ID is taken before it is popped
+                    int mid = h.getCurrentMethodId();
+                    long tstamp = System.nanoTime();
+                    h.traceReturn(tstamp);
+                    h.tuningSample(mid, System.nanoTime() - tstamp);
+                } else {
+                    h.traceReturn(System.nanoTime());
+                }
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug("Error executing traceReturn", e);
@@ -165,9 +299,11 @@ public class MainSubmitter {
             }
         }
 
-        if (t != null) {
+        Tracer tr = t;
+
+        if (tr != null) {
             try {
-                t.getHandler().traceError(exception, System.nanoTime());
+                AgentThreadState.get().handler(tr).traceError(exception, System.nanoTime());
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug("Error executing traceError", e);
@@ -94,7 +94,7 @@ public class PatternMatcherSet implements SpyMatcherSet {
 
 
 
-    private boolean finalClassMatch(SpyMatcher matcher) {
+    static boolean finalClassMatch(SpyMatcher matcher) {
         if (matcher.hasFlags(EXCLUDE_MATCH)) {
             return !"[a-zA-Z0-9_]+".equals(matcher.getMethodPattern().toString());
         } else {
@@ -35,9 +35,13 @@ public class RealSpyRetransformer implements SpyRetransformer {
 
     private boolean matchMethods;
 
+    /** Maximum number of classes retransformed at once. */
+    private int batchSize;
+
     public RealSpyRetransformer(Instrumentation instrumentation, AgentConfig config) {
         this.instrumentation = instrumentation;
         matchMethods = config.boolCfg("zorka.retransform.match.methods", false);
+        batchSize = Math.max(1, config.intCfg("zorka.retransform.batch", 16));
         log.info("Enabling spy retransformer. Full online reconfiguration should be possible.");
     }
 
@@ -78,10 +82,6 @@ public class RealSpyRetransformer implements SpyRetransformer {
             }
         }
 
-        if (executor == null) {
-            executor = Executors.newSingleThreadExecutor();
-        }
-
         if (classes.size() > 0) {
             retransform(classes);
             return true;
@@ -92,22 +92,42 @@ public class RealSpyRetransformer implements SpyRetransformer {
         return false;
     }
 
+    /**
+     * Retransforms classes in background, in batches of up to batchSize classes (with a pause after each batch).
+     * If whole batch fails, its classes are retried one by one, so a single faulty class does not block others.
+     */
     private void retransform(final List<Class<?>> classes) {
         Runnable r = new Runnable() {
             @Override
             public void run() {
-                Class[] cc = new Class[1];
+                for (int i = 0; i < classes.size(); i += batchSize) {
+                    List<Class<?>> batch = classes.subList(i, Math.min(i + batchSize, classes.size()));
 
-                for (Class c : classes) {
                     if (log.isTraceEnabled()) {
-                        log.trace("Retransforming class: " + c.getName());
+                        log.trace("Retransforming classes: " + batch);
                     }
-                    cc[0] = c;
+
                     try {
-                        instrumentation.retransformClasses(cc);
-                        Thread.sleep(100);
+                        instrumentation.retransformClasses(batch.toArray(new Class[batch.size()]));
                     } catch (Throwable e) {
-                        log.error("Error when trying to retransform class:" + c.getName(), e);
+                        if (batch.size() == 1) {
+                            log.error("Error when trying to retransform class:" + batch.get(0).getName(), e);
+                        } else {
+                            for (Class<?> c : batch) {
+                                try {
+                                    instrumentation.retransformClasses(c);
+                                } catch (Throwable e1) {
+                                    log.error("Error when trying to retransform class:" + c.getName(), e1);
+                                }
+                            }
+                        }
+                    }
+
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        log.warn("Interrupted while retransforming classes.");
+                        return;
                     }
                 }
 
@@ -115,6 +135,12 @@ public class RealSpyRetransformer implements SpyRetransformer {
             }
         };
 
+        synchronized (this) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor();
+            }
+        }
+
         executor.execute(r);
     }
 
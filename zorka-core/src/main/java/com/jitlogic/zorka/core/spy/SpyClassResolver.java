@@ -23,29 +23,146 @@ import org.objectweb.asm.ClassReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLDecoder;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves class hierarchy information needed by class writer when computing stack frames.
+ * Resolved classes are kept in concurrent cache keyed by class loader and class name. Cache
+ * is bounded, arbitrary entries are evicted when it grows over its maximum size.
+ * <p/>
+ * Optionally, classes resolved from bytecode are persisted in a file, so subsequent runs of
+ * the same application can skip reading and parsing bytecode. Persisted entries are keyed
+ * by class resource URL and are used only if resource container (jar file or class file)
+ * still has the same modification time and size, and entry describes requested class.
+ */
 public class SpyClassResolver {
 
     private static final Logger log = LoggerFactory.getLogger(SpyClassResolver.class);
 
-    private Map<String,CachedClassInfo> cache = new HashMap<String, CachedClassInfo>();
+    public static final int DEFAULT_CACHE_SIZE = 16384;
+
+    /** Cache key: class loader (weakly referenced, null for bootstrap class loader) and class name. */
+    private static class Key {
+        private final WeakReference<ClassLoader> loader;
+        private final String name;
+        private final int hash;
+
+        private Key(ClassLoader loader, String name) {
+            this.loader = loader != null ? new WeakReference<ClassLoader>(loader) : null;
+            this.name = name;
+            this.hash = 31 * System.identityHashCode(loader) + name.hashCode();
+        }
+
+        /** Returns true if class loader this key refers to has been garbage collected. */
+        private boolean isStale() {
+            return loader != null && loader.get() == null;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            if (hash != k.hash || !name.equals(k.name)) {
+                return false;
+            }
+            if (loader == null || k.loader == null) {
+                return loader == k.loader;
+            }
+            ClassLoader l = loader.get();
+            return l != null && l == k.loader.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** Modification time and size of resource container (jar file or class file). */
+    private static class FileStamp {
+        private final long mtime;
+        private final long length;
+
+        private FileStamp(long mtime, long length) {
+            this.mtime = mtime;
+            this.length = length;
+        }
+
+        private boolean matches(FileStamp fs) {
+            return mtime == fs.mtime && length == fs.length;
+        }
+    }
+
+    /** Persisted class info along with stamp of its resource container. */
+    private static class SourcedClassInfo {
+        private final CachedClassInfo info;
+        private final FileStamp stamp;
+
+        private SourcedClassInfo(CachedClassInfo info, FileStamp stamp) {
+            this.info = info;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final FileStamp NO_STAMP = new FileStamp(0L, 0L);
+
+    private final ConcurrentMap<Key,CachedClassInfo> cache = new ConcurrentHashMap<Key, CachedClassInfo>();
+
+    private final AtomicInteger cacheSize = new AtomicInteger();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final int maxSize;
+
+    /** Persistent cache file (or null if persistence is disabled). */
+    private final File cacheFile;
+
+    /** Persisted classes (by class resource URL). */
+    private final ConcurrentMap<String,SourcedClassInfo> persisted = new ConcurrentHashMap<String, SourcedClassInfo>();
+
+    private volatile boolean dirty;
 
     public final static String OBJECT_CLAZZ = "java.lang.Object";
 
     private MethodCallStatistic numCalls, classGets;
-    private MethodCallStatistic cacheHits, cacheMisses;
-    private MethodCallStatistic residentGets, bytecodeGets;
+    private MethodCallStatistic cacheHits, cacheMisses, cacheEvictions;
+    private MethodCallStatistic residentGets, bytecodeGets, persistentGets;
 
     public SpyClassResolver(MethodCallStatistics stats) {
+        this(stats, DEFAULT_CACHE_SIZE, null);
+    }
+
+    /**
+     * @param stats     statistics (resolver will register its statistics here)
+     * @param maxSize   maximum number of cached classes
+     * @param cacheFile file persistent cache is loaded from and saved to (or null if not persistent)
+     */
+    public SpyClassResolver(MethodCallStatistics stats, int maxSize, File cacheFile) {
+        this.maxSize = maxSize;
+        this.cacheFile = cacheFile;
+
         numCalls = stats.getMethodCallStatistic("CrvCalls");
         classGets = stats.getMethodCallStatistic("CrvClassGets");
         cacheHits = stats.getMethodCallStatistic("CrvCacheHits");
         cacheMisses = stats.getMethodCallStatistic("CrvCacheMisses");
+        cacheEvictions = stats.getMethodCallStatistic("CrvCacheEvictions");
         residentGets = stats.getMethodCallStatistic("CrvResidentGets");
         bytecodeGets = stats.getMethodCallStatistic("CrvBytecodeGets");
+        persistentGets = stats.getMethodCallStatistic("CrvPersistentGets");
+
+        if (cacheFile != null && cacheFile.isFile()) {
+            load();
+        }
     }
 
     public String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
@@ -147,12 +264,13 @@ public class SpyClassResolver {
     public CachedClassInfo getClassInfo(ClassLoader loader, String type) {
 
         if (log.isTraceEnabled()) {
-            log.trace("Class: " + type + ", cached: " + cache.size() + ", loader=" + loader);
+            log.trace("Class: " + type + ", cached: " + cacheSize.get() + ", loader=" + loader);
         }
 
         classGets.logCall(1);
 
-        CachedClassInfo rslt = getCached(type);
+        Key key = new Key(loader, type);
+        CachedClassInfo rslt = cache.get(key);
 
         if (rslt != null) {
             cacheHits.logCall();
@@ -161,6 +279,8 @@ public class SpyClassResolver {
 
         cacheMisses.logCall();
 
+        long t1 = System.nanoTime();
+
         Class<?> clazz = SpyClassLookup.INSTANCE.findLoadedClass(loader, type);
         if (clazz != null) {
             Class<?>[] ifcs = clazz.getInterfaces();
@@ -175,12 +295,26 @@ public class SpyClassResolver {
                     clazz.getName(),
                     clazz.getSuperclass() != null ? clazz.getSuperclass().getName() : null,
                     interfaces);
-            setCached(type, rslt);
-            residentGets.logCall();
+            setCached(key, rslt);
+            residentGets.logCall(System.nanoTime() - t1);
             return rslt;
         }
 
-        InputStream is = loader.getResourceAsStream(type.replace(".", "/") + ".class");
+        String path = type.replace(".", "/") + ".class";
+        URL url = cacheFile != null && loader != null ? loader.getResource(path) : null;
+        String src = url != null ? url.toString() : null;
+        FileStamp stamp = src != null ? stamp(src) : NO_STAMP;
+
+        if (stamp.mtime != 0L) {
+            SourcedClassInfo sci = persisted.get(src);
+            if (sci != null && sci.stamp.matches(stamp) && type.equals(sci.info.getClassName())) {
+                setCached(key, sci.info);
+                persistentGets.logCall(System.nanoTime() - t1);
+                return sci.info;
+            }
+        }
+
+        InputStream is = loader != null ? loader.getResourceAsStream(path) : ClassLoader.getSystemResourceAsStream(path);
         byte[] classBytes = null;
         if (is != null) {
             try {
@@ -213,26 +347,173 @@ public class SpyClassResolver {
             reader.getSuperName() != null ? reader.getSuperName().replace('/', '.').intern() : null,
             ifcs);
 
-        setCached(type, rslt);
-        bytecodeGets.logCall();
+        setCached(key, rslt);
+
+        if (stamp.mtime != 0L && persisted.size() < maxSize) {
+            persisted.put(src, new SourcedClassInfo(rslt, stamp));
+            dirty = true;
+        }
+
+        bytecodeGets.logCall(System.nanoTime() - t1);
 
         return rslt;
 
     }
 
-    private synchronized CachedClassInfo getCached(String type) {
-        return cache.get(type);
+
+    /**
+     * Returns modification time and size of jar file or class file given class resource comes from
+     * (or zero stamp if resource does not come from local file system). Containers are checked
+     * each time, so jars and classes redeployed in place are not matched with stale entries.
+     */
+    private FileStamp stamp(String src) {
+        String path;
+
+        if (src.startsWith("jar:file:") && src.contains("!/")) {
+            path = src.substring(9, src.indexOf("!/"));
+        } else if (src.startsWith("file:")) {
+            path = src.substring(5);
+        } else {
+            return NO_STAMP;
+        }
+
+        try {
+            File f = new File(URLDecoder.decode(path, "UTF-8"));
+            return new FileStamp(f.lastModified(), f.length());
+        } catch (Exception e) {
+            return NO_STAMP;
+        }
     }
 
-    private synchronized void setCached(String type, CachedClassInfo ci) {
-        cache.put(type, ci);
+
+    private void setCached(Key key, CachedClassInfo ci) {
+        if (cache.put(key, ci) == null && cacheSize.incrementAndGet() > maxSize) {
+            evict();
+        }
     }
 
-    private synchronized void delCached(String type) {
-        cache.remove(type);
+
+    /**
+     * Evicts 1/8 of cache (or more if entries of dead class loaders are found).
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int limit = maxSize - maxSize / 8;
+            for (Iterator<Key> iter = cache.keySet().iterator(); iter.hasNext(); ) {
+                Key k = iter.next();
+                if (cacheSize.get() > limit || k.isStale()) {
+                    iter.remove();
+                    cacheSize.decrementAndGet();
+                    cacheEvictions.logCall();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
     }
 
-    public synchronized int getCacheSize() {
-        return cache.size();
+
+    private void load() {
+        BufferedReader rdr = null;
+        int n = 0;
+        try {
+            rdr = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+            for (String line = rdr.readLine(); line != null && persisted.size() < maxSize; line = rdr.readLine()) {
+                String[] f = line.split("\t", -1);
+                if (f.length != 7) {
+                    continue;
+                }
+                String[] ifcs = f[6].length() > 0 ? f[6].split(",") : new String[0];
+                for (int i = 0; i < ifcs.length; i++) {
+                    ifcs[i] = ifcs[i].intern();
+                }
+                CachedClassInfo ci = new CachedClassInfo(Integer.parseInt(f[3]), f[4].intern(),
+                    f[5].length() > 0 ? f[5].intern() : null, ifcs);
+                persisted.put(f[0], new SourcedClassInfo(ci, new FileStamp(Long.parseLong(f[1]), Long.parseLong(f[2]))));
+                n++;
+            }
+            log.info("Loaded " + n + " classes from resolver cache: " + cacheFile);
+        } catch (Exception e) {
+            log.error("Error loading resolver cache file " + cacheFile + " (" + n + " classes loaded)", e);
+        } finally {
+            if (rdr != null) {
+                try {
+                    rdr.close();
+                } catch (IOException e) {
+                    log.error("Cannot close resolver cache file: ", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Saves persistent cache (if enabled and there are new entries since last save).
+     */
+    public synchronized void save() {
+        if (cacheFile == null || !dirty) {
+            return;
+        }
+
+        dirty = false;
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        Writer w = null;
+        try {
+            w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+            for (Map.Entry<String,SourcedClassInfo> e : persisted.entrySet()) {
+                CachedClassInfo ci = e.getValue().info;
+                w.write(e.getKey());
+                w.write('\t');
+                w.write(Long.toString(e.getValue().stamp.mtime));
+                w.write('\t');
+                w.write(Long.toString(e.getValue().stamp.length));
+                w.write('\t');
+                w.write(ci.isInterface() ? "1" : "0");
+                w.write('\t');
+                w.write(ci.getClassName());
+                w.write('\t');
+                w.write(ci.getSuperclassName() != null ? ci.getSuperclassName() : "");
+                w.write('\t');
+                String[] ifcs = ci.getInterfaceNames();
+                for (int i = 0; ifcs != null && i < ifcs.length; i++) {
+                    if (i > 0) {
+                        w.write(',');
+                    }
+                    w.write(ifcs[i]);
+                }
+                w.write('\n');
+            }
+            w.close();
+            w = null;
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                log.error("Cannot replace resolver cache file: " + cacheFile);
+            } else if (!tmpFile.renameTo(cacheFile)) {
+                log.error("Cannot rename " + tmpFile + " to " + cacheFile);
+            }
+        } catch (IOException e) {
+            log.error("Error saving resolver cache file " + cacheFile, e);
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e) {
+                    log.error("Cannot close resolver cache file: ", e);
+                }
+            }
+        }
+    }
+
+
+    public int getCacheSize() {
+        return cacheSize.get();
+    }
+
+
+    public int getPersistedSize() {
+        return persisted.size();
     }
 }
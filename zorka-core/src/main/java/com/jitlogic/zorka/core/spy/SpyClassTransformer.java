@@ -35,7 +35,6 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -55,6 +54,12 @@ public class SpyClassTransformer implements ClassFileTransformer {
      */
     private Map<String, SpyDefinition> sdefs = new LinkedHashMap<String, SpyDefinition>();
 
+    /**
+     * Compiled class match index over all spy defs and tracer matchers. Replaced whenever
+     * spy defs or tracer matchers change.
+     */
+    private volatile ClassMatchIndex index;
+
 
     /**
      * SpyContext counter.
@@ -62,9 +67,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
     private int nextId = 1;
 
     /**
-     * Map of spy contexts (by ID)
+     * Spy contexts indexed by ID (array is grown and republished when new contexts are registered,
+     * so it can be read by submitters without locking and without boxing context IDs).
      */
-    private Map<Integer, SpyContext> ctxById = new ConcurrentHashMap<Integer, SpyContext>();
+    private volatile SpyContext[] ctxById = new SpyContext[1024];
 
     /**
      * Map of spy contexts (by instance)
@@ -90,6 +96,9 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
     private boolean expandedFrames;
 
+    /** Use legacy probe calls passing fetched values in arrays (instead of arity specific submit() methods). */
+    private boolean submitArrays;
+
     private boolean scriptsAuto;
 
     private ZorkaBshAgent bshAgent;
@@ -122,9 +131,28 @@ public class SpyClassTransformer implements ClassFileTransformer {
         this.scriptsAuto = config.boolCfg("scripts.auto", true);
         this.retransformer = retransformer;
         this.expandedFrames = config.boolCfg("zorka.spy.expanded.frames", false);
+        this.submitArrays = config.boolCfg("zorka.spy.submit.arrays", false);
 
         if (useCustomResolver) {
-            this.resolver = new SpyClassResolver(statistics);
+            String cacheFile = config.stringCfg("zorka.spy.resolver.cache.file", null);
+            File f = null;
+            if (cacheFile != null && cacheFile.trim().length() > 0) {
+                f = new File(cacheFile.trim());
+                if (!f.isAbsolute()) {
+                    f = new File(config.getHomeDir(), cacheFile.trim());
+                }
+            }
+            this.resolver = new SpyClassResolver(statistics,
+                config.intCfg("zorka.spy.resolver.cache.size", SpyClassResolver.DEFAULT_CACHE_SIZE), f);
+            if (f != null) {
+                final SpyClassResolver r = resolver;
+                Runtime.getRuntime().addShutdownHook(new Thread("ZORKA-crv-save") {
+                    @Override
+                    public void run() {
+                        r.save();
+                    }
+                });
+            }
         }
 
         this.spyLookups = statistics.getMethodCallStatistic("SpyLookups");
@@ -156,7 +184,8 @@ public class SpyClassTransformer implements ClassFileTransformer {
      * Returns context by its ID
      */
     public SpyContext getContext(int id) {
-        return ctxById.get(id);
+        SpyContext[] ctxs = ctxById;
+        return id >= 0 && id < ctxs.length ? ctxs[id] : null;
     }
 
 
@@ -177,7 +206,12 @@ public class SpyClassTransformer implements ClassFileTransformer {
                 ctx = keyCtx;
                 ctx.setId(nextId++);
                 ctxInstances.put(ctx, ctx);
-                ctxById.put(ctx.getId(), ctx);
+                SpyContext[] ctxs = ctxById;
+                if (ctx.getId() >= ctxs.length) {
+                    ctxs = Arrays.copyOf(ctxs, ctxs.length * 2);
+                }
+                ctxs[ctx.getId()] = ctx;
+                ctxById = ctxs;
                 log.info("NEW: SpyContext: id=" + ctx.getId() + ", name=" + ctx.getSpyDefinition().getName() + ", code="
                     + ctx.getClassName() + "." + ctx.getMethodName() + "()");
             }
@@ -207,6 +241,7 @@ public class SpyClassTransformer implements ClassFileTransformer {
         }
 
         sdefs.put(sdef.getName(), sdef);
+        index = null;
 
         if (retransformer.isEnabled() && (osdef == null || !osdef.sameProbes(sdef))) {
             retransformer.retransform(osdef != null ? osdef.getMatcherSet() : null, sdef.getMatcherSet(), true);
@@ -240,22 +275,18 @@ public class SpyClassTransformer implements ClassFileTransformer {
             log.info("Removing spy definition: " + sdef.getName());
 
             sdefs.remove(sdef.getName());
+            index = null;
 
-            Set<SpyContext> ctxs = new HashSet<SpyContext>();
-            Set<Integer> ids = new HashSet<Integer>();
-
-            for (Map.Entry<Integer, SpyContext> e : ctxById.entrySet()) {
-                ids.add(e.getKey());
-                ctxs.add(e.getValue());
-            }
+            SpyContext[] ctxs = ctxById;
 
-            for (Integer id : ids) {
-                ctxById.remove(id);
+            for (int id = 0; id < ctxs.length; id++) {
+                if (ctxs[id] != null) {
+                    ctxInstances.remove(ctxs[id]);
+                    ctxs[id] = null;
+                }
             }
 
-            for (SpyContext ctx : ctxs) {
-                ctxInstances.remove(ctx);
-            }
+            ctxById = ctxs;
 
             if (retransformer.isEnabled()) {
                 retransformer.retransform(null, sdef.getMatcherSet(), true);
@@ -267,11 +298,37 @@ public class SpyClassTransformer implements ClassFileTransformer {
     }
 
 
+    /**
+     * Returns class match index, rebuilding it if spy definitions or tracer matchers have changed.
+     */
+    private ClassMatchIndex getIndex() {
+        ClassMatchIndex idx = index;
+        PatternMatcherSet tms = tracer.getMatcherSet().getPatternMatcherSet();
+
+        if (idx == null || idx.getTracerMatchers() != tms) {
+            synchronized (this) {
+                idx = index;
+                if (idx == null || idx.getTracerMatchers() != tms) {
+                    idx = new ClassMatchIndex(new ArrayList<SpyDefinition>(sdefs.values()), tms);
+                    index = idx;
+                }
+            }
+        }
+
+        return idx;
+    }
+
+
     public SpyDefinition getSdef(String name) {
         return sdefs.get(name);
     }
 
 
+    public boolean isSubmitArrays() {
+        return submitArrays;
+    }
+
+
     public synchronized Set<SpyDefinition> getSdefs() {
         Set<SpyDefinition> ret = new HashSet<SpyDefinition>();
         ret.addAll(sdefs.values());
@@ -329,21 +386,19 @@ public class SpyClassTransformer implements ClassFileTransformer {
         }
 
         long st1 = System.nanoTime();
-        for (Map.Entry<String, SpyDefinition> e : sdefs.entrySet()) {
-            SpyDefinition sdef = e.getValue();
-            if (sdef.getMatcherSet().classMatch(clazzName)) {
-                if (log.isDebugEnabled()) {
-                    log.debug("MATCH: Class: " + clazzName + " matcher: " + sdef.getMatcherSet());
-                }
-                found.add(sdef);
-            }
-        }
+        boolean tracerMatch = getIndex().match(clazzName, found);
         long st2 = System.nanoTime();
 
         spyLookups.logCall(st2 - st1);
 
+        if (log.isDebugEnabled()) {
+            for (SpyDefinition sdef : found) {
+                log.debug("MATCH: Class: " + clazzName + " matcher: " + sdef.getMatcherSet());
+            }
+        }
+
         long lt1 = System.nanoTime();
-        boolean tracerMatch = tracer.getMatcherSet().classMatch(clazzName);
+        tracerMatch = tracerMatch && tracer.getMatcherSet().ztxClassMatch(clazzName);
         long lt2 = System.nanoTime();
 
         tracerLookups.logCall(lt2 - lt1);
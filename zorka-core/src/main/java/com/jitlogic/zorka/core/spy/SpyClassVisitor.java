@@ -227,7 +227,8 @@ public class SpyClassVisitor extends ClassVisitor {
         if (ctxs.size() > 0 || doTrace) {
             bytecodeWasModified = true;
             return new SpyMethodVisitor(m, doTrace ? symbolRegistry : null, className, superclasses,
-                    classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs, mv);
+                    classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs,
+                    transformer.isSubmitArrays(), mv);
         }
 
         return mv;
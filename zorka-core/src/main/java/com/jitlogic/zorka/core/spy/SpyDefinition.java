@@ -58,6 +58,11 @@ public class SpyDefinition {
      */
     private PatternMatcherSet matcherSet = new PatternMatcherSet();
 
+    /**
+     * Layout of spy records (created on first use)
+     */
+    private volatile SpyRecordLayout recordLayout;
+
     /**
      * Creates partially configured spy definition that is suitable for measuring
      * method execution times.
@@ -132,6 +137,26 @@ public class SpyDefinition {
         return matcherSet;
     }
 
+
+    /**
+     * Returns layout of spy records for this definition. Layout is created on first use,
+     * spy definition should not be modified afterwards.
+     *
+     * @return spy record layout
+     */
+    public SpyRecordLayout getRecordLayout() {
+        SpyRecordLayout layout = recordLayout;
+        if (layout == null) {
+            synchronized (this) {
+                if (recordLayout == null) {
+                    recordLayout = new SpyRecordLayout(this);
+                }
+                layout = recordLayout;
+            }
+        }
+        return layout;
+    }
+
     public String getName() {
         return name;
     }
@@ -152,6 +152,11 @@ public class SpyMethodVisitor extends MethodVisitor {
 
     private boolean streamingTracer = false;
 
+    /**
+     * If true, fetched values are always passed to submitter in newly allocated arrays.
+     */
+    private boolean submitArrays;
+
     /**
      * Standard constructor.
      *
@@ -160,13 +165,14 @@ public class SpyMethodVisitor extends MethodVisitor {
      * @param methodName      method name
      * @param methodSignature method descriptor
      * @param ctxs            spy contexts interested in receiving data from this visitor
+     * @param submitArrays    if true, probes will always pass fetched values in arrays
      * @param mv              method visitor (next in processing chain)
      *                        TODO add explicit doTrace argument
      */
     public SpyMethodVisitor(boolean matches, SymbolRegistry symbolRegistry,
                             String className, List<String> superclasses, List<String> classAnnotations, List<String> classInterfaces,
                             int access, String methodName, String methodSignature,
-                            List<SpyContext> ctxs, MethodVisitor mv) {
+                            List<SpyContext> ctxs, boolean submitArrays, MethodVisitor mv) {
         super(Opcodes.ASM7, mv);
         this.matches = matches;
         this.symbolRegistry = symbolRegistry;
@@ -178,6 +184,7 @@ public class SpyMethodVisitor extends MethodVisitor {
         this.methodName = methodName;
         this.methodSignature = methodSignature;
         this.ctxs = ctxs;
+        this.submitArrays = submitArrays;
         this.streamingTracer = MainSubmitter.isStreamingTracer();
 
         argTypes = Type.getArgumentTypes(methodSignature);
@@ -490,13 +497,30 @@ public class SpyMethodVisitor extends MethodVisitor {
         emitLoadInt(submitFlags);
 
         int sd = 3;
+        String signature = SUBMIT_SIGNATURE;
 
-        // Create an array with fetched data (or push null)
-        if (probeElements.size() > 0) {
+        if (!submitArrays && probeElements.size() <= MainSubmitter.MAX_ARGS) {
+            // Pass values directly to arity specific submit() method, time stamps are not boxed
+            StringBuilder sig = new StringBuilder("(III");
+            int depth = 3;
+            for (int i = 0; i < probeElements.size(); i++) {
+                SpyProbe element = probeElements.get(i);
+                if (i == 0 && element.hasLongValue()) {
+                    sd = max(sd, depth + element.emitLong(this, stage, 0));
+                    sig.append('J');
+                    depth += 2;
+                } else {
+                    sd = max(sd, depth + element.emit(this, stage, 0));
+                    sig.append("Ljava/lang/Object;");
+                    depth++;
+                }
+            }
+            signature = sig.append(")V").toString();
+        } else if (probeElements.size() > 0) {
+            // Create an array with fetched data
             emitLoadInt(probeElements.size());
             mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
             for (int i = 0; i < probeElements.size(); i++) {
-                SpyProbe element = probeElements.get(i);
                 mv.visitInsn(DUP);
                 emitLoadInt(i);
                 sd = max(sd, probeElements.get(i).emit(this, stage, 0) + 6);
@@ -508,7 +532,7 @@ public class SpyMethodVisitor extends MethodVisitor {
         }
 
         // Call MainSubmitter.submit()
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURE);
+        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, signature);
 
         spyProbesEmitted++;
 
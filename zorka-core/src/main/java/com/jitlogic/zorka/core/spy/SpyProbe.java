@@ -66,6 +66,35 @@ public abstract class SpyProbe implements SpyDefArg {
     public abstract int emit(SpyMethodVisitor mv, int stage, int opcode);
 
 
+    /**
+     * Returns true if probe can fetch its value as primitive long (see emitLong()).
+     */
+    public boolean hasLongValue() {
+        return false;
+    }
+
+
+    /**
+     * Generates bytecode fetching value as primitive long (without boxing). It is called only
+     * for probes whose hasLongValue() method returns true. Default implementation fetches boxed
+     * value (see emit()) and unboxes it, so probes should override it with code that does not box.
+     *
+     * @param mv output method visitor
+     *
+     * @param stage point in method code probe is being inserted
+     *
+     * @param opcode
+     *
+     * @return number of JVM stack slots emitted code consumes
+     */
+    public int emitLong(SpyMethodVisitor mv, int stage, int opcode) {
+        int sd = emit(mv, stage, opcode);
+        mv.visitTypeInsn(CHECKCAST, "java/lang/Number");
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", "longValue", "()J");
+        return Math.max(sd, 2);
+    }
+
+
     /**
      * Fetches return value or thrown exception. If return value is of basic type, it is automatically boxed.
      *
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+import static com.jitlogic.zorka.core.spy.SpyRecordLayout.*;
+
+/**
+ * Spy record backed by array of slots (as defined by spy record layout). Processors can access
+ * fields by slot numbers (see SpyRecordField) or use it as an ordinary map (eg. from BSH scripts).
+ * Special fields (.CTX, .STAGE, .STAGES) are kept directly in record object, so no boxing occurs
+ * when dispatching records. Primitive long values (eg. time stamps) are kept in separate array and boxed
+ * only when accessed as objects. Fields that have no slot (layout is full) are kept in auxiliary map.
+ * <p/>
+ * Records are not thread safe and can be reused by submitter after processing (see SpyRecordLayout).
+ */
+public class SpyRecord extends AbstractMap<String,Object> {
+
+    /** Marks slots containing null values (as opposed to empty slots). */
+    private static final Object NULL = new Object();
+
+    /** Marks slots containing primitive long values (stored in lvals). */
+    private static final Object LONG = new Object();
+
+    private SpyRecordLayout layout;
+
+    private SpyContext ctx;
+
+    private int stage, stages;
+
+    private Object[] vals;
+
+    /** Primitive long values (allocated on first use). */
+    private long[] lvals;
+
+    /** Fields that have no slot in layout. */
+    private Map<String,Object> extra;
+
+    public SpyRecord(SpyRecordLayout layout, SpyContext ctx) {
+        this.vals = new Object[Math.max(layout.size(), 4)];
+        init(layout, ctx);
+    }
+
+
+    /**
+     * (Re)initializes record. Record must be empty.
+     */
+    void init(SpyRecordLayout layout, SpyContext ctx) {
+        this.layout = layout;
+        this.ctx = ctx;
+        if (vals.length < layout.size()) {
+            vals = new Object[layout.size()];
+        }
+    }
+
+
+    /**
+     * Clears record, so it can be reused.
+     */
+    void reset() {
+        Arrays.fill(vals, null);
+        layout = null;
+        ctx = null;
+        stage = 0;
+        stages = 0;
+        extra = null;
+    }
+
+
+    public SpyRecordLayout getLayout() {
+        return layout;
+    }
+
+
+    public SpyContext getContext() {
+        return ctx;
+    }
+
+
+    public int getStage() {
+        return stage;
+    }
+
+
+    public int getStages() {
+        return stages;
+    }
+
+
+    /**
+     * Marks record as processed by given stage.
+     */
+    public void setStage(int stage) {
+        this.stage = stage;
+        this.stages |= (1 << stage);
+    }
+
+
+    /**
+     * Returns value of given slot.
+     */
+    public Object get(int slot) {
+        if (slot >= 0) {
+            Object v = slot < vals.length ? vals[slot] : null;
+            if (v == LONG) {
+                return lvals[slot];
+            }
+            return v != NULL ? v : null;
+        }
+        switch (slot) {
+            case SLOT_CTX:
+                return ctx;
+            case SLOT_STAGE:
+                return stage;
+            case SLOT_STAGES:
+                return stages;
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Sets value of given slot.
+     */
+    public void set(int slot, Object val) {
+        if (slot >= 0) {
+            if (slot >= vals.length) {
+                vals = Arrays.copyOf(vals, Math.max(slot + 1, layout.size()));
+            }
+            vals[slot] = val != null ? val : NULL;
+        } else {
+            switch (slot) {
+                case SLOT_CTX:
+                    ctx = (SpyContext)val;
+                    break;
+                case SLOT_STAGE:
+                    stage = val != null ? ((Number)val).intValue() : 0;
+                    break;
+                case SLOT_STAGES:
+                    stages = val != null ? ((Number)val).intValue() : 0;
+                    break;
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if given slot contains long value.
+     */
+    public boolean isLong(int slot) {
+        if (slot >= 0) {
+            Object v = slot < vals.length ? vals[slot] : null;
+            return v == LONG || v instanceof Long;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns long value of given slot. Slot must contain long value (see isLong()).
+     */
+    public long getLong(int slot) {
+        Object v = vals[slot];
+        return v == LONG ? lvals[slot] : (Long) v;
+    }
+
+
+    /**
+     * Sets long value of given slot without boxing it.
+     */
+    public void setLong(int slot, long val) {
+        if (slot < 0) {
+            set(slot, val);
+            return;
+        }
+        if (slot >= vals.length) {
+            vals = Arrays.copyOf(vals, Math.max(slot + 1, layout.size()));
+        }
+        if (lvals == null || lvals.length < vals.length) {
+            lvals = lvals == null ? new long[vals.length] : Arrays.copyOf(lvals, vals.length);
+        }
+        vals[slot] = LONG;
+        lvals[slot] = val;
+    }
+
+
+    private boolean present(int slot) {
+        return slot >= 0 ? slot < vals.length && vals[slot] != null : slot != SLOT_CTX || ctx != null;
+    }
+
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = layout.slot((String)key);
+        if (slot != NO_SLOT) {
+            return get(slot);
+        }
+        return extra != null ? extra.get(key) : null;
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        int slot = layout.slot((String)key);
+        if (slot != NO_SLOT) {
+            return present(slot);
+        }
+        return extra != null && extra.containsKey(key);
+    }
+
+
+    @Override
+    public Object put(String key, Object value) {
+        int slot = layout.slotFor(key);
+        if (slot != NO_SLOT) {
+            Object v = get(slot);
+            set(slot, value);
+            return v;
+        }
+        if (extra == null) {
+            extra = new HashMap<String, Object>();
+        }
+        return extra.put(key, value);
+    }
+
+
+    @Override
+    public Object remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = layout.slot((String)key);
+        if (slot >= 0) {
+            Object v = get(slot);
+            if (slot < vals.length) {
+                vals[slot] = null;
+            }
+            return v;
+        } else if (slot != NO_SLOT) {
+            Object v = get(slot);
+            set(slot, null);
+            return v;
+        }
+        return extra != null ? extra.remove(key) : null;
+    }
+
+
+    @Override
+    public int size() {
+        int n = ctx != null ? 3 : 2;
+        for (Object v : vals) {
+            if (v != null) {
+                n++;
+            }
+        }
+        return n + (extra != null ? extra.size() : 0);
+    }
+
+
+    @Override
+    public void clear() {
+        Arrays.fill(vals, null);
+        ctx = null;
+        stage = 0;
+        stages = 0;
+        extra = null;
+    }
+
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return SpyRecord.this.size();
+            }
+        };
+    }
+
+
+    private class RecordEntry implements Entry<String,Object> {
+        private final String key;
+        private Object value;
+
+        private RecordEntry(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object v = this.value;
+            this.value = value;
+            put(key, value);
+            return v;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry)obj;
+            return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+
+    /** Iterates over snapshot of record fields. */
+    private class EntryIterator implements Iterator<Entry<String,Object>> {
+
+        private final List<Entry<String,Object>> entries = new ArrayList<Entry<String, Object>>();
+        private int pos;
+
+        private EntryIterator() {
+            if (ctx != null) {
+                entries.add(new RecordEntry(".CTX", ctx));
+            }
+            entries.add(new RecordEntry(".STAGE", stage));
+            entries.add(new RecordEntry(".STAGES", stages));
+            for (int i = 0; i < vals.length; i++) {
+                if (vals[i] != null) {
+                    entries.add(new RecordEntry(layout.name(i), get(i)));
+                }
+            }
+            if (extra != null) {
+                for (Entry<String,Object> e : extra.entrySet()) {
+                    entries.add(new RecordEntry(e.getKey(), e.getValue()));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pos < entries.size();
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (pos >= entries.size()) {
+                throw new NoSuchElementException();
+            }
+            return entries.get(pos++);
+        }
+
+        @Override
+        public void remove() {
+            if (pos == 0) {
+                throw new IllegalStateException();
+            }
+            SpyRecord.this.remove(entries.get(pos - 1).getKey());
+        }
+    }
+}
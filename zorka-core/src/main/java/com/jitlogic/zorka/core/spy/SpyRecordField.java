@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.Map;
+
+/**
+ * Record field accessor for spy processors. Field slot is resolved once for each record
+ * layout (and cached), so accessing slot-based records does not involve map lookups.
+ * Ordinary maps are accessed by field name.
+ */
+public class SpyRecordField {
+
+    /** Resolved slot (immutable, so it can be replaced without locking). */
+    private static class Binding {
+        private final SpyRecordLayout layout;
+        private final int slot;
+
+        private Binding(SpyRecordLayout layout, int slot) {
+            this.layout = layout;
+            this.slot = slot;
+        }
+    }
+
+    private final String name;
+
+    private volatile Binding binding;
+
+    public SpyRecordField(String name) {
+        this.name = name;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    private int slot(SpyRecordLayout layout) {
+        Binding b = binding;
+
+        if (b == null || b.layout != layout) {
+            b = new Binding(layout, layout.slotFor(name));
+            binding = b;
+        }
+
+        return b.slot;
+    }
+
+
+    public Object get(Map<String,Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord)record;
+            int slot = slot(r.getLayout());
+            if (slot != SpyRecordLayout.NO_SLOT) {
+                return r.get(slot);
+            }
+        }
+        return record.get(name);
+    }
+
+
+    public void put(Map<String,Object> record, Object val) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord)record;
+            int slot = slot(r.getLayout());
+            if (slot != SpyRecordLayout.NO_SLOT) {
+                r.set(slot, val);
+                return;
+            }
+        }
+        record.put(name, val);
+    }
+
+
+    /**
+     * Returns true if field contains long value.
+     */
+    public boolean isLong(Map<String,Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord)record;
+            int slot = slot(r.getLayout());
+            if (slot != SpyRecordLayout.NO_SLOT) {
+                return r.isLong(slot);
+            }
+        }
+        return record.get(name) instanceof Long;
+    }
+
+
+    /**
+     * Returns long value of field. Field must contain long value (see isLong()).
+     */
+    public long getLong(Map<String,Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord)record;
+            int slot = slot(r.getLayout());
+            if (slot != SpyRecordLayout.NO_SLOT) {
+                return r.getLong(slot);
+            }
+        }
+        return (Long)record.get(name);
+    }
+
+
+    /**
+     * Stores long value in field (without boxing if record is slot-based).
+     */
+    public void putLong(Map<String,Object> record, long val) {
+        if (record instanceof SpyRecord) {
+            SpyRecord r = (SpyRecord)record;
+            int slot = slot(r.getLayout());
+            if (slot != SpyRecordLayout.NO_SLOT) {
+                r.setLong(slot, val);
+                return;
+            }
+        }
+        record.put(name, val);
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.core.spy.plugins.LogicalFilterProcessor;
+import com.jitlogic.zorka.core.spy.plugins.SilentBreakerSpyProcessor;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps spy record field names to slots of spy records created for a spy definition.
+ * Slots for probe fields are assigned when layout is created (that is, when spy
+ * definition is used for the first time), fields added later by processors get
+ * their slots on first use. Layout never shrinks, so slots once assigned are valid
+ * for all records created with this layout.
+ */
+public class SpyRecordLayout {
+
+    /** Special slots (these fields are kept directly in record object). */
+    public static final int SLOT_CTX = -1, SLOT_STAGE = -2, SLOT_STAGES = -3;
+
+    /** Field has no slot (layout is full), it will be stored in record as in ordinary map. */
+    public static final int NO_SLOT = -4;
+
+    /** Maximum number of slots in a layout. */
+    public static final int MAX_SLOTS = 256;
+
+    private static final String PLUGINS_PKG = LogicalFilterProcessor.class.getPackage().getName() + ".";
+
+    /** Field name to slot mapping. Copied on write, so it can be read without locking. */
+    private volatile Map<String,Integer> slots;
+
+    /** Slot to field name mapping. */
+    private volatile String[] names;
+
+    /** Slots of probe fields (for each stage). */
+    private final int[][] probeSlots;
+
+    private final boolean recyclable;
+
+
+    public SpyRecordLayout(SpyDefinition sdef) {
+        slots = new HashMap<String, Integer>();
+        names = new String[0];
+        probeSlots = new int[4][];
+
+        boolean r = true;
+
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            List<SpyProbe> probes = sdef.getProbes(stage);
+            probeSlots[stage] = new int[probes.size()];
+            for (int i = 0; i < probes.size(); i++) {
+                probeSlots[stage][i] = slotFor(probes.get(i).getDstField());
+            }
+            for (SpyProcessor p : sdef.getProcessors(stage)) {
+                r &= isRecyclable(p);
+            }
+        }
+
+        recyclable = r;
+    }
+
+
+    /**
+     * Checks if processor is known not to retain references to records it processes
+     * (so records can be reused after processing).
+     */
+    private static boolean isRecyclable(SpyProcessor processor) {
+        if (processor == null) {
+            return true;
+        }
+
+        Class<?> clazz = processor.getClass();
+
+        if (Proxy.isProxyClass(clazz) || clazz.getClassLoader() != SpyProcessor.class.getClassLoader()
+                || !clazz.getName().startsWith(PLUGINS_PKG)) {
+            return false;
+        }
+
+        if (processor instanceof LogicalFilterProcessor) {
+            for (SpyProcessor p : ((LogicalFilterProcessor)processor).getProcessors()) {
+                if (!isRecyclable(p)) {
+                    return false;
+                }
+            }
+        }
+
+        if (processor instanceof SilentBreakerSpyProcessor) {
+            for (SpyProcessor p : ((SilentBreakerSpyProcessor)processor).getProcessors()) {
+                if (!isRecyclable(p)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns slot for given field name or NO_SLOT if field has no slot assigned.
+     */
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+
+        if (slot != null) {
+            return slot;
+        }
+
+        return special(name);
+    }
+
+
+    /**
+     * Returns slot for given field name, assigns new slot if field has no slot yet.
+     * Returns NO_SLOT if layout is full.
+     */
+    public int slotFor(String name) {
+        int slot = slot(name);
+        return slot != NO_SLOT ? slot : newSlot(name);
+    }
+
+
+    private synchronized int newSlot(String name) {
+        Integer slot = slots.get(name);
+
+        if (slot != null) {
+            return slot;
+        }
+
+        if (names.length >= MAX_SLOTS) {
+            return NO_SLOT;
+        }
+
+        Map<String,Integer> s = new HashMap<String, Integer>(slots);
+        String[] n = new String[names.length + 1];
+        System.arraycopy(names, 0, n, 0, names.length);
+        n[names.length] = name;
+        s.put(name, names.length);
+
+        names = n;
+        slots = s;
+
+        return n.length - 1;
+    }
+
+
+    private static int special(String name) {
+        if (name.length() > 0 && name.charAt(0) == '.') {
+            if (".CTX".equals(name)) {
+                return SLOT_CTX;
+            }
+            if (".STAGE".equals(name)) {
+                return SLOT_STAGE;
+            }
+            if (".STAGES".equals(name)) {
+                return SLOT_STAGES;
+            }
+        }
+        return NO_SLOT;
+    }
+
+
+    /**
+     * Returns field name for given (ordinary) slot.
+     */
+    public String name(int slot) {
+        return names[slot];
+    }
+
+
+    /**
+     * Returns current number of slots.
+     */
+    public int size() {
+        return names.length;
+    }
+
+
+    /**
+     * Returns slots probe values will be stored in (for given stage).
+     */
+    public int[] getProbeSlots(int stage) {
+        return probeSlots[stage];
+    }
+
+
+    /**
+     * Returns true if all processors of spy definition are known not to retain records,
+     * so records can be reused after processing.
+     */
+    public boolean isRecyclable() {
+        return recyclable;
+    }
+}
@@ -32,8 +32,27 @@ public interface SpySubmitter {
      *
      * @param submitFlags submission flags
      *
-     * @param vals fetched values (or null if no values are fetched)
+     * @param vals fetched values (or null if no values are fetched); array can be reused by caller,
+     *             so submitter must not keep reference to it after returning
      */
     void submit(int stage, int id, int submitFlags, Object[] vals);
 
+
+    /**
+     * Receives spy probe submission whose first value is a primitive long (eg. time stamp),
+     * so it can be passed without boxing.
+     *
+     * @param stage determines if submission comes from method entry, method return or method error handling code
+     *
+     * @param id spy context ID
+     *
+     * @param submitFlags submission flags
+     *
+     * @param lval first fetched value
+     *
+     * @param vals fetched values (first element is unused, as it is passed in lval); array can be reused by caller,
+     *             so submitter must not keep reference to it after returning
+     */
+    void submit(int stage, int id, int submitFlags, long lval, Object[] vals);
+
 }
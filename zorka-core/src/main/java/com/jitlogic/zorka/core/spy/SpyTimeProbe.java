@@ -43,6 +43,19 @@ public class SpyTimeProbe extends SpyProbe {
     }
 
 
+    @Override
+    public boolean hasLongValue() {
+        return true;
+    }
+
+
+    @Override
+    public int emitLong(SpyMethodVisitor mv, int stage, int opcode) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+        return 2;
+    }
+
+
     @Override
     public int hashCode() {
         return 31 * getDstField().hashCode();
@@ -23,24 +23,54 @@ import com.jitlogic.netkit.http.HttpStreamClient;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
 import com.jitlogic.zorka.common.util.*;
+
+import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
+import static com.jitlogic.zorka.common.util.ZorkaConfig.parseBool;
 import static com.jitlogic.zorka.common.util.ZorkaConfig.parseInt;
 import static com.jitlogic.zorka.common.util.ZorkaConfig.parseStr;
 
+/**
+ * Base class for outputs sending traces to ZICO collector over HTTP. Records are sent by a pool of
+ * sender threads, each one with its own keep-alive connection. Senders pipeline requests: whole
+ * batch of records is written to connection before reading responses. Failed records are not
+ * retried in place - they are scheduled for later and picked up by any sender when their time comes,
+ * so single slow or failing request does not stall the whole output.
+ */
 public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
     protected String agentID, authKey;
     protected String app, env, hostname;
-    protected String sessionUUID, sessionKey;
+    protected volatile String sessionUUID;
+    protected String sessionKey;
 
-    protected String submitTraceUrl, submitAgentUrl, registerUrl, sessionUrl;
+    protected String submitTraceUrl, submitAgentUrl, submitBatchUrl, registerUrl, sessionUrl;
 
     protected int retries, timeout;
     protected long retryTime, retryTimeExp;
 
+    /** Number of connections (sender threads) and maximum number of records sent in one pipelined batch. */
+    protected int connections, pipeline;
+
+    /**
+     * Maximum number of traces packed into single request (0 if batching is disabled) and maximum
+     * time (in milliseconds) a trace can wait for batch to fill up. Batches are sent to submit/tbt
+     * endpoint as TAG_TRACE_BATCH documents, so batching (http.batch) is off by default and should
+     * be enabled only with collectors supporting it.
+     */
+    protected int batchSize, batchLinger;
+
+    protected Map<String,String> conf;
+
     protected SymbolRegistry registry;
 
     protected ZorkaConfig config;
@@ -48,11 +78,58 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
     protected HttpConfig httpConfig;
     protected HttpMessageClient httpClient;
 
+    protected final ZicoHttpStats stats = new ZicoHttpStats();
+
+    /** Records waiting for resend. */
+    private final DelayQueue<PendingRecord> retryQueue = new DelayQueue<PendingRecord>();
+
+    private final Sender[] senders;
+
+    private volatile boolean sending;
+
+    /** Incremented every time new session is opened, so senders know when to forget sent definitions. */
+    private volatile int sessionGen;
+
+    /** Set while some thread is (re)establishing session, other senders fail fast instead of waiting. */
+    private boolean sessionOpening;
+
     protected abstract void resetState();
 
+    /**
+     * Creates encoder for a single connection.
+     */
+    protected abstract RecordEncoder newEncoder();
+
+    /**
+     * Called when record has been sent or dropped, so resources associated with it can be reclaimed.
+     */
+    protected void release(SymbolicRecord rec) {
+    }
+
+    /**
+     * Converts records to HTTP requests. Each connection has its own encoder, so it keeps track
+     * of definitions sent over this connection only. This way definitions always precede
+     * traces referencing them, even if collector handles connections in parallel.
+     */
+    protected interface RecordEncoder {
+
+        /** Appends requests needed to send record: definitions (if any) followed by trace data. */
+        void encode(SymbolicRecord rec, List<HttpMessage> reqs);
+
+        /**
+         * Appends single request carrying all records and definitions they need.
+         *
+         * @return false if encoder does not support batches (records will be sent one by one)
+         */
+        boolean encodeBatch(List<SymbolicRecord> recs, List<HttpMessage> reqs);
+
+        /** Forgets all sent definitions (eg. after session change or connection error). */
+        void reset();
+    }
+
 
     public ZicoHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry) {
-        super("ZORKA-CBOR-OUTPUT", parseInt(conf.get("http.qlen"), 64, "tracer.http.qlen"), 1);
+        super("ZORKA-CBOR-OUTPUT", parseInt(conf.get("http.qlen"), 64, "tracer.http.qlen"), plen(conf));
 
         this.config = config;
 
@@ -74,6 +151,7 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
         this.submitAgentUrl = url + "submit/agd";
         this.submitTraceUrl = url + "submit/trc";
+        this.submitBatchUrl = url + "submit/tbt";
 
         this.registerUrl = url + "register";
         this.sessionUrl = url + "session";
@@ -82,12 +160,37 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
         this.retryTime = parseInt(conf.get("http.retry.time"), 125, "tracer.http.retry.time");
         this.retryTimeExp = parseInt(conf.get("http.retry.exp"), 2, "tracer.http.retry.exp");
         this.timeout = parseInt(conf.get("http.timeout"), 60000, "tracer.http.output");
+        this.connections = Math.max(1, parseInt(conf.get("http.conns"), 2, "tracer.http.conns"));
+        this.pipeline = Math.max(1, parseInt(conf.get("http.pipeline"), 8, "tracer.http.pipeline"));
+        this.batchSize = batchSize(conf);
+        this.batchLinger = parseInt(conf.get("http.batch.linger"), 100, "tracer.http.batch.linger");
         this.registry = registry;
+        this.conf = conf;
 
         this.httpConfig = new HttpConfig();
         httpConfig.setKeepAliveTimeout(timeout);
 
         this.httpClient = HttpStreamClient.fromMap(conf);
+
+        this.senders = new Sender[connections];
+        for (int i = 0; i < connections; i++) {
+            senders[i] = new Sender(i);
+        }
+    }
+
+    /**
+     * Returns maximum number of traces packed into single request or 0 if batching is disabled.
+     */
+    private static int batchSize(Map<String,String> conf) {
+        return parseBool(conf.get("http.batch"), false, "tracer.http.batch")
+            ? Math.max(2, parseInt(conf.get("http.batch.size"), 16, "tracer.http.batch.size")) : 0;
+    }
+
+    /**
+     * Returns maximum number of records processed at once when output is driven synchronously.
+     */
+    private static int plen(Map<String,String> conf) {
+        return Math.max(parseInt(conf.get("http.pipeline"), 8, "tracer.http.pipeline"), batchSize(conf));
     }
 
     /**
@@ -138,6 +241,7 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
 
     public void openSession() {
+        sessionGen++;
         resetState();
 
         try {
@@ -179,24 +283,42 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
         }
     }
 
+    /**
+     * Opens new session, retrying with exponential backoff. Only one thread at a time opens session,
+     * concurrent callers fail immediately, so their records are scheduled for resend instead of blocking
+     * senders for the whole retry sequence. Retry waits are done without holding output lock.
+     */
     public void newSession() {
-        long rt = retryTime;
-        for (int i = 0; i < retries+1; i++) {
-            try {
-                openSession();
+        synchronized (this) {
+            if (sessionOpening) {
+                throw new ZorkaRuntimeException("Collector session is being established by other sender.");
+            }
+            sessionOpening = true;
+        }
 
-                if (sessionUUID != null) {
-                    break;
+        try {
+            long rt = retryTime;
+            for (int i = 0; i < retries+1; i++) {
+                try {
+                    openSession();
+
+                    if (sessionUUID != null) {
+                        break;
+                    }
+                } catch (Exception e) {
+                    log.error("Cannot open collector session to: " + sessionUrl, e);
                 }
-            } catch (Exception e) {
-                log.error("Cannot open collector session to: " + sessionUrl, e);
-            }
 
-            rt *= retryTimeExp;
+                rt *= retryTimeExp;
 
-            try {
-                Thread.sleep(rt);
-            } catch (InterruptedException e) {
+                try {
+                    Thread.sleep(rt);
+                } catch (InterruptedException e) {
+                }
+            }
+        } finally {
+            synchronized (this) {
+                sessionOpening = false;
             }
         }
 
@@ -205,24 +327,343 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
         }
     }
 
+    /**
+     * Returns current session, opens new one if necessary.
+     */
+    private String session() {
+        String uuid = sessionUUID;
+        if (uuid == null) {
+            newSession();
+            uuid = sessionUUID;
+        }
+        return uuid;
+    }
+
+    /**
+     * Marks session as expired (unless some other sender has already replaced it).
+     */
+    private synchronized void expireSession(String uuid) {
+        if (uuid != null && uuid.equals(sessionUUID)) {
+            log.info("Session expired. Reauthenticating ...");
+            sessionUUID = null;
+        }
+    }
+
     protected void send(byte[] body, int bodyLength, String uri, String traceUUID) {
-        HttpMessage req = HttpMessage.POST(uri, ByteBuffer.wrap(body, 0, bodyLength),
+        send(ByteBuffer.wrap(body, 0, bodyLength), uri, traceUUID);
+    }
+
+    /**
+     * Creates request submitting data to collector.
+     */
+    protected HttpMessage request(ByteBuffer body, String uri, String traceUUID) {
+        HttpMessage req = HttpMessage.POST(uri, body,
                 "X-Zorka-Agent-ID", agentID,
                 "X-Zorka-Session-UUID", sessionUUID,
                 "Content-Type", "application/zorka+cbor+v1");
         if (traceUUID != null) req.header("X-Zorka-Trace-UUID", traceUUID);
-        HttpMessage res = httpClient.exec(req);
+        return req;
+    }
+
+    /**
+     * Sends data to collector. Body can be a direct buffer, it will be written to socket without copying.
+     */
+    protected void send(ByteBuffer body, String uri, String traceUUID) {
+        ByteBuffer data = log.isTraceEnabled() ? body.duplicate() : null;
+        HttpMessage res = httpClient.exec(request(body, uri, traceUUID));
+        check(res, uri, traceUUID, data);
+    }
+
+    private void check(HttpMessage res, String uri, String traceUUID, ByteBuffer data) {
         if (res.getStatus() < 300) {
             log.trace("Submitted: " + uri + " : " + traceUUID);
         } else if (res.getStatus() == 412) {
             throw new ZorkaRuntimeException("Resend.");
         } else {
-            if (log.isTraceEnabled()) {
-                log.trace("ERROR at send(): uri=" + uri + ", status=" + res.getStatus() + ", data=" + ZorkaUtil.hex(body, bodyLength)
-                    + ": " + new String(body, 0, bodyLength, Charset.defaultCharset()));
+            if (data != null) {
+                byte[] b = new byte[data.remaining()];
+                data.get(b);
+                log.trace("ERROR at send(): uri=" + uri + ", status=" + res.getStatus() + ", data=" + ZorkaUtil.hex(b, b.length)
+                    + ": " + new String(b, 0, b.length, Charset.defaultCharset()));
             }
             throw new ZorkaRuntimeException("Server error: " + res.getStatus() + " " + res.getStatus());
         }
     }
 
+    /**
+     * Schedules record for resending or drops it if retry limit has been exceeded.
+     */
+    private void retry(PendingRecord pr) {
+        pr.attempts++;
+        if (pr.attempts > retries) {
+            log.error("Dropping trace record after " + pr.attempts + " attempts.");
+            stats.drop();
+            release(pr.record);
+        } else {
+            long rt = retryTime;
+            for (int i = 1; i < pr.attempts; i++) {
+                rt *= retryTimeExp;
+            }
+            log.debug("Will retry (wait=" + rt + ")");
+            pr.due = System.currentTimeMillis() + rt;
+            stats.retry();
+            retryQueue.add(pr);
+        }
+    }
+
+    /**
+     * Sends records synchronously via first connection. Used when output has no submit queue
+     * or is driven externally via runCycle(). Records due for retry are sent along as well.
+     */
+    @Override
+    protected void process(List<SymbolicRecord> obj) {
+        List<PendingRecord> batch = new ArrayList<PendingRecord>(obj.size());
+        for (SymbolicRecord sr : obj) {
+            batch.add(new PendingRecord(sr));
+        }
+        for (PendingRecord pr = retryQueue.poll(); pr != null; pr = retryQueue.poll()) {
+            batch.add(pr);
+        }
+        senders[0].send(batch);
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (!sending && qlen > 0) {
+                sending = true;
+                for (Sender s : senders) {
+                    Thread t = new Thread(s);
+                    t.setName("ZORKA-CBOR-OUTPUT-" + s.idx);
+                    t.setDaemon(true);
+                    t.start();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        sending = false;
+    }
+
+    public ZicoHttpStats getStats() {
+        return stats;
+    }
+
+    /** Number of records waiting for resend. */
+    public int getRetryQueueSize() {
+        return retryQueue.size();
+    }
+
+    /**
+     * Record with its delivery state.
+     */
+    private static class PendingRecord implements Delayed {
+        private final SymbolicRecord record;
+        private int attempts;
+        private long due;
+
+        private PendingRecord(SymbolicRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long d = due - ((PendingRecord)o).due;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Sender thread with its own connection and encoder.
+     */
+    private class Sender implements Runnable {
+
+        private final int idx;
+
+        private RecordEncoder encoder;
+
+        private HttpMessageClient client;
+
+        /** Session generation encoder state corresponds to. */
+        private int gen = -1;
+
+        private final List<HttpMessage> reqs = new ArrayList<HttpMessage>();
+        private final List<HttpMessage> resps = new ArrayList<HttpMessage>();
+
+        private Sender(int idx) {
+            this.idx = idx;
+        }
+
+        private HttpMessageClient client() {
+            if (idx == 0) {
+                return httpClient;
+            }
+            if (client == null) {
+                client = HttpStreamClient.fromMap(conf);
+            }
+            return client;
+        }
+
+        @Override
+        public void run() {
+            List<PendingRecord> batch = new ArrayList<PendingRecord>(pipeline);
+            while (sending) {
+                try {
+                    batch.clear();
+                    fetch(batch);
+                    if (!batch.isEmpty()) {
+                        send(batch);
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("Sender thread interrupted.");
+                } catch (Exception e) {
+                    log.error("Error in sender thread", e);
+                }
+            }
+            HttpMessageClient c = client();
+            if (c instanceof Closeable) {
+                ZorkaUtil.close((Closeable)c);
+            }
+        }
+
+        /**
+         * Collects records for next batch: records due for retry first, then new ones.
+         * Waits no longer than until next retry is due (or 100ms if there are no retries pending).
+         * In batching mode waits up to batchLinger milliseconds for batch to fill up.
+         */
+        private void fetch(List<PendingRecord> batch) throws InterruptedException {
+            int max = batchSize > 1 ? batchSize : pipeline;
+
+            while (batch.size() < max) {
+                PendingRecord pr = retryQueue.poll();
+                if (pr == null) break;
+                batch.add(pr);
+            }
+
+            if (batch.isEmpty()) {
+                PendingRecord next = retryQueue.peek();
+                long wait = next != null ? Math.min(100, next.getDelay(TimeUnit.MILLISECONDS)) : 100;
+                SymbolicRecord sr = submitQueue.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                if (sr != null) {
+                    batch.add(new PendingRecord(sr));
+                }
+            }
+
+            if (batchSize > 1 && !batch.isEmpty()) {
+                long deadline = System.currentTimeMillis() + batchLinger;
+                while (batch.size() < max) {
+                    long wait = deadline - System.currentTimeMillis();
+                    SymbolicRecord sr = wait > 0 ? submitQueue.poll(wait, TimeUnit.MILLISECONDS) : submitQueue.poll();
+                    if (sr == null) break;
+                    batch.add(new PendingRecord(sr));
+                }
+            }
+
+            while (!batch.isEmpty() && batch.size() < max) {
+                SymbolicRecord sr = submitQueue.poll();
+                if (sr == null) break;
+                batch.add(new PendingRecord(sr));
+            }
+        }
+
+        private List<SymbolicRecord> records(List<PendingRecord> batch) {
+            List<SymbolicRecord> recs = new ArrayList<SymbolicRecord>(batch.size());
+            for (PendingRecord pr : batch) {
+                recs.add(pr.record);
+            }
+            return recs;
+        }
+
+        /**
+         * Sends batch of records over sender connection. Records that failed are scheduled for resend.
+         */
+        private synchronized void send(List<PendingRecord> batch) {
+            reqs.clear();
+            resps.clear();
+
+            String uuid = null;
+            int[] starts = new int[batch.size()], ends = new int[batch.size()];
+            long nbytes = 0;
+            Exception error = null;
+
+            try {
+                uuid = session();
+
+                if (encoder == null) {
+                    encoder = newEncoder();
+                } else if (gen != sessionGen) {
+                    encoder.reset();
+                }
+                gen = sessionGen;
+
+                if (batchSize > 1 && encoder.encodeBatch(records(batch), reqs)) {
+                    // All records depend on single request
+                    Arrays.fill(ends, reqs.size());
+                } else {
+                    for (int i = 0; i < batch.size(); i++) {
+                        starts[i] = reqs.size();
+                        encoder.encode(batch.get(i).record, reqs);
+                        ends[i] = reqs.size();
+                    }
+                }
+
+                for (HttpMessage req : reqs) {
+                    for (Object part : req.getBodyParts()) {
+                        nbytes += part instanceof ByteBuffer ? ((ByteBuffer)part).remaining()
+                            : part instanceof byte[] ? ((byte[])part).length : 0;
+                    }
+                }
+
+                long t = System.nanoTime();
+                try {
+                    client().execAll(reqs, resps);
+                } finally {
+                    stats.batch(reqs.size(), nbytes, System.nanoTime() - t);
+                }
+            } catch (Exception e) {
+                log.error("Error sending trace records: " + e + ". Resetting connection.", e);
+                stats.error();
+                error = e;
+            }
+
+            boolean failed = error != null, expired = false;
+
+            for (int i = 0; i < batch.size(); i++) {
+                PendingRecord pr = batch.get(i);
+                boolean ok = resps.size() >= ends[i] && (error == null || ends[i] > starts[i]);
+                for (int j = starts[i]; ok && j < ends[i]; j++) {
+                    int status = resps.get(j).getStatus();
+                    expired |= status == 412;
+                    ok = status < 300;
+                }
+                if (ok) {
+                    stats.sent();
+                    release(pr.record);
+                } else {
+                    if (error == null) {
+                        stats.error();
+                    }
+                    failed = true;
+                    retry(pr);
+                }
+            }
+
+            if (failed && encoder != null) {
+                // Definitions sent in this batch might have been lost
+                encoder.reset();
+            }
+
+            if (expired) {
+                expireSession(uuid);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2019 Rafał Lewczuk All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.stats.StripedCounter;
+
+/**
+ * Throughput and latency statistics of HTTP trace output. All counters are cumulative,
+ * rates can be calculated by monitoring system. Latencies are measured per pipelined batch
+ * of requests (from sending first request to receiving last response).
+ */
+public class ZicoHttpStats {
+
+    private final StripedCounter records = new StripedCounter();
+    private final StripedCounter requests = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
+    private final StripedCounter retries = new StripedCounter();
+    private final StripedCounter drops = new StripedCounter();
+    private final StripedCounter batches = new StripedCounter();
+    private final StripedCounter time = new StripedCounter();
+    private final StripedCounter maxTime = new StripedCounter();
+
+    public void batch(int nreqs, long nbytes, long t) {
+        batches.inc();
+        requests.add(nreqs);
+        bytes.add(nbytes);
+        time.add(t);
+        maxTime.max(t);
+    }
+
+    public void sent() {
+        records.inc();
+    }
+
+    public void error() {
+        errors.inc();
+    }
+
+    public void retry() {
+        retries.inc();
+    }
+
+    public void drop() {
+        drops.inc();
+    }
+
+    /** Number of records (traces) successfully sent. */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /** Number of HTTP requests sent (including failed ones). */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** Number of bytes sent (request bodies only). */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /** Number of records dropped after exceeding retry limit. */
+    public long getDrops() {
+        return drops.get();
+    }
+
+    /** Number of pipelined batches sent. */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /** Total time spent waiting for collector (in nanoseconds). */
+    public long getTime() {
+        return time.get();
+    }
+
+    /** Average batch round trip time (in milliseconds). */
+    public double getAvgLatency() {
+        long n = batches.get();
+        return n > 0 ? time.get() / 1000000.0 / n : 0.0;
+    }
+
+    /** Maximum batch round trip time (in milliseconds). */
+    public double getMaxLatency() {
+        return maxTime.getMax() / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "ZicoHttpStats(records=" + getRecords() + ", requests=" + getRequests() + ", bytes=" + getBytes()
+            + ", errors=" + getErrors() + ", retries=" + getRetries() + ", drops=" + getDrops()
+            + ", avgLatency=" + getAvgLatency() + ", maxLatency=" + getMaxLatency() + ")";
+    }
+}
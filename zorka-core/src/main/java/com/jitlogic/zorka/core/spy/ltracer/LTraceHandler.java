@@ -150,6 +150,18 @@ public class LTraceHandler extends TraceHandler {
     }
 
 
+    @Override
+    public int getCurrentMethodId() {
+        TraceRecord tr = ttop;
+
+        while (tr != null && tr.getMid() == 0 && tr.getParent() != null) {
+            tr = tr.getParent();
+        }
+
+        return tr != null ? tr.getMid() : 0;
+    }
+
+
     public void traceError(Object exception, long tstamp) {
 
         if (disabled) {
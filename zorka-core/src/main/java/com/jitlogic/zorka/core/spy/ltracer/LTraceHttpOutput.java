@@ -16,17 +16,18 @@
 
 package com.jitlogic.zorka.core.spy.ltracer;
 
+import com.jitlogic.netkit.http.HttpMessage;
 import com.jitlogic.zorka.cbor.CBOR;
 import com.jitlogic.zorka.cbor.CborDataWriter;
 import com.jitlogic.zorka.common.tracedata.*;
 import com.jitlogic.zorka.common.util.*;
-import com.jitlogic.zorka.cbor.CborResendException;
 import com.jitlogic.zorka.core.spy.ZicoHttpOutput;
 
 import static com.jitlogic.zorka.cbor.TraceDataTags.*;
 import static com.jitlogic.zorka.cbor.TraceRecordFlags.*;
 import static com.jitlogic.zorka.cbor.TextIndexTypeMarkers.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -42,14 +43,11 @@ public class LTraceHttpOutput extends ZicoHttpOutput {
 
     private static final int K_MASK = 0x001fffff;
 
-    private int lastMid = 0, nExceptions;
-    private Map<Long,Integer> mids = new HashMap<Long, Integer>();
+    /** Method IDs are allocated per session and shared by all connections. */
+    private int lastMid = 0;
+    private final Map<Long,Integer> mids = new HashMap<Long, Integer>();
 
-    private BitVector symbolsSent = new BitVector();
-
-    private int TBUFSZ = 512 * 1024, ABUFSZ = 128 * 1024;
-
-    private CborDataWriter awriter = new CborDataWriter(ABUFSZ, ABUFSZ), twriter = new CborDataWriter(TBUFSZ, TBUFSZ);
+    private static final int TBUFSZ = 512 * 1024, ABUFSZ = 128 * 1024;
 
     public LTraceHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry) {
         super(config, conf, registry);
@@ -63,200 +61,213 @@ public class LTraceHttpOutput extends ZicoHttpOutput {
         return (int)((cms >>> shift) & K_MASK);
     }
 
-    private int ref(int id, int type) {
-
-        if (!symbolsSent.get(id)) {
-            String s = registry.symbolName(id);
-            if (s != null) {
-                awriter.writeTag(TAG_STRING_DEF);
-                awriter.writeUInt(CBOR.ARR_BASE, 3);
-                awriter.writeInt(id);
-                awriter.writeString(s);
-                awriter.writeInt(type);
+    private int methodId(long key) {
+        synchronized (mids) {
+            Integer mid = mids.get(key);
+            if (mid == null) {
+                lastMid++;
+                mid = lastMid;
+                mids.put(key, mid);
             }
-            symbolsSent.set(id);
+            return mid;
         }
+    }
 
-        return id;
+    @Override
+    protected RecordEncoder newEncoder() {
+        return new Encoder();
     }
 
-    private int mid(TraceRecord tr) {
-        int classId = ref(tr.getClassId(), CLASS_TYPE);
-        int methodId = ref(tr.getMethodId(), METHOD_TYPE);
-        int signatureId = ref(tr.getSignatureId(), SIGN_TYPE);
+    /**
+     * Encodes trace records for a single connection.
+     */
+    private class Encoder implements RecordEncoder {
+
+        private int nExceptions;
 
-        long key = cms2key(classId, methodId, signatureId);
+        private BitVector symbolsSent = new BitVector();
+        private BitVector methodsSent = new BitVector();
 
-        Integer mid = mids.get(key);
+        private CborDataWriter awriter = new CborDataWriter(ABUFSZ, ABUFSZ), twriter = new CborDataWriter(TBUFSZ, TBUFSZ);
 
-        if (mid == null) {
-            lastMid++;
-            mid = lastMid;
-            mids.put(key, mid);
+        private int ref(int id, int type) {
 
-            awriter.writeTag(TAG_METHOD_DEF);
-            awriter.writeUInt(CBOR.ARR_BASE, 4);
-            awriter.writeInt(mid);
-            awriter.writeInt(classId);
-            awriter.writeInt(methodId);
-            awriter.writeInt(signatureId);
+            if (!symbolsSent.get(id)) {
+                String s = registry.symbolName(id);
+                if (s != null) {
+                    awriter.writeTag(TAG_STRING_DEF);
+                    awriter.writeUInt(CBOR.ARR_BASE, 3);
+                    awriter.writeInt(id);
+                    awriter.writeString(s);
+                    awriter.writeInt(type);
+                }
+                symbolsSent.set(id);
+            }
+
+            return id;
         }
 
-        return mid;
-    }
+        private int mid(TraceRecord tr) {
+            int classId = ref(tr.getClassId(), CLASS_TYPE);
+            int methodId = ref(tr.getMethodId(), METHOD_TYPE);
+            int signatureId = ref(tr.getSignatureId(), SIGN_TYPE);
+
+            int mid = methodId(cms2key(classId, methodId, signatureId));
 
-    private void processTraceRecord(long t, TraceRecord tr) {
-        long methodId = mid(tr);
-
-        // Leading tag and Array Start
-        twriter.writeTag(TAG_TRACE_START);
-        twriter.write(CBOR.ARR_VCODE);
-
-        // Trace Prolog
-        twriter.writeTag(TAG_PROLOG_BE);
-        twriter.writeUInt(CBOR.BYTES_BASE, 8);
-        long prolog = ((t >>> 16) & 0xFFFFFFFFFFL) | (methodId << 40);
-        twriter.writeRawLong(prolog, false);
-
-
-        // Trace Marker (if this is trace beginning)
-        if (tr.hasFlag(TraceRecord.TRACE_BEGIN)) {
-            TraceMarker tm = tr.getMarker();
-            int tid = ref(tm.getTraceId(), STRING_TYPE);
-            twriter.writeTag(TAG_TRACE_BEGIN);
-            twriter.writeUInt(CBOR.ARR_BASE, 2);
-            twriter.writeLong(tm.getClock());
-            twriter.writeInt(tid);
-            if (tm.hasFlag(TraceMarker.ERROR_MARK)) {
-                twriter.writeTag(TAG_TRACE_FLAGS);
-                twriter.writeInt(TF_ERROR_MARK);
+            if (!methodsSent.get(mid)) {
+                methodsSent.set(mid);
+
+                awriter.writeTag(TAG_METHOD_DEF);
+                awriter.writeUInt(CBOR.ARR_BASE, 4);
+                awriter.writeInt(mid);
+                awriter.writeInt(classId);
+                awriter.writeInt(methodId);
+                awriter.writeInt(signatureId);
             }
+
+            return mid;
         }
 
-        Map<Integer,Object> attrs = tr.getAttrs();
-
-        // Attributes (if any)
-        if (attrs != null) {
-            twriter.writeTag(TAG_TRACE_ATTR);
-            twriter.writeUInt(CBOR.MAP_BASE, attrs.size());
-            for (Map.Entry<Integer,Object> e : attrs.entrySet()) {
-                twriter.writeTag(TAG_STRING_REF); // TODO get rid of this tag
-                twriter.writeInt(ref(e.getKey(), STRING_TYPE));
-                Object v = e.getValue();
-                if (v == null) {
-                    twriter.writeNull();
-                } else if (v.getClass() == String.class) {
-                    twriter.writeString((String)v);
-                } else if (v.getClass() == Integer.class || v.getClass() == Long.class
-                    || v.getClass() == Short.class || v.getClass() == Byte.class) {
-                    twriter.writeLong(((Number)v).longValue());
-                } else {
-                    twriter.writeString(v.toString());
+        private void processTraceRecord(long t, TraceRecord tr) {
+            long methodId = mid(tr);
+
+            // Leading tag and Array Start
+            twriter.writeTag(TAG_TRACE_START);
+            twriter.write(CBOR.ARR_VCODE);
+
+            // Trace Prolog
+            twriter.writeTag(TAG_PROLOG_BE);
+            twriter.writeUInt(CBOR.BYTES_BASE, 8);
+            long prolog = ((t >>> 16) & 0xFFFFFFFFFFL) | (methodId << 40);
+            twriter.writeRawLong(prolog, false);
+
+
+            // Trace Marker (if this is trace beginning)
+            if (tr.hasFlag(TraceRecord.TRACE_BEGIN)) {
+                TraceMarker tm = tr.getMarker();
+                int tid = ref(tm.getTraceId(), STRING_TYPE);
+                twriter.writeTag(TAG_TRACE_BEGIN);
+                twriter.writeUInt(CBOR.ARR_BASE, 2);
+                twriter.writeLong(tm.getClock());
+                twriter.writeInt(tid);
+                if (tm.hasFlag(TraceMarker.ERROR_MARK)) {
+                    twriter.writeTag(TAG_TRACE_FLAGS);
+                    twriter.writeInt(TF_ERROR_MARK);
                 }
             }
-        }
 
-        long dt = 0;
+            Map<Integer,Object> attrs = tr.getAttrs();
+
+            // Attributes (if any)
+            if (attrs != null) {
+                twriter.writeTag(TAG_TRACE_ATTR);
+                twriter.writeUInt(CBOR.MAP_BASE, attrs.size());
+                for (Map.Entry<Integer,Object> e : attrs.entrySet()) {
+                    twriter.writeTag(TAG_STRING_REF); // TODO get rid of this tag
+                    twriter.writeInt(ref(e.getKey(), STRING_TYPE));
+                    Object v = e.getValue();
+                    if (v == null) {
+                        twriter.writeNull();
+                    } else if (v.getClass() == String.class) {
+                        twriter.writeString((String)v);
+                    } else if (v.getClass() == Integer.class || v.getClass() == Long.class
+                        || v.getClass() == Short.class || v.getClass() == Byte.class) {
+                        twriter.writeLong(((Number)v).longValue());
+                    } else {
+                        twriter.writeString(v.toString());
+                    }
+                }
+            }
 
-        List<TraceRecord> ctrs = tr.getChildren();
+            long dt = 0;
 
-        // Child trace records (if any)
-        if (ctrs != null) {
-            for (TraceRecord ctr : ctrs) {
-                processTraceRecord(t + dt, ctr);
-                dt += ctr.getTime();
+            List<TraceRecord> ctrs = tr.getChildren();
+
+            // Child trace records (if any)
+            if (ctrs != null) {
+                for (TraceRecord ctr : ctrs) {
+                    processTraceRecord(t + dt, ctr);
+                    dt += ctr.getTime();
+                }
             }
-        }
 
-        if (tr.getException() != null) {
-            SymbolicException se = (SymbolicException)(tr.getException());
-            twriter.writeTag(TAG_EXCEPTION);
-            twriter.writeUInt(CBOR.ARR_BASE, 5);
-            twriter.writeInt(++nExceptions);    // just allocating sequential exception IDs for now
-            twriter.writeTag(TAG_STRING_REF);
-            twriter.writeInt(ref(se.getClassId(), CLASS_TYPE));
-            twriter.writeString(se.getMessage());
-            twriter.writeInt(0); // TODO generate proper CauseID
-            twriter.writeUInt(CBOR.ARR_BASE, se.getStackTrace().length);
-            for (SymbolicStackElement el : se.getStackTrace()) {
-                twriter.writeUInt(CBOR.ARR_BASE, 4);
-                twriter.writeInt(ref(el.getClassId(), CLASS_TYPE));
-                twriter.writeInt(ref(el.getMethodId(), METHOD_TYPE));
-                twriter.writeInt(ref(el.getFileId(), STRING_TYPE));
-                twriter.writeInt(el.getLineNum() >= 0 ? el.getLineNum() : 0);
+            if (tr.getException() != null) {
+                SymbolicException se = (SymbolicException)(tr.getException());
+                twriter.writeTag(TAG_EXCEPTION);
+                twriter.writeUInt(CBOR.ARR_BASE, 5);
+                twriter.writeInt(++nExceptions);    // just allocating sequential exception IDs for now
+                twriter.writeTag(TAG_STRING_REF);
+                twriter.writeInt(ref(se.getClassId(), CLASS_TYPE));
+                twriter.writeString(se.getMessage());
+                twriter.writeInt(0); // TODO generate proper CauseID
+                twriter.writeUInt(CBOR.ARR_BASE, se.getStackTrace().length);
+                for (SymbolicStackElement el : se.getStackTrace()) {
+                    twriter.writeUInt(CBOR.ARR_BASE, 4);
+                    twriter.writeInt(ref(el.getClassId(), CLASS_TYPE));
+                    twriter.writeInt(ref(el.getMethodId(), METHOD_TYPE));
+                    twriter.writeInt(ref(el.getFileId(), STRING_TYPE));
+                    twriter.writeInt(el.getLineNum() >= 0 ? el.getLineNum() : 0);
+                }
             }
-        }
 
-        // Epilog
-        t += tr.getTime();
-        long calls = tr.getCalls() < 0x1000000 ? tr.getCalls() : 0;
-        twriter.writeTag(TAG_EPILOG_BE);
-        twriter.writeULong(CBOR.BYTES_BASE, calls != 0 ? 8 : 16);
-        twriter.writeRawLong(((t >>> 16) & 0xFFFFFFFFFFL) | (calls << 40), false);
-        if (calls == 0) {
-            twriter.writeRawLong(tr.getCalls(), false);
-        }
+            // Epilog
+            t += tr.getTime();
+            long calls = tr.getCalls() < 0x1000000 ? tr.getCalls() : 0;
+            twriter.writeTag(TAG_EPILOG_BE);
+            twriter.writeULong(CBOR.BYTES_BASE, calls != 0 ? 8 : 16);
+            twriter.writeRawLong(((t >>> 16) & 0xFFFFFFFFFFL) | (calls << 40), false);
+            if (calls == 0) {
+                twriter.writeRawLong(tr.getCalls(), false);
+            }
 
-        // Array Finish
-        twriter.write(CBOR.BREAK_CODE);
+            // Array Finish
+            twriter.write(CBOR.BREAK_CODE);
 
-    } // processTraceRecord()
+        } // processTraceRecord()
 
 
-    protected void resetState() {
-        symbolsSent.reset();
-        mids.clear();
-        lastMid = 0;
-        sessionUUID = null;
-    }
+        @Override
+        public void encode(SymbolicRecord sr, List<HttpMessage> reqs) {
+            awriter.reset();
+            twriter.reset();
+            nExceptions = 0;
 
+            if (sr instanceof TraceRecord) {
+                TraceRecord tr = (TraceRecord) sr;
+                processTraceRecord(0, tr);
+            }
 
-    @Override
-    protected void process(List<SymbolicRecord> obj) {
-        for (SymbolicRecord sr : obj) {
-            long rt = retryTime;
-            for (int i = 0; i < retries; i++) {
-                try {
-                    awriter.reset();
-                    twriter.reset();
-                    nExceptions = 0;
-
-                    if (sessionUUID == null) newSession();
-
-                    if (sr instanceof TraceRecord) {
-                        TraceRecord tr = (TraceRecord) sr;
-                        processTraceRecord(0, tr);
-                    }
+            if (awriter.position() > 0) {
+                byte[] data = ZorkaUtil.clipArray(awriter.getBuf(), awriter.position());
+                reqs.add(request(ByteBuffer.wrap(data), submitAgentUrl, null));
+            }
 
-                    if (awriter.position() > 0) {
-                        byte[] data = ZorkaUtil.clipArray(awriter.getBuf(), awriter.position()); // TODO get rid of this allocation
-                        send(data, data.length, submitAgentUrl, null);
-                    }
+            if (twriter.position() > 0) {
+                byte[] data = ZorkaUtil.clipArray(twriter.getBuf(), twriter.position());
+                reqs.add(request(ByteBuffer.wrap(data), submitTraceUrl, UUID.randomUUID().toString()));
+            }
+        }
 
-                    if (twriter.position() > 0) {
-                        byte[] data = ZorkaUtil.clipArray(twriter.getBuf(), twriter.position()); // TODO get rid of this allocation
-                        send(data, data.length, submitTraceUrl, UUID.randomUUID().toString());
-                    }
+        @Override
+        public boolean encodeBatch(List<SymbolicRecord> recs, List<HttpMessage> reqs) {
+            return false;
+        }
 
-                    break;
+        @Override
+        public void reset() {
+            symbolsSent.reset();
+            methodsSent.reset();
+        }
 
-                } catch (CborResendException e) {
-                    log.info("Session expired. Reauthenticating ...");
-                    newSession();
-                } catch (Exception e) {
-                    log.error("Error sending trace record: " + e + ". Resetting connection.", e);
-                    newSession();
-                }
+    }
 
-                try {
-                    log.debug("Will retry (wait=" + rt + ")");
-                    Thread.sleep(rt);
-                } catch (InterruptedException e) {
-                    log.warn("Huh? Sleep interrupted?");
-                }
 
-                rt *= retryTimeExp;
-            } // for
+    protected void resetState() {
+        synchronized (mids) {
+            mids.clear();
+            lastMid = 0;
         }
+        sessionUUID = null;
     }
+
 }
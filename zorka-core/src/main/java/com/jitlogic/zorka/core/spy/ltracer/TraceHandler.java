@@ -21,6 +21,9 @@ import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 public abstract class TraceHandler {
 
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
@@ -46,6 +49,11 @@ public abstract class TraceHandler {
     /** Minimum number of calls required to initiate tuning stats exchange */
     private static long tuningExchangeMinCalls = TUNING_EXCHANGE_CALLS_DEFV;
 
+    /** Average interval (in tracer calls) between tracer overhead samples, 0 disables sampling (adaptive tuning). */
+    protected static int tuningSampleInterval = 0;
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
     /** Default: ~0.25ms */
     public final static long DEFAULT_MIN_METHOD_TIME = 262144;
 
@@ -68,6 +76,15 @@ public abstract class TraceHandler {
 
     protected long tunLastExchange = 0;
 
+    /** Countdown to next overhead sample. */
+    protected int tunSampleCnt;
+
+    /** Pseudo random state used to spread overhead samples. */
+    private int tunSampleRnd = (int)System.nanoTime() | 1;
+
+    /** Thread CPU time at last exchange (if overhead is sampled). */
+    protected long tunLastCpu = -1;
+
     public static final int LONG_PENALTY = -1024;
     public static final int ERROR_PENALTY = -256;
 
@@ -124,11 +141,46 @@ public abstract class TraceHandler {
             tunCalls = 0;
         }
 
+        if (tuningSampleInterval > 0 && threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            long cpu = threadMXBean.getCurrentThreadCpuTime();
+            if (tunStats != null && tunLastCpu >= 0) {
+                tunStats.setCpuTime(cpu - tunLastCpu);
+            }
+            tunLastCpu = cpu;
+        }
+
         tunStats = tuner.exchange(tunStats);
         tunLastExchange = tstamp;
     }
 
 
+    /**
+     * Returns true if overhead of current tracer call should be sampled (see tuningSample()).
+     */
+    public final boolean isTuningSample() {
+        return tuningSampleInterval > 0 && --tunSampleCnt < 0;
+    }
+
+
+    /**
+     * Records sampled overhead of tracer call. Next sample is taken after random number of calls
+     * (averaging to tuning sample interval), so samples are not biased by regular call patterns.
+     *
+     * @param mid method ID (entered or returning method, see getCurrentMethodId())
+     * @param cost overhead (in nanoseconds)
+     */
+    public void tuningSample(int mid, long cost) {
+        int r = tunSampleRnd;
+        r ^= r << 13; r ^= r >>> 17; r ^= r << 5;
+        tunSampleRnd = r;
+        tunSampleCnt = tuningSampleInterval / 2 + (r & 0x7fffffff) % (tuningSampleInterval + 1);
+
+        if (tunStats != null && tuningEnabled && mid != 0) {
+            tunStats.addSample(mid, cost);
+        }
+    }
+
+
     /**
      * Sets minimum trace execution time for currently recorded trace.
      * If there is no trace being recorded just yet, this method will
@@ -146,6 +198,12 @@ public abstract class TraceHandler {
 
     public abstract void traceReturn(long tstamp);
 
+    /**
+     * Returns ID of method currently on top of call stack (ie. method traceReturn() would return from)
+     * or 0 if call stack is empty.
+     */
+    public abstract int getCurrentMethodId();
+
     public abstract void traceEnter(int mid, long tstamp);
 
     public abstract void traceError(Object e, long tstamp);
@@ -166,6 +224,14 @@ public abstract class TraceHandler {
         TraceHandler.tuningEnabled = tuningEnabled;
     }
 
+    public static int getTuningSampleInterval() {
+        return tuningSampleInterval;
+    }
+
+    public static void setTuningSampleInterval(int tuningSampleInterval) {
+        TraceHandler.tuningSampleInterval = tuningSampleInterval;
+    }
+
     public static long getTuningLongThreshold() {
         return tuningLongThreshold;
     }
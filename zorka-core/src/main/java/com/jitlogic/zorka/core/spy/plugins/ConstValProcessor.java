@@ -16,6 +16,7 @@
 package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 
 import java.util.Map;
 
@@ -29,7 +30,7 @@ public class ConstValProcessor implements SpyProcessor {
     /**
      * Destination field
      */
-    private String dst;
+    private SpyRecordField dst;
 
     /**
      * Value be put into destination field
@@ -43,14 +44,14 @@ public class ConstValProcessor implements SpyProcessor {
      * @param val value to put into destination field
      */
     public ConstValProcessor(String dst, Object val) {
-        this.dst = dst;
+        this.dst = new SpyRecordField(dst);
         this.val = val;
     }
 
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        record.put(dst, val);
+        dst.put(record, val);
         return record;
     }
 }
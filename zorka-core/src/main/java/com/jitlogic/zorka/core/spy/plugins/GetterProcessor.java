@@ -18,6 +18,7 @@ package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,12 +40,12 @@ public class GetterProcessor implements SpyProcessor {
     /**
      * Source field
      */
-    private String srcField;
+    private SpyRecordField srcField;
 
     /**
      * Destination field
      */
-    private String dstField;
+    private SpyRecordField dstField;
 
     /**
      * Attribute chain
@@ -59,21 +60,21 @@ public class GetterProcessor implements SpyProcessor {
      * @param attrChain attribute chain
      */
     public GetterProcessor(String srcField, String dstField, Object... attrChain) {
-        this.srcField = srcField;
-        this.dstField = dstField;
+        this.srcField = new SpyRecordField(srcField);
+        this.dstField = new SpyRecordField(dstField);
         this.attrChain = attrChain;
     }
 
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        Object val = ObjectInspector.get(record.get(srcField), attrChain);
+        Object val = ObjectInspector.get(srcField.get(record), attrChain);
 
         if (log.isDebugEnabled()) {
             log.debug("Final result: '" + val + "' stored to slot " + dstField);
         }
 
-        record.put(dstField, val);
+        dstField.put(record, val);
 
         return record;
     }
@@ -72,6 +72,11 @@ public class LogicalFilterProcessor implements SpyProcessor {
     }
 
 
+    public List<SpyProcessor> getProcessors() {
+        return processors;
+    }
+
+
     public LogicalFilterProcessor with(SpyProcessor...processors) {
         return new LogicalFilterProcessor(this, this.mode, processors);
     }
@@ -16,6 +16,10 @@ public class SilentBreakerSpyProcessor implements SpyProcessor {
         this.processors = processors;
     }
 
+    public SpyProcessor[] getProcessors() {
+        return processors;
+    }
+
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
         try {
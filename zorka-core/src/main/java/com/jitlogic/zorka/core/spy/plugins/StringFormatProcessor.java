@@ -16,8 +16,9 @@
  */
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.Template;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 
 import java.util.Map;
 
@@ -31,12 +32,12 @@ public class StringFormatProcessor implements SpyProcessor {
     /**
      * Destination field
      */
-    private String dstField;
+    private SpyRecordField dstField;
 
     /**
      * Format expression
      */
-    private String expr;
+    private Template expr;
 
     /**
      * Maximum length
@@ -50,20 +51,20 @@ public class StringFormatProcessor implements SpyProcessor {
      * @param expr     expression
      */
     public StringFormatProcessor(String dstField, String expr, int len) {
-        this.dstField = dstField;
-        this.expr = expr;
+        this.dstField = new SpyRecordField(dstField);
+        this.expr = new Template(expr);
         this.len = len;
     }
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        String s = ObjectInspector.substitute(expr, record);
+        String s = expr.format(record);
 
         if (len > 0 && s.length() > len) {
             s = s.substring(0, len);
         }
 
-        record.put(dstField, s);
+        dstField.put(record, s);
 
         return record;
     }
@@ -17,6 +17,7 @@
 package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 
 import java.util.Map;
 
@@ -30,17 +31,17 @@ public class TimeDiffProcessor implements SpyProcessor {
     /**
      * Field containing start timestamp
      */
-    private String tstart;
+    private SpyRecordField tstart;
 
     /**
      * Field containing stop timestamp
      */
-    private String tstop;
+    private SpyRecordField tstop;
 
     /**
      * Field containing result timestamp
      */
-    private String rslt;
+    private SpyRecordField rslt;
 
     /**
      * Creates time difference calculating processor
@@ -50,20 +51,16 @@ public class TimeDiffProcessor implements SpyProcessor {
      * @param rslt   result field
      */
     public TimeDiffProcessor(String tstart, String tstop, String rslt) {
-        this.tstart = tstart;
-        this.tstop = tstop;
-        this.rslt = rslt;
+        this.tstart = new SpyRecordField(tstart);
+        this.tstop = new SpyRecordField(tstop);
+        this.rslt = new SpyRecordField(rslt);
     }
 
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        Object v1 = record.get(tstart),
-                v2 = record.get(tstop);
-
-        if (v1 instanceof Long && v2 instanceof Long) {
-            long l1 = (Long) v1, l2 = (Long) v2;
-            record.put(rslt, l2 - l1);
+        if (tstart.isLong(record) && tstop.isLong(record)) {
+            rslt.putLong(record, tstop.getLong(record) - tstart.getLong(record));
         } // TODO else (log something here ?)
 
         return record;
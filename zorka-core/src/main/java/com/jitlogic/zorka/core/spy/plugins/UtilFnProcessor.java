@@ -18,6 +18,7 @@ package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +32,7 @@ public class UtilFnProcessor implements SpyProcessor {
     public static final int UF_STRCLOCK = 2;
 
     private int function;
-    private String srcField, dstField;
+    private SpyRecordField srcField, dstField;
 
     public static UtilFnProcessor strClockFn(String dst, String src) {
         return new UtilFnProcessor(UF_STRCLOCK, src, dst);
@@ -43,26 +44,26 @@ public class UtilFnProcessor implements SpyProcessor {
 
     private UtilFnProcessor(int function, String src, String dst) {
         this.function = function;
-        this.srcField = src;
-        this.dstField = dst;
+        this.srcField = new SpyRecordField(src);
+        this.dstField = new SpyRecordField(dst);
     }
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
         switch (function) {
             case UF_STRTIME: {
-                Object t = record.get(srcField);
+                Object t = srcField.get(record);
                 if (t instanceof Long) {
-                    record.put(dstField, ZorkaUtil.strTime((Long) t));
+                    dstField.put(record, ZorkaUtil.strTime((Long) t));
                 } else {
                     log.error("Cannot process value " + t + ": must be of type Long.");
                 }
                 break;
             }
             case UF_STRCLOCK: {
-                Object t = record.get(srcField);
+                Object t = srcField.get(record);
                 if (t instanceof Long) {
-                    record.put(dstField, ZorkaUtil.strClock((Long) t));
+                    dstField.put(record, ZorkaUtil.strClock((Long) t));
                 } else {
                     log.error("Cannot process value " + t + ": must be of type Long.");
                 }
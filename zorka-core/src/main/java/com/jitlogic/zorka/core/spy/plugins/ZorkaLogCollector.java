@@ -16,7 +16,7 @@
 
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.Template;
 import org.slf4j.impl.ZorkaLogLevel;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
 import org.slf4j.impl.ZorkaLoggerFactory;
@@ -26,14 +26,15 @@ import java.util.Map;
 public class ZorkaLogCollector implements SpyProcessor {
 
     private ZorkaLogLevel logLevel;
-    private String tag, message;
+    private String tag;
+    private Template message;
     private String fCond, fErr;
 
 
     public ZorkaLogCollector(ZorkaLogLevel logLevel, String tag, String message, String fCond, String fErr) {
         this.logLevel = logLevel;
         this.tag = tag;
-        this.message = message;
+        this.message = message != null ? new Template(message) : null;
         this.fCond = fCond;
         this.fErr = fErr;
     }
@@ -54,7 +55,7 @@ public class ZorkaLogCollector implements SpyProcessor {
             e = (Throwable) record.get(fErr);
         }
 
-        ZorkaLoggerFactory.getInstance().getTrapper().trap(logLevel, tag, ObjectInspector.substitute(message, record), e);
+        ZorkaLoggerFactory.getInstance().getTrapper().trap(logLevel, tag, message.format(record), e);
 
         return record;
     }
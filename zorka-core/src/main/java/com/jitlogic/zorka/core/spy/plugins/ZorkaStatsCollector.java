@@ -21,8 +21,10 @@ import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.Template;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecordField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,15 +92,20 @@ public class ZorkaStatsCollector implements SpyProcessor {
      */
     private String statTemplate;
 
+    /**
+     * Precompiled mbean name, attribute name and statistic name templates
+     */
+    private Template mbeanTmpl, attrTmpl, statTmpl;
+
     /**
      * Execution time field
      */
-    private String timeField;
+    private SpyRecordField timeField;
 
     /**
      * Throughput field
      */
-    private String throughputField;
+    private SpyRecordField throughputField;
 
     /**
      * Object Name substitution flags
@@ -163,8 +170,12 @@ public class ZorkaStatsCollector implements SpyProcessor {
         this.attrTemplate = attrTemplate.intern();
         this.statTemplate = statTemplate.intern();
 
-        this.timeField = timeField;
-        this.throughputField = throughputField;
+        this.mbeanTmpl = new Template(this.mbeanTemplate);
+        this.attrTmpl = new Template(this.attrTemplate);
+        this.statTmpl = new Template(this.statTemplate);
+
+        this.timeField = new SpyRecordField(timeField);
+        this.throughputField = throughputField != null ? new SpyRecordField(throughputField) : null;
         this.actions = actions;
 
         this.mbeanFlags = templateFlags(mbeanTemplate);
@@ -222,8 +233,8 @@ public class ZorkaStatsCollector implements SpyProcessor {
                 statistics = statsCacheEnabled ? statsCache.get(ctx) : null;
 
                 if (statistics == null) {
-                    String mbeanName = subst(mbeanTemplate, record, ctx, mbeanFlags);
-                    String attrName = subst(attrTemplate, record, ctx, attrFlags);
+                    String mbeanName = subst(mbeanTmpl, record, ctx, mbeanFlags);
+                    String attrName = subst(attrTmpl, record, ctx, attrFlags);
                     statistics = registry.getOrRegister(mbsName, mbeanName, attrName,
                             new MethodCallStatistics(), "Call stats");
                     if (statsCacheEnabled) {
@@ -232,7 +243,7 @@ public class ZorkaStatsCollector implements SpyProcessor {
                 }
             }
 
-            String key = statFlags != 0 ? subst(statTemplate, record, ctx, statFlags) : statTemplate;
+            String key = statFlags != 0 ? subst(statTmpl, record, ctx, statFlags) : statTemplate;
 
             statistic = statistics.getMethodCallStatistic(key);
         }
@@ -335,16 +346,16 @@ public class ZorkaStatsCollector implements SpyProcessor {
     /**
      * Performs string substitution. Chooses the fastest possible way to do so.
      *
-     * @param input  template string
+     * @param tmpl   template
      * @param record spy record (with attributes used to do substitution)
      * @param ctx    spy context
      * @param flags  template flags.
      * @return
      */
-    private String subst(String input, Map<String, Object> record, SpyContext ctx, int flags) {
+    private String subst(Template tmpl, Map<String, Object> record, SpyContext ctx, int flags) {
 
         if (flags == 0) {
-            return input;
+            return tmpl.toString();
         }
 
         if (0 != (flags & HAS_SINGLE_MACRO)) {
@@ -361,9 +372,9 @@ public class ZorkaStatsCollector implements SpyProcessor {
                     // TODO internal error - should be logged somewhere ...
                     break;
             }
-            return input;
+            return tmpl.toString();
         } else {
-            return ObjectInspector.substitute(input, record);
+            return tmpl.format(record);
         }
     }
 
@@ -375,11 +386,10 @@ public class ZorkaStatsCollector implements SpyProcessor {
      * @param statistic statistic used to
      */
     private void submit(Map<String, Object> record, MethodCallStatistic statistic) {
-        Object executionTime = record.get(timeField);
         Number throughput = null;
 
         if (throughputField != null) {
-            Object v = record.get(throughputField);
+            Object v = throughputField.get(record);
             if (v instanceof Number) {
                 throughput = (Number) v;
             } else {
@@ -389,24 +399,25 @@ public class ZorkaStatsCollector implements SpyProcessor {
             }
         }
 
-        if (executionTime instanceof Long) {
+        if (timeField.isLong(record)) {
+            long executionTime = timeField.getLong(record);
             if (0 != ((Integer) record.get(".STAGES") & (1 << ON_RETURN))) {
                 if (log.isDebugEnabled()) {
                     log.debug("Updating stats using logCall()");
                 }
                 if (throughput != null) {
-                    statistic.logCall((Long) executionTime, throughput.longValue());
+                    statistic.logCall(executionTime, throughput.longValue());
                 } else {
-                    statistic.logCall((Long) executionTime);
+                    statistic.logCall(executionTime);
                 }
             } else if (0 != ((Integer) record.get(".STAGES") & (1 << ON_ERROR))) {
                 if (log.isDebugEnabled()) {
                     log.debug("Updating stats using logError()");
                 }
                 if (throughput != null) {
-                    statistic.logError((Long) executionTime, throughput.longValue());
+                    statistic.logError(executionTime, throughput.longValue());
                 } else {
-                    statistic.logError((Long) executionTime);
+                    statistic.logError(executionTime);
                 }
             } else {
                 if (log.isDebugEnabled()) {
@@ -415,7 +426,7 @@ public class ZorkaStatsCollector implements SpyProcessor {
             }
         } else {
             if (log.isDebugEnabled()) {
-                log.debug("Unknown type of timeField: " + executionTime);
+                log.debug("Unknown type of timeField: " + timeField.get(record));
             }
         }
     }
@@ -13,8 +13,8 @@ public class ChunkedCborInput extends CborInput {
     /** Current chunk index */
     private int ccidx = 0;
 
-    /** Current chunk byte buffer */
-    private byte[] buf;
+    /** Current chunk */
+    private STraceBufChunk buf;
 
     /** Position in current chunk byte buffer */
     private int pos;
@@ -51,7 +51,7 @@ public class ChunkedCborInput extends CborInput {
     private void nextChunk() {
         if (ccidx < chunks.size()) {
             STraceBufChunk c = chunks.get(ccidx++);
-            buf = c.getBuffer();
+            buf = c;
             pos = c.getStartOffset();
             lim = c.getPosition();
         } else {
@@ -64,21 +64,21 @@ public class ChunkedCborInput extends CborInput {
     public byte readB() {
         size--;
         if (pos >= lim) nextChunk();
-        return pos < lim ? buf[pos++] : -1;
+        return pos < lim ? buf.get(pos++) : -1;
     }
 
     @Override
     public int readI() {
         size--;
         if (pos >= lim) nextChunk();
-        return pos < lim ? buf[pos++] & 0xff : -1;
+        return pos < lim ? buf.get(pos++) & 0xff : -1;
     }
 
     @Override
     public long readL() {
         size--;
         if (pos >= lim) nextChunk();
-        return pos < lim ? buf[pos++] & 0xffL : -1;
+        return pos < lim ? buf.get(pos++) & 0xffL : -1;
     }
 
     @Override
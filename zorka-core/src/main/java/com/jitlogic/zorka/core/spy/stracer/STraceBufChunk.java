@@ -18,16 +18,34 @@ package com.jitlogic.zorka.core.spy.stracer;
 
 import com.jitlogic.zorka.common.tracedata.MetadataChecker;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.jitlogic.zorka.core.util.ZorkaUnsafe.*;
 
 /**
- * Stores chunk of trace data as it is recorded by tracer.
+ * Stores chunk of trace data as it is recorded by tracer. Chunk data is kept either
+ * in heap byte array or in (off-heap) direct byte buffer. Tracer accesses both kinds
+ * of chunks uniformly via (base, address) pair using Unsafe.
  */
 public class STraceBufChunk implements SymbolicRecord {
 
-    /** Trace data buffer. */
-    private byte[] buffer;
+    /** Trace data buffer (heap chunks only). */
+    private final byte[] buffer;
+
+    /** Trace data buffer (off-heap chunks only). */
+    private final ByteBuffer directBuffer;
+
+    /** Base object for Unsafe access: buffer array for heap chunks, null for off-heap chunks. */
+    private final Object base;
+
+    /** Address of chunk data (relative to base object) for Unsafe access. */
+    private final long address;
+
+    /** Chunk capacity (in bytes). */
+    private final int capacity;
 
     /** Internal offset: number of bytes to skip at the beginning of current buffer. */
     private int startOffset;
@@ -47,15 +65,98 @@ public class STraceBufChunk implements SymbolicRecord {
     /** Previous chunk (used if chunks are grouped together). */
     private STraceBufChunk next;
 
+    /** Marks method references in refs[] (symbol references carry symbol type in low bits). */
+    public static final int REF_METHOD = 0x0f;
+
+    public static final int REF_BITS = 4;
+    public static final int REF_MASK = 0x0f;
+
+    /**
+     * Symbols and methods referenced by trace data in this chunk, recorded by tracer as data
+     * is written. Each entry is (id << REF_BITS) | type, where type is either symbol type
+     * (as in TextIndexTypeMarkers) or REF_METHOD. Entries can repeat.
+     */
+    private int[] refs = new int[64];
+
+    /** Number of used entries in refs[]. */
+    private int nrefs;
+
     public STraceBufChunk(int position) {
         this.position = position;
         this.buffer = new byte[position];
-    }
-
+        this.directBuffer = null;
+        this.base = buffer;
+        this.address = BYTE_ARRAY_OFFS;
+        this.capacity = position;
+    }
+
+    /**
+     * Creates off-heap chunk backed by direct byte buffer (typically a slice of bigger arena).
+     */
+    public STraceBufChunk(ByteBuffer directBuffer) {
+        this.buffer = null;
+        this.directBuffer = directBuffer;
+        this.base = null;
+        this.address = directAddress(directBuffer);
+        this.capacity = directBuffer.capacity();
+        this.position = capacity;
+    }
+
+    /**
+     * Returns chunk data array or null if this is off-heap chunk. Use copyTo() or
+     * toByteBuffer() in code that has to handle both kinds of chunks.
+     */
     public byte[] getBuffer() {
         return buffer;
     }
 
+    public Object getBase() {
+        return base;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isOffHeap() {
+        return directBuffer != null;
+    }
+
+    public byte get(int pos) {
+        return UNSAFE.getByte(base, address + pos);
+    }
+
+    /**
+     * Copies chunk data [0, position) into target array.
+     */
+    public void copyTo(byte[] dst, int dstOffs) {
+        if (buffer != null) {
+            System.arraycopy(buffer, 0, dst, dstOffs, position);
+        } else {
+            ByteBuffer bb = directBuffer.duplicate();
+            bb.clear();
+            bb.get(dst, dstOffs, position);
+        }
+    }
+
+    /**
+     * Returns chunk data [0, position) as byte buffer view. No data is copied.
+     */
+    public ByteBuffer toByteBuffer() {
+        if (buffer != null) {
+            return ByteBuffer.wrap(buffer, 0, position);
+        } else {
+            ByteBuffer bb = directBuffer.duplicate();
+            bb.clear();
+            bb.limit(position);
+            return bb;
+        }
+    }
+
     public int getStartOffset() {
         return startOffset;
     }
@@ -92,9 +193,29 @@ public class STraceBufChunk implements SymbolicRecord {
         this.next = next;
     }
 
+    public void addRef(int ref) {
+        if (nrefs == refs.length) {
+            refs = ZorkaUtil.clipArray(refs, refs.length * 2);
+        }
+        refs[nrefs++] = ref;
+    }
+
+    public int[] getRefs() {
+        return refs;
+    }
+
+    public int getNRefs() {
+        return nrefs;
+    }
+
+    public void clearRefs() {
+        nrefs = 0;
+    }
+
     public void reset() {
         extOffset = 0;
         position = 0;
+        nrefs = 0;
         uuidL = 0L;
         uuidH = 0L;
         next = null;
@@ -16,63 +16,185 @@
 
 package com.jitlogic.zorka.core.spy.stracer;
 
+import com.jitlogic.zorka.common.stats.StripedCounter;
+import com.jitlogic.zorka.common.util.ConcurrentRing;
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of trace buffer chunks. Free chunks are kept in small per-thread caches
+ * backed by a global lock-free ring, so traced threads never block each other
+ * when obtaining or returning chunks.
+ *
+ * In off-heap mode all pooled chunks are carved out of a single direct memory arena
+ * reserved at startup, so heap footprint of tracer does not depend on number of traced
+ * threads. Local caches are disabled in this mode (chunks stashed by threads that die
+ * would be lost for the arena). If arena is exhausted, heap chunks are allocated
+ * and then discarded when returned.
+ */
 public class STraceBufManager {
 
-    private STraceBufChunk chunks[];
-    private int nChunks = 0;
+    public static final int DEFAULT_LOCAL_CHUNKS = 2;
+
+    /** Per-thread stash of free chunks. */
+    private static class LocalCache {
+        private final STraceBufChunk[] chunks;
+        private int nChunks;
+
+        private LocalCache(int size) {
+            chunks = new STraceBufChunk[size];
+        }
+    }
+
+    /** Global free list. */
+    private final ConcurrentRing<STraceBufChunk> chunks;
+
+    private final ThreadLocal<LocalCache> localCache;
 
-    private int chunkSize;
+    private final int chunkSize;
 
-    private int maxChunks;
+    private final int maxChunks;
 
-    private int nGets, nPuts, nAllocs, nDrops;
+    private final int localChunks;
+
+    private final boolean offHeap;
+
+    /** Off-heap arena (if off-heap mode is enabled). */
+    private final ByteBuffer arena;
+
+    private final StripedCounter nGets = new StripedCounter();
+    private final StripedCounter nPuts = new StripedCounter();
+    private final StripedCounter nAllocs = new StripedCounter();
+    private final StripedCounter nDrops = new StripedCounter();
 
     public STraceBufManager(int chunkSize, int maxChunks) {
+        this(chunkSize, maxChunks, DEFAULT_LOCAL_CHUNKS);
+    }
+
+    /**
+     * @param chunkSize size of single chunk (in bytes)
+     * @param maxChunks maximum number of free chunks kept in global pool
+     * @param localChunks maximum number of free chunks kept in each thread's local cache (0 disables local caches)
+     */
+    public STraceBufManager(int chunkSize, int maxChunks, int localChunks) {
+        this(chunkSize, maxChunks, localChunks, false);
+    }
+
+    /**
+     * @param chunkSize size of single chunk (in bytes)
+     * @param maxChunks maximum number of free chunks kept in global pool (or arena size in off-heap mode)
+     * @param localChunks maximum number of free chunks kept in each thread's local cache (0 disables local caches)
+     * @param offHeap if true, chunks will be allocated from direct memory arena of maxChunks * chunkSize bytes
+     */
+    public STraceBufManager(int chunkSize, int maxChunks, int localChunks, boolean offHeap) {
         this.chunkSize = chunkSize;
         this.maxChunks = maxChunks;
-        this.chunks = new STraceBufChunk[maxChunks];
+        this.offHeap = offHeap;
+        this.localChunks = offHeap ? 0 : localChunks;
+        this.chunks = new ConcurrentRing<STraceBufChunk>(maxChunks);
+
+        if (offHeap) {
+            long arenaSize = (long) chunkSize * maxChunks;
+            if (arenaSize > Integer.MAX_VALUE) {
+                throw new ZorkaRuntimeException("Off-heap chunk arena too big: " + chunkSize + " * " + maxChunks
+                    + " bytes exceeds " + Integer.MAX_VALUE + " bytes. Reduce chunk size or number of chunks.");
+            }
+            arena = ByteBuffer.allocateDirect((int) arenaSize);
+            for (int i = 0; i < maxChunks; i++) {
+                arena.limit((i+1) * chunkSize);
+                arena.position(i * chunkSize);
+                chunks.offer(new STraceBufChunk(arena.slice()));
+            }
+            arena.clear();
+        } else {
+            arena = null;
+        }
+
+        final int lcs = this.localChunks;
+        this.localCache = new ThreadLocal<LocalCache>() {
+            @Override
+            protected LocalCache initialValue() {
+                return new LocalCache(lcs);
+            }
+        };
     }
 
-    public synchronized STraceBufChunk get() {
-        nGets++;
-        if (nChunks > 0) {
-            STraceBufChunk ch = chunks[--nChunks];
+    public STraceBufChunk get() {
+        nGets.inc();
+
+        STraceBufChunk ch = null;
+
+        if (localChunks > 0) {
+            LocalCache lc = localCache.get();
+            if (lc.nChunks > 0) {
+                ch = lc.chunks[--lc.nChunks];
+                lc.chunks[lc.nChunks] = null;
+            }
+        }
+
+        if (ch == null) {
+            ch = chunks.poll();
+        }
+
+        if (ch != null) {
             ch.reset();
-            nAllocs++;
             return ch;
         }
 
+        nAllocs.inc();
         return new STraceBufChunk(chunkSize);
     }
 
-    public synchronized void put(STraceBufChunk chunk) {
-        nPuts++;
-        for (STraceBufChunk ch = chunk; ch != null; ch = ch.getNext()) {
-            if (nChunks < maxChunks) {
-                chunks[nChunks++] = ch;
-            } else {
-                nDrops++;
+    public void put(STraceBufChunk chunk) {
+        nPuts.inc();
+
+        LocalCache lc = localChunks > 0 ? localCache.get() : null;
+
+        STraceBufChunk ch = chunk;
+        while (ch != null) {
+            // Unlink chunk before it becomes visible to other threads
+            STraceBufChunk next = ch.getNext();
+            ch.setNext(null);
+
+            if (offHeap) {
+                // Only arena chunks are pooled, so there is always room for them in the ring
+                if (!ch.isOffHeap() || !chunks.offer(ch)) {
+                    nDrops.inc();
+                }
+            } else if (lc != null && lc.nChunks < localChunks) {
+                lc.chunks[lc.nChunks++] = ch;
+            } else if (chunks.size() >= maxChunks || !chunks.offer(ch)) {
+                nDrops.inc();
             }
+
+            ch = next;
         }
     }
 
-    public synchronized int getNChunks() {
-        return nChunks;
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** Returns number of chunks in global pool (not counting per-thread caches). */
+    public int getNChunks() {
+        return chunks.size();
     }
 
-    public synchronized int getNGets() {
-        return nGets;
+    public long getNGets() {
+        return nGets.get();
     }
 
-    public synchronized int getNputs() {
-        return nPuts;
+    public long getNputs() {
+        return nPuts.get();
     }
 
-    public synchronized int getnAllocs() {
-        return nAllocs;
+    /** Returns number of newly allocated chunks (ie. chunks that were not recycled from pool). */
+    public long getnAllocs() {
+        return nAllocs.get();
     }
 
-    public synchronized int getnDrops() {
-        return nDrops;
+    public long getnDrops() {
+        return nDrops.get();
     }
 }
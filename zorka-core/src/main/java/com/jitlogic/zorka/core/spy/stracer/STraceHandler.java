@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import static com.jitlogic.zorka.cbor.TextIndexTypeMarkers.*;
 import static com.jitlogic.zorka.cbor.TraceDataTags.*;
 import static com.jitlogic.zorka.core.util.ZorkaUnsafe.*;
 
@@ -99,8 +100,12 @@ public class STraceHandler extends TraceHandler {
 
     protected STraceBufManager bufManager;
     protected STraceBufChunk chunk = null;
-    /** Currently selected output buffer. */
-    protected byte[] buffer;
+    /**
+     * Currently selected output buffer: base object (byte array or null for off-heap chunks)
+     * and address (relative to base object). Address is zero if no buffer is selected.
+     */
+    protected Object bufBase;
+    protected long bufAddr;
     /** Buffer position and buffer length. */
     protected int bufOffs;
     protected int bufPos;
@@ -158,6 +163,19 @@ public class STraceHandler extends TraceHandler {
     /** Used to generate UUIDs of traces. */
     private Random random = new Random();
 
+    private static final int REFS_CACHE_SIZE = 256;
+
+    /**
+     * Direct mapped cache of references recently recorded in current chunk chain. Filters out
+     * most repeated references, so chunks don't accumulate the same IDs over and over again.
+     */
+    private final int[] refsCache = new int[REFS_CACHE_SIZE];
+
+    /** Cache entry is valid only if its epoch matches refsEpoch. */
+    private final int[] refsCacheEpochs = new int[REFS_CACHE_SIZE];
+
+    private int refsEpoch = 1;
+
     public STraceHandler(boolean streamingEnabled, STraceBufManager bufManager,
                          SymbolRegistry symbols, TracerTuner tracerTuner, ZorkaSubmitter<SymbolicRecord> output) {
 
@@ -183,6 +201,7 @@ public class STraceHandler extends TraceHandler {
 
         if (stackPos == 1 && 0 == (stack[0] >> TSTAMP_BITS)) {
             bufPos = 0;
+            if (bufOffs == 0) discardRefs();
         } else if (stackLen - stackPos < 3) {
             extendStack();
         }
@@ -195,8 +214,8 @@ public class STraceHandler extends TraceHandler {
         long tr0 = tst | ((long)methodId << TSTAMP_BITS);
 
         lastPos = bufPos;
-        UNSAFE.putInt(buffer, BYTE_ARRAY_OFFS+bufPos, TREC_HEADER);
-        UNSAFE.putLong(buffer, BYTE_ARRAY_OFFS+bufPos+4, tr0);
+        UNSAFE.putInt(bufBase, bufAddr+bufPos, TREC_HEADER);
+        UNSAFE.putLong(bufBase, bufAddr+bufPos+4, tr0);
 
         stack[stackPos] = tst;
         stack[stackPos+1] = 1 + ((long)(bufPos + bufOffs) << 32);
@@ -205,11 +224,18 @@ public class STraceHandler extends TraceHandler {
         bufPos += 12;
         stackPos += 3;
 
+        ref(methodId, STraceBufChunk.REF_METHOD);
+
         disabled = false;
     }
 
     private final static int MID_MASK = 0x00ffffff;
 
+    @Override
+    public int getCurrentMethodId() {
+        return stackPos > 0 ? (int)(stack[stackPos-W2_OFF] & MID_MASK) : 0;
+    }
+
     public void traceReturn(long tstamp) {
         if (disabled) return;
         if (stackPos == 0) return;
@@ -239,8 +265,8 @@ public class STraceHandler extends TraceHandler {
             int flags = (int)(w1 >>> TF_BITS);
             if (flags != 0) {
                 if (bufLen - bufPos < 2) nextChunk();
-                buffer[bufPos] = (byte)(CBOR.TAG_BASE+TAG_TRACE_FLAGS);
-                buffer[bufPos+1] = (byte)flags;
+                UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte)(CBOR.TAG_BASE+TAG_TRACE_FLAGS));
+                UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte)flags);
                 bufPos += 2;
             }
 
@@ -249,18 +275,18 @@ public class STraceHandler extends TraceHandler {
                 if (bufLen - bufPos < 12) nextChunk();
                 writeUInt(CBOR.TAG_BASE, TREC_EPILOG);
                 tst |= (calls << TSTAMP_BITS);
-                buffer[bufPos]   = (byte) (CBOR.BYTES_BASE+8);
-                UNSAFE.putLong(buffer, BYTE_ARRAY_OFFS+bufPos+1, tst);
-                buffer[bufPos+9] = (byte) CBOR.BREAK_CODE;
+                UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (CBOR.BYTES_BASE+8));
+                UNSAFE.putLong(bufBase, bufAddr+bufPos+1, tst);
+                UNSAFE.putByte(bufBase, bufAddr+bufPos+9, (byte) CBOR.BREAK_CODE);
                 bufPos += 10;
             } else {
                 if (bufLen - bufPos < 20) nextChunk();
                 writeUInt(CBOR.TAG_BASE, TREC_EPILOG);
-                buffer[bufPos]   = (byte) CBOR.BYTES_BASE+16;
-                long p = BYTE_ARRAY_OFFS+bufPos+1;
-                UNSAFE.putLong(buffer, p, tst);
-                UNSAFE.putLong(buffer, p+8, calls);
-                buffer[bufPos+17] = (byte) CBOR.BREAK_CODE;
+                UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (CBOR.BYTES_BASE+16));
+                long p = bufAddr+bufPos+1;
+                UNSAFE.putLong(bufBase, p, tst);
+                UNSAFE.putLong(bufBase, p+8, calls);
+                UNSAFE.putByte(bufBase, bufAddr+bufPos+17, (byte) CBOR.BREAK_CODE);
                 bufPos += 18;
             }
         } else {
@@ -300,6 +326,7 @@ public class STraceHandler extends TraceHandler {
         } else  {
             if (bufOffs == 0) {
                 bufPos = 0;
+                discardRefs();
             } else {
                 dropTrace();
             }
@@ -320,9 +347,9 @@ public class STraceHandler extends TraceHandler {
             writeUInt(CBOR.UINT_BASE, id);
         } else {
             // Unknown exception
-            buffer[bufPos] = (byte) (CBOR.TAG_CODE1);
-            buffer[bufPos + 1] = (byte) TAG_EXCEPTION;
-            buffer[bufPos + 2] = (byte) (CBOR.ARR_CODE0 + 5);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (CBOR.TAG_CODE1));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte) TAG_EXCEPTION);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte) (CBOR.ARR_CODE0 + 5));
             bufPos += 3;
 
             // Object identity (useful for determining
@@ -330,8 +357,10 @@ public class STraceHandler extends TraceHandler {
 
             // Class name (as string ref)
             if (bufLen - bufPos < 1) nextChunk();
-            buffer[bufPos++] = (byte) (CBOR.TAG_CODE0 + TAG_STRING_REF);
-            writeInt(symbols.symbolId(e.getClass().getName()));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte) (CBOR.TAG_CODE0 + TAG_STRING_REF));
+            int classId = symbols.symbolId(e.getClass().getName());
+            writeInt(classId);
+            ref(classId, CLASS_TYPE);
 
             // Message
             writeString(e.getMessage() != null ? e.getMessage() : "");
@@ -348,11 +377,17 @@ public class STraceHandler extends TraceHandler {
             StackTraceElement[] stk = e.getStackTrace();
             writeUInt(CBOR.ARR_BASE, stk.length);
             for (StackTraceElement el : stk) {
+                int cid = symbols.symbolId(el.getClassName());
+                int mid = symbols.symbolId(el.getMethodName());
+                int fid = symbols.symbolId(el.getFileName());
                 writeUInt(CBOR.ARR_BASE, 4);
-                writeInt(symbols.symbolId(el.getClassName()));
-                writeInt(symbols.symbolId(el.getMethodName()));
-                writeInt(symbols.symbolId(el.getFileName()));
+                writeInt(cid);
+                writeInt(mid);
+                writeInt(fid);
                 writeInt(el.getLineNumber() >= 0 ? el.getLineNumber() : 0);
+                ref(cid, CLASS_TYPE);
+                ref(mid, METHOD_TYPE);
+                ref(fid, STRING_TYPE);
             }
 
         }
@@ -388,6 +423,7 @@ public class STraceHandler extends TraceHandler {
         writeUInt(CBOR.ARR_BASE, 2);
         writeLong(clock);
         writeInt(traceId);
+        ref(traceId, STRING_TYPE);
 
         if (tracePos == 0) {
             uuidL = random.nextLong();
@@ -407,17 +443,19 @@ public class STraceHandler extends TraceHandler {
         if (traceId >= 0) {
             writeUInt(CBOR.TAG_BASE, TAG_TRACE_UP_ATTR);
             if (bufLen - bufPos < 2) nextChunk();
-            buffer[bufPos++] = (byte) (CBOR.ARR_BASE+2);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte) (CBOR.ARR_BASE+2));
             writeInt(traceId);
+            ref(traceId, STRING_TYPE);
         } else {
             writeUInt(CBOR.TAG_BASE, TAG_TRACE_ATTR);
         }
         if (bufLen - bufPos < 2) nextChunk();
-        buffer[bufPos++] = (byte) (CBOR.MAP_BASE+1);
-        buffer[bufPos++] = (byte)(CBOR.TAG_BASE + TAG_STRING_REF);
+        UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte) (CBOR.MAP_BASE+1));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte)(CBOR.TAG_BASE + TAG_STRING_REF));
         stack[stackPos-W0_OFF] |= TF_SUBMIT_METHOD; // TODO submit force behavior is controlled by API, make this thing configurable as in LTracer
 
         writeUInt(0,attrId);
+        ref(attrId, STRING_TYPE);
         writeObject(attrVal);
     }
 
@@ -495,8 +533,37 @@ public class STraceHandler extends TraceHandler {
 
 
     protected void writeStringRef(String s) {
+        int id = symbols.symbolId(s);
         writeUInt(CBOR.TAG_BASE, TAG_STRING_REF);
-        writeUInt(CBOR.UINT_BASE, symbols.symbolId(s));
+        writeUInt(CBOR.UINT_BASE, id);
+        ref(id, STRING_TYPE);
+    }
+
+
+    /**
+     * Records symbol or method reference in current chunk, so output can send
+     * proper definitions without parsing trace data. Must be called after
+     * referencing data has been written, so current chunk is set.
+     */
+    private void ref(int id, int type) {
+        int r = (id << STraceBufChunk.REF_BITS) | type;
+        int h = (r ^ (r >>> 8)) & (REFS_CACHE_SIZE - 1);
+        if (refsCache[h] != r || refsCacheEpochs[h] != refsEpoch) {
+            refsCache[h] = r;
+            refsCacheEpochs[h] = refsEpoch;
+            chunk.addRef(r);
+        }
+    }
+
+
+    /**
+     * Forgets recorded references. Called when recorded data is discarded or current chunk chain changes.
+     */
+    private void discardRefs() {
+        refsEpoch++;
+        if (chunk != null && bufOffs == 0) {
+            chunk.clearRefs();
+        }
     }
 
 
@@ -507,13 +574,14 @@ public class STraceHandler extends TraceHandler {
                 bufManager.put(chunk.getNext());
                 chunk.setNext(null);
             }
-            buffer = chunk.getBuffer();
+            selectChunk(chunk);
             bufPos = 0;
             bufOffs = 0;
-            bufLen = buffer.length;
+            discardRefs();
             nchunks = 1;
         } else {
-            buffer = null;
+            bufBase = null;
+            bufAddr = 0;
             bufPos = 0;
             bufOffs = 0;
             bufLen = 0;
@@ -528,20 +596,25 @@ public class STraceHandler extends TraceHandler {
             log.trace("Flushing: bufLen=" + bufLen + ", bufPos=" + bufPos + ", bufOffs=" + bufOffs);
         }
 
-        if (buffer != null) {
+        if (bufAddr != 0) {
             flushChunk();
         }
-        output.submit(chunk);
+        if (!output.submit(chunk) && chunk != null) {
+            // Output queue is full - recycle chunks, so they won't be lost for buffer pool
+            bufManager.put(chunk);
+        }
         chunk = null;
 
         bufOffs = 0;
+        refsEpoch++;
     }
 
 
     protected void flushChunk() {
-        if (buffer != null) {
+        if (bufAddr != 0) {
             chunk.setPosition(bufPos);
-            buffer = null;
+            bufBase = null;
+            bufAddr = 0;
             bufLen = 0;
             bufOffs += bufPos;
             bufPos = 0;
@@ -550,7 +623,7 @@ public class STraceHandler extends TraceHandler {
 
 
     protected void nextChunk() {
-        if (buffer != null) {
+        if (bufAddr != 0) {
             flushChunk();
         }
         STraceBufChunk ch = bufManager.get();
@@ -561,14 +634,20 @@ public class STraceHandler extends TraceHandler {
         ch.setUuidH(uuidH);
 
         chunk = ch;
-        buffer = ch.getBuffer();
-        bufLen = buffer.length;
+        selectChunk(ch);
+    }
+
+
+    private void selectChunk(STraceBufChunk ch) {
+        bufBase = ch.getBase();
+        bufAddr = ch.getAddress();
+        bufLen = ch.capacity();
     }
 
 
     public void write(int b) {
         if (bufLen - bufPos < 1) nextChunk();
-        buffer[bufPos++] = (byte)b;
+        UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte)b);
     }
 
     public void write(byte[] b) {
@@ -582,7 +661,14 @@ public class STraceHandler extends TraceHandler {
 
         int sz = bfree < len ? bfree : len;
 
-        System.arraycopy(b, off, buffer, bufPos, sz);
+        if (bufBase != null) {
+            System.arraycopy(b, off, (byte[])bufBase, bufPos, sz);
+        } else {
+            long addr = bufAddr + bufPos;
+            for (int i = 0; i < sz; i++) {
+                UNSAFE.putByte(addr + i, b[off + i]);
+            }
+        }
         bufPos += sz;
 
         if (sz < len) {
@@ -594,25 +680,25 @@ public class STraceHandler extends TraceHandler {
     public void writeUInt(int base, int i) {
         if (i < CBOR.UINT_CODE1) {
             if (bufLen - bufPos < 1) nextChunk();
-            buffer[bufPos++] = (byte)(base+i);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos++, (byte)(base+i));
         } else if (i < 0x100) {
             if (bufLen - bufPos < 2) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE1);
-            buffer[bufPos+1] = (byte) (i & 0xff);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (base+CBOR.UINT_CODE1));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte) (i & 0xff));
             bufPos += 2;
         } else if (i < 0x10000) {
             if (bufLen - bufPos < 3) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE2);
-            buffer[bufPos+1] = (byte) ((i >> 8) & 0xff);
-            buffer[bufPos+2] = (byte) (i & 0xff);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (base+CBOR.UINT_CODE2));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte) ((i >> 8) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte) (i & 0xff));
             bufPos += 3;
         } else {
             if (bufLen - bufPos < 5) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE4);
-            buffer[bufPos+1] = (byte) ((i >> 24) & 0xff);
-            buffer[bufPos+2] = (byte) ((i >> 16) & 0xff);
-            buffer[bufPos+3] = (byte) ((i >> 8) & 0xff);
-            buffer[bufPos+4] = (byte) (i & 0xff);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (base+CBOR.UINT_CODE4));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte) ((i >> 24) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte) ((i >> 16) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+3, (byte) ((i >> 8) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+4, (byte) (i & 0xff));
             bufPos += 5;
         }
     }
@@ -622,15 +708,15 @@ public class STraceHandler extends TraceHandler {
             writeUInt(base, (int)l);
         } else {
             if (bufLen - bufPos < 9) nextChunk();
-            buffer[bufPos] = (byte) (base+CBOR.UINT_CODE8);
-            buffer[bufPos+1] = (byte) ((l >> 56) & 0xff);
-            buffer[bufPos+2] = (byte) ((l >> 48) & 0xff);
-            buffer[bufPos+3] = (byte) ((l >> 40) & 0xff);
-            buffer[bufPos+4] = (byte) ((l >> 32) & 0xff);
-            buffer[bufPos+5] = (byte) ((l >> 24) & 0xff);
-            buffer[bufPos+6] = (byte) ((l >> 16) & 0xff);
-            buffer[bufPos+7] = (byte) ((l >> 8) & 0xff);
-            buffer[bufPos+8] = (byte)  (l & 0xff);
+            UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte) (base+CBOR.UINT_CODE8));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte) ((l >> 56) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte) ((l >> 48) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+3, (byte) ((l >> 40) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+4, (byte) ((l >> 32) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+5, (byte) ((l >> 24) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+6, (byte) ((l >> 16) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+7, (byte) ((l >> 8) & 0xff));
+            UNSAFE.putByte(bufBase, bufAddr+bufPos+8, (byte)  (l & 0xff));
             bufPos += 9;
         }
     }
@@ -676,26 +762,26 @@ public class STraceHandler extends TraceHandler {
     public void writeFloat(float f) {
         int i = Float.floatToIntBits(f);
         if (bufLen - bufPos < 5) nextChunk();
-        buffer[bufPos] = (byte)CBOR.FLOAT_BASE4;
-        buffer[bufPos+1] = (byte)((i >> 24) & 0xff);
-        buffer[bufPos+2] = (byte)((i >> 16) & 0xff);
-        buffer[bufPos+3] = (byte)((i >> 8) & 0xff);
-        buffer[bufPos+4] = (byte)(i & 0xff);
+        UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte)CBOR.FLOAT_BASE4);
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte)((i >> 24) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte)((i >> 16) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+3, (byte)((i >> 8) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+4, (byte)(i & 0xff));
         bufPos += 5;
     }
 
     public void writeDouble(double d) {
         if (bufLen - bufPos < 9) nextChunk();
         long l = Double.doubleToLongBits(d);
-        buffer[bufPos] = (byte)CBOR.FLOAT_BASE8;
-        buffer[bufPos + 1] = (byte)((l >> 56) & 0xff);
-        buffer[bufPos + 2] = (byte)((l >> 48) & 0xff);
-        buffer[bufPos + 3] = (byte)((l >> 40) & 0xff);
-        buffer[bufPos + 4] = (byte)((l >> 32) & 0xff);
-        buffer[bufPos + 5] = (byte)((l >> 24) & 0xff);
-        buffer[bufPos + 6] = (byte)((l >> 16) & 0xff);
-        buffer[bufPos + 7] = (byte)((l >> 8) & 0xff);
-        buffer[bufPos + 8] = (byte)(l & 0xff);
+        UNSAFE.putByte(bufBase, bufAddr+bufPos, (byte)CBOR.FLOAT_BASE8);
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+1, (byte)((l >> 56) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+2, (byte)((l >> 48) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+3, (byte)((l >> 40) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+4, (byte)((l >> 32) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+5, (byte)((l >> 24) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+6, (byte)((l >> 16) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+7, (byte)((l >> 8) & 0xff));
+        UNSAFE.putByte(bufBase, bufAddr+bufPos+8, (byte)(l & 0xff));
         bufPos += 9;
     }
 
@@ -1,19 +1,27 @@
 package com.jitlogic.zorka.core.spy.stracer;
 
-import com.jitlogic.zorka.cbor.*;
+import com.jitlogic.netkit.http.HttpMessage;
+import com.jitlogic.zorka.cbor.CBOR;
+import com.jitlogic.zorka.cbor.CborDataWriter;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
 import com.jitlogic.zorka.common.util.*;
 import com.jitlogic.zorka.core.spy.ZicoHttpOutput;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import static com.jitlogic.zorka.cbor.TraceDataTags.TAG_TRACE_BATCH;
+
 
 public class STraceHttpOutput extends ZicoHttpOutput {
 
-    private final SymbolsScanner scanner;
+    private static final int BATCH_BUFSZ = 256 * 1024;
+
+    /** Sent chunks are returned here (if not null). */
+    private final STraceBufManager bufManager;
 
     public static int chunksLength(STraceBufChunk chunks) {
         int len = 0;
@@ -27,15 +35,20 @@ public class STraceHttpOutput extends ZicoHttpOutput {
         byte[] buf = new byte[chunksLength(chunks)];
 
         for (STraceBufChunk c = chunks; c != null; c = c.getNext()) {
-            System.arraycopy(c.getBuffer(), 0, buf, c.getExtOffset(), c.getPosition());
+            c.copyTo(buf, c.getExtOffset());
         }
 
         return buf;
     }
 
     public STraceHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry) {
+        this(config, conf, registry, null);
+    }
+
+    public STraceHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry,
+                            STraceBufManager bufManager) {
         super(config, conf, registry);
-        scanner = new SymbolsScanner(registry);
+        this.bufManager = bufManager;
     }
 
     @Override
@@ -43,56 +56,77 @@ public class STraceHttpOutput extends ZicoHttpOutput {
         if (log.isDebugEnabled()) {
             log.debug("Resetting state ...");
         }
-        scanner.reset();
     }
 
-    private static SimpleValResolver svr = new SimpleValResolver() {
-        @Override
-        public Object resolve(int sv) {
-            return null;
-        }
-    };
-
     @Override
-    protected void process(List<SymbolicRecord> obj) {
-        for (SymbolicRecord sr : obj) {
-            long rt = retryTime;
-            for (int i = 0; i < retries+1; i++) {
-                STraceBufChunk chunk = (STraceBufChunk) sr;
-                try {
-                    synchronized (scanner) {
-                        scanner.clear();
-                        if (sessionUUID == null) newSession();
-                        CborInput input = new ChunkedCborInput(chunk);
-                        CborDataReader rdr = new CborDataReader(input, scanner, svr);
-                        while (!input.eof()) rdr.read();
-                        if (scanner.getPosition() > 0) {
-                            send(scanner.getBuf(), scanner.getPosition(), submitAgentUrl, null);
-                        }
-                    }
+    protected RecordEncoder newEncoder() {
+        return new RecordEncoder() {
+            private final SymbolsScanner scanner = new SymbolsScanner(registry);
+
+            private CborDataWriter writer;
+
+            @Override
+            public void encode(SymbolicRecord rec, List<HttpMessage> reqs) {
+                STraceBufChunk chunk = (STraceBufChunk) rec;
+                scanner.clear();
+                scanner.processRefs(chunk);
+                if (scanner.getPosition() > 0) {
+                    byte[] agd = ZorkaUtil.clipArray(scanner.getBuf(), scanner.getPosition());
+                    reqs.add(request(ByteBuffer.wrap(agd), submitAgentUrl, null));
+                }
+                UUID uuid = new UUID(chunk.getUuidH(), chunk.getUuidL());
+                // Single chunk traces are sent without copying, multi-chunk traces have to be merged
+                ByteBuffer body = chunk.getNext() == null ? chunk.toByteBuffer() : ByteBuffer.wrap(chunksMerge(chunk));
+                reqs.add(request(body, submitTraceUrl, uuid.toString()));
+            }
+
+            @Override
+            public boolean encodeBatch(List<SymbolicRecord> recs, List<HttpMessage> reqs) {
+                if (writer == null) {
+                    writer = new CborDataWriter(BATCH_BUFSZ, BATCH_BUFSZ);
+                }
 
-                    UUID uuid = new UUID(chunk.getUuidH(), chunk.getUuidL());
-                    send(chunk.getBuffer(), chunk.getPosition(), submitTraceUrl, uuid.toString());
-                    break;
-                } catch (CborResendException e) {
-                    log.info("Session expired. Reauthenticating ...");
-                    newSession();
-                } catch (Exception e) {
-                    log.error("Error sending trace record: " + e + ". Resetting connection.", e);
-                    newSession();
+                scanner.clear();
+                for (SymbolicRecord rec : recs) {
+                    scanner.processRefs((STraceBufChunk) rec);
                 }
 
-                try {
-                    log.debug("Will retry (wait=" + rt + ")");
-                    Thread.sleep(rt);
-                } catch (InterruptedException e) {
-                    log.warn("Huh? Sleep interrupted?");
+                writer.reset();
+                writer.writeTag(TAG_TRACE_BATCH);
+                writer.writeUInt(CBOR.ARR_BASE, recs.size() + 1);
+                writer.writeUInt(CBOR.BYTES_BASE, scanner.getPosition());
+                writer.write(scanner.getBuf(), 0, scanner.getPosition());
+
+                for (SymbolicRecord rec : recs) {
+                    STraceBufChunk chunk = (STraceBufChunk) rec;
+                    writer.writeUInt(CBOR.ARR_BASE, 2);
+                    writer.writeString(new UUID(chunk.getUuidH(), chunk.getUuidL()).toString());
+                    int len = chunksLength(chunk);
+                    writer.writeUInt(CBOR.BYTES_BASE, len);
+                    writer.ensure(len);
+                    for (STraceBufChunk c = chunk; c != null; c = c.getNext()) {
+                        c.copyTo(writer.getBuf(), writer.position() + c.getExtOffset());
+                    }
+                    writer.position(writer.position() + len);
                 }
 
-                rt *= retryTimeExp;
+                byte[] body = ZorkaUtil.clipArray(writer.getBuf(), writer.position());
+                reqs.add(request(ByteBuffer.wrap(body), submitBatchUrl, null));
+
+                return true;
             }
-        }
-    }
 
+            @Override
+            public void reset() {
+                scanner.reset();
+            }
+        };
+    }
 
+    @Override
+    protected void release(SymbolicRecord rec) {
+        if (bufManager != null) {
+            bufManager.put((STraceBufChunk) rec);
+        }
+    }
 }
@@ -62,6 +62,11 @@ public class STracer extends Tracer {
     }
 
 
+    public STraceBufManager getBufManager() {
+        return bufManager;
+    }
+
+
     public STraceHandler getStHandler() {
         return handlers.get();
     }
@@ -38,7 +38,8 @@ public class STracerLib extends TracerLib {
 
 
     public ZorkaAsyncThread<SymbolicRecord> toCbor(Map<String, String> config) {
-        return new STraceHttpOutput(this.config, config, symbolRegistry);
+        return new STraceHttpOutput(this.config, config, symbolRegistry,
+                tracer instanceof STracer ? ((STracer)tracer).getBufManager() : null);
     }
 
 
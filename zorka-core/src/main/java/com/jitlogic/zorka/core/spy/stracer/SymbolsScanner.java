@@ -18,24 +18,17 @@ package com.jitlogic.zorka.core.spy.stracer;
 
 import com.jitlogic.zorka.cbor.CBOR;
 import com.jitlogic.zorka.cbor.CborDataWriter;
-import com.jitlogic.zorka.cbor.TagProcessor;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.util.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.List;
-import java.util.Map;
 
 import static com.jitlogic.zorka.cbor.TraceDataTags.*;
 import static com.jitlogic.zorka.cbor.TextIndexTypeMarkers.*;
 
-import static com.jitlogic.zorka.core.util.ZorkaUnsafe.BYTE_ARRAY_OFFS;
-import static com.jitlogic.zorka.core.util.ZorkaUnsafe.UNSAFE;
-
-public class SymbolsScanner implements TagProcessor {
-
-    private final static Logger log = LoggerFactory.getLogger(TagProcessor.class);
+/**
+ * Generates symbol and method definitions for traces about to be sent. Uses references recorded
+ * by trace handler in chunks, so trace data does not have to be parsed again.
+ */
+public class SymbolsScanner {
 
     private BitVector symbolsSent = new BitVector();
     private BitVector methodsSent = new BitVector();
@@ -60,14 +53,6 @@ public class SymbolsScanner implements TagProcessor {
         writer.reset();
     }
 
-    private long unpackLong(byte[] buf, int offs) {
-        if (buf.length-offs >= 8) {
-            return UNSAFE.getLong(buf, BYTE_ARRAY_OFFS+offs);
-        } else {
-            return 0;
-        }
-    }
-
     private boolean addSymbol(int id, int type) {
         if (symbolsSent.get(id)) return false;
         String s = registry.symbolName(id);
@@ -93,62 +78,35 @@ public class SymbolsScanner implements TagProcessor {
             writer.writeInt(md[1]);
             writer.writeInt(md[2]);
         }
+        methodsSent.set(mid);
         return true;
     }
 
-    @Override
-    public Object process(int tag, Object obj) {
-        if (tag == TAG_TRACE_START) {
-            List<Object> lst = (List<Object>)obj;
-            if (lst.size() > 0 && lst.get(0) instanceof byte[]) {
-                long l = unpackLong((byte[])lst.get(0), 0);
-                int mid = (int) (l >> STraceHandler.TSTAMP_BITS);
-                if (!methodsSent.get(mid)) {
-                    int[] md = registry.methodDef(mid);
-                    if (md != null) {
-                        addSymbol(md[0], CLASS_TYPE);
-                        addSymbol(md[1], METHOD_TYPE);
-                        addSymbol(md[2], SIGN_TYPE);
+    /**
+     * Adds definitions of all symbols and methods referenced by chunks that haven't been sent yet.
+     *
+     * @param chunks chain of chunks containing single trace
+     */
+    public void processRefs(STraceBufChunk chunks) {
+        for (STraceBufChunk c = chunks; c != null; c = c.getNext()) {
+            int[] refs = c.getRefs();
+            for (int i = 0; i < c.getNRefs(); i++) {
+                int id = refs[i] >>> STraceBufChunk.REF_BITS, type = refs[i] & STraceBufChunk.REF_MASK;
+                if (type == STraceBufChunk.REF_METHOD) {
+                    if (!methodsSent.get(id)) {
+                        int[] md = registry.methodDef(id);
+                        if (md != null) {
+                            addSymbol(md[0], CLASS_TYPE);
+                            addSymbol(md[1], METHOD_TYPE);
+                            addSymbol(md[2], SIGN_TYPE);
+                        }
+                        addMethod(id);
                     }
-                    addMethod(mid);
+                } else {
+                    addSymbol(id, type);
                 }
             }
-            return null;
-        } else if (tag == TAG_TRACE_BEGIN) {
-            List<Object> lst = (List<Object>)obj;
-            addSymbol((Integer)lst.get(1), STRING_TYPE);
-            return null;
-        } else if (tag == TAG_TRACE_ATTR) {
-            Map<Object, Object> m = (Map) obj;
-            for (Map.Entry e : m.entrySet()) {
-                addSymbol((Integer)e.getKey(), STRING_TYPE);
-            }
-            return null;
-        } else if (tag == TAG_TRACE_UP_ATTR) {
-            List<Object> lst = (List<Object>)obj;
-            addSymbol((Integer)lst.get(0), STRING_TYPE);
-            Map<Object,Object> m = (Map<Object,Object>)lst.get(1);
-            for (Map.Entry e : m.entrySet()) {
-                addSymbol((Integer)e.getKey(), STRING_TYPE);
-            }
-            return null;
-        } else if (tag == TAG_EXCEPTION) {
-            List<Object> lst = (List<Object>)obj;
-            Integer sid = (Integer) lst.get(1);
-            if (sid != null) addSymbol(sid, CLASS_TYPE);
-            List<Object> stk = (List<Object>)lst.get(4);
-            for (Object o : stk) {
-                List<Object> si = (List<Object>)o;
-                addSymbol((Integer)si.get(0), CLASS_TYPE);
-                addSymbol((Integer)si.get(1), METHOD_TYPE);
-                addSymbol((Integer)si.get(2), STRING_TYPE);
-            }
-            return null;
-        } else if (tag == TAG_STRING_REF) {
-            addSymbol((Integer)obj, STRING_TYPE);
-            return obj;
         }
-        return obj;
     }
 
     public byte[] getBuf() {
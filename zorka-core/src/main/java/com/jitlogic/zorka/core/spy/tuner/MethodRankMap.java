@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy.tuner;
+
+/**
+ * Method ranks collected by tracer tuner: open addressing hash map from method ID to rank,
+ * using primitive arrays (no boxing, no entry objects). Map size is proportional to number
+ * of methods that actually were called in tuning cycle, not to highest method ID. Method ID 0
+ * marks empty slots, so it cannot be used as a key. Not thread safe.
+ */
+public class MethodRankMap {
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private int[] mids;
+    private int[] ranks;
+
+    private int size;
+    private int mask;
+
+    public MethodRankMap() {
+        alloc(MIN_CAPACITY);
+    }
+
+
+    private void alloc(int capacity) {
+        mids = new int[capacity];
+        ranks = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+
+    private static int hash(int mid) {
+        int h = mid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private int slot(int mid) {
+        int i = hash(mid) & mask;
+        while (mids[i] != 0 && mids[i] != mid) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+
+    /**
+     * Adds delta to rank of given method.
+     */
+    public void add(int mid, int delta) {
+        if (mid == 0) {
+            return;
+        }
+
+        int i = slot(mid);
+
+        if (mids[i] == 0) {
+            if ((size + 1) * 2 > mids.length) {
+                resize(mids.length * 2);
+                i = slot(mid);
+            }
+            mids[i] = mid;
+            size++;
+        }
+
+        ranks[i] += delta;
+    }
+
+
+    /**
+     * Returns rank of given method (or 0 if method has not been ranked).
+     */
+    public int get(int mid) {
+        if (mid == 0) {
+            return 0;
+        }
+        int i = slot(mid);
+        return mids[i] != 0 ? ranks[i] : 0;
+    }
+
+
+    private void resize(int capacity) {
+        int[] omids = mids, oranks = ranks;
+        alloc(capacity);
+        for (int i = 0; i < omids.length; i++) {
+            if (omids[i] != 0) {
+                int j = slot(omids[i]);
+                mids[j] = omids[i];
+                ranks[j] = oranks[i];
+                size++;
+            }
+        }
+    }
+
+
+    /**
+     * Removes all entries. If map is mostly empty, it is shrunk, so memory use follows number of live methods.
+     */
+    public void clear() {
+        if (mids.length > MIN_CAPACITY && size * 8 < mids.length) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < size * 4) {
+                capacity <<= 1;
+            }
+            alloc(capacity);
+        } else {
+            for (int i = 0; i < mids.length; i++) {
+                mids[i] = 0;
+                ranks[i] = 0;
+            }
+            size = 0;
+        }
+    }
+
+
+    /**
+     * Returns number of ranked methods.
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns number of slots (for iteration with midAt() and rankAt()).
+     */
+    public int capacity() {
+        return mids.length;
+    }
+
+
+    /**
+     * Returns method ID in given slot (or 0 if slot is empty).
+     */
+    public int midAt(int slot) {
+        return mids[slot];
+    }
+
+
+    /**
+     * Returns rank in given slot.
+     */
+    public int rankAt(int slot) {
+        return ranks[slot];
+    }
+
+
+    @Override
+    public String toString() {
+        return "MethodRankMap(size=" + size + ", capacity=" + mids.length + ")";
+    }
+}
@@ -31,6 +31,13 @@ public class TraceTuningStats {
 
     public static final long MMAX = 16;
 
+    /** Number of tracer overhead samples kept (most recent ones). */
+    public static final int SAMPLES_SIZE = 256;
+    public static final int SAMPLES_MASK = SAMPLES_SIZE-1;
+
+    /** Maximum value of single overhead sample (longer ones are most likely caused by GC pauses etc.). */
+    public static final long SAMPLE_MAX = 100000;
+
     private long threadId;
     private long tstamp;
     private long calls;
@@ -41,13 +48,76 @@ public class TraceTuningStats {
 
     private long[] stats;
 
+    /** Tracer overhead samples: (cost << 32) | mid. Allocated when first sample is added. */
+    private long[] samples;
+
+    /** Number of overhead samples and summary sampled overhead (including samples no longer kept). */
+    private long sampleCount, sampleTime;
+
+    /** Thread CPU time consumed since last exchange (or 0 if not measured). */
+    private long cpuTime;
+
     public TraceTuningStats() {
         this.stats = new long[STATS_SIZE];
     }
 
     public void clear() {
         tstamp = calls = 0;
+        misses0 = misses1 = misses2 = 0;
         for (int i = 0; i < STATS_SIZE; i++) stats[i] = 0;
+        clearSamples();
+    }
+
+    private void clearSamples() {
+        sampleCount = sampleTime = cpuTime = 0;
+    }
+
+    /**
+     * Records sampled tracer overhead (cost of single traceEnter or traceReturn call).
+     *
+     * @param mid method ID
+     * @param cost overhead (in nanoseconds)
+     */
+    public void addSample(int mid, long cost) {
+        if (samples == null) {
+            samples = new long[SAMPLES_SIZE];
+        }
+        cost = Math.max(0, Math.min(cost, SAMPLE_MAX));
+        samples[(int)(sampleCount & SAMPLES_MASK)] = (cost << 32) | (mid & MID_MASK);
+        sampleCount++;
+        sampleTime += cost;
+    }
+
+    /**
+     * Adds kept overhead samples to per-method summary costs and sample counts.
+     */
+    public void drainSamplesTo(MethodRankMap costs, MethodRankMap counts) {
+        int n = (int)Math.min(sampleCount, SAMPLES_SIZE);
+        for (int i = 0; i < n; i++) {
+            long l = samples[i];
+            int mid = (int) (l & MID_MASK);
+            costs.add(mid, (int) (l >>> 32));
+            counts.add(mid, 1);
+        }
+    }
+
+    /**
+     * Adds collected ranks to rank map and clears stats in the same pass, so stats
+     * object can be reused without clearing it separately.
+     *
+     * @param ranks rank map
+     */
+    public void drainTo(MethodRankMap ranks) {
+        for (int i = 0; i < STATS_SIZE; i++) {
+            long l = stats[i];
+            if (l != 0) {
+                ranks.add((int) (l & MID_MASK), (int) (l >>> 32));
+                stats[i] = 0;
+            }
+        }
+        tstamp = calls = 0;
+        misses0 = misses1 = misses2 = 0;
+        clearSamples();
     }
 
     public int getSize() {
@@ -82,7 +152,7 @@ public class TraceTuningStats {
             long s1 = stats[x1];
             long v1 = s1 >>> 32;
             if (v1 < XCL_MIN1) {
-                stats[x1] = mid & ((v1+delta) << 32);
+                stats[x1] = ((v1+delta) << 32) | mid;
                 return true;
             }
         }
@@ -94,7 +164,7 @@ public class TraceTuningStats {
             long s1 = stats[x1];
             long v1 = s1 >>> 32;
             if (v1 < XCL_MIN2) {
-                stats[x1] = mid & ((v1+delta) << 32);
+                stats[x1] = ((v1+delta) << 32) | mid;
                 return true;
             }
         }
@@ -116,7 +186,7 @@ public class TraceTuningStats {
             if (stats[i] != 0) used++;
 
         return "TS: " + "tid=" + threadId + " calls=" + calls + " size=" + STATS_SIZE + " used=" + used +
-                " misses.0=" + misses0 + " misses.1=" + misses1 + " misses.2=" + misses2 + ")";
+                " misses.0=" + misses0 + " misses.1=" + misses1 + " misses.2=" + misses2 + " samples=" + sampleCount + " cpu=" + cpuTime + ")";
     }
 
     public long getThreadId() {
@@ -143,4 +213,20 @@ public class TraceTuningStats {
         this.calls = calls;
     }
 
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSampleTime() {
+        return sampleTime;
+    }
+
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public void setCpuTime(long cpuTime) {
+        this.cpuTime = cpuTime;
+    }
+
 }
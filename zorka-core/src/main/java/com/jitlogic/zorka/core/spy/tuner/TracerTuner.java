@@ -23,21 +23,42 @@ import com.jitlogic.zorka.common.util.ZorkaAsyncThread;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.SpyRetransformer;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.jitlogic.zorka.core.AgentConfigProps.*;
 import static com.jitlogic.zorka.common.stats.AgentDiagnostics.*;
 
+/**
+ * Tracer tuner collects method call ranks from trace handlers and excludes methods that are called often
+ * but are too short to be included in traces. Stats buffers are exchanged with application threads without
+ * locking: filled buffers are passed via lock-free queue (drained by tuner thread), cleared buffers are
+ * returned via lock-free pool, so application threads never wait for tuner.
+ * <p/>
+ * In adaptive mode trace handlers sample actual cost of traceEnter/traceReturn calls and thread CPU time.
+ * At the end of each cycle tuner estimates tracer overhead of each thread and, if it exceeds budget, excludes
+ * methods with highest estimated overhead (short calls times sampled cost). Adaptive exclusions are kept only
+ * in memory and are reverted (newest first) when overhead drops well below budget.
+ */
 public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
+    /** How long tuner thread waits for stats when there are none (in nanoseconds). */
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
     private boolean trace;
 
     private long calls;
 
     private volatile long lastCalls;
 
-    private int[] ranks;
+    /** Method call ranks collected in current tuning cycle (accessed only by tuner thread). */
+    private MethodRankMap ranks = new MethodRankMap();
 
     /** Interval between tuning cycles. */
     private long interval;
@@ -69,12 +90,55 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
     private ZtxMatcherSet tracerMatcherSet;
 
-    private int statCacheMax = 16;
+    private static final int STAT_CACHE_MAX = 16;
+
+    /** Cleared stats buffers ready for reuse by application threads. */
+    private final AtomicReferenceArray<TraceTuningStats> statCache =
+            new AtomicReferenceArray<TraceTuningStats>(STAT_CACHE_MAX);
+
+    /** Stats submitted by application threads, waiting for tuner thread. */
+    private final ConcurrentLinkedQueue<TraceTuningStats> statQueue = new ConcurrentLinkedQueue<TraceTuningStats>();
+
+    private final AtomicInteger statQueueSize = new AtomicInteger(0);
+
+    /** Threads that consumed less CPU time in tuning cycle are not taken into account when calculating overhead. */
+    private static final long MIN_THREAD_CPU = 10000000L;
+
+    /** Methods are included back when overhead drops below this fraction of budget ... */
+    private static final double INCLUDE_THRESHOLD = 0.5;
+
+    /** ... and as long as estimated overhead stays below this fraction of budget. */
+    private static final double INCLUDE_TARGET = 0.75;
+
+    /** Minimum number of tuning cycles method stays excluded before it can be included back. */
+    private static final int MIN_HOLD_CYCLES = 10;
+
+    /** Minimum number of samples needed to use per-method cost (otherwise average cost is used). */
+    private static final int MIN_METHOD_SAMPLES = 4;
+
+    /** If true, methods are excluded and included back to keep sampled tracer overhead within budget. */
+    private boolean adaptive;
+
+    /** Tracer overhead budget (percent of thread CPU time). */
+    private int budget;
+
+    /** Summary sampled overhead and number of samples for each method (current cycle). */
+    private MethodRankMap sampleCosts = new MethodRankMap(), sampleCounts = new MethodRankMap();
+
+    /** Calls, CPU time, number of samples and sampled overhead for each thread (current cycle). */
+    private Map<Long,long[]> threadStats = new HashMap<Long, long[]>();
 
-    private Deque<TraceTuningStats> statCache = new LinkedList<TraceTuningStats>();
+    /** Methods excluded by adaptive tuning (in exclusion order): estimated overhead saved and tuning cycle. */
+    private Map<Integer,long[]> adaptiveExclusions = new LinkedHashMap<Integer, long[]>();
+
+    private long cycles;
+
+    /** Estimated tracer overhead in last cycle (percent of CPU time of most affected thread). */
+    private volatile double lastOverhead;
 
     public TracerTuner(ZorkaConfig config, SymbolRegistry registry, SpyRetransformer retransformer, ZtxMatcherSet tracerMatcherSet) {
-        super("TRACER-TUNER", config.intCfg(TRACER_TUNER_QLEN_PROP, TRACER_TUNER_QLEN_DEFV), 2);
+        // Stats are passed via statQueue (see submit() and runCycle()), standard submit queue is not used
+        super("TRACER-TUNER", config.intCfg(TRACER_TUNER_QLEN_PROP, TRACER_TUNER_QLEN_DEFV), 2, null);
 
         this.registry = registry;
         this.retransformer = retransformer;
@@ -89,17 +153,22 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         this.maxRatio = config.intCfg(TRACER_TUNER_MAX_RATIO_PROP, TRACER_TUNER_MAX_RATIO_DEFV);
         this.maxItems = config.intCfg(TRACER_TUNER_MAX_ITEMS_PROP, TRACER_TUNER_MAX_ITEMS_DEFV);
 
-        ranks = new int[1024];
+        this.adaptive = config.boolCfg(TRACER_TUNER_ADAPTIVE_PROP, TRACER_TUNER_ADAPTIVE_DEFV);
+        this.budget = config.intCfg(TRACER_TUNER_BUDGET_PROP, TRACER_TUNER_BUDGET_DEFV);
+
+        TraceHandler.setTuningSampleInterval(adaptive
+                ? Math.max(1, config.intCfg(TRACER_TUNER_SAMPLE_PROP, TRACER_TUNER_SAMPLE_DEFV)) : 0);
 
         trace = log.isTraceEnabled();
 
         log.info("Tracer tuner: auto=" + auto + ", interval=" + interval + "ns, rankSize=" + rankSize +
-                ", threshold=" + minTotalCalls + "methods/cycle" + ", ratio=" + maxRatio + "pct, mpc=" + maxItems);
+                ", threshold=" + minTotalCalls + "methods/cycle" + ", ratio=" + maxRatio + "pct, mpc=" + maxItems +
+                ", adaptive=" + adaptive + ", budget=" + budget + "pct");
     }
 
     private synchronized void tuningCycle() {
 
-        log.info("Starting tuning cycle (dsize=" + ranks.length + ")");
+        log.info("Starting tuning cycle (dsize=" + ranks.size() + ")");
 
         lastCalls = calls;
 
@@ -107,6 +176,11 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         AgentDiagnostics.inc(TUNER_CALLS, calls);
 
         calcRanks();
+
+        if (adaptive) {
+            adapt();
+        }
+
         clearStats();
 
 
@@ -116,11 +190,154 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
         log.debug("auto=" + auto + ", lastCalls=" + lastCalls + ", minTotalCalls=" + minTotalCalls);
 
-        if (auto && lastCalls >= minTotalCalls) {
+        if (auto && !adaptive && lastCalls >= minTotalCalls) {
             exclude(maxItems, false);
         }
     }
 
+    /**
+     * Estimates tracer overhead in current cycle and excludes (or includes back) methods
+     * so overhead of most affected thread stays within budget.
+     */
+    private void adapt() {
+        cycles++;
+
+        long scount = 0, stime = 0;
+        for (long[] ts : threadStats.values()) {
+            scount += ts[2];
+            stime += ts[3];
+        }
+
+        if (scount == 0) {
+            log.debug("No tracer overhead samples collected in this cycle.");
+            return;
+        }
+
+        double avgCost = (double) stime / scount;
+        double maxRatio = 0.0, overhead = 0.0, cpu = 0.0;
+
+        for (long[] ts : threadStats.values()) {
+            if (ts[1] >= MIN_THREAD_CPU) {
+                // Each method call means two tracer calls (traceEnter and traceReturn)
+                double o = 2.0 * ts[0] * (ts[2] > 0 ? (double) ts[3] / ts[2] : avgCost);
+                maxRatio = Math.max(maxRatio, o / ts[1]);
+                overhead += o;
+                cpu += ts[1];
+            }
+        }
+
+        lastOverhead = 100.0 * maxRatio;
+
+        log.info("Estimated tracer overhead: " + String.format("%.2f", lastOverhead) + "% (budget: " + budget
+                + "%, avg cost: " + (long)avgCost + "ns, adaptive exclusions: " + adaptiveExclusions.size() + ")");
+
+        if (!auto || cpu == 0.0) {
+            return;
+        }
+
+        if (lastOverhead > budget) {
+            excludeAdaptive(overhead * (1.0 - budget / lastOverhead), avgCost);
+        } else if (lastOverhead < budget * INCLUDE_THRESHOLD && !adaptiveExclusions.isEmpty()) {
+            includeAdaptive(lastOverhead > 0.0
+                    ? overhead * (budget * INCLUDE_TARGET / lastOverhead - 1.0)
+                    : cpu * budget * INCLUDE_TARGET / 100.0);
+        }
+    }
+
+    /**
+     * Returns estimated overhead of given method in current cycle.
+     */
+    private double methodOverhead(int mid, int rank, double avgCost) {
+        int n = sampleCounts.get(mid);
+        double cost = n >= MIN_METHOD_SAMPLES ? (double) sampleCosts.get(mid) / n : avgCost;
+        return 2.0 * rank * cost;
+    }
+
+    /**
+     * Excludes methods with highest estimated overhead until given overhead is saved.
+     */
+    private void excludeAdaptive(double target, double avgCost) {
+        List<RankItem> rl = rankList;
+
+        final Map<Integer,Double> costs = new HashMap<Integer, Double>();
+        List<RankItem> candidates = new ArrayList<RankItem>(rl.size());
+
+        for (RankItem ri : rl) {
+            if (ri.getRank() > 0 && !tracerMatcherSet.isExcluded(ri.getMid())) {
+                costs.put(ri.getMid(), methodOverhead(ri.getMid(), ri.getRank(), avgCost));
+                candidates.add(ri);
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<RankItem>() {
+            @Override
+            public int compare(RankItem r1, RankItem r2) {
+                return Double.compare(costs.get(r2.getMid()), costs.get(r1.getMid()));
+            }
+        });
+
+        Set<String> classNames = new HashSet<String>();
+        double saved = 0.0;
+        int n = 0;
+
+        for (RankItem ri : candidates) {
+            if (saved >= target || n >= maxItems) {
+                break;
+            }
+            int mid = ri.getMid();
+            int[] cms = registry.methodDef(mid);
+            if (cms != null) {
+                double o = costs.get(mid);
+                log.debug("Adaptive exclusion: " + registry.methodXDesc(mid) + " (overhead: " + (long)o + "ns)");
+                tracerMatcherSet.excludeMethod(mid);
+                classNames.add(registry.symbolName(cms[0]));
+                adaptiveExclusions.put(mid, new long[] { (long) o, cycles });
+                saved += o;
+                n++;
+            }
+        }
+
+        if (n > 0) {
+            AgentDiagnostics.inc(TUNER_EXCLUSIONS, n);
+            List<RankItem> lst = new ArrayList<RankItem>(rl.size());
+            for (RankItem ri : rl) {
+                if (!tracerMatcherSet.isExcluded(ri.getMid())) {
+                    lst.add(ri);
+                }
+            }
+            rankList = lst;
+            log.info("Excluded " + n + " methods, reinstrumenting classes: " + classNames);
+            retransformer.retransform(classNames);
+        }
+    }
+
+    /**
+     * Includes back most recently excluded methods as long as their estimated overhead fits in given headroom.
+     */
+    private void includeAdaptive(double headroom) {
+        List<Integer> mids = new ArrayList<Integer>(adaptiveExclusions.keySet());
+        Set<String> classNames = new HashSet<String>();
+
+        for (int i = mids.size() - 1; i >= 0; i--) {
+            int mid = mids.get(i);
+            long[] x = adaptiveExclusions.get(mid);
+            if (cycles - x[1] >= MIN_HOLD_CYCLES && x[0] <= headroom) {
+                int[] cms = registry.methodDef(mid);
+                tracerMatcherSet.includeMethod(mid);
+                adaptiveExclusions.remove(mid);
+                headroom -= x[0];
+                if (cms != null) {
+                    classNames.add(registry.symbolName(cms[0]));
+                }
+            }
+        }
+
+        if (!classNames.isEmpty()) {
+            log.info("Included methods back, reinstrumenting classes: " + classNames);
+            retransformer.retransform(classNames);
+        }
+    }
+
     public synchronized int exclude(int nitems, boolean force) {
 
         long lcur = 0;
@@ -164,27 +381,30 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         return rc;
     }
 
-    private synchronized void clearStats() {
+    private void clearStats() {
         calls = 0;
-        for (int i = 0; i < ranks.length; i++) {
-            ranks[i] = 0;
+        ranks.clear();
+        if (adaptive) {
+            sampleCosts.clear();
+            sampleCounts.clear();
+            threadStats.clear();
         }
     }
 
     private void calcRanks() {
         KVSortingHeap heap = new KVSortingHeap(rankSize, true);
 
-        for (int i = 0; i < ranks.length; i++) {
-            int r = ranks[i];
-            if (r > 0) heap.add(i, r);
-            if (trace) {
+        for (int s = 0; s < ranks.capacity(); s++) {
+            int i = ranks.midAt(s), r = ranks.rankAt(s);
+            if (i != 0 && r > 0) heap.add(i, r);
+            if (trace && i != 0) {
                 log.trace(i + "| RANK: r=" + r + ": " + registry.methodXDesc(i));
             }
         }
 
         List<RankItem> rl = new ArrayList<RankItem>();
         for (int i = heap.next(); i > 0; i = heap.next()) {
-            int r = ranks[i];
+            int r = ranks.get(i);
             if (!tracerMatcherSet.isExcluded(i)) {
                 rl.add(new RankItem(i, r));
             }
@@ -195,29 +415,6 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         this.rankList = rl;
     }
 
-    private synchronized void processDetails(TraceTuningStats detail) {
-        if (detail.getSize() > ranks.length) {
-            resize(detail.getSize());
-        }
-
-        long[] stats = detail.getStats();
-
-        for (int i = 0; i < stats.length; i++) {
-            long l = stats[i];
-            if (l != 0) {
-                int mid = (int) (l & TraceTuningStats.MID_MASK);
-                if (mid >= ranks.length) resize(mid);
-                ranks[mid] += (l >>> 32);
-            }
-        }
-    }
-
-    private synchronized void resize(int size) {
-        int sz = ((size+16384) >>> 14) << 14;
-        log.debug("Resizing rank table to " + sz + " items.");
-        ranks = ZorkaUtil.clipArray(ranks, sz);
-    }
-
     private synchronized void processStats(TraceTuningStats stats) {
 
         if (log.isDebugEnabled())
@@ -225,10 +422,24 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
         calls += stats.getCalls();
 
-        processDetails(stats);
-
         long tstamp = stats.getTstamp();
 
+        if (adaptive && stats.getCpuTime() > 0) {
+            long[] ts = threadStats.get(stats.getThreadId());
+            if (ts == null) {
+                ts = new long[4];
+                threadStats.put(stats.getThreadId(), ts);
+            }
+            ts[0] += stats.getCalls();
+            ts[1] += stats.getCpuTime();
+            ts[2] += stats.getSampleCount();
+            ts[3] += stats.getSampleTime();
+            stats.drainSamplesTo(sampleCosts, sampleCounts);
+        }
+
+        // Collects ranks and clears stats, so stats struct can be reused
+        stats.drainTo(ranks);
+
         if (tstamp - tstlast > interval) {
             if (tstlast != 0) {
                 tuningCycle();
@@ -236,10 +447,74 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
             tstlast = tstamp;
         }
 
-        // Return stats struct to reuse
-        stats.clear();
-        if (statCache.size() < statCacheMax)
-            statCache.addFirst(stats);
+        release(stats);
+    }
+
+    /**
+     * Returns cleared stats struct to pool (or drops it if pool is full).
+     */
+    private void release(TraceTuningStats stats) {
+        for (int i = 0; i < STAT_CACHE_MAX; i++) {
+            if (statCache.get(i) == null && statCache.compareAndSet(i, null, stats)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes stats struct from pool (or returns null if pool is empty).
+     */
+    private TraceTuningStats acquire() {
+        for (int i = 0; i < STAT_CACHE_MAX; i++) {
+            TraceTuningStats s = statCache.get(i);
+            if (s != null && statCache.compareAndSet(i, s, null)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes stats to tuner thread via lock-free queue. If queue is full, stats are dropped
+     * (application thread never waits for tuner). If there is no tuner thread (queue length 0),
+     * stats are processed synchronously.
+     */
+    @Override
+    public boolean submit(TraceTuningStats stats) {
+        if (qlen <= 0) {
+            return super.submit(stats);
+        }
+
+        if (statQueueSize.incrementAndGet() > qlen) {
+            statQueueSize.decrementAndGet();
+            AgentDiagnostics.inc(TUNER_DROPS);
+            return false;
+        }
+
+        statQueue.offer(stats);
+        return true;
+    }
+
+    /**
+     * Processes stats submitted by application threads. Waits a while if there are none.
+     */
+    @Override
+    public void runCycle() {
+        TraceTuningStats stats = statQueue.poll();
+
+        if (stats == null) {
+            LockSupport.parkNanos(POLL_INTERVAL);
+            return;
+        }
+
+        for (; stats != null; stats = statQueue.poll()) {
+            statQueueSize.decrementAndGet();
+            try {
+                processStats(stats);
+            } catch (Exception e) {
+                log.error("Error processing stats: " + stats, e);
+            }
+        }
     }
 
     @Override
@@ -261,6 +536,10 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         StringBuilder sb = new StringBuilder();
 
         sb.append(String.format("Status: interval=%dms summary_calls=%d%n", interval/1000000, lastCalls));
+        if (adaptive) {
+            sb.append(String.format("Adaptive: overhead=%.2f%% budget=%d%% exclusions=%d%n",
+                    lastOverhead, budget, getAdaptiveExclusions()));
+        }
         sb.append("Method call ranks (first 32 entries).\n");
 
         List<RankItem> lst = rankList;
@@ -279,9 +558,13 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
     public TraceTuningStats exchange(TraceTuningStats stats) {
 
-        if (stats != null) submit(stats);
+        if (stats != null && !submit(stats)) {
+            // Stats dropped, application thread can reuse its own struct
+            stats.clear();
+            return stats;
+        }
 
-        TraceTuningStats s  = statCache.pollLast();
+        TraceTuningStats s = acquire();
 
         return s != null ? s : new TraceTuningStats();
     }
@@ -289,4 +572,15 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
     public long getLastCalls() {
         return lastCalls;
     }
+
+    /**
+     * Returns estimated tracer overhead in last tuning cycle (percent of CPU time of most affected thread).
+     */
+    public double getLastOverhead() {
+        return lastOverhead;
+    }
+
+    public synchronized int getAdaptiveExclusions() {
+        return adaptiveExclusions.size();
+    }
 }
@@ -35,6 +35,9 @@ public class ZtxMatcherSet implements SpyMatcherSet {
     private volatile BitVector cids;
     private volatile BitVector mids;
 
+    /** Methods excluded by adaptive tuning (not persisted, can be included back). */
+    private volatile BitVector amids;
+
     private SymbolRegistry registry;
 
     private volatile PatternMatcherSet patternMatcherSet;
@@ -59,6 +62,7 @@ public class ZtxMatcherSet implements SpyMatcherSet {
     public ZtxMatcherSet(File ztxDir, File ztxLog, SymbolRegistry registry, boolean initExcl, boolean scanZtx) {
         cids = new BitVector();
         mids = new BitVector();
+        amids = new BitVector();
 
         this.registry = registry;
 
@@ -91,9 +95,15 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
     @Override
     public boolean classMatch(String className) {
-        int classId = registry.symbolId(className);
+        return patternMatcherSet.classMatch(className) && ztxClassMatch(className);
+    }
 
-        if (!patternMatcherSet.classMatch(className)) return false;
+    /**
+     * Checks class against loaded exclusion files only (pattern matchers are not checked).
+     * Loads appropriate exclusion file if not loaded yet.
+     */
+    public boolean ztxClassMatch(String className) {
+        int classId = registry.symbolId(className);
 
         synchronized (this) {
             if (cids.get(classId)) return false;
@@ -115,7 +125,8 @@ public class ZtxMatcherSet implements SpyMatcherSet {
         if (!patternMatcherSet.methodMatch(cn, sc, ca, ci, acc, mn, ms, ma)) return false;
 
         synchronized (this) {
-            return !mids.get(registry.methodId(cn, mn, ms));
+            int mid = registry.methodId(cn, mn, ms);
+            return !mids.get(mid) && !amids.get(mid);
         }
     }
 
@@ -123,7 +134,8 @@ public class ZtxMatcherSet implements SpyMatcherSet {
     public synchronized void clear() {
         cids.reset();
         mids.reset();
-        patternMatcherSet.clear();
+        amids.reset();
+        patternMatcherSet = new PatternMatcherSet();
     }
 
 
@@ -261,7 +273,22 @@ public class ZtxMatcherSet implements SpyMatcherSet {
     }
 
     public synchronized boolean isExcluded(int mid) {
-        return mids.get(mid);
+        return mids.get(mid) || amids.get(mid);
+    }
+
+    /**
+     * Excludes single method from tracing. Unlike add(), exclusion is not written to
+     * exclusion log and does not affect other methods of the class, so it can be reverted.
+     */
+    public synchronized void excludeMethod(int mid) {
+        amids.set(mid);
+    }
+
+    /**
+     * Reverts exclusion made by excludeMethod().
+     */
+    public synchronized void includeMethod(int mid) {
+        amids.clear(mid);
     }
 
     public List<SpyMatcher> getMatchers() {
@@ -19,6 +19,8 @@ package com.jitlogic.zorka.core.util;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 
 public class ZorkaUnsafe {
 
@@ -45,5 +47,25 @@ public class ZorkaUnsafe {
 
     public static final long BYTE_ARRAY_OFFS = UNSAFE.arrayBaseOffset(byte[].class);
 
+    private static final long BUFFER_ADDRESS_OFFS = getBufferAddressOffs();
+
+    private static long getBufferAddressOffs() {
+        try {
+            return UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns native memory address of direct byte buffer.
+     */
+    public static long directAddress(ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            throw new IllegalArgumentException("Not a direct buffer.");
+        }
+        return UNSAFE.getLong(buf, BUFFER_ADDRESS_OFFS);
+    }
+
 
 }
@@ -27,6 +27,8 @@ import com.jitlogic.zorka.core.*;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.core.util.ObjectDumper;
 import com.jitlogic.zorka.core.integ.zabbix.ZabbixLib;
+import bsh.EvalError;
+import bsh.Interpreter;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -125,6 +127,91 @@ public class BshAgentUnitTest extends ZorkaFixture {
     }
 
 
+    @Test
+    public void testRepeatedQueriesParsedOnlyOnce() throws Exception {
+        ParsedQueryCache cache = zorkaAgent.getQueryCache();
+        long hits = cache.getHits(), misses = cache.getMisses();
+
+        assertEquals("5", zorkaAgent.query("2+3"));
+        assertEquals("5", zorkaAgent.query("2+3"));
+        assertEquals("5", zorkaAgent.query("2+3"));
+
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+        assertTrue("parse time should be measured", cache.getParseTime() > 0);
+        assertTrue("saved parse time should be estimated", cache.getParseSaved() > 0);
+    }
+
+
+    @Test
+    public void testCachedQuerySeesCurrentVariables() throws Exception {
+        zorkaAgent.put("x", 1);
+        assertEquals("2", zorkaAgent.query("x + 1"));
+        zorkaAgent.put("x", 5);
+        assertEquals("6", zorkaAgent.query("x + 1"));
+    }
+
+
+    @Test
+    public void testCachedMultiStatementQueryWithReturn() throws Exception {
+        assertEquals("6", zorkaAgent.query("a = 2; return a * 3; a = 7;"));
+        assertEquals("6", zorkaAgent.query("a = 2; return a * 3; a = 7;"));
+        assertEquals(2, zorkaAgent.get("a"));
+    }
+
+
+    @Test
+    public void testInvalidQueriesAreNotCached() throws Exception {
+        ParsedQueryCache cache = zorkaAgent.getQueryCache();
+        int size = cache.getSize();
+
+        try {
+            zorkaAgent.eval("2 +* 3");
+            fail("Syntax error expected.");
+        } catch (EvalError e) {
+            assertTrue(e.getMessage().contains("2 +* 3"));
+        }
+
+        assertEquals(size, cache.getSize());
+
+        try {
+            zorkaAgent.eval("nonexistent.call()");
+            fail("Evaluation error expected.");
+        } catch (EvalError e) {
+            assertTrue(e.getMessage().contains("nonexistent"));
+        }
+
+        assertEquals(size + 1, cache.getSize());
+    }
+
+
+    @Test
+    public void testQueryCacheEvictsLeastRecentlyUsed() throws Exception {
+        Interpreter interpreter = new Interpreter();
+        ParsedQueryCache cache = new ParsedQueryCache(2);
+
+        assertEquals(3, cache.eval(interpreter, "1+2"));
+        assertEquals(5, cache.eval(interpreter, "2+3"));
+        assertEquals(3, cache.eval(interpreter, "1+2"));
+        assertEquals(7, cache.eval(interpreter, "3+4"));
+        assertEquals(5, cache.eval(interpreter, "2+3"));
+
+        assertEquals(2, cache.getSize());
+        assertEquals(2, cache.getEvictions());
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+
+    @Test
+    public void testQueryCacheClearedOnRestart() throws Exception {
+        zorkaAgent.query("2+3");
+        assertTrue(zorkaAgent.getQueryCache().getSize() > 0);
+        zorkaAgent.restart();
+        assertEquals(0, zorkaAgent.getQueryCache().getSize());
+    }
+
+
     private Object query(final String src) throws Exception {
         ZorkaBasicCallback callback = new ZorkaBasicCallback();
         ZorkaBshWorker worker = new ZorkaBshWorker(Executors.newSingleThreadExecutor(), 5000,
@@ -0,0 +1,84 @@
+package com.jitlogic.zorka.core.test.agent;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.core.ParsedQueryCache;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixLib;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixQueryTranslator;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures agent query latency with and without parsed query cache, for a typical set of
+ * items polled by zabbix server (JVM template items and low level discovery). Run manually.
+ */
+public class BshQueryLatencyManualTest extends ZorkaFixture {
+
+    private static final int ROUNDS = 2000;
+
+    private static final String[] ITEMS = {
+        "agent.ping",
+        "agent.version",
+        "zorka.jmx[\"java\",\"java.lang:type=Memory\",\"HeapMemoryUsage\",\"used\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Memory\",\"HeapMemoryUsage\",\"max\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Memory\",\"NonHeapMemoryUsage\",\"used\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Threading\",\"ThreadCount\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Threading\",\"DaemonThreadCount\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Threading\",\"PeakThreadCount\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=ClassLoading\",\"LoadedClassCount\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Runtime\",\"Uptime\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Runtime\",\"SpecVersion\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=OperatingSystem\",\"AvailableProcessors\"]",
+        "zorka.jmx[\"java\",\"java.lang:type=Compilation\",\"TotalCompilationTime\"]",
+        "zabbix.discovery[\"java\",\"java.lang:type=MemoryPool,*\",\"name\"]",
+        "zabbix.discovery[\"java\",\"java.lang:type=GarbageCollector,*\",\"name\"]",
+    };
+
+    private String[] queries;
+
+
+    @Before
+    public void setUp() throws Exception {
+        mBeanServerRegistry.register("java", java.lang.management.ManagementFactory.getPlatformMBeanServer(), null);
+        zorkaAgent.put("zabbix", new ZabbixLib(mBeanServerRegistry, config));
+        zorkaAgent.eval("agent = new java.util.HashMap(); agent.put(\"ping\", 1); agent.put(\"version\", \"test\");");
+
+        ZabbixQueryTranslator translator = new ZabbixQueryTranslator();
+        queries = new String[ITEMS.length];
+        for (int i = 0; i < ITEMS.length; i++) {
+            queries[i] = translator.translate(ITEMS[i]);
+        }
+    }
+
+
+    private double run() throws Exception {
+        long len = 0;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (String q : queries) {
+                len += zorkaAgent.query(q).length();
+            }
+        }
+        long t1 = System.nanoTime();
+        if (len == 0) {
+            System.out.println("Empty results ?");
+        }
+        return (t1 - t0) / 1000.0 / ROUNDS / queries.length;
+    }
+
+
+    @Test
+    public void benchmarkQueryLatency() throws Exception {
+        ParsedQueryCache cache = zorkaAgent.getQueryCache();
+
+        for (int i = 0; i < 3; i++) {
+            ObjectInspector.setField(zorkaAgent, "queryCache", null);
+            double p = run();
+            ObjectInspector.setField(zorkaAgent, "queryCache", cache);
+            double c = run();
+
+            System.out.println(String.format("plain: %.2f us/query, cached: %.2f us/query, parse time saved: %d ms",
+                p, c, cache.getParseSaved() / 1000000));
+        }
+    }
+}
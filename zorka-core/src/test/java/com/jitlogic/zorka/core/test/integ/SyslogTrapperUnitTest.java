@@ -0,0 +1,136 @@
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.core.integ.SyslogLib;
+import com.jitlogic.zorka.core.integ.SyslogTrapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SyslogTrapperUnitTest {
+
+    private static final String TSTAMP = "[A-Z][a-z]{2} \\d\\d \\d\\d:\\d\\d:\\d\\d";
+
+    private SyslogTrapper trapper;
+
+
+    @After
+    public void tearDown() {
+        if (trapper != null) {
+            trapper.close();
+            trapper.stop();
+        }
+    }
+
+
+    private static Date date(int month, int day, int hour, int min, int sec) {
+        Calendar c = Calendar.getInstance();
+        c.set(2019, month, day, hour, min, sec);
+        return c.getTime();
+    }
+
+
+    @Test
+    public void testFormatMessages() {
+        trapper = new SyslogTrapper("127.0.0.1", "myhost", SyslogLib.F_LOCAL0);
+
+        assertEquals("<171>Jan 05 13:04:05 myhost test Some message.",
+            trapper.format(SyslogLib.S_ERROR, SyslogLib.F_LOCAL5, date(Calendar.JANUARY, 5, 13, 4, 5),
+                "myhost", "test", "Some message."));
+
+        // Same second - cached timestamp
+        assertEquals("<134>Jan 05 13:04:05 myhost test Other message.",
+            trapper.format(SyslogLib.S_INFO, SyslogLib.F_LOCAL0, date(Calendar.JANUARY, 5, 13, 4, 5),
+                "myhost", "test", "Other message."));
+
+        // Next second
+        assertEquals("<134>Oct 18 23:59:06 myhost test Other message.",
+            trapper.format(SyslogLib.S_INFO, SyslogLib.F_LOCAL0, date(Calendar.OCTOBER, 18, 23, 59, 6),
+                "myhost", "test", "Other message."));
+
+        // Non-ASCII characters are replaced
+        assertEquals("<134>Oct 18 23:59:06 myhost test Zazolc",
+            trapper.format(SyslogLib.S_INFO, SyslogLib.F_LOCAL0, date(Calendar.OCTOBER, 18, 23, 59, 6),
+                "myhost", "test", "Za\u017c\u00f3\u0142\u0107"));
+    }
+
+
+    @Test
+    public void testSendUdpPackets() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setSoTimeout(5000);
+
+        try {
+            trapper = new SyslogTrapper("127.0.0.1:" + receiver.getLocalPort(), "myhost", SyslogLib.F_LOCAL0);
+            trapper.start();
+
+            trapper.log(SyslogLib.S_ERROR, SyslogLib.F_LOCAL5, "test", "Some test message.");
+            trapper.log(SyslogLib.S_INFO, SyslogLib.F_LOCAL0, "otherhost", "tag", "Second message.");
+
+            List<String> msgs = new ArrayList<String>();
+            for (int i = 0; i < 2; i++) {
+                DatagramPacket p = new DatagramPacket(new byte[4096], 4096);
+                receiver.receive(p);
+                msgs.add(new String(p.getData(), 0, p.getLength(), "US-ASCII"));
+            }
+
+            assertTrue(msgs.get(0), msgs.get(0).matches("<171>" + TSTAMP + " myhost test Some test message\\."));
+            assertTrue(msgs.get(1), msgs.get(1).matches("<134>" + TSTAMP + " otherhost tag Second message\\."));
+        } finally {
+            receiver.close();
+        }
+    }
+
+
+    @Test
+    public void testSendOctetCountedMessagesOverTcp() throws Exception {
+        ServerSocket ss = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+
+        try {
+            trapper = new SyslogTrapper("tcp://127.0.0.1:" + ss.getLocalPort(), "myhost", SyslogLib.F_LOCAL0);
+            trapper.start();
+
+            for (int i = 0; i < 100; i++) {
+                trapper.log(SyslogLib.S_ERROR, SyslogLib.F_LOCAL5, "test", "Message #" + i);
+            }
+
+            ss.setSoTimeout(5000);
+            Socket s = ss.accept();
+            s.setSoTimeout(5000);
+            InputStream is = s.getInputStream();
+
+            for (int i = 0; i < 100; i++) {
+                ByteArrayOutputStream len = new ByteArrayOutputStream();
+                for (int b = is.read(); b != ' '; b = is.read()) {
+                    assertTrue("unexpected end of stream", b >= 0);
+                    len.write(b);
+                }
+                int n = Integer.parseInt(len.toString("US-ASCII"));
+                byte[] data = new byte[n];
+                for (int pos = 0; pos < n; ) {
+                    int r = is.read(data, pos, n - pos);
+                    assertTrue("unexpected end of stream", r >= 0);
+                    pos += r;
+                }
+                String msg = new String(data, "US-ASCII");
+                assertTrue(msg, msg.matches("<171>" + TSTAMP + " myhost test Message #" + i));
+            }
+
+            s.close();
+        } finally {
+            ss.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResult;
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResultQueue;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixActiveSenderTask;
+import com.jitlogic.zorka.core.test.support.FakeZabbixServer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+/**
+ * Measures active sender throughput against fake zabbix server on loopback interface:
+ * fixed small batches with connection per batch vs. adaptive batches over persistent
+ * connection. Run manually.
+ */
+public class ZabbixActiveSenderManualTest extends ZorkaFixture {
+
+    private static final int RESULTS = 50000;
+
+
+    private double run(boolean keepAlive, int maxBatch) throws Exception {
+        config.setCfg("zabbix.active.keepalive", keepAlive ? "yes" : "no");
+        config.setCfg("zabbix.active.batch.max", "" + maxBatch);
+
+        FakeZabbixServer server = new FakeZabbixServer(keepAlive);
+        ActiveCheckResultQueue queue = new ActiveCheckResultQueue();
+        ZabbixActiveSenderTask sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"),
+            server.getPort(), queue, null, 10, config);
+
+        for (int i = 0; i < RESULTS; i++) {
+            ActiveCheckResult r = new ActiveCheckResult();
+            r.setHost("test.host");
+            r.setKey("jmx[\"java.lang:type=Memory\",\"HeapMemoryUsage\",\"used\",\"" + i + "\"]");
+            r.setValue("" + (i * 1024));
+            r.setClock(1500000000L + i);
+            queue.offer(r);
+        }
+
+        long t0 = System.nanoTime();
+        sender.run();
+        long t = System.nanoTime() - t0;
+
+        sender.close();
+        server.close();
+
+        if (server.getReceived() != RESULTS) {
+            System.out.println("Not all results received: " + server.getReceived());
+        }
+
+        System.out.println(String.format("  connections=%d, messages=%d, batch=%d",
+            server.getConnections(), server.getMessages(), sender.getBatchSize()));
+
+        return RESULTS * 1000000000.0 / t;
+    }
+
+
+    @Test
+    public void benchmarkSenderThroughput() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            double fixed = run(false, 10);
+            double adaptive = run(true, 1000);
+            System.out.println(String.format("fixed batches: %.0f results/s, adaptive+persistent: %.0f results/s",
+                fixed, adaptive));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResult;
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResultQueue;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixActiveSenderTask;
+import com.jitlogic.zorka.core.test.support.FakeZabbixServer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZabbixActiveSenderUnitTest extends ZorkaFixture {
+
+    private FakeZabbixServer server;
+    private ZabbixActiveSenderTask sender;
+    private ActiveCheckResultQueue queue = new ActiveCheckResultQueue();
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (sender != null) {
+            sender.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+
+    private void start(boolean persistent, int minBatch) throws Exception {
+        server = new FakeZabbixServer(persistent);
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), server.getPort(),
+            queue, null, minBatch, config);
+    }
+
+
+    private void enqueue(int n) {
+        for (int i = 0; i < n; i++) {
+            ActiveCheckResult r = new ActiveCheckResult();
+            r.setHost("test.host");
+            r.setKey("test.key[" + i + "]");
+            r.setValue("" + i);
+            r.setClock(1500000000L);
+            queue.offer(r);
+        }
+    }
+
+
+    @Test
+    public void testSendWholeQueueOverSingleConnection() throws Exception {
+        start(true, 10);
+        enqueue(500);
+        sender.run();
+
+        assertEquals(0, queue.size());
+        assertEquals(500, server.getReceived());
+        assertEquals(1, server.getConnections());
+        assertTrue("batch size should grow", sender.getBatchSize() > 10);
+        assertTrue(server.getMessages() < 50);
+
+        enqueue(5);
+        sender.run();
+        assertEquals(505, server.getReceived());
+        assertEquals(1, server.getConnections());
+    }
+
+
+    @Test
+    public void testFallBackToConnectionPerBatch() throws Exception {
+        start(false, 10);
+        enqueue(100);
+        sender.run();
+
+        assertEquals(0, queue.size());
+        assertEquals(100, server.getReceived());
+        assertFalse(sender.isPersistent());
+        assertEquals(server.getMessages(), server.getConnections());
+    }
+
+
+    @Test
+    public void testReconnectAfterIdleConnectionClosedByServer() throws Exception {
+        start(false, 10);
+        enqueue(5);
+        sender.run();
+        Thread.sleep(1200);
+        enqueue(5);
+        sender.run();
+
+        assertEquals(10, server.getReceived());
+        assertEquals(2, server.getMessages());
+        assertTrue("closed idle connection is not a reason to stop reusing connections", sender.isPersistent());
+    }
+
+
+    @Test
+    public void testDoNotResendBatchAfterResponseTimeout() throws Exception {
+        config.setCfg("zabbix.active.sender.timeout", "100");
+        start(true, 10);
+        enqueue(5);
+        sender.run();
+        assertEquals(5, server.getReceived());
+
+        server.setDelay(500);
+        enqueue(5);
+        sender.run();
+        Thread.sleep(200);
+
+        assertEquals("batch must not be resent right after timeout", 10, server.getReceived());
+        assertEquals(2, server.getMessages());
+        assertEquals(1, server.getConnections());
+        assertEquals("results stay queued for next cycle", 5, queue.size());
+        assertTrue(sender.isPersistent());
+    }
+
+
+    @Test
+    public void testShrinkBatchWhenServerIsSlow() throws Exception {
+        config.setCfg("zabbix.active.batch.rtt", "20");
+        start(true, 5);
+        enqueue(500);
+        sender.run();
+        int grown = sender.getBatchSize();
+        assertTrue(grown > 5);
+
+        server.setDelay(50);
+        enqueue(grown * 2);
+        sender.run();
+
+        assertTrue(sender.getBatchSize() < grown);
+        assertEquals(500 + grown * 2, server.getReceived());
+    }
+
+
+    @Test
+    public void testShrinkBatchWhenQueueIsShallow() throws Exception {
+        start(true, 5);
+        enqueue(500);
+        sender.run();
+        int grown = sender.getBatchSize();
+
+        enqueue(1);
+        sender.run();
+        assertEquals(Math.max(5, grown / 2), sender.getBatchSize());
+    }
+
+
+    @Test
+    public void testResultQueueDepthCounter() {
+        enqueue(10);
+        assertEquals(10, queue.size());
+        assertNotNull(queue.poll());
+        assertEquals(9, queue.size());
+
+        List<ActiveCheckResult> lst = new ArrayList<ActiveCheckResult>();
+        assertEquals(3, queue.copy(lst, 3));
+        assertEquals(9, queue.size());
+        assertEquals(3, queue.remove(3));
+        assertEquals(6, queue.size());
+        assertEquals(6, queue.drain(lst, 100));
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+
+        enqueue(3);
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,182 @@
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixNioAgent;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixQueryTranslator;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ZabbixNioAgentUnitTest extends ZorkaFixture {
+
+    private ExecutorService executor;
+    private ZabbixNioAgent agent;
+    private Socket socket;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        config.setCfg("zabbix.listen.addr", "127.0.0.1");
+        config.setCfg("zabbix.listen.port", "0");
+        config.setCfg("zabbix.server.addr", "127.0.0.1");
+        zorkaAgent.eval("ping = 42; slow(t) { Thread.sleep(t); return \"slow\"; }");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (socket != null) {
+            socket.close();
+        }
+        if (agent != null) {
+            agent.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    private void startAgent() throws Exception {
+        agent = new ZabbixNioAgent(config, zorkaAgent, new ZabbixQueryTranslator(), executor);
+        agent.restart();
+        assertTrue("agent should be listening", agent.getPort() > 0);
+        socket = new Socket("127.0.0.1", agent.getPort());
+        socket.setSoTimeout(5000);
+    }
+
+    private static byte[] req(String query) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write('Z'); os.write('B'); os.write('X'); os.write('D'); os.write(1);
+        long len = query.length();
+        for (int i = 0; i < 8; i++) {
+            os.write((int) (len >> (i * 8)) & 0xff);
+        }
+        for (char c : query.toCharArray()) {
+            os.write(c);
+        }
+        return os.toByteArray();
+    }
+
+    private void send(byte[]... reqs) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte[] r : reqs) {
+            os.write(r);
+        }
+        socket.getOutputStream().write(os.toByteArray());
+        socket.getOutputStream().flush();
+    }
+
+    private String recv() throws Exception {
+        DataInputStream is = new DataInputStream(socket.getInputStream());
+        byte[] hdr = new byte[13];
+        is.readFully(hdr);
+        assertEquals("ZBXD", new String(hdr, 0, 4, "ISO-8859-1"));
+        long len = 0;
+        for (int i = 0; i < 8; i++) {
+            len |= (hdr[5 + i] & 0xffL) << (i * 8);
+        }
+        byte[] data = new byte[(int) len];
+        is.readFully(data);
+        return new String(data, "ISO-8859-1");
+    }
+
+    private boolean isClosed() throws Exception {
+        InputStream is = socket.getInputStream();
+        try {
+            return is.read() == -1;
+        } catch (SocketException e) {
+            return true; // connection reset
+        }
+    }
+
+
+    @Test
+    public void testSingleRequestAndClose() throws Exception {
+        startAgent();
+        send(req("ping"));
+        assertEquals("42", recv());
+        assertTrue("connection should be closed", isClosed());
+    }
+
+
+    @Test
+    public void testLegacyLineRequest() throws Exception {
+        startAgent();
+        send("ping\r\n".getBytes("ISO-8859-1"));
+        assertEquals("42", recv());
+        assertTrue("connection should be closed", isClosed());
+    }
+
+
+    @Test
+    public void testPipelinedRequestsAnsweredInOrder() throws Exception {
+        config.setCfg("zabbix.keepalive", "yes");
+        startAgent();
+
+        send(req("slow[200]"), req("ping"), "ping\n".getBytes("ISO-8859-1"), req("nonexistent__func[]"));
+
+        assertEquals("slow", recv());
+        assertEquals("42", recv());
+        assertEquals("42", recv());
+        assertEquals("ZBX_NOTSUPPORTED", recv());
+
+        // Connection is still usable
+        send(req("ping"));
+        assertEquals("42", recv());
+    }
+
+
+    @Test
+    public void testRequestSplitBetweenReads() throws Exception {
+        config.setCfg("zabbix.keepalive", "yes");
+        startAgent();
+
+        byte[] r = req("ping");
+        for (byte b : r) {
+            send(new byte[] { b });
+            Thread.sleep(5);
+        }
+
+        assertEquals("42", recv());
+    }
+
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        config.setCfg("zorka.req.timeout", "200");
+        startAgent();
+        long t = System.currentTimeMillis();
+        send(req("slow[3000]"));
+        assertEquals("ZBX_NOTSUPPORTED", recv());
+        assertTrue("should time out quickly", System.currentTimeMillis() - t < 2000);
+    }
+
+
+    @Test
+    public void testTooLongRequestClosesConnection() throws Exception {
+        config.setCfg("zabbix.keepalive", "yes");
+        startAgent();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append('x');
+        }
+        send(req(sb.toString()));
+        assertTrue("connection should be closed", isClosed());
+    }
+
+
+    @Test
+    public void testRejectConnectionFromIllegalAddress() throws Exception {
+        config.setCfg("zabbix.server.addr", "10.1.2.3");
+        startAgent();
+        send(req("ping"));
+        assertTrue("connection should be closed", isClosed());
+    }
+}
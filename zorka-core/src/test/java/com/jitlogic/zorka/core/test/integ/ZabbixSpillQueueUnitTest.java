@@ -0,0 +1,181 @@
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResult;
+import com.jitlogic.zorka.core.integ.zabbix.ActiveCheckResultQueue;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixActiveSenderTask;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixSpillQueue;
+import com.jitlogic.zorka.core.test.support.FakeZabbixServer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZabbixSpillQueueUnitTest extends ZorkaFixture {
+
+    private File spillDir;
+    private FakeZabbixServer server;
+
+
+    @Before
+    public void setUp() {
+        spillDir = new File(tmpDir, "spill");
+        for (int i : new int[] { AgentDiagnostics.ZABBIX_SPILLED, AgentDiagnostics.ZABBIX_REPLAYED, AgentDiagnostics.ZABBIX_DISCARDED }) {
+            AgentDiagnostics.clear(i);
+        }
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+
+    private static ActiveCheckResult acr(String key, String value) {
+        ActiveCheckResult r = new ActiveCheckResult();
+        r.setHost("test.host");
+        r.setKey(key);
+        r.setValue(value);
+        r.setClock(1500000000L);
+        return r;
+    }
+
+
+    private static List<ActiveCheckResult> results(int n) {
+        List<ActiveCheckResult> rslt = new ArrayList<ActiveCheckResult>();
+        for (int i = 0; i < n; i++) {
+            rslt.add(acr("test.key[" + i + "]", "v" + i));
+        }
+        return rslt;
+    }
+
+
+    @Test
+    public void testSpillAndPeekSegmentsInOrder() {
+        ZabbixSpillQueue q = new ZabbixSpillQueue(spillDir, 1024 * 1024, 3600000, 4);
+        assertEquals(10, q.spill(results(10)));
+        assertEquals(10, q.getRecords());
+        assertEquals(3, q.getSegments());
+
+        List<ActiveCheckResult> r = q.peek();
+        assertEquals(4, r.size());
+        assertEquals("test.key[0]", r.get(0).getKey());
+        assertEquals("v0", r.get(0).getValue());
+        assertEquals("test.host", r.get(0).getHost());
+        assertEquals(1500000000L, r.get(0).getClock());
+
+        // Not committed - the same segment is returned
+        assertEquals("test.key[0]", q.peek().get(0).getKey());
+
+        q.commit();
+        assertEquals("test.key[4]", q.peek().get(0).getKey());
+        q.commit();
+        assertEquals(2, q.peek().size());
+        q.commit();
+
+        assertNull(q.peek());
+        assertTrue(q.isEmpty());
+        assertEquals(10, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_REPLAYED));
+        assertEquals(0, spillDir.list().length);
+    }
+
+
+    @Test
+    public void testSpilledResultsSurviveRestartAndTornRecords() throws Exception {
+        ZabbixSpillQueue q1 = new ZabbixSpillQueue(spillDir, 1024 * 1024, 3600000, 100);
+        q1.spill(results(3));
+        q1.close();
+
+        // Simulate crash in the middle of write
+        FileOutputStream os = new FileOutputStream(new File(spillDir, spillDir.list()[0]), true);
+        os.write("{\"host\":\"test.host\",\"key\":\"bro".getBytes("UTF-8"));
+        os.close();
+
+        ZabbixSpillQueue q2 = new ZabbixSpillQueue(spillDir, 1024 * 1024, 3600000, 100);
+        assertEquals(3, q2.getRecords());
+        q2.spill(results(2));
+        assertEquals(2, q2.getSegments());
+
+        assertEquals(3, q2.peek().size());
+        q2.commit();
+        assertEquals(2, q2.peek().size());
+        q2.commit();
+        assertTrue(q2.isEmpty());
+    }
+
+
+    @Test
+    public void testDiscardOldestSegmentsWhenSizeExceeded() {
+        ZabbixSpillQueue q = new ZabbixSpillQueue(spillDir, 1000, 3600000, 5);
+        q.spill(results(50));
+
+        assertTrue(q.getSize() <= 1000);
+        assertTrue(AgentDiagnostics.get(AgentDiagnostics.ZABBIX_DISCARDED) > 0);
+        assertEquals(50, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_SPILLED));
+        assertEquals(50, q.getRecords() + AgentDiagnostics.get(AgentDiagnostics.ZABBIX_DISCARDED));
+
+        // Newest results are retained
+        List<ActiveCheckResult> last = null, r;
+        while ((r = q.peek()) != null) {
+            last = r;
+            q.commit();
+        }
+        assertEquals("test.key[49]", last.get(last.size() - 1).getKey());
+    }
+
+
+    @Test
+    public void testDiscardExpiredSegments() throws Exception {
+        ZabbixSpillQueue q = new ZabbixSpillQueue(spillDir, 1024 * 1024, 50, 5);
+        q.spill(results(10));
+        Thread.sleep(100);
+        assertNull(q.peek());
+        assertEquals(10, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_DISCARDED));
+        assertEquals(0, spillDir.list().length);
+    }
+
+
+    @Test
+    public void testSenderSpillsWhenServerDownAndReplaysWhenBack() throws Exception {
+        // Reserve port and close it, so connections are refused
+        server = new FakeZabbixServer(false);
+        int port = server.getPort();
+        server.close();
+
+        ActiveCheckResultQueue queue = new ActiveCheckResultQueue();
+        ZabbixSpillQueue spill = new ZabbixSpillQueue(spillDir, 1024 * 1024, 3600000, 4);
+        ZabbixActiveSenderTask sender = new ZabbixActiveSenderTask(
+            InetAddress.getByName("127.0.0.1"), port, queue, spill, 5, config);
+
+        queue.addAll(results(10));
+        sender.run();
+
+        assertTrue("in-memory queue should be spilled", queue.isEmpty());
+        assertEquals(10, spill.getRecords());
+        assertEquals(10, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_SPILLED));
+
+        server = new FakeZabbixServer(false);
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), server.getPort(), queue, spill, 5, config);
+
+        queue.addAll(results(3));
+        sender.run();
+
+        assertTrue(queue.isEmpty());
+        assertTrue(spill.isEmpty());
+        assertEquals(13, server.getReceived());
+        assertEquals(4, server.getMessages());  // fresh batch + 3 spilled segments
+        assertEquals(10, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_REPLAYED));
+        assertEquals(0, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_DISCARDED));
+    }
+}
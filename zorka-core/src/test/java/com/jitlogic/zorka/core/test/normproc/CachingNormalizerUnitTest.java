@@ -0,0 +1,109 @@
+package com.jitlogic.zorka.core.test.normproc;
+
+import com.jitlogic.zorka.core.normproc.CachingNormalizer;
+import com.jitlogic.zorka.core.normproc.GenericNormalizer;
+import com.jitlogic.zorka.core.normproc.NormLib;
+import com.jitlogic.zorka.core.normproc.Normalizer;
+import com.jitlogic.zorka.core.spy.plugins.NormalizingProcessor;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.jitlogic.zorka.core.normproc.NormLib.*;
+import static org.junit.Assert.*;
+
+public class CachingNormalizerUnitTest {
+
+    private static class CountingNormalizer implements Normalizer {
+        private Normalizer normalizer = GenericNormalizer.xql(DIALECT_SQL_99, NORM_STD);
+        private int calls;
+
+        @Override
+        public String normalize(String input, Object... params) {
+            calls++;
+            return normalizer.normalize(input, params);
+        }
+    }
+
+
+    @Test
+    public void testCachedResultsAreSameAsNormalized() {
+        CountingNormalizer cn = new CountingNormalizer();
+        CachingNormalizer normalizer = new CachingNormalizer(cn, 1024, 65536);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("select ff from mytab where x=?",
+                normalizer.normalize(" SELECT ff\n FROM mytab WHERE x = 'abc'\n"));
+        }
+
+        assertNull(normalizer.normalize(null));
+
+        assertEquals(1, cn.calls);
+        assertEquals(9, normalizer.getHits());
+        assertEquals(1, normalizer.getMisses());
+        assertEquals(1, normalizer.getSize());
+        assertEquals(90.0, normalizer.getHitRatio(), 0.001);
+    }
+
+
+    @Test
+    public void testEntryLimitEvictsLeastRecentlyUsed() {
+        CountingNormalizer cn = new CountingNormalizer();
+        CachingNormalizer normalizer = new CachingNormalizer(cn, 32, 1024 * 1024);
+
+        for (int i = 0; i < 1000; i++) {
+            normalizer.normalize("select * from tab" + i);
+        }
+
+        assertTrue(normalizer.getSize() <= 32);
+        assertEquals(1000 - normalizer.getSize(), normalizer.getEvictions());
+
+        cn.calls = 0;
+        normalizer.normalize("select * from tab999");
+        assertEquals("most recent query is still cached", 0, cn.calls);
+        normalizer.normalize("select * from tab0");
+        assertEquals("oldest query has been evicted", 1, cn.calls);
+    }
+
+
+    @Test
+    public void testMemoryLimit() {
+        CachingNormalizer normalizer = new CachingNormalizer(new CountingNormalizer(), 100000, 16 * 1024);
+
+        StringBuilder sb = new StringBuilder("select a");
+        for (int i = 0; i < 2000; i++) {
+            sb.append(",a");
+        }
+        normalizer.normalize(sb.toString());
+        assertEquals("too long strings are not cached", 0, normalizer.getSize());
+
+        for (int i = 0; i < 10000; i++) {
+            normalizer.normalize("select * from tab" + i + " where id = " + i);
+        }
+
+        assertTrue(normalizer.getChars() <= 16 * 1024);
+        assertTrue(normalizer.getSize() > 0);
+
+        normalizer.clear();
+        assertEquals(0, normalizer.getSize());
+        assertEquals(0, normalizer.getChars());
+    }
+
+
+    @Test
+    public void testCachedNormalizerInProcessor() {
+        Normalizer normalizer = new NormLib().cached(new NormLib().sql(DIALECT_SQL_99, NORM_STD));
+        NormalizingProcessor proc = new NormalizingProcessor("S", "D", normalizer);
+
+        for (int i = 0; i < 2; i++) {
+            Map<String,Object> rec = new HashMap<String, Object>();
+            rec.put("S", "SELECT * FROM tab WHERE id = 1");
+            proc.process(rec);
+            assertEquals("select * from tab where id=?", rec.get("D"));
+        }
+
+        assertEquals(1L, ((CachingNormalizer)normalizer).getHits());
+    }
+}
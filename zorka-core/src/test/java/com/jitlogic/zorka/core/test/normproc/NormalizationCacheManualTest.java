@@ -0,0 +1,80 @@
+package com.jitlogic.zorka.core.test.normproc;
+
+import com.jitlogic.zorka.core.normproc.CachingNormalizer;
+import com.jitlogic.zorka.core.normproc.GenericNormalizer;
+import com.jitlogic.zorka.core.normproc.Normalizer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static com.jitlogic.zorka.core.normproc.NormLib.*;
+
+/**
+ * Measures SQL normalization throughput with and without normalization cache, for a typical
+ * application workload (limited set of query texts issued repeatedly). Run manually.
+ */
+public class NormalizationCacheManualTest {
+
+    private static final int ITERATIONS = 1000000;
+    private static final int QUERIES = 2000;
+
+    private static String[] queries() {
+        String[] queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = "SELECT c.id, c.name, c.email, o.total FROM customers" + i + " c\n"
+                + "  JOIN orders o ON o.customer_id = c.id\n"
+                + " WHERE c.status = 'ACTIVE' AND o.total > 100 /* report " + i + " */ ORDER BY o.total DESC";
+        }
+        return queries;
+    }
+
+    private static double run(int nthreads, final Normalizer normalizer, final String[] queries) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(nthreads);
+
+        for (int t = 0; t < nthreads; t++) {
+            final int seed = t * 7919;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        int len = 0;
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            len += normalizer.normalize(queries[(i + seed) % queries.length]).length();
+                        }
+                        if (len == 0) {
+                            System.out.println("Empty results ?");
+                        }
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long t1 = System.nanoTime();
+
+        return (double) nthreads * ITERATIONS * 1000 / (t1 - t0);
+    }
+
+    @Test
+    public void benchmarkNormalizationCache() throws Exception {
+        String[] queries = queries();
+        Normalizer plain = GenericNormalizer.xql(DIALECT_SQL_99, NORM_STD);
+
+        for (int nthreads = 1; nthreads <= 8; nthreads *= 2) {
+            CachingNormalizer cached = new CachingNormalizer(plain,
+                CachingNormalizer.DEFAULT_MAX_ENTRIES, CachingNormalizer.DEFAULT_MAX_CHARS);
+
+            double p = run(nthreads, plain, queries);
+            double c = run(nthreads, cached, queries);
+
+            System.out.println(String.format("threads=%d: plain %.3f Mops/s, cached %.3f Mops/s (hit ratio %.2f%%)",
+                nthreads, p, c, cached.getHitRatio()));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.jitlogic.zorka.core.test.normproc;
+
+import com.jitlogic.zorka.core.normproc.GenericNormalizer;
+import com.jitlogic.zorka.core.normproc.Normalizer;
+import com.jitlogic.zorka.core.normproc.Token;
+import com.jitlogic.zorka.core.normproc.XqlLexer;
+
+import org.junit.Test;
+
+import static com.jitlogic.zorka.core.normproc.NormLib.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares throughput of SQL normalization through token API (Lexer iterator creating Token objects,
+ * StringBuffer output) with cursor based GenericNormalizer, for short statements and for long IN-lists.
+ * Run manually.
+ * <p/>
+ * Note that this is NOT a comparison against normalizer from before cursor API was introduced: token
+ * path here runs on current lexer (faster state machine loop, keyword matching without substrings),
+ * so it only shows what skipping Token objects buys. To measure against previous implementation, run
+ * the same queries through GenericNormalizer built from older revision.
+ */
+public class NormalizationThroughputManualTest {
+
+    /** Token based normalization on top of current lexer (Lexer.next(), StringBuffer), NORM_STD flags only. */
+    private static class TokenNormalizer implements Normalizer {
+        private static final boolean[] JOIN_AFTER_SYMBOL = { false, false, true, false, true, false, true, false };
+        private static final boolean[] JOIN_AFTER_KEYWORD = { false, false, true, true, true, false, true, false };
+
+        private XqlLexer template = new XqlLexer(DIALECT_SQL_99, "");
+
+        @Override
+        public String normalize(String input, Object... params) {
+            StringBuffer sb = new StringBuffer(input.length() + 2);
+            int last = XqlLexer.T_UNKNOWN;
+            for (Token token : template.lex(input)) {
+                int t = token.getType();
+                String s = token.getText();
+                switch (t) {
+                    case XqlLexer.T_UNKNOWN:
+                    case XqlLexer.T_WHITESPACE:
+                    case XqlLexer.T_COMMENT:
+                        continue;
+                    case XqlLexer.T_LITERAL:
+                        s = "?";
+                        break;
+                    case XqlLexer.T_SYMBOL:
+                    case XqlLexer.T_KEYWORD:
+                        s = s.toLowerCase();
+                        break;
+                }
+                if ((last == XqlLexer.T_SYMBOL || last == XqlLexer.T_LITERAL) && JOIN_AFTER_SYMBOL[t]
+                    || last == XqlLexer.T_OPERATOR && t == XqlLexer.T_KEYWORD
+                    || last == XqlLexer.T_KEYWORD && JOIN_AFTER_KEYWORD[t]) {
+                    sb.append(" ");
+                }
+                sb.append(s);
+                last = t;
+            }
+            return sb.toString();
+        }
+    }
+
+    private static String inList(int n) {
+        StringBuilder sb = new StringBuilder("SELECT o.id, o.status, o.total FROM orders o WHERE o.customer_id IN ( 0");
+        for (int i = 1; i < n; i++) {
+            sb.append(", ").append(i * 7919);
+        }
+        return sb.append(" ) AND o.status = 'OPEN'").toString();
+    }
+
+    private static double run(Normalizer normalizer, String query, int iterations) {
+        long t0 = System.nanoTime();
+        int len = 0;
+        for (int i = 0; i < iterations; i++) {
+            len += normalizer.normalize(query).length();
+        }
+        long t1 = System.nanoTime();
+        assertTrue(len > 0);
+        return (double) iterations * query.length() * 1000 / (t1 - t0);
+    }
+
+    @Test
+    public void benchmarkNormalizationThroughput() {
+        Normalizer tokens = new TokenNormalizer(), cursor = GenericNormalizer.xql(DIALECT_SQL_99, NORM_STD);
+
+        String[] queries = {
+            "SELECT c.id, c.name FROM customers c WHERE c.status = 'ACTIVE' AND c.id = 42",
+            inList(100),
+            inList(10000)
+        };
+
+        for (String q : queries) {
+            assertEquals(tokens.normalize(q), cursor.normalize(q));
+            int iterations = 200000000 / q.length();
+
+            for (int pass = 0; pass < 3; pass++) {
+                double t = run(tokens, q, iterations), c = run(cursor, q, iterations);
+                System.out.println(String.format("length=%d: token API %.1f Mchars/s, cursor %.1f Mchars/s (%.1fx)",
+                    q.length(), t, c, c / t));
+            }
+        }
+    }
+}
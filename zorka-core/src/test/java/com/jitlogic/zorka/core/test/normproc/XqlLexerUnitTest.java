@@ -123,6 +123,21 @@ public class XqlLexerUnitTest extends LexerFixture {
             lex("select * from mytab where myfield = 'abc'"));
     }
 
+    @Test
+    public void testCursorMatchesTokens() {
+        String input = "SELECT a.id, B.Name FROM tab WHERE x IN (1, -2.5, 'a''b') /* c */ AND y = :p OR z = ?";
+        XqlLexer lexer = new XqlLexer(DIALECT_SQL_99, input);
+        List<Token> tokens = new ArrayList<Token>();
+
+        while (lexer.advance()) {
+            tokens.add(new Token(lexer.type(), input.substring(lexer.start(), lexer.end())));
+        }
+
+        assertEquals(lex(input), tokens);
+        assertFalse(lexer.advance());
+        assertEquals(k("SELECT"), tokens.get(0));
+    }
+
     @Test
     public void testXqlKeywordSets() {
         for (Set<String> kwset : XqlLexer.keywordSets) {
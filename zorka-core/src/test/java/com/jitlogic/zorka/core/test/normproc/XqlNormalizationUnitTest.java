@@ -41,6 +41,23 @@ public class XqlNormalizationUnitTest {
         assertEquals("select * from mytab",
                 normalizer.normalize(" SELECT\n * FROM mytab"));
     }
+
+    @Test
+    public void testNormalizeLiteralsAndComments() {
+        assertEquals("select a.id,b.name from a join b on a.id=b.aid where a.x in (?,?,?) and b.y=?",
+            normalizer.normalize("SELECT a.id, b.name FROM a JOIN b ON a.id = b.aid WHERE a.x IN ( 1, -2.5, 'x''y' ) AND b.y = ?"));
+    }
+
+    @Test
+    public void testNormalizeLongInList() {
+        StringBuilder in = new StringBuilder("select * from tab where id in ( 0"), out = new StringBuilder("select * from tab where id in (?");
+        for (int i = 1; i < 10000; i++) {
+            in.append(", ").append(i);
+            out.append(",?");
+        }
+        assertEquals(out + ")", normalizer.normalize(in + " )"));
+    }
+
     // TODO normalize white spaces only
 
     // TODO normalize white spaces and symbols
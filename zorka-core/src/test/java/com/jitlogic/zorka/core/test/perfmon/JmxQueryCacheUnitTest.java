@@ -0,0 +1,222 @@
+package com.jitlogic.zorka.core.test.perfmon;
+
+import com.jitlogic.zorka.common.test.support.TestJmx;
+import com.jitlogic.zorka.core.mbeans.ZorkaMappedMBean;
+import com.jitlogic.zorka.core.perfmon.QueryDef;
+import com.jitlogic.zorka.core.perfmon.QueryLister;
+import com.jitlogic.zorka.core.perfmon.QueryResult;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JmxQueryCacheUnitTest extends ZorkaFixture {
+
+    private static final int BEANS = 2000;
+
+    private MBeanServer mbs;
+    private Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** Attributes omitted from getAttributes() results (as if they failed to read). */
+    private Set<String> omitted = new HashSet<String>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        mbs = MBeanServerFactory.newMBeanServer();
+
+        for (int i = 0; i < BEANS; i++) {
+            register("synthetic:type=Pool,name=pool" + i, i);
+        }
+
+        final MBeanServer target = mbs;
+        MBeanServer counted = (MBeanServer) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { MBeanServer.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    AtomicInteger cnt = calls.get(method.getName());
+                    if (cnt == null) {
+                        cnt = new AtomicInteger();
+                        calls.put(method.getName(), cnt);
+                    }
+                    cnt.incrementAndGet();
+                    try {
+                        Object rslt = method.invoke(target, args);
+                        if ("getAttributes".equals(method.getName()) && !omitted.isEmpty()) {
+                            AttributeList lst = new AttributeList();
+                            for (Attribute attr : ((AttributeList) rslt).asList()) {
+                                if (!omitted.contains(attr.getName())) {
+                                    lst.add(attr);
+                                }
+                            }
+                            rslt = lst;
+                        }
+                        return rslt;
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+
+        mBeanServerRegistry.register("counted", counted, null);
+    }
+
+
+    @After
+    public void tearDown() {
+        mBeanServerRegistry.unregister("counted");
+    }
+
+
+    private void register(String name, long nom) throws Exception {
+        TestJmx bean = new TestJmx();
+        bean.setNom(nom);
+        bean.setDiv(1);
+        mbs.registerMBean(bean, new ObjectName(name));
+    }
+
+
+    private int calls(String method) {
+        AtomicInteger cnt = calls.get(method);
+        return cnt != null ? cnt.get() : 0;
+    }
+
+
+    @Test
+    public void testListMultipleAttrsWithOneCallPerObject() {
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+            new QueryDef("counted", "synthetic:type=Pool,*", "name").listAs("Nom|Div", "attr"));
+
+        List<QueryResult> results = lister.list();
+        assertEquals(2 * BEANS, results.size());
+        assertEquals(1, calls("queryNames"));
+        assertEquals(BEANS, calls("getMBeanInfo"));
+        assertEquals(BEANS, calls("getAttributes"));
+        assertEquals(0, calls("getAttribute"));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2 * BEANS, lister.list().size());
+        }
+
+        assertEquals(1, calls("queryNames"));
+        assertEquals(BEANS, calls("getMBeanInfo"));
+        assertEquals(4 * BEANS, calls("getAttributes"));
+        assertEquals(0, calls("getAttribute"));
+    }
+
+
+    @Test
+    public void testFetchAttributesMissingFromReturnedList() {
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+            new QueryDef("counted", "synthetic:type=Pool,name=pool7", "name").listAs("Nom|Div", "attr"));
+
+        omitted.add("Div");
+        List<QueryResult> results = lister.list();
+        assertEquals(2, results.size());
+        assertEquals(1, calls("getAttribute"));
+
+        omitted.add("Nom");
+        results = lister.list();
+        assertEquals(2, results.size());
+        assertEquals(3, calls("getAttribute"));
+
+        Map<Object,Object> values = new HashMap<Object,Object>();
+        for (QueryResult r : results) {
+            values.put(r.getAttr("attr"), r.getValue());
+        }
+        assertEquals(7L, values.get("Nom"));
+        assertEquals(1L, values.get("Div"));
+    }
+
+
+    @Test
+    public void testCachedQuerySharedBetweenListers() {
+        QueryDef qdef = new QueryDef("counted", "synthetic:type=Pool,*", "name").get("Nom");
+
+        assertEquals(BEANS, new QueryLister(mBeanServerRegistry, qdef).list().size());
+        assertEquals(BEANS, new QueryLister(mBeanServerRegistry, qdef).list().size());
+
+        assertEquals(1, calls("queryNames"));
+        assertEquals(2 * BEANS, calls("getAttribute"));
+    }
+
+
+    @Test
+    public void testRegistrationInvalidatesMatchingQueries() throws Exception {
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+            new QueryDef("counted", "synthetic:type=Pool,*", "name").get("Nom"));
+
+        assertEquals(BEANS, lister.list().size());
+
+        // Bean not matching query does not invalidate cached names
+        register("other:type=Pool,name=other", 1);
+        assertEquals(BEANS, lister.list().size());
+        assertEquals(1, calls("queryNames"));
+
+        register("synthetic:type=Pool,name=extra", 42);
+        List<QueryResult> results = lister.list();
+        assertEquals(BEANS + 1, results.size());
+        assertEquals(2, calls("queryNames"));
+
+        boolean found = false;
+        for (QueryResult r : results) {
+            found |= "extra".equals(r.getAttr("name")) && Long.valueOf(42).equals(r.getValue());
+        }
+        assertTrue("newly registered bean should be listed", found);
+
+        mbs.unregisterMBean(new ObjectName("synthetic:type=Pool,name=pool0"));
+        assertEquals(BEANS, lister.list().size());
+        assertEquals(3, calls("queryNames"));
+    }
+
+
+    @Test
+    public void testAttributesAddedToDynamicMBeanAreListed() throws Exception {
+        ZorkaMappedMBean bean = new ZorkaMappedMBean("Dynamic bean");
+        bean.put("a1", 1L);
+        mbs.registerMBean(bean, new ObjectName("dynamic:type=Stats"));
+
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+            new QueryDef("counted", "dynamic:type=Stats", "type").listAs("a*", "attr"));
+
+        assertEquals(1, lister.list().size());
+
+        bean.put("a2", 2L);
+        assertEquals(2, lister.list().size());
+        assertEquals(1, calls("queryNames"));
+        assertEquals(2, calls("getAttributes"));
+    }
+
+
+    @Test
+    public void testCacheDroppedWhenMBeanServerUnregistered() {
+        QueryDef qdef = new QueryDef("counted", "synthetic:type=Pool,*", "name").get("Nom");
+        new QueryLister(mBeanServerRegistry, qdef).list();
+        assertEquals(1, mBeanServerRegistry.getQueryCache("counted").size());
+
+        mBeanServerRegistry.unregister("counted");
+        assertNull(mBeanServerRegistry.getQueryCache("counted"));
+
+        mBeanServerRegistry.register("counted", mbs, null);
+        assertEquals(0, mBeanServerRegistry.getQueryCache("counted").size());
+    }
+}
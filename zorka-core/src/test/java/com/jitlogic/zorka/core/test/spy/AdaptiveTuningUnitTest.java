@@ -0,0 +1,165 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.ZorkaSubmitter;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
+import com.jitlogic.zorka.core.spy.tuner.MethodRankMap;
+import com.jitlogic.zorka.core.spy.tuner.TraceTuningStats;
+import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
+import com.jitlogic.zorka.core.spy.tuner.ZtxMatcherSet;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.jitlogic.zorka.common.util.ObjectInspector.setField;
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.getField;
+import static org.junit.Assert.*;
+
+public class AdaptiveTuningUnitTest extends ZorkaFixture {
+
+    private static final long CPU = 2000000000L;
+
+    private TracerTuner tuner;
+    private ZtxMatcherSet matchers;
+    private int[] m;
+    private long t = 200;
+
+    public AdaptiveTuningUnitTest() {
+        configProperties.setProperty("tracer.tuner", "yes");
+        configProperties.setProperty("tracer.tuner.qlen", "0");
+        configProperties.setProperty("tracer.tuner.adaptive", "yes");
+        configProperties.setProperty("tracer.tuner.budget", "5");
+    }
+
+    @Before
+    public void setUpTuner() {
+        tuner = agentInstance.getTracerTuner();
+        matchers = agentInstance.getTracerMatcherSet();
+        setField(tuner, "interval", 100L);
+
+        tracer.output(new ZorkaSubmitter<SymbolicRecord>() {
+            @Override
+            public boolean submit(SymbolicRecord item) {
+                return true;
+            }
+        });
+
+        m = new int[3];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = symbols.methodId(symbols.symbolId("some.Class" + i), symbols.symbolId("someMethod"),
+                symbols.symbolId("()V"));
+        }
+
+        tuner.exchange(stats(0, 0, new int[0]));
+    }
+
+    private TraceTuningStats stats(long calls, long cpu, int[] ranks) {
+        TraceTuningStats ts = new TraceTuningStats();
+        ts.setThreadId(1);
+        ts.setTstamp(t);
+        ts.setCalls(calls);
+        ts.setCpuTime(cpu);
+        for (int i = 0; i < ranks.length; i++) {
+            for (int j = 0; j < ranks[i]; j++) {
+                ts.markRank(m[i], 1);
+            }
+            for (int j = 0; j < 10; j++) {
+                ts.addSample(m[i], 100);
+            }
+        }
+        return ts;
+    }
+
+    /** Submits stats and ends tuning cycle. */
+    private void cycle(long calls, long cpu, int... ranks) {
+        t += 50;
+        tuner.exchange(stats(calls, cpu, ranks));
+        t += 100;
+        tuner.exchange(stats(0, 0, new int[0]));
+    }
+
+    @Test
+    public void testExcludeMethodsWhenOverBudget() {
+        // 1M calls * 2 probes * 100ns = 10% of 2s CPU, so half of overhead has to go.
+        cycle(1000000, CPU, 600000, 300000, 1000);
+
+        assertEquals(10.0, tuner.getLastOverhead(), 0.01);
+        assertTrue(matchers.isExcluded(m[0]));
+        assertFalse(matchers.isExcluded(m[1]));
+        assertFalse(matchers.isExcluded(m[2]));
+        assertEquals(1, tuner.getAdaptiveExclusions());
+        assertTrue(spyRetransformer.getClassNames().contains("some.Class0"));
+        assertFalse(spyRetransformer.getClassNames().contains("some.Class1"));
+    }
+
+    @Test
+    public void testIncludeMethodsBackWhenOverheadDrops() {
+        cycle(1000000, CPU, 600000, 300000, 1000);
+        assertTrue(matchers.isExcluded(m[0]));
+
+        // Load has changed: much more CPU time, so excluded method fits in budget again
+        for (int i = 0; i < 9; i++) {
+            cycle(1000, 2 * CPU, 0, 1000, 0);
+            assertTrue("excluded methods are kept for some cycles", matchers.isExcluded(m[0]));
+        }
+
+        cycle(1000, 2 * CPU, 0, 1000, 0);
+        assertTrue(tuner.getLastOverhead() < 1.0);
+        assertFalse(matchers.isExcluded(m[0]));
+        assertEquals(0, tuner.getAdaptiveExclusions());
+    }
+
+    @Test
+    public void testNoExclusionsWithinBudget() {
+        cycle(100000, CPU, 60000, 30000, 1000);
+
+        assertEquals(1.0, tuner.getLastOverhead(), 0.01);
+        assertEquals(0, tuner.getAdaptiveExclusions());
+        assertFalse(matchers.isExcluded(m[0]));
+    }
+
+    @Test
+    public void testHandlerSamplesTracerOverhead() throws Exception {
+        assertEquals(64, TraceHandler.getTuningSampleInterval());
+        TraceHandler.setTuningEnabled(true);
+        TraceHandler.setTuningSampleInterval(1);
+
+        for (int i = 0; i < 100; i++) {
+            MainSubmitter.traceEnter(m[0]);
+            MainSubmitter.traceReturn();
+        }
+
+        TraceTuningStats ts = getField(agentInstance.getTracer().getHandler(), "tunStats");
+        assertNotNull(ts);
+        assertTrue("should collect overhead samples", ts.getSampleCount() >= 50);
+        assertTrue(ts.getSampleTime() > 0);
+    }
+
+    @Test
+    public void testReturnSamplesAttributedToReturningMethod() throws Exception {
+        TraceHandler.setTuningEnabled(true);
+        TraceHandler.setTuningSampleInterval(1);
+        TraceHandler h = agentInstance.getTracer().getHandler();
+
+        // Sample only returns
+        setField(h, "tunSampleCnt", Integer.MAX_VALUE);
+        MainSubmitter.traceEnter(m[0]);
+        h.traceBegin(symbols.symbolId("TEST"), 0, 0);
+        MainSubmitter.traceEnter(m[1]);
+        MainSubmitter.traceEnter(m[2]);
+        for (int i = 0; i < 3; i++) {
+            setField(h, "tunSampleCnt", 0);
+            MainSubmitter.traceReturn();
+        }
+
+        TraceTuningStats ts = getField(h, "tunStats");
+        MethodRankMap costs = new MethodRankMap(), counts = new MethodRankMap();
+        ts.drainSamplesTo(costs, counts);
+
+        assertEquals(3, ts.getSampleCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("one return sample of method " + i, 1, counts.get(m[i]));
+        }
+    }
+}
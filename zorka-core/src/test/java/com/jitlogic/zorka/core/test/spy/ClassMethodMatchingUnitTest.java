@@ -18,7 +18,9 @@ package com.jitlogic.zorka.core.test.spy;
 
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.AgentConfig;
+import com.jitlogic.zorka.core.spy.ClassMatchIndex;
 import com.jitlogic.zorka.core.spy.PatternMatcherSet;
+import com.jitlogic.zorka.core.spy.SpyDefinition;
 import com.jitlogic.zorka.core.spy.SpyLib;
 import com.jitlogic.zorka.core.spy.SpyMatcherSet;
 import com.jitlogic.zorka.core.test.spy.support.*;
@@ -31,7 +33,10 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.SM_NOARGS;
 
@@ -313,4 +318,68 @@ public class ClassMethodMatchingUnitTest extends ZorkaFixture {
         assertTrue(sms.classMatch(TestClass2.class, true));
     }
 
+
+    @Test
+    public void testExtractLiteralPrefixesFromClassPatterns() {
+        assertEquals("com.myapp.", ClassMatchIndex.literalPrefix(spy.byMethod("com.myapp.**", "*").getClassPattern()));
+        assertEquals("com.myapp.Some$Inner", ClassMatchIndex.literalPrefix(spy.byMethod("com.myapp.Some$Inner", "*").getClassPattern()));
+        assertEquals("", ClassMatchIndex.literalPrefix(spy.byMethod("**", "*").getClassPattern()));
+        assertEquals("$Proxy", ClassMatchIndex.literalPrefix(spy.byMethod("$Proxy*", "*").getClassPattern()));
+        assertEquals("com.", ClassMatchIndex.literalPrefix(Pattern.compile("^com\\.s?ome.*")));
+        assertEquals("com.a", ClassMatchIndex.literalPrefix(Pattern.compile("com\\.a+b")));
+        assertEquals("", ClassMatchIndex.literalPrefix(Pattern.compile("com\\.a|org\\.b")));
+        assertEquals("org.", ClassMatchIndex.literalPrefix(Pattern.compile("org\\.\\w+")));
+        assertEquals("", ClassMatchIndex.literalPrefix(Pattern.compile("com\\.a", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void testClassMatchIndexGivesSameResultsAsMatcherSets() {
+        List<SpyDefinition> sdefs = Arrays.asList(
+            spy.instance("a").include(spy.byMethod("com.myapp.**", "*")),
+            spy.instance("b").include(spy.byMethod("com.myapp.web.*", "*"), spy.byMethod("org.lib.Clazz", "*")),
+            spy.instance("c").include(spy.byMethod("com.myapp.web.**", "*").exclude().priority(10),
+                spy.byMethod("com.myapp.**", "*")),
+            spy.instance("d").include(spy.byInterface("javax.servlet.Servlet")),
+            spy.instance("e").include(spy.byMethod("~.*Handler", "*")),
+            spy.instance("f"));
+
+        PatternMatcherSet tms = new PatternMatcherSet(SpyMatcher.fromString("com.myapp.web.**"),
+            SpyMatcher.fromString("com.myapp.**").forTrace().priority(1000),
+            SpyMatcher.fromString("org.lib.**").exclude().priority(10));
+
+        ClassMatchIndex index = new ClassMatchIndex(sdefs, tms);
+
+        for (String cn : Arrays.asList("com.myapp.Main", "com.myapp.web.Ctrl", "com.myapp.web.x.Ctrl",
+            "org.lib.Clazz", "org.lib.ClazzHandler", "org.other.Foo", "com", "", "com.myapp")) {
+            List<SpyDefinition> expected = new ArrayList<SpyDefinition>();
+            for (SpyDefinition sdef : sdefs) {
+                if (sdef.getMatcherSet().classMatch(cn)) {
+                    expected.add(sdef);
+                }
+            }
+            List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+            assertEquals(cn, tms.classMatch(cn), index.match(cn, found));
+            assertEquals(cn, expected, found);
+        }
+    }
+
+    @Test
+    public void testClassMatchIndexLookupForSelectedClasses() {
+        SpyDefinition sd1 = spy.instance("a").include(spy.byMethod("com.myapp.**", "*"));
+        SpyDefinition sd2 = spy.instance("b").include(spy.byMethod("com.myapp.web.**", "*").exclude().priority(10),
+            spy.byMethod("com.**", "*"));
+        ClassMatchIndex index = new ClassMatchIndex(Arrays.asList(sd1, sd2), null);
+
+        List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+        assertFalse(index.match("com.myapp.web.Ctrl", found));
+        assertEquals(Arrays.asList(sd1), found);
+
+        found.clear();
+        index.match("com.other.Foo", found);
+        assertEquals(Arrays.asList(sd2), found);
+
+        found.clear();
+        index.match("org.other.Foo", found);
+        assertEquals(0, found.size());
+    }
 }
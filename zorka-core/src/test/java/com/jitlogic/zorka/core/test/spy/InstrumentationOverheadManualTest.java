@@ -0,0 +1,75 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.instantiate;
+
+/**
+ * Measures overhead of instrumented method calls (spy probes, tracer probes and both).
+ * Run manually.
+ */
+public class InstrumentationOverheadManualTest extends BytecodeInstrumentationFixture {
+
+    private static final String TCLASS9 = "com.jitlogic.zorka.core.test.spy.support.TestClass9";
+
+    private static final int WARMUP = 2000000, ITERATIONS = 10000000;
+
+    @Before
+    public void useRealTracer() {
+        // Test trace builder records all events, real tracer handler only tracks method stack outside of traces
+        MainSubmitter.setTracer(agentInstance.getTracer());
+    }
+
+    private void benchmark(String name, Runnable r) {
+        for (int i = 0; i < WARMUP; i++) {
+            r.run();
+        }
+
+        long t0 = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            r.run();
+        }
+
+        long t1 = System.nanoTime();
+
+        System.out.println(String.format("%s: %.1f ns/call", name, (double) (t1 - t0) / ITERATIONS));
+    }
+
+    @Test
+    public void benchmarkPlainMethod() throws Exception {
+        benchmark("plain", (Runnable) instantiate(engine, TCLASS9));
+    }
+
+    @Test
+    public void benchmarkSpyProbes() throws Exception {
+        agentInstance.getTracer().setTraceSpyMethods(false);
+        engine.add(spy.instrument("bench")
+            .onEnter(spy.fetchArg("TAG", 1))
+            .onSubmit(spy.tdiff("T", "T1", "T2"))
+            .include(spy.byMethod(TCLASS9, "work")));
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(engine));
+        benchmark("spy", (Runnable) instantiate(engine, TCLASS9));
+    }
+
+    @Test
+    public void benchmarkTracerProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS9, "work"));
+        benchmark("tracer", (Runnable) instantiate(engine, TCLASS9));
+    }
+
+    @Test
+    public void benchmarkSpyAndTracerProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS9, "work"));
+        engine.add(spy.instrument("bench")
+            .onEnter(spy.fetchArg("TAG", 1))
+            .onSubmit(spy.tdiff("T", "T1", "T2"))
+            .include(spy.byMethod(TCLASS9, "work")));
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(engine));
+        benchmark("spy+tracer", (Runnable) instantiate(engine, TCLASS9));
+    }
+}
@@ -0,0 +1,79 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.tuner.MethodRankMap;
+import com.jitlogic.zorka.core.spy.tuner.TraceTuningStats;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MethodRankMapUnitTest {
+
+    @Test
+    public void testAddAndGetRanks() {
+        MethodRankMap m = new MethodRankMap();
+
+        m.add(1, 10);
+        m.add(1, 5);
+        m.add(1000000, 3);
+        m.add(0, 100);
+
+        assertEquals(15, m.get(1));
+        assertEquals(3, m.get(1000000));
+        assertEquals(0, m.get(2));
+        assertEquals(0, m.get(0));
+        assertEquals(2, m.size());
+    }
+
+
+    @Test
+    public void testGrowAndShrink() {
+        MethodRankMap m = new MethodRankMap();
+
+        for (int mid = 1; mid <= 100000; mid++) {
+            m.add(mid * 7, mid);
+        }
+
+        assertEquals(100000, m.size());
+        for (int mid = 1; mid <= 100000; mid++) {
+            assertEquals(mid, m.get(mid * 7));
+        }
+
+        int sum = 0;
+        for (int s = 0; s < m.capacity(); s++) {
+            if (m.midAt(s) != 0) {
+                sum++;
+            }
+        }
+        assertEquals(100000, sum);
+
+        m.clear();
+        assertEquals(0, m.size());
+        assertEquals(0, m.get(7));
+
+        m.add(7, 1);
+        m.clear();
+        assertEquals("mostly empty map should shrink", 1024, m.capacity());
+    }
+
+
+    @Test
+    public void testDrainTuningStats() {
+        TraceTuningStats ts = new TraceTuningStats();
+        MethodRankMap m = new MethodRankMap();
+
+        ts.markRank(5, 1);
+        ts.markRank(5, 1);
+        ts.markRank(2053, 3);
+        ts.setCalls(5);
+
+        ts.drainTo(m);
+
+        assertEquals(2, m.get(5));
+        assertEquals(3, m.get(2053));
+        assertEquals(0, ts.getCalls());
+
+        for (long l : ts.getStats()) {
+            assertEquals(0, l);
+        }
+    }
+}
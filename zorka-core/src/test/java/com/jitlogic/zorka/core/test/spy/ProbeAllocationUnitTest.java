@@ -0,0 +1,132 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyMethodVisitor;
+import com.jitlogic.zorka.core.spy.SpyProbe;
+import com.jitlogic.zorka.core.test.spy.support.TestCollector;
+import com.jitlogic.zorka.core.test.spy.support.TestSpyTransformer;
+import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.instantiate;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+
+public class ProbeAllocationUnitTest extends BytecodeInstrumentationFixture {
+
+    private static final String TCLASS9 = "com.jitlogic.zorka.core.test.spy.support.TestClass9";
+
+    private static final int WARMUP = 20000, ITERATIONS = 100000;
+
+    @Before
+    public void checkAllocationCounters() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported());
+        // Only spy probes are measured here
+        agentInstance.getTracer().setTraceSpyMethods(false);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private SpyDefinition sdef() {
+        return spy.instrument("alloc")
+            .onEnter(spy.fetchArg("THIS", 0), spy.fetchArg("TAG", 1))
+            .onSubmit(spy.tdiff("T", "T1", "T2"), spy.put("X", "x"))
+            .include(spy.byMethod(TCLASS9, "work"));
+    }
+
+    private long bytesPerCall(TestSpyTransformer engine) throws Exception {
+        engine.add(sdef());
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(engine));
+
+        Runnable r = (Runnable) instantiate(engine, TCLASS9);
+
+        for (int i = 0; i < WARMUP; i++) {
+            r.run();
+        }
+
+        long a0 = allocatedBytes();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            r.run();
+        }
+
+        return (allocatedBytes() - a0) / ITERATIONS;
+    }
+
+    @Test
+    public void testProbesWithFewArgsDoNotAllocate() throws Exception {
+        // Allow for some noise (eg. JIT, allocation sampling), array probes allocate at least 32 bytes per call
+        assertTrue("should not allocate argument arrays nor boxed time stamps", bytesPerCall(engine) < 16);
+    }
+
+    @Test
+    public void testLegacyArrayProbesAllocate() throws Exception {
+        config.setCfg("zorka.spy.submit.arrays", "yes");
+        TestSpyTransformer arrayEngine = new TestSpyTransformer(
+            agentInstance.getSymbolRegistry(),
+            agentInstance.getTracer(),
+            agentInstance.getZorkaAgent(),
+            config,
+            agentInstance.getRetransformer());
+        assertTrue("should allocate argument arrays and boxed time stamps", bytesPerCall(arrayEngine) >= 32);
+    }
+
+    @Test
+    public void testUnboxedTimeStampsAreVisibleInRecords() throws Exception {
+        TestCollector col = new TestCollector();
+        engine.add(spy.instrument("alloc")
+            .onEnter(spy.fetchArg("TAG", 1))
+            .onSubmit(spy.tdiff("T", "T1", "T2"), col)
+            .include(spy.byMethod(TCLASS9, "work")));
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(engine));
+
+        ((Runnable) instantiate(engine, TCLASS9)).run();
+
+        assertEquals(1, col.size());
+        assertEquals("foo", col.get(0).get("TAG"));
+        assertTrue(col.get(0).get("T1") instanceof Long);
+        assertTrue(col.get(0).get("T2") instanceof Long);
+        assertEquals((Long) col.get(0).get("T2") - (Long) col.get(0).get("T1"), col.get(0).get("T"));
+    }
+
+    @Test
+    public void testLongValueProbeWithoutEmitLongFallsBackToUnboxing() throws Exception {
+        SpyProbe probe = new SpyProbe("T1") {
+            @Override
+            public int emit(SpyMethodVisitor mv, int stage, int opcode) {
+                mv.visitLdcInsn(42L);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
+                return 2;
+            }
+            @Override
+            public boolean hasLongValue() {
+                return true;
+            }
+        };
+
+        TestCollector col = new TestCollector();
+        engine.add(spy.instance("alloc")
+            .onEnter(probe, spy.fetchArg("TAG", 1))
+            .onSubmit(col)
+            .include(spy.byMethod(TCLASS9, "work")));
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(engine));
+
+        ((Runnable) instantiate(engine, TCLASS9)).run();
+
+        assertEquals(1, col.size());
+        assertEquals(42L, col.get(0).get("T1"));
+        assertEquals("foo", col.get(0).get("TAG"));
+    }
+}
@@ -0,0 +1,182 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.chunksCount;
+import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.decodeTrace;
+import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.mkString;
+import static org.junit.Assert.*;
+
+public class STraceBufManagerUnitTest {
+
+    private static STraceBufChunk chain(STraceBufChunk...chunks) {
+        for (int i = 0; i < chunks.length-1; i++) {
+            chunks[i].setNext(chunks[i+1]);
+        }
+        return chunks[0];
+    }
+
+    @Test
+    public void testAllocateAndRecycleChunksViaLocalCache() {
+        STraceBufManager bm = new STraceBufManager(128, 4, 2);
+
+        STraceBufChunk c1 = bm.get(), c2 = bm.get();
+        assertEquals(2, bm.getnAllocs());
+
+        bm.put(chain(c1, c2));
+        assertEquals(0, bm.getNChunks());
+        assertNull(c1.getNext());
+
+        STraceBufChunk c3 = bm.get();
+        assertTrue(c3 == c1 || c3 == c2);
+        assertEquals(2, bm.getnAllocs());
+        assertEquals(3, bm.getNGets());
+        assertEquals(1, bm.getNputs());
+    }
+
+    @Test
+    public void testOverflowLocalCacheToGlobalPoolAndDrop() {
+        STraceBufManager bm = new STraceBufManager(128, 2, 1);
+
+        STraceBufChunk[] c = new STraceBufChunk[5];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = bm.get();
+        }
+
+        bm.put(chain(c));
+
+        assertEquals(2, bm.getNChunks());
+        assertEquals(2, bm.getnDrops());
+
+        for (int i = 0; i < 3; i++) {
+            STraceBufChunk ch = bm.get();
+            assertEquals(0, ch.getPosition());
+            assertNull(ch.getNext());
+        }
+
+        assertEquals(0, bm.getNChunks());
+        assertEquals(5, bm.getnAllocs());
+    }
+
+    @Test
+    public void testWithoutLocalCache() {
+        STraceBufManager bm = new STraceBufManager(128, 4, 0);
+
+        STraceBufChunk c1 = bm.get();
+        bm.put(c1);
+        assertEquals(1, bm.getNChunks());
+        assertSame(c1, bm.get());
+        assertEquals(0, bm.getNChunks());
+    }
+
+    @Test
+    public void testOffHeapArenaChunks() {
+        STraceBufManager bm = new STraceBufManager(128, 2, 2, true);
+
+        assertTrue(bm.isOffHeap());
+        assertEquals(2, bm.getNChunks());
+
+        STraceBufChunk c1 = bm.get(), c2 = bm.get(), c3 = bm.get();
+        assertTrue(c1.isOffHeap());
+        assertNull(c1.getBuffer());
+        assertEquals(128, c1.capacity());
+        assertTrue(c2.isOffHeap());
+        assertFalse("Heap chunk when arena is exhausted.", c3.isOffHeap());
+        assertEquals(1, bm.getnAllocs());
+
+        bm.put(chain(c1, c2, c3));
+        assertEquals(2, bm.getNChunks());
+        assertEquals(1, bm.getnDrops());
+    }
+
+    @Test
+    public void testTraceToOffHeapChunks() throws Exception {
+        STraceBufManager bm = new STraceBufManager(64, 8, 0, true);
+        TestTraceBufOutput o = new TestTraceBufOutput();
+        TestSTraceHandler r = new TestSTraceHandler(bm, new SymbolRegistry(), o);
+
+        r.setMinimumTraceTime(0);
+        r.traceEnter(10, 1<<16);
+        r.traceBegin(1, 11, 0);
+        r.newAttr(-1, 42, mkString(100));
+        r.traceReturn(9<<16);
+
+        assertTrue(o.getChunks().isOffHeap());
+        assertTrue(chunksCount(o.getChunks()) > 1);
+
+        STraceBufChunk heapChunks = null;
+        for (STraceBufChunk c = o.getChunks(); c != null; c = c.getNext()) {
+            STraceBufChunk hc = new STraceBufChunk(c.capacity());
+            c.copyTo(hc.getBuffer(), 0);
+            hc.setPosition(c.getPosition());
+            hc.setExtOffset(c.getExtOffset());
+            hc.setNext(heapChunks);
+            heapChunks = hc;
+        }
+
+        assertEquals(decodeTrace(heapChunks), decodeTrace(o.getChunks()));
+        assertEquals(10L, ((Map)decodeTrace(o.getChunks())).get("method"));
+
+        ByteBuffer bb = o.getChunks().toByteBuffer();
+        assertTrue(bb.isDirect());
+        assertEquals(o.getChunks().getPosition(), bb.remaining());
+    }
+
+    @Test(expected = ZorkaRuntimeException.class)
+    public void testRejectOffHeapArenaExceedingIntRange() {
+        new STraceBufManager(64 * 1024 * 1024, 64, 0, true);
+    }
+
+
+    @Test(timeout = 30000)
+    public void testConcurrentGetsAndPutsNeverShareChunks() throws Exception {
+        final STraceBufManager bm = new STraceBufManager(16, 8, 1);
+        final int nthreads = 8, niter = 20000;
+        final CountDownLatch latch = new CountDownLatch(nthreads);
+        final AtomicInteger errors = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < nthreads; t++) {
+            final byte tag = (byte)(t+1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < niter; i++) {
+                        STraceBufChunk c1 = bm.get(), c2 = bm.get();
+                        c1.getBuffer()[0] = tag;
+                        c2.getBuffer()[0] = tag;
+                        Thread.yield();
+                        if (c1 == c2 || c1.getBuffer()[0] != tag || c2.getBuffer()[0] != tag) {
+                            errors.incrementAndGet();
+                        }
+                        c1.setNext(c2);
+                        bm.put(c1);
+                    }
+                    latch.countDown();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        latch.await();
+
+        assertEquals(0, errors.get());
+        assertEquals(nthreads * niter * 2, bm.getNGets());
+        assertEquals(nthreads * niter, bm.getNputs());
+        assertTrue(bm.getNChunks() <= 8);
+    }
+}
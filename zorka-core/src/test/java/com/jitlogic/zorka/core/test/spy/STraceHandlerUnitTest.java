@@ -22,6 +22,7 @@ import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
 import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
 import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.spy.stracer.SymbolsScanner;
 import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
 import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
@@ -33,9 +34,12 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static com.jitlogic.zorka.cbor.TextIndexTypeMarkers.*;
 import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.chunksCount;
 import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.decodeTrace;
 import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.mkString;
@@ -508,6 +512,78 @@ public class STraceHandlerUnitTest extends ZorkaFixture {
     }
 
 
+    private static Set<Integer> refs(STraceBufChunk chunks) {
+        Set<Integer> rslt = new HashSet<Integer>();
+        for (STraceBufChunk c = chunks; c != null; c = c.getNext()) {
+            for (int i = 0; i < c.getNRefs(); i++) {
+                rslt.add(c.getRefs()[i]);
+            }
+        }
+        return rslt;
+    }
+
+    private static int ref(int id, int type) {
+        return (id << STraceBufChunk.REF_BITS) | type;
+    }
+
+    @Test
+    public void testRecordSymbolAndMethodRefsInChunks() throws Exception {
+        r.setMinimumTraceTime(0);
+
+        r.traceEnter(10, 1<<16);
+        r.traceBegin(1, 11, 0);
+        r.newAttr(-1, 99, "OJAAA!");
+        r.traceEnter(12, 2<<16);
+        r.traceReturn(8<<16);
+        r.traceReturn(9<<16);
+
+        Set<Integer> refs = refs(o.getChunks());
+        assertTrue(refs.contains(ref(10, STraceBufChunk.REF_METHOD)));
+        assertTrue(refs.contains(ref(12, STraceBufChunk.REF_METHOD)));
+        assertTrue(refs.contains(ref(1, STRING_TYPE)));
+        assertTrue(refs.contains(ref(99, STRING_TYPE)));
+    }
+
+    @Test
+    public void testRecordExceptionSymbolRefs() throws Exception {
+        r.setMinimumTraceTime(0);
+
+        Exception e = new RuntimeException("test");
+        r.traceEnter(10, 1<<16);
+        r.traceBegin(1, 11, 0);
+        r.traceError(e, 9<<16);
+
+        Set<Integer> refs = refs(o.getChunks());
+        StackTraceElement el = e.getStackTrace()[0];
+        assertTrue(refs.contains(ref(symbols.symbolId(RuntimeException.class.getName()), CLASS_TYPE)));
+        assertTrue(refs.contains(ref(symbols.symbolId(el.getClassName()), CLASS_TYPE)));
+        assertTrue(refs.contains(ref(symbols.symbolId(el.getMethodName()), METHOD_TYPE)));
+    }
+
+    @Test
+    public void testGenerateSymbolDefsFromRecordedRefsOnlyOnce() throws Exception {
+        r.setMinimumTraceTime(0);
+
+        int mid = symbols.methodId("com.myapp.SomeClass", "someMethod", "()V");
+        r.traceEnter(mid, 1<<16);
+        r.traceBegin(symbols.symbolId("HTTP"), 11, 0);
+        r.newAttr(-1, symbols.symbolId("URI"), "/");
+        r.traceReturn(9<<16);
+
+        SymbolsScanner scanner = new SymbolsScanner(symbols);
+        scanner.processRefs(o.getChunks());
+        assertTrue(scanner.getPosition() > 0);
+
+        String defs = new String(scanner.getBuf(), 0, scanner.getPosition(), "UTF-8");
+        for (String s : Arrays.asList("com.myapp.SomeClass", "someMethod", "()V", "HTTP", "URI")) {
+            assertTrue("Missing definition of " + s, defs.contains(s));
+        }
+
+        scanner.clear();
+        scanner.processRefs(o.getChunks());
+        assertEquals("All symbols and methods have already been sent.", 0, scanner.getPosition());
+    }
+
     //@Test @Ignore
     public void testFastShortWriter() {
         byte[] b = new byte[4*1024*1024];
@@ -17,6 +17,7 @@
 package com.jitlogic.zorka.core.test.spy;
 
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.*;
 
 
@@ -24,6 +25,11 @@ import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import org.junit.Test;
 
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -112,4 +118,122 @@ public class SpyClassResolverUnitTest extends ZorkaFixture {
         assertNotNull(clazz);
     }
 
+    /** Fresh class loader (not sharing loaded classes with test class loader). */
+    private ClassLoader isolatedLoader() throws Exception {
+        URL url = cl.getResource(RP + "A.class");
+        String base = url.toString().substring(0, url.toString().length() - (RP + "A.class").length());
+        return new URLClassLoader(new URL[] { new URL(base) }, null);
+    }
+
+    @Test
+    public void testSeparateCacheEntriesForClassLoaders() throws Exception {
+        ClassLoader cl2 = isolatedLoader();
+
+        CachedClassInfo i1 = cr.getClassInfo(cl, LP+"C"), i2 = cr.getClassInfo(cl2, LP+"C");
+
+        assertEquals(i1, i2);
+        assertEquals(2, cr.getCacheSize());
+
+        cr.getClassInfo(cl2, LP+"C");
+        assertEquals(1, stats.getMethodCallStatistic("CrvCacheHits").getCalls());
+    }
+
+    @Test
+    public void testEvictEntriesWhenCacheIsFull() throws Exception {
+        SpyClassResolver cr = new SpyClassResolver(stats, 8, null);
+
+        for (String c : new String[] { "A", "B", "C", "D", "E", "I", "J", "K", "L", "M", "X", "Y" }) {
+            assertNotNull(cr.getClassInfo(cl, LP+c));
+        }
+
+        assertTrue(cr.getCacheSize() <= 8);
+        assertTrue(stats.getMethodCallStatistic("CrvCacheEvictions").getCalls() > 0);
+        assertEquals(LP+"A", cr.getCommonSuperClass(cl, LP+"B", LP+"C"));
+    }
+
+    @Test
+    public void testPersistResolvedClassesAndReuseThemAfterRestart() throws Exception {
+        File f = new File(tmpDir, "crv.cache");
+        ClassLoader cl1 = isolatedLoader();
+
+        SpyClassResolver cr1 = new SpyClassResolver(stats, 1024, f);
+        CachedClassInfo ci1 = cr1.getClassInfo(cl1, LP+"E");
+        assertEquals(1, stats.getMethodCallStatistic("CrvBytecodeGets").getCalls());
+        cr1.save();
+        assertTrue(f.isFile());
+
+        MethodCallStatistics stats2 = new MethodCallStatistics();
+        SpyClassResolver cr2 = new SpyClassResolver(stats2, 1024, f);
+        assertEquals(1, cr2.getPersistedSize());
+
+        CachedClassInfo ci2 = cr2.getClassInfo(isolatedLoader(), LP+"E");
+        assertEquals(ci1, ci2);
+        assertEquals(1, stats2.getMethodCallStatistic("CrvPersistentGets").getCalls());
+        assertEquals(0, stats2.getMethodCallStatistic("CrvBytecodeGets").getCalls());
+    }
+
+    @Test
+    public void testCacheHitsForBootstrapClassLoader() {
+        CachedClassInfo i1 = cr.getClassInfo(null, "java.util.ArrayList");
+        assertNotNull(i1);
+        assertEquals("java.util.AbstractList", i1.getSuperclassName());
+
+        assertSame(i1, cr.getClassInfo(null, "java.util.ArrayList"));
+        assertEquals(1, stats.getMethodCallStatistic("CrvCacheHits").getCalls());
+        assertEquals(1, cr.getCacheSize());
+    }
+
+    @Test
+    public void testDoNotReusePersistedEntriesOfModifiedContainers() throws Exception {
+        File f = new File(tmpDir, "crv.cache");
+
+        SpyClassResolver cr1 = new SpyClassResolver(stats, 1024, f);
+        cr1.getClassInfo(isolatedLoader(), LP+"E");
+        cr1.save();
+
+        // Pretend class file had different size when it was persisted
+        String line = new String(ZorkaUtil.slurp(new FileInputStream(f)), "UTF-8");
+        String[] fields = line.split("\t", -1);
+        fields[2] = String.valueOf(Long.parseLong(fields[2]) + 1);
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(ZorkaUtil.join("\t", (Object[])fields).getBytes("UTF-8"));
+        os.close();
+
+        MethodCallStatistics stats2 = new MethodCallStatistics();
+        SpyClassResolver cr2 = new SpyClassResolver(stats2, 1024, f);
+        assertEquals(1, cr2.getPersistedSize());
+
+        assertEquals(LP+"E", cr2.getClassInfo(isolatedLoader(), LP+"E").getClassName());
+        assertEquals(0, stats2.getMethodCallStatistic("CrvPersistentGets").getCalls());
+        assertEquals(1, stats2.getMethodCallStatistic("CrvBytecodeGets").getCalls());
+    }
+
+    @Test
+    public void testDoNotReusePersistedEntriesOfContainersRewrittenInPlace() throws Exception {
+        File dir = new File(tmpDir, "classes"), cf = new File(dir, RP + "E.class");
+        cf.getParentFile().mkdirs();
+        byte[] bytes = ZorkaUtil.slurp(cl.getResourceAsStream(RP + "E.class"));
+        FileOutputStream os = new FileOutputStream(cf);
+        os.write(bytes);
+        os.close();
+        URL[] urls = { dir.toURI().toURL() };
+
+        SpyClassResolver cr = new SpyClassResolver(stats, 1024, new File(tmpDir, "crv.cache"));
+        cr.getClassInfo(new URLClassLoader(urls, null), LP+"E");
+        assertEquals(1, cr.getPersistedSize());
+
+        // Redeploy class in place (new loader, same path)
+        os = new FileOutputStream(cf);
+        os.write(bytes);
+        os.close();
+        assertTrue(cf.setLastModified(cf.lastModified() + 10000));
+
+        assertEquals(LP+"E", cr.getClassInfo(new URLClassLoader(urls, null), LP+"E").getClassName());
+        assertEquals(0, stats.getMethodCallStatistic("CrvPersistentGets").getCalls());
+        assertEquals(2, stats.getMethodCallStatistic("CrvBytecodeGets").getCalls());
+
+        cr.getClassInfo(new URLClassLoader(urls, null), LP+"E");
+        assertEquals(1, stats.getMethodCallStatistic("CrvPersistentGets").getCalls());
+    }
+
 }
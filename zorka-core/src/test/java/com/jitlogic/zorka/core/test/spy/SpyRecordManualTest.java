@@ -0,0 +1,139 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
+import com.jitlogic.zorka.core.spy.SpyContext;
+import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyProbe;
+import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.test.spy.support.TestSpyTransformer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import static com.jitlogic.zorka.core.spy.SpyLib.*;
+
+/**
+ * Measures per-call overhead of dispatching spy records through processing chains similar to
+ * ones defined in sql.bsh and http.bsh. Compares slot-based pooled records with old approach
+ * (hash map created for each call). Run manually.
+ */
+public class SpyRecordManualTest extends ZorkaFixture {
+
+    private static final int WARMUP = 500000, ITERATIONS = 2000000;
+
+    private TestSpyTransformer engine;
+    private DispatchingSubmitter submitter;
+
+    @Before
+    public void initEngine() {
+        engine = new TestSpyTransformer(
+            agentInstance.getSymbolRegistry(),
+            agentInstance.getTracer(),
+            agentInstance.getZorkaAgent(),
+            agentInstance.getConfig(),
+            agentInstance.getRetransformer());
+        submitter = new DispatchingSubmitter(engine);
+    }
+
+    private SpyDefinition sqlChain() {
+        return spy.instrument("sql")
+            .onEnter(spy.fetchArg("THIS", 0), spy.fetchArg("SQL", 1),
+                spy.format("DB", "${THIS.class.simpleName}"))
+            .onError(spy.fetchError("ERR"))
+            .onSubmit(spy.strTime("TIME"), spy.subchain(
+                spy.zorkaStats("java", "zorka:type=ZorkaStats,name=SqlStats", "stats", "ALL"),
+                spy.zorkaStats("java", "zorka:type=ZorkaStats,name=SqlStats", "stats", "${DB}")));
+    }
+
+    private SpyDefinition httpChain() {
+        return spy.instrument("http")
+            .onEnter(spy.fetchArg("REQ", 1), spy.fetchArg("RESP", 2),
+                spy.format("URI", "${REQ}"))
+            .onReturn(spy.put("ERR", ""))
+            .onError(spy.fetchError("EX"), spy.put("ERR", "YES"))
+            .onSubmit(spy.strTime("TIME"),
+                spy.zorkaStats("java", "zorka:type=ZorkaStats,name=HttpStats", "stats", "ALL"),
+                spy.zorkaStats("java", "zorka:type=ZorkaStats,name=HttpStats", "byUri", "${URI}"));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void runSubmitter(int n, int id, Object[] enterVals) {
+        for (int i = 0; i < n; i++) {
+            submitter.submit(ON_ENTER, id, SF_NONE, enterVals);
+            submitter.submit(ON_RETURN, id, SF_FLUSH, new Object[] { (long)i * 1000 });
+        }
+    }
+
+    private static void process(SpyDefinition sdef, int stage, Map<String,Object> rec) {
+        rec.put(".STAGES", (Integer) rec.get(".STAGES") | (1 << stage));
+        rec.put(".STAGE", stage);
+        List<SpyProcessor> processors = sdef.getProcessors(stage);
+        for (int i = 0; i < processors.size(); i++) {
+            processors.get(i).process(rec);
+        }
+    }
+
+    /** Emulates previous implementation (new hash map for each call, string keyed access). */
+    private void runMaps(int n, SpyContext ctx, Object[] enterVals) {
+        SpyDefinition sdef = ctx.getSpyDefinition();
+        List<SpyProbe> ep = sdef.getProbes(ON_ENTER), rp = sdef.getProbes(ON_RETURN);
+        for (int i = 0; i < n; i++) {
+            Map<String,Object> rec = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+            for (int j = 0; j < ep.size(); j++) {
+                rec.put(ep.get(j).getDstField(), enterVals[j]);
+            }
+            process(sdef, ON_ENTER, rec);
+            Object[] rv = new Object[] { (long)i * 1000 };
+            for (int j = 0; j < rp.size(); j++) {
+                rec.put(rp.get(j).getDstField(), rv[j]);
+            }
+            process(sdef, ON_RETURN, rec);
+            process(sdef, ON_SUBMIT, rec);
+        }
+    }
+
+    private void benchmark(String name, SpyDefinition sdef, Object[] enterVals) {
+        sdef = engine.add(sdef);
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "com.myapp.SomeClass", "execute", "()V", 1));
+
+        runMaps(WARMUP, ctx, enterVals);
+        long a0 = allocatedBytes(), t0 = System.nanoTime();
+        runMaps(ITERATIONS, ctx, enterVals);
+        long t1 = System.nanoTime(), a1 = allocatedBytes();
+
+        runSubmitter(WARMUP, ctx.getId(), enterVals);
+        long a2 = allocatedBytes(), t2 = System.nanoTime();
+        runSubmitter(ITERATIONS, ctx.getId(), enterVals);
+        long t3 = System.nanoTime(), a3 = allocatedBytes();
+
+        System.out.println(name + " hash map records: " + ((t1 - t0) / ITERATIONS) + " ns/call, "
+            + ((a1 - a0) / ITERATIONS) + " bytes/call");
+        System.out.println(name + " slot records:     " + ((t3 - t2) / ITERATIONS) + " ns/call, "
+            + ((a3 - a2) / ITERATIONS) + " bytes/call");
+    }
+
+    @Test
+    public void benchmarkRecordOverhead() {
+        benchmark("bare", spy.instrument("bare").onEnter(spy.fetchArg("THIS", 0), spy.fetchArg("SQL", 1))
+            .onSubmit(spy.put("DB", "db")), new Object[] { 0L, this, "select 1 from dual" });
+    }
+
+    @Test
+    public void benchmarkSqlChain() {
+        benchmark("sql", sqlChain(), new Object[] { 0L, this, "select 1 from dual" });
+    }
+
+    @Test
+    public void benchmarkHttpChain() {
+        benchmark("http", httpChain(), new Object[] { 0L, "/some/uri", "resp" });
+    }
+}
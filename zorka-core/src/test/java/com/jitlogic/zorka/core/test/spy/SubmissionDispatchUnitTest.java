@@ -23,11 +23,13 @@ import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyRecord;
 import com.jitlogic.zorka.core.spy.SpySubmitter;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -106,7 +108,71 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
     }
 
 
-    // TODO test if SpyRecord marks stages properly
+    @Test
+    public void testSubmissionStagesAreMarkedInRecord() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+
+        Map<String, Object> sr = collector.get(0);
+        assertEquals(ON_SUBMIT, sr.get(".STAGE"));
+        assertEquals((1 << ON_ENTER) | (1 << ON_RETURN) | (1 << ON_SUBMIT), sr.get(".STAGES"));
+        assertSame(ctx, sr.get(".CTX"));
+        assertEquals(1L, sr.get("T"));
+    }
+
+
+    @Test
+    public void testSlotBasedRecordMapView() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instance("x").onEnter(spy.fetchArg("A", 0), spy.fetchArg("B", 1), collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
 
-    // TODO test submission stages are marked by DispatchingSubmitter
+        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{"a", null});
+
+        Map<String, Object> sr = collector.get(0);
+        assertTrue(sr instanceof SpyRecord);
+        assertEquals("a", sr.get("A"));
+        assertTrue("Null value is still present", sr.containsKey("B"));
+        assertFalse(sr.containsKey("C"));
+        assertEquals(5, sr.size());
+
+        sr.put("C", 42);
+        assertEquals(42, sr.get("C"));
+        assertEquals(42, new HashMap<String, Object>(sr).get("C"));
+
+        sr.remove("A");
+        assertNull(sr.get("A"));
+        assertEquals(5, sr.size());
+        assertEquals(5, new HashMap<String, Object>(sr).size());
+    }
+
+
+    @Test
+    public void testRecycleRecordsOnlyIfAllProcessorsAreKnown() throws Exception {
+        assertTrue(spy.instrument("x").onSubmit(spy.strTime("S"), spy.subchain(spy.put("A", 1)))
+            .getRecordLayout().isRecyclable());
+        assertFalse(spy.instrument("x").onSubmit(spy.strTime("S"), collector)
+            .getRecordLayout().isRecyclable());
+        assertFalse(spy.instrument("x").onSubmit(spy.subchain(spy.put("A", 1), collector))
+            .getRecordLayout().isRecyclable());
+    }
+
+
+    @Test
+    public void testNestedSubmissionsWithRecycledRecords() throws Exception {
+        ThreadLocal<Object> tl = new ThreadLocal<Object>();
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(spy.tlSet("T", tl)));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        for (int i = 0; i < 3; i++) {
+            submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{10L});
+            submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{20L});
+            submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{25L});
+            assertEquals(5L, tl.get());
+            submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{40L});
+            assertEquals(30L, tl.get());
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.jitlogic.zorka.core.test.spy;
 
+import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
 import com.jitlogic.zorka.core.test.support.CoreTestUtil;
 import org.junit.Assert;
@@ -29,6 +30,7 @@ import static com.jitlogic.zorka.core.test.support.CoreTestUtil.instantiate;
 import static com.jitlogic.zorka.core.test.support.CoreTestUtil.invoke;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixture {
 
@@ -55,8 +57,10 @@ public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixtur
         Map ctxInstances = CoreTestUtil.getField(engine, "ctxInstances");
         assertEquals(0, ctxInstances.size());
 
-        Map ctxById = CoreTestUtil.getField(engine, "ctxById");
-        assertEquals(0, ctxById.size());
+        SpyContext[] ctxById = CoreTestUtil.getField(engine, "ctxById");
+        for (SpyContext ctx : ctxById) {
+            assertNull(ctx);
+        }
     }
 
 
@@ -13,6 +13,7 @@ import org.junit.runners.Parameterized;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.jitlogic.zorka.common.util.ObjectInspector.setField;
 import static com.jitlogic.zorka.core.test.support.CoreTestUtil.getField;
@@ -155,5 +156,40 @@ public class TracerTuningUnitTest extends ZorkaFixture {
 
     }
 
+    @Test
+    public void detCurrentMethodIdUnitTest() throws Exception {
+        assertEquals(0, h.getCurrentMethodId());
+
+        h.traceEnter(m[0], 10);
+        assertEquals(m[0], h.getCurrentMethodId());
+
+        // Inside a trace both tracers keep whole call stack
+        h.traceBegin(symbols.symbolId("TEST"), 10, 0);
+        h.traceEnter(m[1], 20);
+        assertEquals(m[1], h.getCurrentMethodId());
+
+        h.traceReturn(30);
+        assertEquals(m[0], h.getCurrentMethodId());
+
+        h.traceReturn(40);
+        assertEquals(0, h.getCurrentMethodId());
+    }
+
+    @Test
+    public void detQueuedStatsBypassStandardSubmitQueueUnitTest() throws Exception {
+        config.setCfg("tracer.tuner.qlen", "2");
+        TracerTuner t = new TracerTuner(config, symbols, spyRetransformer, agentInstance.getTracerMatcherSet());
+
+        assertNull("standard submit queue should not be allocated", t.getSubmitQueue());
+
+        assertTrue(t.submit(new TraceTuningStats()));
+        assertTrue(t.submit(new TraceTuningStats()));
+        assertFalse("queue is full", t.submit(new TraceTuningStats()));
+
+        t.runCycle();
+        assertEquals(0, ((AtomicInteger) getField(t, "statQueueSize")).get());
+        assertTrue(t.submit(new TraceTuningStats()));
+    }
+
     // TODO debugging messages in TraceTuner class
 }
@@ -0,0 +1,117 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.spy.stracer.STraceHttpOutput;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares throughput of sending traces one by one and in batches. Run manually,
+ * collector is emulated by simple in-process HTTP server.
+ */
+public class ZicoHttpBatchingManualTest extends ZorkaFixture {
+
+    private static final int TRACES = 20000, WARMUP = 2000;
+
+    private STraceBufManager bm = new STraceBufManager(512, TRACES + WARMUP, 0);
+
+    private AtomicLong requests = new AtomicLong();
+
+    private List<STraceBufChunk> traces(int n) {
+        int mid = symbols.methodId("com.myapp.SomeClass", "someMethod", "()V");
+        List<STraceBufChunk> rslt = new ArrayList<STraceBufChunk>(n);
+        for (int i = 0; i < n; i++) {
+            TestTraceBufOutput o = new TestTraceBufOutput();
+            TestSTraceHandler r = new TestSTraceHandler(bm, symbols, o);
+            r.setMinimumTraceTime(0);
+            r.traceEnter(mid, 1<<16);
+            r.traceBegin(symbols.symbolId("HTTP"), 11, 0);
+            r.newAttr(-1, symbols.symbolId("URI"), "/some/uri/" + i);
+            r.traceReturn(9<<16);
+            rslt.add(o.getChunks());
+        }
+        return rslt;
+    }
+
+    private HttpServer server(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                InputStream is = ex.getRequestBody();
+                byte[] buf = new byte[4096];
+                while (is.read(buf) >= 0) { }
+                requests.incrementAndGet();
+                ex.sendResponseHeaders(202, -1);
+                ex.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private long run(int port, String batchSize, List<STraceBufChunk> traces) throws Exception {
+        Map<String,String> conf = new HashMap<String, String>();
+        conf.putAll(ZorkaUtil.<String,String>constMap(
+            "http.url", "http://127.0.0.1:" + port + "/",
+            "agent.id", "123",
+            "sessn.key", "secret",
+            "hostname", "zorka.myapp",
+            "app.name", "myapp",
+            "env.name", "TST",
+            "http.qlen", "" + traces.size(),
+            "http.batch.size", batchSize,
+            "http.batch.linger", "5"));
+        STraceHttpOutput output = new STraceHttpOutput(config, conf, symbols, bm);
+        ObjectInspector.setField(output, "sessionUUID", "S1");
+
+        long t0 = System.nanoTime();
+        output.start();
+        for (STraceBufChunk c : traces) {
+            while (!output.submit(c)) { }
+        }
+        while (output.getStats().getRecords() < traces.size()) {
+            Thread.sleep(1);
+        }
+        long t = System.nanoTime() - t0;
+        output.stop();
+
+        System.out.println("batch.size=" + batchSize + ": " + traces.size() + " traces in " + (t / 1000000) + "ms ("
+            + (traces.size() * 1000000000L / t) + " traces/s), " + output.getStats());
+
+        return t;
+    }
+
+    @Test
+    public void benchmarkSingleVsBatchedRequests() throws Exception {
+        int port = 19640;
+        HttpServer server = server(port);
+        try {
+            run(port, "0", traces(WARMUP));
+            for (String batchSize : new String[] { "0", "16", "64" }) {
+                requests.set(0);
+                run(port, batchSize, traces(TRACES));
+                System.out.println("  collector requests: " + requests.get());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.cbor.CBOR;
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.spy.stracer.STraceHttpOutput;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
+import com.jitlogic.zorka.core.test.support.CoreTestUtil;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.jitlogic.netkit.http.HttpMessage.*;
+import static com.jitlogic.zorka.cbor.TraceDataTags.TAG_TRACE_BATCH;
+import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.mkString;
+import static org.junit.Assert.*;
+
+public class ZicoHttpOutputUnitTest extends ZorkaFixture {
+
+    private STraceBufManager bm = new STraceBufManager(512, 16, 0);
+
+    private int mid;
+
+    @Before
+    public void setUpMethod() {
+        mid = symbols.methodId("com.myapp.SomeClass", "someMethod", "()V");
+    }
+
+    private STraceBufChunk trace() {
+        TestTraceBufOutput o = new TestTraceBufOutput();
+        TestSTraceHandler r = new TestSTraceHandler(bm, symbols, o);
+        r.setMinimumTraceTime(0);
+        r.traceEnter(mid, 1<<16);
+        r.traceBegin(symbols.symbolId("HTTP"), 11, 0);
+        r.traceReturn(9<<16);
+        return o.getChunks();
+    }
+
+    /** Trace spanning multiple small chunks. */
+    private STraceBufChunk longTrace() {
+        STraceBufManager sbm = new STraceBufManager(32, 64, 0);
+        TestTraceBufOutput o = new TestTraceBufOutput();
+        TestSTraceHandler r = new TestSTraceHandler(sbm, symbols, o);
+        r.setMinimumTraceTime(0);
+        r.traceEnter(mid, 1<<16);
+        r.traceBegin(symbols.symbolId("HTTP"), 11, 0);
+        r.newAttr(-1, symbols.symbolId("DATA"), mkString(100));
+        r.traceReturn(9<<16);
+        STraceBufChunk chunks = o.getChunks();
+        assertNotNull("trace should span multiple chunks", chunks.getNext());
+        return chunks;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.duplicate().get(b);
+        return b;
+    }
+
+    private STraceHttpOutput output(String...args) {
+        Map<String,String> conf = new HashMap<String, String>();
+        conf.putAll(ZorkaUtil.<String,String>constMap(
+            "http.url", "http://127.0.0.1:8640/",
+            "agent.id", "123",
+            "sessn.key", "secret",
+            "hostname", "zorka.myapp",
+            "app.name", "myapp",
+            "env.name", "TST",
+            "http.conns", "1"));
+        conf.putAll(ZorkaUtil.<String,String>constMap((Object[])args));
+        STraceHttpOutput output = new STraceHttpOutput(config, conf, symbols, bm);
+        ObjectInspector.setField(output, "httpClient", httpClient);
+        ObjectInspector.setField(output, "sessionUUID", "S1");
+        return output;
+    }
+
+    @Test
+    public void testSendDefinitionsOnlyOnceAndRecycleChunks() {
+        STraceHttpOutput output = output();
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace());
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+        assertEquals(2, output.getStats().getRecords());
+        assertEquals(3, output.getStats().getRequests());
+        assertEquals("Both traces should be pipelined together.", 1, output.getStats().getBatches());
+        assertTrue(output.getStats().getBytes() > 0);
+        assertEquals(2, bm.getNputs());
+    }
+
+    @Test
+    public void testScheduleRetryInsteadOfWaitingAndResendDefinitions() throws Exception {
+        STraceHttpOutput output = output("http.retry.time", "1");
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(500, "ERROR"));
+
+        output.submit(trace());
+        output.runCycle();
+
+        assertEquals(1, output.getRetryQueueSize());
+        assertEquals(1, output.getStats().getRetries());
+        assertEquals(1, output.getStats().getErrors());
+        assertEquals(0, bm.getNputs());
+
+        Thread.sleep(10);
+
+        // Definitions are resent after error, retried trace goes along with new one
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+        assertEquals(0, output.getRetryQueueSize());
+        assertEquals(2, output.getStats().getRecords());
+        assertEquals(2, bm.getNputs());
+    }
+
+    @Test
+    public void testPackTracesIntoSingleBatchRequest() {
+        STraceHttpOutput output = output("http.batch", "yes", "http.batch.size", "4");
+
+        httpClient.expect(POST("/agent/submit/tbt", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace());
+        output.submit(trace());
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+        assertEquals(3, output.getStats().getRecords());
+        assertEquals(1, output.getStats().getRequests());
+        assertEquals(3, bm.getNputs());
+
+        ByteBuffer body = (ByteBuffer) httpClient.getRequest(0).getBodyParts().get(0);
+        assertEquals((byte)(CBOR.TAG_BASE + 24), body.get(0));
+        assertEquals((byte)TAG_TRACE_BATCH, body.get(1));
+        assertEquals("Definitions block followed by three traces",
+            (byte)(CBOR.ARR_BASE + 4), body.get(2));
+    }
+
+    @Test
+    public void testSendAllChunksOfMultiChunkTrace() {
+        STraceHttpOutput output = output();
+        STraceBufChunk trace = longTrace();
+        byte[] expected = STraceHttpOutput.chunksMerge(trace);
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace);
+        output.runCycle();
+
+        httpClient.verify();
+        assertArrayEquals(expected, bytes((ByteBuffer) httpClient.getRequest(1).getBodyParts().get(0)));
+    }
+
+    @Test
+    public void testPackAllChunksOfMultiChunkTraceIntoBatch() {
+        STraceHttpOutput output = output("http.batch", "yes", "http.batch.size", "4");
+        STraceBufChunk trace = longTrace();
+        byte[] expected = STraceHttpOutput.chunksMerge(trace);
+
+        httpClient.expect(POST("/agent/submit/tbt", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace);
+        output.runCycle();
+
+        httpClient.verify();
+        byte[] body = bytes((ByteBuffer) httpClient.getRequest(0).getBodyParts().get(0));
+        String s = new String(body, 0, body.length, Charset.forName("ISO-8859-1"));
+        String e = new String(expected, 0, expected.length, Charset.forName("ISO-8859-1"));
+        assertTrue("batch should contain whole trace", s.endsWith(e));
+    }
+
+    @Test
+    public void testBatchingDisabledByDefault() {
+        STraceHttpOutput output = output("http.batch.size", "4");
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(202, "OK"));
+
+        output.submit(trace());
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+    }
+
+    @Test
+    public void testRetryWholeBatchOnError() {
+        STraceHttpOutput output = output("http.batch", "yes", "http.batch.size", "4", "http.retry.time", "60000");
+
+        httpClient.expect(POST("/agent/submit/tbt", "")).setResponse(RESP(500, "ERROR"));
+
+        output.submit(trace());
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+        assertEquals(2, output.getRetryQueueSize());
+        assertEquals(0, bm.getNputs());
+    }
+
+    @Test
+    public void testDropRecordAfterExceedingRetries() {
+        STraceHttpOutput output = output("http.retries", "0");
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(500, "ERROR"));
+
+        output.submit(trace());
+        output.runCycle();
+
+        assertEquals(0, output.getRetryQueueSize());
+        assertEquals(1, output.getStats().getDrops());
+        assertEquals(1, bm.getNputs());
+    }
+
+    @Test
+    public void testExpireSessionOnResendStatus() throws Exception {
+        STraceHttpOutput output = output("http.retry.time", "60000");
+
+        httpClient.expect(POST("/agent/submit/agd", "")).setResponse(RESP(202, "OK"));
+        httpClient.expect(POST("/agent/submit/trc", "")).setResponse(RESP(412, "RESEND"));
+
+        output.submit(trace());
+        output.runCycle();
+
+        httpClient.verify();
+        assertNull(CoreTestUtil.getField(output, "sessionUUID"));
+        assertEquals(1, output.getRetryQueueSize());
+    }
+
+    @Test(timeout = 10000)
+    public void testSendersFailFastWhileSessionIsReestablished() throws Exception {
+        final STraceHttpOutput output = output("http.retries", "2", "http.retry.time", "200", "http.retry.exp", "2");
+        ObjectInspector.setField(output, "sessionUUID", null);
+
+        for (int i = 0; i < 3; i++) {
+            httpClient.expect(POST("/agent/session", "")).setResponse(RESP(500, "ERROR"));
+        }
+
+        final Exception[] error = new Exception[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    output.newSession();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(100);
+
+        long t0 = System.currentTimeMillis();
+        output.submit(trace());
+        output.runCycle();
+
+        assertTrue("sender should not wait for session retries", System.currentTimeMillis() - t0 < 300);
+        assertEquals(1, output.getRetryQueueSize());
+
+        t.join();
+        httpClient.verify();
+        assertNotNull("session could not be established", error[0]);
+    }
+}
@@ -0,0 +1,14 @@
+package com.jitlogic.zorka.core.test.spy.support;
+
+public class TestClass9 implements Runnable {
+
+    private int calls;
+
+    public void run() {
+        work("foo");
+    }
+
+    public void work(String tag) {
+        calls++;
+    }
+}
@@ -57,6 +57,12 @@ public class TestLSubmitter implements SpySubmitter {
         entries.add(new SubmitEntry(stage, id, submitFlags, vals));
     }
 
+    public void submit(int stage, int id, int submitFlags, long lval, Object[] vals) {
+        Object[] v = ZorkaUtil.copyArray(vals);
+        v[0] = lval;
+        entries.add(new SubmitEntry(stage, id, submitFlags, v));
+    }
+
     public SubmitEntry get(int idx) {
         return entries.get(idx);
     }
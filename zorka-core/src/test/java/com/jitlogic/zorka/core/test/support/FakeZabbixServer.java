@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012-2019 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.support;
+
+import com.jitlogic.zorka.common.util.JSONReader;
+import com.jitlogic.zorka.core.integ.zabbix.ZabbixUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fake zabbix server accepting agent data on loopback interface. Can either close connection
+ * after each response (as zabbix server does) or keep it open for more requests.
+ */
+public class FakeZabbixServer implements Runnable {
+
+    private final ServerSocket ss;
+    private final boolean persistent;
+    private volatile long delay;
+
+    private final AtomicInteger received = new AtomicInteger(0);
+    private final AtomicInteger messages = new AtomicInteger(0);
+    private final AtomicInteger connections = new AtomicInteger(0);
+
+
+    public FakeZabbixServer(boolean persistent) throws Exception {
+        this.ss = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        this.persistent = persistent;
+        Thread t = new Thread(this, "fake-zabbix-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    @Override
+    public void run() {
+        while (!ss.isClosed()) {
+            try {
+                final Socket s = ss.accept();
+                connections.incrementAndGet();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(s);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            } catch (Exception e) {
+                // Server closed
+            }
+        }
+    }
+
+
+    private void handle(Socket s) {
+        try {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            do {
+                byte[] hdr = new byte[13];
+                is.readFully(hdr);
+                long len = 0;
+                for (int i = 0; i < 8; i++) {
+                    len |= (hdr[5 + i] & 0xffL) << (i * 8);
+                }
+                byte[] data = new byte[(int) len];
+                is.readFully(data);
+                Map<String,Object> msg = (Map<String,Object>) new JSONReader().read(new String(data, "UTF-8"));
+                received.addAndGet(((List<Object>) msg.get("data")).size());
+                messages.incrementAndGet();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                s.getOutputStream().write(ZabbixUtils.zbx_format(
+                    "{\"response\":\"success\",\"info\":\"processed: " + ((List<Object>) msg.get("data")).size() + "\"}"));
+                s.getOutputStream().flush();
+            } while (persistent);
+        } catch (EOFException e) {
+            // Client closed connection
+        } catch (Exception e) {
+            // Server closed
+        } finally {
+            try {
+                s.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+
+    public int getPort() {
+        return ss.getLocalPort();
+    }
+
+
+    /** Sets artificial delay before each response (in milliseconds). */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+
+    /** Returns number of results received so far. */
+    public int getReceived() {
+        return received.get();
+    }
+
+
+    /** Returns number of agent data messages received so far. */
+    public int getMessages() {
+        return messages.get();
+    }
+
+
+    /** Returns number of accepted connections. */
+    public int getConnections() {
+        return connections.get();
+    }
+
+
+    public void close() throws Exception {
+        ss.close();
+    }
+}
@@ -167,6 +167,7 @@ public class ZorkaFixture extends CommonFixture {
         TraceHandler.setTuningDefaultExchInterval(TraceHandler.TUNING_DEFAULT_EXCH_INTERVAL);
 
         TraceHandler.setTuningExchangeMinCalls(TraceHandler.TUNING_EXCHANGE_CALLS_DEFV);
+        TraceHandler.setTuningSampleInterval(0);
     }
 
 
@@ -3,5 +3,6 @@ package com.jitlogic.netkit;
 import java.nio.channels.SocketChannel;
 
 public interface BufHandlerFactory {
+    /** Creates input handler for new connection. Returns null if connection should be rejected. */
     BufHandler create(SocketChannel ch);
 }
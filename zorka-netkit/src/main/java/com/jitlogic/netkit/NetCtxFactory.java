@@ -11,5 +11,6 @@ public interface NetCtxFactory {
         }
     };
 
+    /** Creates connection context. Server side factories can return null to reject incoming connection. */
     NetCtx create(SocketChannel ch, BufHandler in, BufHandler out);
 }
@@ -42,6 +42,7 @@ public abstract class NetEngine implements Runnable, BufHandler {
 
     protected Thread thread;
     protected volatile boolean running;
+    protected boolean daemon;
 
     // shared, single thread
     protected ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 64 - 1);
@@ -543,9 +544,15 @@ public abstract class NetEngine implements Runnable, BufHandler {
     public synchronized void start() {
         running = true;
         thread = new Thread(this, threadName);
+        thread.setDaemon(daemon);
         thread.start();
     }
 
+    /** Marks engine thread as daemon thread (must be called before start()). */
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
     protected abstract long getTimeout();
 
     protected void accept(SelectionKey key) {
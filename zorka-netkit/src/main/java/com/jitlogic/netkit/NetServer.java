@@ -27,7 +27,8 @@ public class NetServer extends NetEngine implements Runnable {
         this(threadName, ip, port, new NetCtxFactory() {
             @Override
             public NetCtx create(SocketChannel ch, BufHandler in, BufHandler out) {
-                return new NetCtx(ch, svhFactory.create(ch), out);
+                BufHandler handler = svhFactory.create(ch);
+                return handler != null ? new NetCtx(ch, handler, out) : null;
             }
         }, sslContext);
     }
@@ -49,6 +50,11 @@ public class NetServer extends NetEngine implements Runnable {
                 long t0 = evtAccepts.time();
                 s.configureBlocking(false);
                 NetCtx atta = ctxFactory.create(s, null,this);
+                if (atta == null) {
+                    // connection rejected by context factory
+                    s.close();
+                    continue;
+                }
                 s.register(selector, OP_READ, atta);
                 log.traceNio(key, "accept()", "AFTER");
                 if (sslContext != null) {
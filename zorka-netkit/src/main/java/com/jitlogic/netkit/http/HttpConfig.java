@@ -27,11 +27,13 @@ public class HttpConfig {
     public static final int KEEP_ALIVE = 30;
     public static final int MAX_LINE_SIZE = 32 * 1024;
     public static final int MAX_BODY_SIZE = 8 * 1024 * 1024;
+    public static final int CONNECT_TIMEOUT = 10000;
 
     private int keepAliveTimeout = KEEP_ALIVE;
     private int maxLineSize = MAX_LINE_SIZE;
     private int maxBodySize = MAX_BODY_SIZE;
     private int maxRetries = MAX_RETRIES;
+    private int connectTimeout = CONNECT_TIMEOUT;
 
     private String host;
 
@@ -87,6 +89,14 @@ public class HttpConfig {
         this.maxRetries = maxRetries;
     }
 
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
     public String getHost() {
         return host;
     }
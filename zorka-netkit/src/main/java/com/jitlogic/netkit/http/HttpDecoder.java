@@ -10,7 +10,6 @@ import java.util.regex.Matcher;
 import com.jitlogic.netkit.*;
 import com.jitlogic.netkit.log.Logger;
 import com.jitlogic.netkit.log.LoggerFactory;
-import com.jitlogic.netkit.util.TextUtil;
 
 import static com.jitlogic.netkit.http.HttpProtocol.*;
 import static com.jitlogic.netkit.util.TextUtil.CR;
@@ -41,6 +40,10 @@ public class HttpDecoder implements BufDecoder {
     private int lineBufferIdx = 0;
     private boolean readCR = false;
 
+    /** Body framing read from headers so far (headers can span multiple buffers). */
+    private boolean chunked = false;
+    private String contentLength = null;
+
     private HttpConfig config;
     private final HttpListener listener;
 
@@ -173,12 +176,14 @@ public class HttpDecoder implements BufDecoder {
                     }
                     break;
                 case READ_CHUNK_FOOTER:
-                    readEmptyLine(buffer);
-                    finish(key);
+                    if (readLine(key, buffer) != null) {
+                        finish(key);
+                    }
                     break;
                 case READ_CHUNK_DELIMITER:
-                    readEmptyLine(buffer);
-                    state = HttpDecoderState.READ_CHUNK_SIZE;
+                    if (readLine(key, buffer) != null) {
+                        state = HttpDecoderState.READ_CHUNK_SIZE;
+                    }
                     break;
             }
         }
@@ -190,13 +195,6 @@ public class HttpDecoder implements BufDecoder {
         listener.finish(key);
     }
 
-    private void readEmptyLine(ByteBuffer buffer) {
-        byte b = buffer.get();
-        if (b == TextUtil.CR && buffer.hasRemaining()) {
-            buffer.get(); // should be LF
-        }
-    }
-
     private void readFixedLength(ByteBuffer buffer) {
         int toRead = Math.min(buffer.remaining(), readRemaining);
         buffer.get(content, readCount, toRead);
@@ -208,9 +206,6 @@ public class HttpDecoder implements BufDecoder {
     private void parseHeaders(SelectionKey key, ByteBuffer buffer) {
         String line = readLine(key, buffer);
 
-        boolean chunked = false;
-        String cl = null;
-
         while (line != null && !line.isEmpty()) {
             Matcher m = RE_HEADER.matcher(line);
             if (m.matches()) {
@@ -218,7 +213,7 @@ public class HttpDecoder implements BufDecoder {
                 processHeader(key, k, v);
                 chunked |= H_TRANSFER_ENCODING.equalsIgnoreCase(k) && "chunked".equalsIgnoreCase(v);
                 if (H_CONTENT_LENGTH.equalsIgnoreCase(k)) {
-                    cl = v;
+                    contentLength = v;
                 }
             } else {
                 state = HttpDecoderState.ERROR;
@@ -235,7 +230,7 @@ public class HttpDecoder implements BufDecoder {
         if (chunked) {
             state = HttpDecoderState.READ_CHUNK_SIZE;
         } else {
-            processContentLength(key, cl);
+            processContentLength(key, contentLength);
         }
     }
 
@@ -280,6 +275,8 @@ public class HttpDecoder implements BufDecoder {
         content = null;
         this.lineBufferIdx = 0;
         this.readCR = false;
+        this.chunked = false;
+        this.contentLength = null;
     }
 
     @Override
@@ -1,7 +1,16 @@
 package com.jitlogic.netkit.http;
 
+import java.util.List;
+
 public interface HttpMessageClient {
 
     HttpMessage exec(HttpMessage req);
 
+    /**
+     * Executes several requests at once. Implementations can pipeline them over single connection.
+     * Responses are appended to resps in the same order as requests. If an error occurs, requests
+     * that have no matching response in resps should be considered as not executed.
+     */
+    void execAll(List<HttpMessage> reqs, List<HttpMessage> resps);
+
 }
@@ -28,9 +28,12 @@ import javax.net.SocketFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 
@@ -60,6 +63,9 @@ public class HttpStreamClient implements HttpMessageListener, HttpMessageClient,
 
     private HttpMessage result;
 
+    /** If not null, received messages are appended here (pipelined execution). */
+    private List<HttpMessage> results;
+
     private static EventSink evtConnects = LoggerFactory.getSink("http.client.connects");
     private static EventSink evtCalls = LoggerFactory.getSink("http.client.calls");
 
@@ -117,6 +123,35 @@ public class HttpStreamClient implements HttpMessageListener, HttpMessageClient,
     }
 
 
+    /**
+     * Sends all requests before reading any response (HTTP/1.1 pipelining). Failed calls are not
+     * retried as some of requests might have been already processed by server. Connection is closed
+     * on error, so it will be reestablished on next call.
+     */
+    @Override
+    public void execAll(List<HttpMessage> reqs, List<HttpMessage> resps) {
+
+        if (socket == null || !socket.isConnected()) {
+            connect();
+        }
+
+        try {
+            results = resps;
+            for (HttpMessage req : reqs) {
+                output.submit(new HttpEncoder(config, stream), null, req);
+            }
+            socket.getOutputStream().flush();
+            input.run(reqs.size());
+            evtCalls.call();
+        } catch (Exception e) {
+            close();
+            throw new NetException("Error executing pipelined HTTP calls", e);
+        } finally {
+            results = null;
+        }
+    }
+
+
     private void reconnect() {
         close();
         connect();
@@ -137,9 +172,23 @@ public class HttpStreamClient implements HttpMessageListener, HttpMessageClient,
 
     private void connect() {
         try {
-            socket = socketFactory.createSocket(addr, port);
+            if (tls || socketFactory != SocketFactory.getDefault()) {
+                socket = socketFactory.createSocket();
+            } else {
+                // Channel backed socket, so direct buffers can be written without copying
+                socket = SocketChannel.open().socket();
+            }
+            try {
+                socket.connect(new InetSocketAddress(addr, port), config.getConnectTimeout());
+            } catch (IOException e) {
+                NetkitUtil.close(socket);
+                socket = null;
+                throw e;
+            }
+            // Headers and body are written separately, so Nagle would delay requests until server ACKs them
+            socket.setTcpNoDelay(true);
             input = new HttpStreamInput(config, this, HttpDecoderState.READ_RESP_LINE, socket.getInputStream());
-            stream = new BufStreamOutput(socket.getOutputStream());
+            stream = new BufStreamOutput(socket.getOutputStream(), socket.getChannel());
             output = new HttpMessageHandler(config, null);
             evtConnects.call();
         } catch (IOException e) {
@@ -149,9 +198,21 @@ public class HttpStreamClient implements HttpMessageListener, HttpMessageClient,
     }
 
 
+    /**
+     * Overrides socket factory used to create connections (eg. custom plain or SSL factory).
+     */
+    public void setSocketFactory(SocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+
     @Override
     public void submit(SelectionKey key, HttpMessage message) {
-        this.result = message;
+        if (results != null) {
+            results.add(message);
+        } else {
+            this.result = message;
+        }
     }
 
 
@@ -5,12 +5,19 @@ import com.jitlogic.netkit.NetException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 
 public class HttpStreamInput extends HttpMessageHandler implements HttpListener, Runnable {
 
     private HttpDecoder decoder;
     private InputStream is;
 
+    /** Number of messages decoded in current run. */
+    private int nfinished;
+
+    /** Read buffer. Decoder keeps its state between reads, so messages can be split across them. */
+    private byte[] buf = new byte[1024];
+
     public HttpStreamInput(HttpConfig config, HttpMessageListener listener,
                            HttpDecoderState initialState, InputStream is) {
         super(config, listener);
@@ -18,21 +25,38 @@ public class HttpStreamInput extends HttpMessageHandler implements HttpListener,
         this.is = is;
     }
 
+    @Override
+    public HttpMessageHandler finish(SelectionKey key) {
+        nfinished++;
+        return super.finish(key);
+    }
+
     @Override
     public void run() {
-        byte[] buf = new byte[1024];
+        run(1);
+    }
 
+    /**
+     * Reads and decodes given number of messages from input stream. Messages are passed to listener
+     * in the same order as they arrived, so pipelined responses can be matched with requests.
+     *
+     * @param nmsgs number of messages to read
+     */
+    public void run(int nmsgs) {
+        nfinished = 0;
         try {
-            for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
-                decoder.submit(null, false, ByteBuffer.wrap(buf, 0, n));
-                if (decoder.hasFinished()) {
-                    decoder.reset();
-                    break;
+            while (nfinished < nmsgs) {
+                int n = is.read(buf);
+                if (n < 0) {
+                    throw new NetException("Connection closed after " + nfinished + " of " + nmsgs + " messages.");
                 }
+                decoder.submit(null, false, ByteBuffer.wrap(buf, 0, n));
+            }
+            if (decoder.hasFinished()) {
+                decoder.reset();
             }
         } catch (IOException e) {
             throw new NetException("I/O error", e);
         }
-
     }
 }
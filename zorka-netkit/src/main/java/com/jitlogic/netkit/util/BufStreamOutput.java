@@ -8,13 +8,45 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
 
 public class BufStreamOutput implements BufHandler {
 
+    private static final int XFER_SIZE = 8192;
+
     private OutputStream os;
 
+    /** If not null, direct buffers are written straight to this channel (no copying). */
+    private WritableByteChannel channel;
+
+    /** Transfer buffer used when direct buffer has to be written to plain output stream. */
+    private byte[] xfer;
+
     public BufStreamOutput(OutputStream os) {
+        this(os, null);
+    }
+
+    public BufStreamOutput(OutputStream os, WritableByteChannel channel) {
         this.os = os;
+        this.channel = channel;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        if (buf.hasArray()) {
+            os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else if (channel != null) {
+            os.flush();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } else {
+            if (xfer == null) xfer = new byte[XFER_SIZE];
+            while (buf.hasRemaining()) {
+                int len = Math.min(buf.remaining(), xfer.length);
+                buf.get(xfer, 0, len);
+                os.write(xfer, 0, len);
+            }
+        }
     }
 
     @Override
@@ -26,7 +58,7 @@ public class BufStreamOutput implements BufHandler {
                 } else if (buf == NetCtx.CLOSE) {
                     os.close();
                 } else if (buf != NetCtx.NULL) {
-                    os.write(buf.array(), buf.position(), buf.limit());
+                    write(buf);
                     buf.clear();
                 }
             }
@@ -0,0 +1,185 @@
+package com.jitlogic.netkit.test.integ;
+
+import com.jitlogic.netkit.http.HttpConfig;
+import com.jitlogic.netkit.http.HttpMessage;
+import com.jitlogic.netkit.http.HttpStreamClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pipelined calls over real socket: all requests are written before any response is read.
+ */
+public class HttpStreamClientTest {
+
+    private ServerSocket ss;
+    private Thread thread;
+    private HttpStreamClient client;
+
+    /** Number of requests server has read before it started writing responses. */
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (ss != null) {
+            ss.close();
+        }
+        if (thread != null) {
+            thread.join(5000);
+        }
+    }
+
+
+    private static String readLine(InputStream is) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int b = is.read(); b != '\n'; b = is.read()) {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                os.write(b);
+            }
+        }
+        return os.toString("US-ASCII");
+    }
+
+
+    /** Reads single request and returns its body (or null on end of stream). */
+    private static String readRequest(InputStream is) throws Exception {
+        String line = readLine(is);
+        if (line == null) {
+            return null;
+        }
+        int len = 0;
+        while ((line = readLine(is)) != null && line.length() > 0) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                len = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = new byte[len];
+        for (int pos = 0; pos < len; ) {
+            int n = is.read(body, pos, len - pos);
+            if (n < 0) {
+                return null;
+            }
+            pos += n;
+        }
+        return new String(body, "US-ASCII");
+    }
+
+
+    /**
+     * Starts server reading nreqs requests before sending any response. Responses are written
+     * in small fragments, so client has to assemble them across multiple reads.
+     */
+    private void start(final int nreqs, final int fragment) throws Exception {
+        ss = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!ss.isClosed()) {
+                        Socket s = ss.accept();
+                        connections.incrementAndGet();
+                        InputStream is = s.getInputStream();
+                        OutputStream os = s.getOutputStream();
+                        List<String> bodies = new ArrayList<String>();
+                        do {
+                            bodies.clear();
+                            String body;
+                            while (bodies.size() < nreqs && (body = readRequest(is)) != null) {
+                                bodies.add(body);
+                                received.incrementAndGet();
+                            }
+                            ByteArrayOutputStream resp = new ByteArrayOutputStream();
+                            for (String b : bodies) {
+                                String r = "RE:" + b;
+                                resp.write(("HTTP/1.1 " + (b.startsWith("bad") ? 500 : 200) + " OK\r\n"
+                                    + "Content-Length: " + r.length() + "\r\n\r\n" + r).getBytes("US-ASCII"));
+                            }
+                            byte[] data = resp.toByteArray();
+                            for (int pos = 0; pos < data.length; pos += fragment) {
+                                os.write(data, pos, Math.min(fragment, data.length - pos));
+                                os.flush();
+                            }
+                        } while (bodies.size() == nreqs);
+                        s.close();
+                    }
+                } catch (Exception e) {
+                    // Server socket closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        client = new HttpStreamClient(new HttpConfig(), "http://127.0.0.1:" + ss.getLocalPort());
+    }
+
+
+    private static List<HttpMessage> requests(String prefix, int n) {
+        List<HttpMessage> reqs = new ArrayList<HttpMessage>();
+        for (int i = 0; i < n; i++) {
+            reqs.add(HttpMessage.POST("/submit", (prefix + i).getBytes(), "Content-Type", "text/plain"));
+        }
+        return reqs;
+    }
+
+
+    @Test(timeout = 10000)
+    public void testPipelinedRequestsOverSingleConnection() throws Exception {
+        start(16, 7);
+
+        List<HttpMessage> resps = new ArrayList<HttpMessage>();
+        client.execAll(requests("msg", 16), resps);
+
+        assertEquals("all requests sent before reading responses", 16, received.get());
+        assertEquals(16, resps.size());
+        for (int i = 0; i < 16; i++) {
+            assertEquals(200, resps.get(i).getStatus());
+            assertEquals("RE:msg" + i, resps.get(i).getBodyAsString());
+        }
+
+        // Connection is reused for next batch
+        resps.clear();
+        client.execAll(requests("next", 16), resps);
+        assertEquals(16, resps.size());
+        assertEquals("RE:next15", resps.get(15).getBodyAsString());
+        assertEquals(1, connections.get());
+    }
+
+
+    @Test(timeout = 10000)
+    public void testErrorStatusesReturnedInOrder() throws Exception {
+        start(3, 1024);
+
+        List<HttpMessage> reqs = requests("ok", 3);
+        reqs.set(1, HttpMessage.POST("/submit", "bad1".getBytes(), "Content-Type", "text/plain"));
+
+        List<HttpMessage> resps = new ArrayList<HttpMessage>();
+        client.execAll(reqs, resps);
+
+        assertEquals(3, resps.size());
+        assertEquals(200, resps.get(0).getStatus());
+        assertEquals(500, resps.get(1).getStatus());
+        assertEquals("RE:bad1", resps.get(1).getBodyAsString());
+        assertEquals(200, resps.get(2).getStatus());
+    }
+}
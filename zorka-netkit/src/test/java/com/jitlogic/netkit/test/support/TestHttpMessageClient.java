@@ -29,6 +29,13 @@ public class TestHttpMessageClient implements HttpMessageClient {
         return null;
     }
 
+    @Override
+    public void execAll(List<HttpMessage> reqs, List<HttpMessage> resps) {
+        for (HttpMessage req : reqs) {
+            resps.add(exec(req));
+        }
+    }
+
     public TestHttpMessageMock expect(HttpMessage expectedReq) {
         TestHttpMessageMock mock = new TestHttpMessageMock();
         mock.setExpectedRequest(expectedReq);